@@ -0,0 +1,84 @@
+package cc.coopersoft.keycloak.phone.providers.sender;
+
+import cc.coopersoft.keycloak.phone.providers.representations.DeliveryReport;
+import cc.coopersoft.keycloak.phone.providers.spi.DeliveryReportParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.keycloak.util.JsonSerialization;
+
+import jakarta.ws.rs.core.MediaType;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Reads the Msg91 delivery report webhook: requests, each with the request id the flow answered and a report
+ * per number. Older accounts post it form encoded in a {@code data} field.
+ */
+public class Msg91DeliveryReportParser implements DeliveryReportParser {
+
+    private static final String DELIVERED = "1";
+    // failed, NDNC, rejected by the operator, blocked, rejected, failed by the operator
+    private static final Set<String> FAILED = Set.of("2", "9", "16", "17", "25", "26");
+
+    private static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final ZoneId ZONE = ZoneId.of("Asia/Kolkata");
+
+    @Override
+    public List<DeliveryReport> parse(MediaType mediaType, String body) {
+        String json = body;
+        if (MediaType.APPLICATION_FORM_URLENCODED_TYPE.isCompatible(mediaType)) {
+            json = null;
+            for (String pair : body.split("&")) {
+                if (pair.startsWith("data=")) {
+                    json = URLDecoder.decode(pair.substring(5), StandardCharsets.UTF_8);
+                }
+            }
+            if (json == null) {
+                throw new IllegalArgumentException("data missing");
+            }
+        }
+
+        JsonNode requests;
+        try {
+            requests = JsonSerialization.readValue(json, JsonNode.class);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("not json", e);
+        }
+        Iterable<JsonNode> items = requests.isArray() ? requests : List.of(requests);
+        List<DeliveryReport> reports = new ArrayList<>();
+        for (JsonNode request : items) {
+            String requestId = request.path("requestId").asText(null);
+            if (requestId == null) {
+                throw new IllegalArgumentException("requestId missing");
+            }
+            for (JsonNode report : request.path("report")) {
+                String status = report.path("status").asText();
+                String number = report.path("number").asText(null);
+                if (DELIVERED.equals(status)) {
+                    reports.add(new DeliveryReport(requestId, number, DeliveryReport.Status.DELIVERED, null,
+                        date(report.path("date").asText(null))));
+                } else if (FAILED.contains(status)) {
+                    reports.add(new DeliveryReport(requestId, number, DeliveryReport.Status.FAILED,
+                        report.path("desc").asText(status), null));
+                }
+            }
+        }
+        return reports;
+    }
+
+    private static Instant date(String date) {
+        try {
+            return date == null ? null : LocalDateTime.parse(date, DATE).atZone(ZONE).toInstant();
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+}
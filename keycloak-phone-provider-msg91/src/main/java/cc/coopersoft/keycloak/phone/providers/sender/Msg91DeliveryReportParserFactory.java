@@ -0,0 +1,20 @@
+package cc.coopersoft.keycloak.phone.providers.sender;
+
+import cc.coopersoft.keycloak.phone.providers.spi.DeliveryReportParser;
+import cc.coopersoft.keycloak.phone.providers.spi.DeliveryReportParserProviderFactory;
+import org.keycloak.models.KeycloakSession;
+
+public class Msg91DeliveryReportParserFactory implements DeliveryReportParserProviderFactory {
+
+    private static final Msg91DeliveryReportParser PARSER = new Msg91DeliveryReportParser();
+
+    @Override
+    public DeliveryReportParser create(KeycloakSession session) {
+        return PARSER;
+    }
+
+    @Override
+    public String getId() {
+        return "msg91";
+    }
+}
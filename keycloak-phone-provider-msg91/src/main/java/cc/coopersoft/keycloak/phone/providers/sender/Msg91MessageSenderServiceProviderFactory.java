@@ -6,17 +6,22 @@ import org.keycloak.Config;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
 
+import java.time.Duration;
+
 public class Msg91MessageSenderServiceProviderFactory implements MessageSenderServiceProviderFactory {
 
     private Config.Scope config;
+    private Duration requestTimeout;
+
     @Override
     public MessageSenderService create(KeycloakSession keycloakSession) {
-        return new Msg91SmsSenderService(config, keycloakSession);
+        return new Msg91SmsSenderService(config, keycloakSession, requestTimeout);
     }
 
     @Override
     public void init(Config.Scope config) {
         this.config = config;
+        this.requestTimeout = Duration.ofMillis(config.getLong("requestTimeout", 10000L));
     }
 
     @Override
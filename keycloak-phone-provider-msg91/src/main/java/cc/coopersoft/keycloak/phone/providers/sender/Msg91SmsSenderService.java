@@ -1,24 +1,31 @@
 package cc.coopersoft.keycloak.phone.providers.sender;
 
 import cc.coopersoft.keycloak.phone.providers.exception.MessageSendException;
-import cc.coopersoft.keycloak.phone.providers.spi.FullSmsSenderAbstractService;
+import cc.coopersoft.keycloak.phone.providers.representations.SendResult;
+import cc.coopersoft.keycloak.phone.providers.spi.AsyncHttpSmsSenderAbstractService;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
-import org.apache.http.HttpEntity;
-import org.apache.http.entity.ContentType;
-import org.apache.http.entity.StringEntity;
 import org.eclipse.microprofile.config.ConfigProvider;
 import org.jboss.logging.Logger;
 import org.keycloak.Config;
-import org.keycloak.broker.provider.util.SimpleHttp;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.util.JsonSerialization;
 
 import java.io.IOException;
-import java.util.Random;
-
-public class Msg91SmsSenderService extends FullSmsSenderAbstractService {
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.stream.Collectors;
+
+public class Msg91SmsSenderService extends AsyncHttpSmsSenderAbstractService {
 
     public static final String CONFIG_API_SERVER = "url";
     public static final String CONFIG_ENCODING = "encoding";
@@ -28,8 +35,9 @@ public class Msg91SmsSenderService extends FullSmsSenderAbstractService {
     private final String url;
     private final String authKey;
     private final String templateId;
-    public Msg91SmsSenderService(Config.Scope config, KeycloakSession session) {
-        super(session);
+
+    public Msg91SmsSenderService(Config.Scope config, KeycloakSession session, Duration requestTimeout) {
+        super(session, requestTimeout);
 
         if (config == null) {
             logger.warn("Config is null for Msg91SmsSenderService");
@@ -67,55 +75,61 @@ public class Msg91SmsSenderService extends FullSmsSenderAbstractService {
         }
     }
 
-    @Override
-    public void sendMessage(String phoneNumber, String message) throws MessageSendException {
-        String rawJson =
-                "{\"template_id\":\"" + templateId + "\","
+    /**
+     * The flow takes a recipient per message, each with its own template variables.
+     */
+    private String requestBody(List<TextMessage> messages) {
+        return "{\"template_id\":\"" + templateId + "\","
                         + "\"short_url\":\"0\","
                         + "\"realTimeResponse\":\"1\","
-                        + "\"recipients\":[{"
-                        +   "\"mobiles\":\"" + phoneNumber + "\","
-                        +   "\"number\":\"" + message + "\""
-                        + "}]}";
-
-        HttpEntity entity = new StringEntity(
-                rawJson,
-                ContentType.APPLICATION_JSON
-        );
-
-        System.out.println("Msg91 RAW JSON = " + rawJson);
+                        + "\"recipients\":["
+                        + messages.stream().map(m -> "{"
+                        +   "\"mobiles\":\"" + m.phoneNumber() + "\","
+                        +   "\"number\":\"" + m.message() + "\""
+                        + "}").collect(Collectors.joining(","))
+                        + "]}";
+    }
 
+    @Override
+    public CompletionStage<SendResult> sendMessageAsync(String phoneNumber, String message) {
+        return sendMessageBatch(List.of(new TextMessage(phoneNumber, message))).get(0);
+    }
 
-        try {
-            SimpleHttp.Response res =
-                    SimpleHttp.doPost("https://control.msg91.com/api/v5/flow", session)
-                            .header("authkey", authKey)                 // 🔥 EXACT
-                            .header("accept", "application/json")
-                            .header("content-type", "application/json")
-                            .entity(entity)
-                            .asResponse();
-            if (res.getStatus() >= 200 && res.getStatus() <= 299) {
-
-                logger.debugv("Sent SMS to {0} with contents: {1}. Server responded with: {2}", phoneNumber, message,
-                        res.asString());
-            } else {
-                logger.errorv("Failed to deliver SMS to {0} with contents: {1}. Server responded with: {2}",
-                        phoneNumber,
-                        message, res.asString());
-                throw new MessageSendException("Bulksms API responded with an error.", new Exception(res.asString()));
+    @Override
+    public List<CompletionStage<SendResult>> sendMessageBatch(List<TextMessage> messages) {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(url))
+                .header("authkey", authKey)
+                .header("accept", "application/json")
+                .header("content-type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(requestBody(messages)));
+        long start = System.nanoTime();
+        CompletableFuture<SendResult> sent = send(request).handle((res, ex) -> {
+            if (ex != null) {
+                logger.errorv(ex, "Failed to send {0} SMS. An error occurred while communicating with SMS service {1}.",
+                        messages.size(), url);
+                throw new CompletionException(new MessageSendException("Error while communicating with Msg91 API.", ex));
             }
-        } catch (IOException ex) {
-            logger.errorv(ex,
-                    "Failed to send SMS to {0} with contents: {1}. An IOException occurred while communicating with SMS service {0}.",
-                    phoneNumber, message, url);
-            throw new MessageSendException("Error while communicating with Bulksms API.", ex);
-        }
-
-        logger.info(String.format("To: %s >>> %s", phoneNumber, message));
+            if (!isSuccess(res)) {
+                logger.errorv("Failed to deliver {0} SMS. Server responded with: {1}", messages.size(), res.body());
+                throw new CompletionException(new MessageSendException("Msg91 API responded with an error.",
+                        new Exception(res.body())));
+            }
+            logger.debugv("Sent {0} SMS. Server responded with: {1}", messages.size(), res.body());
+            return new SendResult(SendResult.Status.ACCEPTED, requestId(res.body()),
+                    Duration.ofNanos(System.nanoTime() - start));
+        });
+        // one request id covers every recipient of the flow
+        return Collections.nCopies(messages.size(), sent);
+    }
 
-        // simulate a failure
-        if (new Random().nextInt(10) % 5 == 0) {
-            throw new MessageSendException(500, "MSG0042", "Insufficient credits to send message");
+    /**
+     * Msg91 answers {@code {"type": "success", "message": "<request id>"}}.
+     */
+    private static String requestId(String body) {
+        try {
+            return JsonSerialization.readValue(body, JsonNode.class).path("message").asText(null);
+        } catch (IOException e) {
+            return null;
         }
     }
 
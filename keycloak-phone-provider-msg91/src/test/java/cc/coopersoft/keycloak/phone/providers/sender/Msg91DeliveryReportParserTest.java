@@ -0,0 +1,50 @@
+package cc.coopersoft.keycloak.phone.providers.sender;
+
+import cc.coopersoft.keycloak.phone.providers.representations.DeliveryReport;
+import org.junit.jupiter.api.Test;
+
+import jakarta.ws.rs.core.MediaType;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class Msg91DeliveryReportParserTest {
+
+    private static final String REPORTS = """
+        [{"requestId": "R1", "report": [
+          {"number": "919999999999", "status": "1", "date": "2024-01-02 10:00:00", "desc": "Delivered"},
+          {"number": "918888888888", "status": "16", "desc": "Rejected"},
+          {"number": "917777777777", "status": "8", "desc": "Sent"}
+        ]}]""";
+
+    private final Msg91DeliveryReportParser parser = new Msg91DeliveryReportParser();
+
+    @Test
+    void finalReportsOfEachNumberAreRead() {
+        List<DeliveryReport> reports = parser.parse(MediaType.APPLICATION_JSON_TYPE, REPORTS);
+
+        assertEquals(List.of(
+            new DeliveryReport("R1", "919999999999", DeliveryReport.Status.DELIVERED, null,
+                Instant.parse("2024-01-02T04:30:00Z")),
+            new DeliveryReport("R1", "918888888888", DeliveryReport.Status.FAILED, "Rejected", null)), reports);
+    }
+
+    @Test
+    void formEncodedReportsAreReadFromData() {
+        String form = "data=" + URLEncoder.encode(REPORTS, StandardCharsets.UTF_8);
+
+        assertEquals(2, parser.parse(MediaType.APPLICATION_FORM_URLENCODED_TYPE, form).size());
+    }
+
+    @Test
+    void reportWithoutRequestIdIsInvalid() {
+        assertThrows(IllegalArgumentException.class, () ->
+            parser.parse(MediaType.APPLICATION_JSON_TYPE, "[{\"report\": []}]"));
+        assertThrows(IllegalArgumentException.class, () ->
+            parser.parse(MediaType.APPLICATION_FORM_URLENCODED_TYPE, "other=1"));
+    }
+}
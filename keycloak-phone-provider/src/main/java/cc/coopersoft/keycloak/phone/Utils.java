@@ -1,10 +1,13 @@
 package cc.coopersoft.keycloak.phone;
 
-import cc.coopersoft.common.OptionalUtils;
 import cc.coopersoft.keycloak.phone.credential.PhoneOtpCredentialModel;
+import cc.coopersoft.keycloak.phone.providers.cache.PhoneUserCache;
 import cc.coopersoft.keycloak.phone.providers.exception.PhoneNumberInvalidException;
+import cc.coopersoft.keycloak.phone.providers.jpa.PhoneNumberIndex;
+import cc.coopersoft.keycloak.phone.providers.policy.PhonePolicy;
 import cc.coopersoft.keycloak.phone.providers.spi.PhoneProvider;
 import org.jboss.logging.Logger;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
 import org.keycloak.credential.CredentialModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
@@ -16,25 +19,76 @@ import org.keycloak.models.credential.dto.OTPSecretData;
 import org.keycloak.services.validation.Validation;
 import org.keycloak.util.JsonSerialization;
 
+import jakarta.persistence.EntityManager;
 import java.io.IOException;
 import java.util.*;
 import java.util.function.Predicate;
-import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 public class Utils {
     private static final Logger logger = Logger.getLogger(Utils.class);
 
+    /**
+     * Realm attribute set once every {@code phoneNumber} attribute of the realm is in {@code PHONE_NUMBER_INDEX}.
+     */
+    public static final String PHONE_NUMBER_INDEXED_ATTRIBUTE = "phoneNumberIndexed";
+
     public static Optional<UserModel> findUserByPhone(KeycloakSession session,RealmModel realm, String phoneNumber){
+        var provider = session.getProvider(PhoneProvider.class);
+        var cache = provider.phoneUserCache();
+        if (cache == null) {
+            return searchUserByPhone(session, realm, phoneNumber);
+        }
+
+        var policy = provider.phonePolicy(realm);
+        // compatible mode matches any format of the number, exact mode only the same string
+        String cacheKey = policy.isCompatibleMode() ? phoneNumberKey(policy, phoneNumber) : phoneNumber;
+        return cache.find(session, realm, cacheKey,
+            user -> user.getAttributeStream("phoneNumber").anyMatch(number -> policy.isCompatibleMode() ?
+                phoneNumberKey(policy, number).equals(cacheKey) : number.equals(phoneNumber)),
+            () -> searchUserByPhone(session, realm, phoneNumber));
+    }
+
+    private static Optional<UserModel> searchUserByPhone(KeycloakSession session,RealmModel realm, String phoneNumber){
 
         logger.infov("Searching for user with phone number: {0}", phoneNumber);
+        return findUsersByPhone(session, realm, phoneNumber)
+            .max((u1, u2) -> {
+                var result = comparatorAttributesAnyMatch(u1,u2,"phoneNumberVerified","true"::equals);
+                if (result == 0){
+                    result = comparatorAttributesAnyMatch(u1,u2,"phoneNumber", number -> number.startsWith("+"));
+                }
+                return result;
+            });
+
+    }
+
+    /**
+     * Users whose {@code phoneNumber} attribute is phoneNumber, in any format when compatible mode is on.
+     * Uses {@code PHONE_NUMBER_INDEX} once the realm was backfilled, the attribute search before.
+     */
+    public static Stream<UserModel> findUsersByPhone(KeycloakSession session, RealmModel realm, String phoneNumber){
+        var policy = session.getProvider(PhoneProvider.class).phonePolicy(realm);
+
+        if (Boolean.parseBoolean(realm.getAttribute(PHONE_NUMBER_INDEXED_ATTRIBUTE))) {
+            return session.getProvider(JpaConnectionProvider.class).getEntityManager()
+                .createNamedQuery("phoneNumberIndexByKey", PhoneNumberIndex.class)
+                .setParameter("realmId", realm.getId())
+                .setParameter("phoneKey", phoneNumberKey(policy, phoneNumber))
+                .getResultList().stream()
+                .filter(index -> policy.isCompatibleMode() || index.getPhoneNumber().equals(phoneNumber))
+                .map(index -> session.users().getUserById(realm, index.getUserId()))
+                .filter(Objects::nonNull);
+        }
+
         var userProvider = session.users();
         Set<String> numbers = new HashSet<>();
         numbers.add(phoneNumber);
 
-        if (session.getProvider(PhoneProvider.class).compatibleMode()){
+        if (policy.isCompatibleMode()){
             var phoneNumberUtil = PhoneNumberUtil.getInstance();
             try {
-                var parsedNumber = phoneNumberUtil.parse(phoneNumber, defaultRegion(session));
+                var parsedNumber = phoneNumberUtil.parse(phoneNumber, policy.getDefaultRegion());
                 if (parsedNumber.hasNationalNumber()){
                     numbers.add(String.valueOf(parsedNumber.getNationalNumber())) ;
                 }
@@ -46,17 +100,74 @@ public class Utils {
             }
         }
 
-
         return numbers.stream().flatMap(number -> userProvider
-            .searchForUserByUserAttributeStream(realm,"phoneNumber", number))
-            .max((u1, u2) -> {
-                var result = comparatorAttributesAnyMatch(u1,u2,"phoneNumberVerified","true"::equals);
-                if (result == 0){
-                    result = comparatorAttributesAnyMatch(u1,u2,"phoneNumber", number -> number.startsWith("+"));
-                }
-                return result;
-            });
+            .searchForUserByUserAttributeStream(realm,"phoneNumber", number));
+    }
 
+    /**
+     * The number in E.164 so every format of it shares one index key, the trimmed input when it does not parse.
+     */
+    public static String phoneNumberKey(PhonePolicy policy, String phoneNumber){
+        var phoneNumberUtil = PhoneNumberUtil.getInstance();
+        try {
+            return phoneNumberUtil.format(phoneNumberUtil.parse(phoneNumber, policy.getDefaultRegion()), PhoneNumberFormat.E164);
+        } catch (NumberParseException e) {
+            return phoneNumber.trim();
+        }
+    }
+
+    /**
+     * Brings the user's {@code PHONE_NUMBER_INDEX} row in line with its {@code phoneNumber} and
+     * {@code phoneNumberVerified} attributes, call it after setting them.
+     */
+    public static void indexPhoneNumber(KeycloakSession session, RealmModel realm, UserModel user){
+        var provider = session.getProvider(PhoneProvider.class);
+        var policy = provider.phonePolicy(realm);
+        var em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+        var phoneNumber = user.getFirstAttribute("phoneNumber");
+
+        var cache = provider.phoneUserCache();
+        if (cache != null) {
+            PhoneNumberIndex previous = em.find(PhoneNumberIndex.class, user.getId());
+            if (previous != null) {
+                invalidatePhoneUser(session, cache, realm, policy, previous.getPhoneNumber());
+            }
+            if (!Validation.isBlank(phoneNumber)) {
+                invalidatePhoneUser(session, cache, realm, policy, phoneNumber);
+            }
+        }
+
+        indexPhoneNumber(em, policy, realm.getId(), user.getId(),
+            phoneNumber, "true".equals(user.getFirstAttribute("phoneNumberVerified")));
+    }
+
+    private static void invalidatePhoneUser(KeycloakSession session, PhoneUserCache cache, RealmModel realm,
+                                            PhonePolicy policy, String phoneNumber){
+        cache.invalidate(session, realm, phoneNumber);
+        cache.invalidate(session, realm, phoneNumberKey(policy, phoneNumber));
+    }
+
+    public static void indexPhoneNumber(EntityManager em, PhonePolicy policy, String realmId, String userId,
+                                        String phoneNumber, boolean verified){
+        if (Validation.isBlank(phoneNumber)) {
+            em.createNamedQuery("deletePhoneNumberIndexByUser")
+                .setParameter("userId", userId)
+                .executeUpdate();
+            return;
+        }
+        PhoneNumberIndex index = em.find(PhoneNumberIndex.class, userId);
+        boolean create = index == null;
+        if (create) {
+            index = new PhoneNumberIndex();
+            index.setUserId(userId);
+        }
+        index.setRealmId(realmId);
+        index.setPhoneKey(phoneNumberKey(policy, phoneNumber));
+        index.setPhoneNumber(phoneNumber);
+        index.setVerified(verified);
+        if (create) {
+            em.persist(index);
+        }
     }
 
 //    public static Optional<UserModel> findUserByPhone(UserProvider userProvider, RealmModel realm, String phoneNumber, String notIs){
@@ -72,20 +183,6 @@ public class Utils {
                 user2.getAttributeStream(attribute).anyMatch(predicate));
     }
 
-    private static Optional<String> localeToCountry(String locale){
-        return OptionalUtils.ofBlank(locale).flatMap(l -> {
-            Pattern countryRegx = Pattern.compile("[^a-z]*\\-?([A-Z]{2,3})");
-            return Optional.of(countryRegx.matcher(l))
-                .flatMap(m -> m.find() ? OptionalUtils.ofBlank(m.group(1)) : Optional.empty());
-        });
-    }
-
-
-    private static String defaultRegion(KeycloakSession session){
-        var defaultRegion = session.getProvider(PhoneProvider.class).defaultPhoneRegion();
-        return defaultRegion.orElseGet(() -> localeToCountry(session.getContext().getRealm().getDefaultLocale()).orElse(null));
-    }
-
     /**
     * Parses a phone number with google's libphonenumber and then outputs it's
     * international canonical form
@@ -93,38 +190,38 @@ public class Utils {
     */
     public static String canonicalizePhoneNumber(KeycloakSession session,String phoneNumber) throws PhoneNumberInvalidException {
         var provider = session.getProvider(PhoneProvider.class);
+        var policy = provider.phonePolicy();
 
+        var cache = provider.canonicalCache();
+        if (cache == null) {
+            return canonicalizePhoneNumber(policy, phoneNumber);
+        }
+        return cache.canonicalize(policy.getKey(), phoneNumber, () -> canonicalizePhoneNumber(policy, phoneNumber));
+    }
+
+    private static String canonicalizePhoneNumber(PhonePolicy policy, String phoneNumber) throws PhoneNumberInvalidException {
 
         var phoneNumberUtil = PhoneNumberUtil.getInstance();
         var resultPhoneNumber = phoneNumber.trim();
-        var defaultRegion = defaultRegion(session);
-        logger.info(String.format("default region '%s' will be used",defaultRegion));
+        var defaultRegion = policy.getDefaultRegion();
+        logger.debug(String.format("default region '%s' will be used",defaultRegion));
         try {
             var parsedNumber = phoneNumberUtil.parse(resultPhoneNumber, defaultRegion);
-            if (provider.validPhoneNumber() && !phoneNumberUtil.isValidNumber(parsedNumber)) {
+            if (policy.isValidPhoneNumber() && !phoneNumberUtil.isValidNumber(parsedNumber)) {
                 logger.info(String.format("Phone number [%s] Valid fail with google's libphonenumber",resultPhoneNumber));
                 throw new PhoneNumberInvalidException(PhoneNumberInvalidException.ErrorType.VALID_FAIL,
                     String.format("Phone number [%s] Valid fail with google's libphonenumber",resultPhoneNumber));
             }
 
-            var canonicalizeFormat = provider.canonicalizePhoneNumber();
-            try {
-                resultPhoneNumber = canonicalizeFormat
-                    .map(PhoneNumberFormat::valueOf)
-                    .map(format -> phoneNumberUtil.format(parsedNumber, format))
-                    .orElse(resultPhoneNumber);
-            }catch (RuntimeException e){
-                logger.warn(String.format("canonicalize format param error! '%s' is not in supported list: %s, E164 Will be used.",
-                    Arrays.toString(PhoneNumberFormat.values()),
-                    canonicalizeFormat.orElse("")),e);
-                resultPhoneNumber = phoneNumberUtil.format(parsedNumber, PhoneNumberFormat.E164);
+            if (policy.getCanonicalizeFormat() != null) {
+                resultPhoneNumber = phoneNumberUtil.format(parsedNumber, policy.getCanonicalizeFormat());
             }
 
-            var phoneNumberRegex = provider.phoneNumberRegex();
-            if (!phoneNumberRegex.map(resultPhoneNumber::matches).orElse(true)){
-                logger.info(String.format("Phone number [%s] not match regex '%s'",resultPhoneNumber, phoneNumberRegex.orElse("")));
+            var phoneNumberRegex = policy.getNumberRegex();
+            if (phoneNumberRegex != null && !phoneNumberRegex.matcher(resultPhoneNumber).matches()){
+                logger.info(String.format("Phone number [%s] not match regex '%s'",resultPhoneNumber, phoneNumberRegex.pattern()));
                 throw new PhoneNumberInvalidException(PhoneNumberInvalidException.ErrorType.NOT_SUPPORTED,
-                    String.format("Phone number [%s] not match regex '%s'",resultPhoneNumber, phoneNumberRegex.orElse("")));
+                    String.format("Phone number [%s] not match regex '%s'",resultPhoneNumber, phoneNumberRegex.pattern()));
             }
             return resultPhoneNumber;
         }catch (NumberParseException e){
@@ -134,11 +231,11 @@ public class Utils {
     }
 
     public static boolean isDuplicatePhoneAllowed(KeycloakSession session){
-        return session.getProvider(PhoneProvider.class).isDuplicatePhoneAllowed();
+        return session.getProvider(PhoneProvider.class).phonePolicy().isDuplicatePhoneAllowed();
     }
 
     public static int getOtpExpires(KeycloakSession session){
-        return session.getProvider(PhoneProvider.class).otpExpires();
+        return session.getProvider(PhoneProvider.class).phonePolicy().getOtpExpires();
     }
 
 }
@@ -344,9 +344,9 @@ public class PhoneUsernamePasswordFormWithAutoRegistration extends PhoneUsername
     private boolean validateVerificationCodeForAutoReg(AuthenticationFlowContext context, String phoneNumber, String code) {
         try {
             PhoneVerificationCodeProvider provider = context.getSession().getProvider(PhoneVerificationCodeProvider.class);
-            // Check if there's a valid ongoing process for this phone number
-            var tokenCode = provider.ongoingProcess(phoneNumber, TokenCodeType.AUTH);
-            if (tokenCode == null || !tokenCode.getCode().equals(code)) {
+            // Check the code against the ongoing process for this phone number, wrong answers count as attempts
+            var tokenCode = provider.verifyCode(phoneNumber, TokenCodeType.AUTH, code);
+            if (tokenCode == null) {
                 invalidVerificationCode(context, phoneNumber);
                 return false;
             }
@@ -366,6 +366,7 @@ public class PhoneUsernamePasswordFormWithAutoRegistration extends PhoneUsername
             user.setEnabled(true);
             user.setSingleAttribute("phoneNumber", phoneNumber);
             user.setSingleAttribute("phoneNumberVerified", "true");
+            Utils.indexPhoneNumber(context.getSession(), context.getRealm(), user);
 
             context.getEvent().detail(Details.USERNAME, username)
                     .detail(FIELD_PHONE_NUMBER, phoneNumber)
@@ -8,6 +8,7 @@ import cc.coopersoft.keycloak.phone.credential.PhoneOtpCredentialModel;
 import cc.coopersoft.keycloak.phone.credential.PhoneOtpCredentialProvider;
 import cc.coopersoft.keycloak.phone.credential.PhoneOtpCredentialProviderFactory;
 import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
+import cc.coopersoft.keycloak.phone.providers.exception.TooManyRequestsException;
 import cc.coopersoft.keycloak.phone.providers.spi.PhoneProvider;
 
 import org.jboss.logging.Logger;
@@ -142,7 +143,7 @@ public class SmsOtpMfaAuthenticator implements Authenticator, CredentialValidato
           .setInfo("codeSent", phoneNumber)
           .setAttribute("expires", expires)
           .setAttribute("initSend",true);
-    } catch (ForbiddenException e) {
+    } catch (ForbiddenException | TooManyRequestsException e) {
       logger.warn("otp send code Forbidden Exception!", e);
       context.form().setError(SupportPhonePages.Errors.ABUSED.message());
     } catch (Exception e) {
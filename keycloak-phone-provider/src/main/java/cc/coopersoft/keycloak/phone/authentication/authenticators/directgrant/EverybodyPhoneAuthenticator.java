@@ -1,7 +1,6 @@
 package cc.coopersoft.keycloak.phone.authentication.authenticators.directgrant;
 
 import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
-import cc.coopersoft.keycloak.phone.providers.representations.TokenCodeRepresentation;
 import cc.coopersoft.keycloak.phone.providers.spi.PhoneVerificationCodeProvider;
 import cc.coopersoft.keycloak.phone.Utils;
 import org.jboss.logging.Logger;
@@ -10,6 +9,7 @@ import org.keycloak.authentication.AuthenticationFlowError;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.protocol.oidc.OIDCLoginProtocol;
 
 
@@ -44,29 +44,29 @@ public class EverybodyPhoneAuthenticator extends BaseDirectGrantAuthenticator {
 
   private void authToUser(AuthenticationFlowContext context, String phoneNumber, String code) {
     PhoneVerificationCodeProvider phoneVerificationCodeProvider = context.getSession().getProvider(PhoneVerificationCodeProvider.class);
-    TokenCodeRepresentation tokenCode = phoneVerificationCodeProvider.ongoingProcess(phoneNumber, TokenCodeType.AUTH);
+    RealmModel realm = context.getRealm();
 
-    if (tokenCode == null || !tokenCode.getCode().equals(code)) {
-      invalidCredentials(context);
+    UserModel existing = Utils.findUserByPhone(context.getSession(), realm, phoneNumber).orElse(null);
+    if (existing == null && context.getSession().users().getUserByUsername(realm, phoneNumber) != null) {
+      invalidCredentials(context, AuthenticationFlowError.USER_CONFLICT);
       return;
     }
 
-    UserModel user = Utils.findUserByPhone(context.getSession(), context.getRealm(), phoneNumber)
-        .orElseGet(() -> {
-          if (context.getSession().users().getUserByUsername(context.getRealm(),phoneNumber) != null) {
-            invalidCredentials(context, AuthenticationFlowError.USER_CONFLICT);
-            return null;
-          }
-          UserModel newUser = context.getSession().users().addUser(context.getRealm(), phoneNumber);
+    // the id of a user still to be created is fixed up front so the code is consumed before anything is written
+    String userId = existing == null ? KeycloakModelUtils.generateId() : existing.getId();
+    if (!phoneVerificationCodeProvider.consumeCode(realm, phoneNumber, TokenCodeType.AUTH, code, userId)) {
+      invalidCredentials(context);
+      return;
+    }
 
-          newUser.setEnabled(true);
-          context.getAuthenticationSession().setClientNote(OIDCLoginProtocol.LOGIN_HINT_PARAM, phoneNumber);
-          return newUser;
-        });
-    if (user != null) {
-      context.setUser(user);
-      phoneVerificationCodeProvider.tokenValidated(user, phoneNumber, tokenCode.getId(),false);
-      context.success();
+    UserModel user = existing;
+    if (user == null) {
+      user = context.getSession().users().addUser(realm, userId, phoneNumber, true, true);
+      user.setEnabled(true);
+      context.getAuthenticationSession().setClientNote(OIDCLoginProtocol.LOGIN_HINT_PARAM, phoneNumber);
     }
+    context.setUser(user);
+    phoneVerificationCodeProvider.tokenValidated(user, phoneNumber, null, false);
+    context.success();
   }
 }
@@ -322,6 +322,7 @@ public class RegistrationPhoneUserCreation implements FormActionFactory, FormAct
 //    UserModel user = context.getSession().users().addUser(context.getRealm(), username);
     user.setEnabled(true);
     user.setSingleAttribute("phoneNumber", phoneNumber);
+    Utils.indexPhoneNumber(session, context.getRealm(), user);
     logger.infov("Set phoneNumber attribute to: {0} for user: {1}", phoneNumber, user.getUsername());
     context.setUser(user);
 
@@ -156,8 +156,9 @@ public class RegistrationPhoneVerificationCode implements FormAction, FormAction
     context.getEvent().detail(FIELD_PHONE_NUMBER, phoneNumber);
 
     String verificationCode = formData.getFirst(FIELD_VERIFICATION_CODE);
-    TokenCodeRepresentation tokenCode = getTokenCodeService(session).ongoingProcess(phoneNumber, TokenCodeType.REGISTRATION);
-    if (Validation.isBlank(verificationCode) || tokenCode == null || !tokenCode.getCode().equals(verificationCode)) {
+    TokenCodeRepresentation tokenCode = Validation.isBlank(verificationCode) ? null :
+        getTokenCodeService(session).verifyCode(phoneNumber, TokenCodeType.REGISTRATION, verificationCode);
+    if (tokenCode == null) {
       context.error(Errors.INVALID_REGISTRATION);
       formData.remove(FIELD_VERIFICATION_CODE);
       errors.add(new FormMessage(FIELD_VERIFICATION_CODE, SupportPhonePages.Errors.NOT_MATCH.message()));
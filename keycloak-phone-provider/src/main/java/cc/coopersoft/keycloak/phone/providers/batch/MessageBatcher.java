@@ -0,0 +1,153 @@
+package cc.coopersoft.keycloak.phone.providers.batch;
+
+import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
+import cc.coopersoft.keycloak.phone.providers.representations.OutgoingMessage;
+import cc.coopersoft.keycloak.phone.providers.representations.SendResult;
+import cc.coopersoft.keycloak.phone.providers.spi.MessageSenderService;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces messages submitted within a short window for the same realm, sender and template into one
+ * {@link MessageSenderService#sendBatch} call. A batch goes out when its window ends or it is full, from a
+ * session of its own, so callers only wait on the future of their message. The sender is called on the thread
+ * of that session, where senders without a non blocking path may send on the calling thread.
+ */
+public class MessageBatcher {
+
+    private static final Logger logger = Logger.getLogger(MessageBatcher.class);
+
+    private record Key(String realmId, String service, TokenCodeType type, String kind) {
+    }
+
+    private record Pending(OutgoingMessage message, CompletableFuture<SendResult> result) {
+    }
+
+    private final long windowMillis;
+    private final int maxSize;
+
+    private final Map<Key, List<Pending>> batches = new HashMap<>();
+    private final ScheduledExecutorService timer =
+        Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("phone-batch-timer").daemon().factory());
+    private final ExecutorService senders =
+        Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("phone-batch-", 0).factory());
+
+    private final DistributionSummary batchSize = Metrics.summary("keycloak.phone.send.batch.size");
+
+    private KeycloakSessionFactory sessionFactory;
+
+    public MessageBatcher(long windowMillis, int maxSize) {
+        this.windowMillis = windowMillis;
+        this.maxSize = maxSize;
+    }
+
+    public void start(KeycloakSessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+    }
+
+    public CompletionStage<SendResult> submit(KeycloakSession session, String service, OutgoingMessage message) {
+        Key key = new Key(session.getContext().getRealm().getId(), service, message.getType(), message.getKind());
+        Pending pending = new Pending(message, new CompletableFuture<>());
+        List<Pending> full = null;
+        synchronized (batches) {
+            List<Pending> batch = batches.get(key);
+            if (batch == null) {
+                List<Pending> created = new ArrayList<>();
+                batches.put(key, created);
+                timer.schedule(() -> flush(key, created), windowMillis, TimeUnit.MILLISECONDS);
+                batch = created;
+            }
+            batch.add(pending);
+            if (batch.size() >= maxSize) {
+                batches.remove(key);
+                full = batch;
+            }
+        }
+        if (full != null) {
+            dispatch(key, full);
+        }
+        return pending.result();
+    }
+
+    private void flush(Key key, List<Pending> batch) {
+        synchronized (batches) {
+            // already sent when it filled up
+            if (!batches.remove(key, batch)) {
+                return;
+            }
+        }
+        dispatch(key, batch);
+    }
+
+    private void dispatch(Key key, List<Pending> batch) {
+        batchSize.record(batch.size());
+        senders.execute(() -> {
+            try {
+                KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> send(session, key, batch));
+            } catch (RuntimeException e) {
+                logger.error(String.format("Sending a batch of %d messages over %s failed", batch.size(), key.service()), e);
+                batch.forEach(p -> p.result().completeExceptionally(e));
+            }
+        });
+    }
+
+    private void send(KeycloakSession session, Key key, List<Pending> batch) {
+        RealmModel realm = session.realms().getRealm(key.realmId());
+        if (realm == null) {
+            throw new IllegalStateException("Realm " + key.realmId() + " not found");
+        }
+        session.getContext().setRealm(realm);
+        List<CompletionStage<SendResult>> results = session.getProvider(MessageSenderService.class, key.service())
+            .sendBatch(batch.stream().map(Pending::message).toList());
+
+        CompletableFuture<?>[] done = new CompletableFuture<?>[results.size()];
+        for (int i = 0; i < results.size(); i++) {
+            CompletableFuture<SendResult> target = batch.get(i).result();
+            done[i] = results.get(i).toCompletableFuture().whenComplete((result, e) -> {
+                if (e == null) {
+                    target.complete(result);
+                } else {
+                    target.completeExceptionally(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+                }
+            });
+        }
+        // keeps the session, which senders may still use, open until the batch completed
+        CompletableFuture.allOf(done).handle((r, e) -> null).join();
+    }
+
+    /**
+     * Sends what is waiting right away.
+     */
+    public void close() {
+        List<Map.Entry<Key, List<Pending>>> waiting;
+        synchronized (batches) {
+            waiting = new ArrayList<>(batches.entrySet());
+            batches.clear();
+        }
+        waiting.forEach(e -> dispatch(e.getKey(), e.getValue()));
+        timer.shutdownNow();
+        senders.shutdown();
+        try {
+            senders.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
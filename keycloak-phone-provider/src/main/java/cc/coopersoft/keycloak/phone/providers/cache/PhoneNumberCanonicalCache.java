@@ -0,0 +1,112 @@
+package cc.coopersoft.keycloak.phone.providers.cache;
+
+import cc.coopersoft.keycloak.phone.providers.exception.PhoneNumberInvalidException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded cache of {@code Utils.canonicalizePhoneNumber} results keyed by the realm's phone number policy
+ * and the raw input. Invalid numbers are cached too, as their {@link PhoneNumberInvalidException.ErrorType}.
+ * Entries are kept in access ordered maps split over lock stripes, each stripe evicting its least recently
+ * used entry when full.
+ */
+public class PhoneNumberCanonicalCache {
+
+    @FunctionalInterface
+    public interface Canonicalizer {
+        String canonicalize() throws PhoneNumberInvalidException;
+    }
+
+    private record Key(String policy, String phoneNumber) {
+    }
+
+    private record Entry(String phoneNumber, PhoneNumberInvalidException.ErrorType errorType, String errorMessage,
+                         long expiresAt) {
+    }
+
+    private static final class Stripe extends LinkedHashMap<Key, Entry> {
+        private final int capacity;
+
+        private Stripe(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    private final Stripe[] stripes;
+    private final long ttlMillis;
+
+    private final Counter hits = Metrics.counter("keycloak.phone.canonicalize.cache", "result", "hit");
+    private final Counter misses = Metrics.counter("keycloak.phone.canonicalize.cache", "result", "miss");
+
+    public PhoneNumberCanonicalCache(int maximumSize, long ttlSeconds, int concurrency) {
+        int size = Integer.highestOneBit(Math.max(1, concurrency - 1)) << 1;
+        int capacity = Math.max(1, maximumSize / size);
+        this.stripes = new Stripe[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new Stripe(capacity);
+        }
+        this.ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+    }
+
+    private Stripe stripe(Key key) {
+        int h = key.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (stripes.length - 1)];
+    }
+
+    /**
+     * @param policy identifies every setting the result depends on, e.g. region, format and regex
+     */
+    public String canonicalize(String policy, String phoneNumber, Canonicalizer canonicalizer)
+        throws PhoneNumberInvalidException {
+        Key key = new Key(policy, phoneNumber);
+        Stripe stripe = stripe(key);
+        long now = System.currentTimeMillis();
+
+        Entry entry;
+        synchronized (stripe) {
+            entry = stripe.get(key);
+        }
+        if (entry != null && entry.expiresAt() > now) {
+            hits.increment();
+            if (entry.errorType() != null) {
+                throw new PhoneNumberInvalidException(entry.errorType(), entry.errorMessage());
+            }
+            return entry.phoneNumber();
+        }
+
+        // computed outside the lock, two callers missing at once both parse and the last write wins
+        misses.increment();
+        try {
+            String result = canonicalizer.canonicalize();
+            put(stripe, key, new Entry(result, null, null, now + ttlMillis));
+            return result;
+        } catch (PhoneNumberInvalidException e) {
+            put(stripe, key, new Entry(null, e.getErrorType(), e.getMessage(), now + ttlMillis));
+            throw e;
+        }
+    }
+
+    private static void put(Stripe stripe, Key key, Entry entry) {
+        synchronized (stripe) {
+            stripe.put(key, entry);
+        }
+    }
+
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+}
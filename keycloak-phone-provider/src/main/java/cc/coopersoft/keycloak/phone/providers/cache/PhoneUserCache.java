@@ -0,0 +1,66 @@
+package cc.coopersoft.keycloak.phone.providers.cache;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Maps a phone number to the id of the user it belongs to, or to nobody, in Keycloak's single use object
+ * store, which is replicated across the cluster, so removals reach every node. A hit is only trusted while
+ * the user still exists and still has the number; entries are removed whenever this provider or an
+ * admin/account change sets a user's phone number.
+ */
+public class PhoneUserCache {
+
+    private static final String KEY = "phone-user::%s::%s";
+    private static final String NOTE_USER_ID = "userId";
+
+    private final long lifespanSeconds;
+    private final long negativeLifespanSeconds;
+
+    public PhoneUserCache(long lifespanSeconds, long negativeLifespanSeconds) {
+        this.lifespanSeconds = lifespanSeconds;
+        this.negativeLifespanSeconds = negativeLifespanSeconds;
+    }
+
+    private static String key(RealmModel realm, String phoneNumber) {
+        return String.format(KEY, realm.getId(), phoneNumber);
+    }
+
+    /**
+     * @param stillMatches checks a cached user still has the number
+     * @param loader       looks the user up when nothing usable is cached
+     */
+    public Optional<UserModel> find(KeycloakSession session, RealmModel realm, String phoneNumber,
+                                    Predicate<UserModel> stillMatches, Supplier<Optional<UserModel>> loader) {
+        String key = key(realm, phoneNumber);
+        Map<String, String> notes = session.singleUseObjects().get(key);
+        if (notes != null) {
+            String userId = notes.get(NOTE_USER_ID);
+            if (userId == null) {
+                return Optional.empty();
+            }
+            UserModel user = session.users().getUserById(realm, userId);
+            if (user != null && stillMatches.test(user)) {
+                return Optional.of(user);
+            }
+        }
+
+        Optional<UserModel> user = loader.get();
+        if (user.isPresent()) {
+            session.singleUseObjects().put(key, lifespanSeconds, Map.of(NOTE_USER_ID, user.get().getId()));
+        } else if (negativeLifespanSeconds > 0) {
+            session.singleUseObjects().put(key, negativeLifespanSeconds, Map.of());
+        }
+        return user;
+    }
+
+    public void invalidate(KeycloakSession session, RealmModel realm, String phoneNumber) {
+        session.singleUseObjects().remove(key(realm, phoneNumber));
+    }
+}
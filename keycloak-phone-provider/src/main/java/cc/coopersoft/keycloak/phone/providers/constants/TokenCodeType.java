@@ -1,16 +1,31 @@
 package cc.coopersoft.keycloak.phone.providers.constants;
 
+import java.util.Arrays;
+
 public enum TokenCodeType {
-    VERIFY("verification"),
-    AUTH("authentication"),
+    VERIFY("verification", (short) 1),
+    AUTH("authentication", (short) 2),
 
-    OTP("OTP"),
-    RESET("reset credential"),
-    REGISTRATION("registration");
+    OTP("OTP", (short) 3),
+    RESET("reset credential", (short) 4),
+    REGISTRATION("registration", (short) 5);
 
     public final String label;
 
-    TokenCodeType(String label) {
+    /**
+     * Compact value stored in the {@code TYPE_CODE} column, never reuse a value.
+     */
+    public final short code;
+
+    TokenCodeType(String label, short code) {
         this.label  = label;
+        this.code = code;
+    }
+
+    public static TokenCodeType ofCode(short code) {
+        return Arrays.stream(values())
+            .filter(type -> type.code == code)
+            .findFirst()
+            .orElseThrow(() -> new IllegalArgumentException("Unknown token code type: " + code));
     }
 }
@@ -0,0 +1,295 @@
+package cc.coopersoft.keycloak.phone.providers.delivery;
+
+import cc.coopersoft.keycloak.phone.providers.jpa.MessageDelivery;
+import cc.coopersoft.keycloak.phone.providers.representations.DeliveryReport;
+import cc.coopersoft.keycloak.phone.providers.representations.SendResult;
+import com.google.i18n.phonenumbers.NumberParseException;
+import com.google.i18n.phonenumbers.PhoneNumberUtil;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.jboss.logging.Logger;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import jakarta.persistence.EntityManager;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Correlates delivery reports with the token codes sent, through the message id the gateway returned. The
+ * send writes a {@code PHONE_MESSAGE_DELIVERY} row with the code; reports are queued and a single writer
+ * thread applies them in batches, one transaction per batch of up to {@code batchSize} reports or
+ * {@code flushInterval} after the first of them. Time to deliver goes to the
+ * {@code keycloak.phone.delivery.latency} histogram per reporting provider and country.
+ */
+public class DeliveryTracker {
+
+    private static final Logger logger = Logger.getLogger(DeliveryTracker.class);
+
+    private static final String UNKNOWN_REGION = "ZZ";
+    private static final int ERROR_CODE_LENGTH = 32;
+    // a report may overtake the commit of its code, it is tried again a few times before given up on
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_DELAY_MILLIS = 5000;
+    private static final long IDLE_POLL_MILLIS = 1000;
+
+    private record Received(String provider, DeliveryReport report, Instant receivedAt, int attempts,
+                            long notBefore) {
+    }
+
+    private record Delivered(String provider, String country, Duration latency) {
+    }
+
+    private final int batchSize;
+    private final long flushMillis;
+    private final BlockingQueue<Received> queue;
+    // only touched by the writer thread
+    private final Deque<Received> retries = new ArrayDeque<>();
+
+    private final Map<String, Timer> latencies = new HashMap<>();
+    private final Counter dropped = Metrics.counter("keycloak.phone.delivery.dropped");
+
+    private volatile boolean running;
+    private KeycloakSessionFactory sessionFactory;
+    private Thread writer;
+
+    public DeliveryTracker(int batchSize, long flushMillis, int queueSize) {
+        this.batchSize = Math.max(1, batchSize);
+        this.flushMillis = flushMillis;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+        Metrics.gauge("keycloak.phone.delivery.queue", queue, Collection::size);
+    }
+
+    public synchronized void start(KeycloakSessionFactory sessionFactory) {
+        if (running) {
+            return;
+        }
+        this.sessionFactory = sessionFactory;
+        this.running = true;
+        this.writer = Thread.ofPlatform().name("phone-delivery-writer").daemon().start(this::work);
+    }
+
+    /**
+     * Writes what is queued and stops; reports still waiting for their code to commit are given up on.
+     */
+    public synchronized void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Adds the delivery of a code to the current transaction, nothing when the gateway returned no message id.
+     *
+     * @param defaultRegion region of numbers without a country code, null when there is none
+     */
+    public void recordSent(KeycloakSession session, String tokenCodeId, String service, String phoneNumber,
+                           String defaultRegion, SendResult result) {
+        if (result.getProviderMessageId() == null) {
+            return;
+        }
+        MessageDelivery delivery = new MessageDelivery();
+        delivery.setId(tokenCodeId);
+        delivery.setRealmId(session.getContext().getRealm().getId());
+        delivery.setService(service);
+        delivery.setMessageId(result.getProviderMessageId());
+        delivery.setPhoneNumber(phoneNumber);
+        delivery.setCountry(country(phoneNumber, defaultRegion));
+        delivery.setStatus(MessageDelivery.Status.SENT);
+        delivery.setSentAt(new Date());
+        session.getProvider(JpaConnectionProvider.class).getEntityManager().persist(delivery);
+    }
+
+    /**
+     * Queues all the reports for the writer or none of them, so a gateway sending them again does not have
+     * some of them written twice. Only the writer takes from the queue, the room checked stays.
+     *
+     * @return false when the queue has no room for all of them, the gateway should send them again
+     */
+    public synchronized boolean submit(String provider, List<DeliveryReport> reports) {
+        if (queue.remainingCapacity() < reports.size()) {
+            dropped.increment(reports.size());
+            return false;
+        }
+        Instant now = Instant.now();
+        for (DeliveryReport report : reports) {
+            Metrics.counter("keycloak.phone.delivery.reports", "provider", provider,
+                "status", report.getStatus().name()).increment();
+            queue.add(new Received(provider, report, now, 1, 0));
+        }
+        return true;
+    }
+
+    private void work() {
+        while (running || !queue.isEmpty()) {
+            List<Received> batch = new ArrayList<>();
+            try {
+                collect(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            long now = System.currentTimeMillis();
+            for (Iterator<Received> it = retries.iterator(); it.hasNext() && batch.size() < batchSize; ) {
+                Received retry = it.next();
+                if (retry.notBefore() <= now) {
+                    batch.add(retry);
+                    it.remove();
+                }
+            }
+            if (!batch.isEmpty()) {
+                write(batch);
+            }
+        }
+    }
+
+    /**
+     * Waits for a first report, then up to the flush interval for the batch to fill.
+     */
+    private void collect(List<Received> batch) throws InterruptedException {
+        Received first = queue.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+        if (first == null) {
+            return;
+        }
+        batch.add(first);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushMillis);
+        while (batch.size() < batchSize) {
+            queue.drainTo(batch, batchSize - batch.size());
+            long left = deadline - System.nanoTime();
+            if (batch.size() >= batchSize || left <= 0) {
+                return;
+            }
+            Received next = queue.poll(left, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                return;
+            }
+            batch.add(next);
+        }
+    }
+
+    private void write(List<Received> batch) {
+        List<Delivered> delivered = new ArrayList<>();
+        List<Received> unmatched = new ArrayList<>();
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                delivered.clear();
+                unmatched.clear();
+                apply(session.getProvider(JpaConnectionProvider.class).getEntityManager(), batch, delivered, unmatched);
+            });
+        } catch (RuntimeException e) {
+            logger.warnf(e, "Could not write %d delivery reports, they are dropped", batch.size());
+            dropped.increment(batch.size());
+            return;
+        }
+        // only once committed
+        delivered.forEach(d -> latency(d.provider(), d.country()).record(d.latency()));
+
+        long retryAt = System.currentTimeMillis() + RETRY_DELAY_MILLIS;
+        for (Received received : unmatched) {
+            if (received.attempts() < MAX_ATTEMPTS && running) {
+                retries.add(new Received(received.provider(), received.report(), received.receivedAt(),
+                    received.attempts() + 1, retryAt));
+            } else {
+                logger.debugf("No message %s sent found for the %s delivery report", received.report().getMessageId(),
+                    received.provider());
+                Metrics.counter("keycloak.phone.delivery.unmatched", "provider", received.provider()).increment();
+            }
+        }
+    }
+
+    private void apply(EntityManager em, List<Received> batch, List<Delivered> delivered, List<Received> unmatched) {
+        Map<String, List<MessageDelivery>> byMessageId = new HashMap<>();
+        em.createNamedQuery("deliveriesByMessageIds", MessageDelivery.class)
+            .setParameter("messageIds", batch.stream().map(r -> r.report().getMessageId()).distinct().toList())
+            .setParameter("status", MessageDelivery.Status.SENT)
+            .getResultList()
+            .forEach(d -> byMessageId.computeIfAbsent(d.getMessageId(), k -> new ArrayList<>()).add(d));
+
+        for (Received received : batch) {
+            DeliveryReport report = received.report();
+            MessageDelivery row = take(byMessageId.get(report.getMessageId()), report.getPhoneNumber());
+            if (row == null) {
+                unmatched.add(received);
+                continue;
+            }
+            Instant deliveredAt = report.getDeliveredAt() != null ? report.getDeliveredAt() : received.receivedAt();
+            String errorCode = report.getErrorCode();
+            row.setStatus(report.getStatus() == DeliveryReport.Status.DELIVERED
+                ? MessageDelivery.Status.DELIVERED : MessageDelivery.Status.FAILED);
+            row.setDeliveredAt(Date.from(deliveredAt));
+            row.setErrorCode(errorCode != null && errorCode.length() > ERROR_CODE_LENGTH
+                ? errorCode.substring(0, ERROR_CODE_LENGTH) : errorCode);
+            if (report.getStatus() == DeliveryReport.Status.DELIVERED) {
+                Duration latency = Duration.between(row.getSentAt().toInstant(), deliveredAt);
+                // gateway clocks may be behind ours
+                delivered.add(new Delivered(received.provider(), row.getCountry(),
+                    latency.isNegative() ? Duration.ZERO : latency));
+            }
+        }
+    }
+
+    /**
+     * @return the row of the report, matched by number when the gateway gave one id to several messages
+     */
+    static MessageDelivery take(List<MessageDelivery> rows, String phoneNumber) {
+        if (rows == null || rows.isEmpty()) {
+            return null;
+        }
+        if (phoneNumber == null) {
+            return rows.remove(0);
+        }
+        // reports may leave out the country code or the +
+        String digits = phoneNumber.replaceAll("\\D", "");
+        for (Iterator<MessageDelivery> it = rows.iterator(); it.hasNext(); ) {
+            MessageDelivery row = it.next();
+            if (!digits.isEmpty() && row.getPhoneNumber().replaceAll("\\D", "").endsWith(digits)) {
+                it.remove();
+                return row;
+            }
+        }
+        return null;
+    }
+
+    private Timer latency(String provider, String country) {
+        return latencies.computeIfAbsent(provider + ":" + country, k -> Timer.builder("keycloak.phone.delivery.latency")
+            .tag("provider", provider)
+            .tag("country", country)
+            .publishPercentileHistogram()
+            .minimumExpectedValue(Duration.ofMillis(100))
+            .maximumExpectedValue(Duration.ofMinutes(10))
+            .register(Metrics.globalRegistry));
+    }
+
+    private static String country(String phoneNumber, String defaultRegion) {
+        PhoneNumberUtil phoneNumberUtil = PhoneNumberUtil.getInstance();
+        try {
+            String region = phoneNumberUtil.getRegionCodeForNumber(phoneNumberUtil.parse(phoneNumber,
+                defaultRegion == null ? UNKNOWN_REGION : defaultRegion));
+            // non geographic numbers have 001
+            return region == null || region.length() != 2 ? UNKNOWN_REGION : region;
+        } catch (NumberParseException e) {
+            return UNKNOWN_REGION;
+        }
+    }
+}
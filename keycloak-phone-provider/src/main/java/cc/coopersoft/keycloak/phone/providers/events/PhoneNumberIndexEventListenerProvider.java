@@ -0,0 +1,87 @@
+package cc.coopersoft.keycloak.phone.providers.events;
+
+import cc.coopersoft.keycloak.phone.Utils;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.EventType;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.OperationType;
+import org.keycloak.events.admin.ResourceType;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+/**
+ * Keeps {@code PHONE_NUMBER_INDEX} and the phone to user cache in line when a user's attributes change outside
+ * this provider: admin console or REST changes, account console profile updates and registrations.
+ */
+public class PhoneNumberIndexEventListenerProvider implements EventListenerProvider {
+
+    private static final String USERS_PATH = "users/";
+
+    private final KeycloakSession session;
+
+    public PhoneNumberIndexEventListenerProvider(KeycloakSession session) {
+        this.session = session;
+    }
+
+    @Override
+    public void onEvent(Event event) {
+        if ((event.getType() == EventType.REGISTER || event.getType() == EventType.UPDATE_PROFILE) &&
+            event.getUserId() != null) {
+            refresh(event.getRealmId(), event.getUserId());
+        }
+    }
+
+    @Override
+    public void onEvent(AdminEvent event, boolean includeRepresentation) {
+        if (event.getResourceType() != ResourceType.USER ||
+            (event.getOperationType() != OperationType.CREATE && event.getOperationType() != OperationType.UPDATE) ||
+            event.getResourcePath() == null || !event.getResourcePath().startsWith(USERS_PATH)) {
+            return;
+        }
+        String userId = event.getResourcePath().substring(USERS_PATH.length()).split("/", 2)[0];
+        refresh(event.getRealmId(), userId);
+    }
+
+    /**
+     * The user change the event reports is only visible to other transactions once the request committed, so
+     * the index is written after that, in a transaction of its own that reads the user again. A listener
+     * called after the request transaction ended writes it right away.
+     */
+    private void refresh(String realmId, String userId) {
+        if (!session.getTransactionManager().isActive()) {
+            index(realmId, userId);
+            return;
+        }
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                index(realmId, userId);
+            }
+
+            @Override
+            protected void rollbackImpl() {
+            }
+        });
+    }
+
+    private void index(String realmId, String userId) {
+        KeycloakModelUtils.runJobInTransaction(session.getKeycloakSessionFactory(), refreshSession -> {
+            RealmModel realm = refreshSession.realms().getRealm(realmId);
+            if (realm == null) {
+                return;
+            }
+            UserModel user = refreshSession.users().getUserById(realm, userId);
+            if (user != null) {
+                Utils.indexPhoneNumber(refreshSession, realm, user);
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,42 @@
+package cc.coopersoft.keycloak.phone.providers.events;
+
+import org.keycloak.Config;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.EventListenerProviderFactory;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+public class PhoneNumberIndexEventListenerProviderFactory implements EventListenerProviderFactory {
+
+    public static final String PROVIDER_ID = "phone-number-index";
+
+    @Override
+    public EventListenerProvider create(KeycloakSession session) {
+        return new PhoneNumberIndexEventListenerProvider(session);
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+
+    /**
+     * Runs for every realm without being added to the realm's event listeners.
+     */
+    @Override
+    public boolean isGlobal() {
+        return true;
+    }
+}
@@ -0,0 +1,24 @@
+package cc.coopersoft.keycloak.phone.providers.exception;
+
+import jakarta.ws.rs.ClientErrorException;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.Response;
+
+/**
+ * HTTP 429 carrying the seconds until the caller may send again in its {@code Retry-After} header.
+ */
+public class TooManyRequestsException extends ClientErrorException {
+
+    private final long retryAfter;
+
+    public TooManyRequestsException(String message, long retryAfter) {
+        super(message, Response.status(Response.Status.TOO_MANY_REQUESTS)
+            .header(HttpHeaders.RETRY_AFTER, retryAfter)
+            .build());
+        this.retryAfter = retryAfter;
+    }
+
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+}
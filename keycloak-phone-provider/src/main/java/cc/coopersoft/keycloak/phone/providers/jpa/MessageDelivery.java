@@ -0,0 +1,76 @@
+package cc.coopersoft.keycloak.phone.providers.jpa;
+
+import lombok.Data;
+
+import jakarta.persistence.*;
+import java.util.Date;
+
+/**
+ * The delivery of a {@link TokenCode}'s message, sharing its id, written with the code when the gateway
+ * returned a message id. Delivery reports of the gateway fill in when and whether it reached the phone.
+ */
+@Entity
+@Data
+@Table(name = "PHONE_MESSAGE_DELIVERY")
+@NamedQueries({
+    @NamedQuery(
+        name = "deliveriesByMessageIds",
+        query = "FROM MessageDelivery d WHERE d.messageId IN :messageIds AND d.status = :status"
+    ),
+    @NamedQuery(
+        name = "deliveriesSentBefore",
+        query = "SELECT d.id FROM MessageDelivery d WHERE d.sentAt < :date ORDER BY d.sentAt"
+    ),
+    @NamedQuery(
+        name = "deleteDeliveries",
+        query = "DELETE FROM MessageDelivery d WHERE d.id IN :ids"
+    )
+})
+public class MessageDelivery {
+
+    public enum Status {
+        SENT,
+        DELIVERED,
+        FAILED
+    }
+
+    @Id
+    @Column(name = "ID")
+    private String id;
+
+    @Column(name = "REALM_ID", nullable = false)
+    private String realmId;
+
+    @Column(name = "SERVICE", nullable = false)
+    private String service;
+
+    /**
+     * Several messages share it when the gateway answers a batch with one id.
+     */
+    @Column(name = "MESSAGE_ID", nullable = false)
+    private String messageId;
+
+    @Column(name = "PHONE_NUMBER", nullable = false)
+    private String phoneNumber;
+
+    /**
+     * ISO 3166 region of the number, {@code ZZ} when unknown.
+     */
+    @Column(name = "COUNTRY", nullable = false)
+    private String country;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "STATUS", nullable = false)
+    private Status status;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "SENT_AT", nullable = false)
+    private Date sentAt;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "DELIVERED_AT")
+    private Date deliveredAt;
+
+    @Column(name = "ERROR_CODE")
+    private String errorCode;
+}
@@ -0,0 +1,100 @@
+package cc.coopersoft.keycloak.phone.providers.jpa;
+
+import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
+import lombok.Data;
+
+import jakarta.persistence.*;
+import java.util.Date;
+
+/**
+ * A token code message waiting to be handed to its {@code MessageSenderService}, written in the same
+ * transaction as the {@link TokenCode}. Rows are deleted once sent; those that failed or whose code expired
+ * before it went out are kept until the token code purge.
+ */
+@Entity
+@Data
+@Table(name = "PHONE_MESSAGE_OUTBOX")
+@NamedQueries({
+    @NamedQuery(
+        name = "claimOutboxMessages",
+        query = "FROM MessageOutbox o WHERE o.status = :status AND o.nextAttemptAt <= :now ORDER BY o.nextAttemptAt"
+    ),
+    @NamedQuery(
+        name = "countOutboxMessages",
+        query = "SELECT COUNT(o) FROM MessageOutbox o WHERE o.status = :status"
+    ),
+    @NamedQuery(
+        name = "deleteOutboxMessage",
+        query = "DELETE FROM MessageOutbox o WHERE o.id = :id"
+    ),
+    @NamedQuery(
+        name = "outboxMessagesEndedBefore",
+        query = "SELECT o.id FROM MessageOutbox o WHERE o.status IN :statuses AND o.createdAt < :date ORDER BY o.createdAt"
+    ),
+    @NamedQuery(
+        name = "deleteOutboxMessages",
+        query = "DELETE FROM MessageOutbox o WHERE o.id IN :ids"
+    )
+})
+public class MessageOutbox {
+
+    public enum Status {
+        PENDING,
+        FAILED,
+        EXPIRED
+    }
+
+    /**
+     * The id of the code sent.
+     */
+    @Id
+    @Column(name = "ID")
+    private String id;
+
+    @Column(name = "REALM_ID", nullable = false)
+    private String realmId;
+
+    @Column(name = "SERVICE", nullable = false)
+    private String service;
+
+    @Convert(converter = TokenCodeTypeConverter.class)
+    @Column(name = "TYPE_CODE", nullable = false)
+    private TokenCodeType type;
+
+    @Column(name = "PHONE_NUMBER", nullable = false)
+    private String phoneNumber;
+
+    @Column(name = "CODE", nullable = false)
+    private String code;
+
+    @Column(name = "EXPIRES_IN", nullable = false)
+    private Integer expiresIn;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "EXPIRES_AT", nullable = false)
+    private Date expiresAt;
+
+    @Column(name = "KIND")
+    private String kind;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "STATUS", nullable = false)
+    private Status status;
+
+    @Column(name = "ATTEMPTS", nullable = false)
+    private Integer attempts;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "CREATED_AT", nullable = false)
+    private Date createdAt;
+
+    /**
+     * Also the lease of a claimed row, a dispatcher that died mid send is retried once it passed.
+     */
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "NEXT_ATTEMPT_AT", nullable = false)
+    private Date nextAttemptAt;
+
+    @Column(name = "LAST_ERROR")
+    private String lastError;
+}
@@ -0,0 +1,46 @@
+package cc.coopersoft.keycloak.phone.providers.jpa;
+
+import lombok.Data;
+
+import jakarta.persistence.*;
+
+/**
+ * One row per user with a {@code phoneNumber} attribute, keyed by the number normalized to E.164, so users
+ * are found by phone with one indexed lookup instead of searching {@code USER_ATTRIBUTE} per format.
+ */
+@Entity
+@Data
+@Table(name = "PHONE_NUMBER_INDEX")
+@NamedQueries({
+    @NamedQuery(
+        name = "phoneNumberIndexByKey",
+        query = "FROM PhoneNumberIndex i WHERE i.realmId = :realmId AND i.phoneKey = :phoneKey " +
+            "ORDER BY i.verified DESC"
+    ),
+    @NamedQuery(
+        name = "deletePhoneNumberIndexByUser",
+        query = "DELETE FROM PhoneNumberIndex i WHERE i.userId = :userId"
+    ),
+    @NamedQuery(
+        name = "deletePhoneNumberIndexByRealm",
+        query = "DELETE FROM PhoneNumberIndex i WHERE i.realmId = :realmId"
+    )
+})
+public class PhoneNumberIndex {
+
+    @Id
+    @Column(name = "USER_ID")
+    private String userId;
+
+    @Column(name = "REALM_ID", nullable = false)
+    private String realmId;
+
+    @Column(name = "PHONE_KEY", nullable = false)
+    private String phoneKey;
+
+    @Column(name = "PHONE_NUMBER", nullable = false)
+    private String phoneNumber;
+
+    @Column(name = "VERIFIED", nullable = false)
+    private Boolean verified;
+}
@@ -1,5 +1,6 @@
 package cc.coopersoft.keycloak.phone.providers.jpa;
 
+import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
 import lombok.Data;
 
 import jakarta.persistence.*;
@@ -13,7 +14,7 @@ import java.util.Date;
                 name = "ongoingProcess",
                 query = "FROM TokenCode t WHERE t.realmId = :realmId " +
                         "AND t.phoneNumber = :phoneNumber " +
-                        "AND t.expiresAt >= :now AND t.type = :type"
+                        "AND t.expiresAt >= :now AND t.type = :type AND t.confirmed = false"
         ),
         @NamedQuery(
                 name = "processesSinceTarget",
@@ -26,8 +27,57 @@ import java.util.Date;
             query = "SELECT COUNT(t) FROM TokenCode t WHERE t.realmId = :realmId " +
                 "AND t.ip = :addr " +
                 "AND t.createdAt >= :date AND t.type = :type"
+        ),
+        @NamedQuery(
+            name = "consumeCode",
+            query = "UPDATE TokenCode t SET t.confirmed = true, t.byWhom = :userId " +
+                "WHERE t.realmId = :realmId AND t.phoneNumber = :phoneNumber AND t.type = :type " +
+                "AND t.code = :code AND t.confirmed = false AND t.expiresAt >= :now"
+        ),
+        @NamedQuery(
+            name = "invalidateCode",
+            query = "UPDATE TokenCode t SET t.expiresAt = :expired " +
+                "WHERE t.realmId = :realmId AND t.phoneNumber = :phoneNumber AND t.type = :type " +
+                "AND t.confirmed = false AND t.expiresAt >= :now"
+        ),
+        @NamedQuery(
+            name = "tokenCodesCreatedBefore",
+            query = "SELECT t.id FROM TokenCode t WHERE t.createdAt < :date ORDER BY t.createdAt"
+        ),
+        @NamedQuery(
+            name = "archiveConfirmedTokenCodes",
+            query = "INSERT INTO TokenCodeArchive (id, realmId, phoneNumber, type, createdAt, byWhom) " +
+                "SELECT t.id, t.realmId, t.phoneNumber, t.type, t.createdAt, t.byWhom FROM TokenCode t " +
+                "WHERE t.id IN :ids AND t.confirmed = true AND t.type IS NOT NULL"
+        ),
+        @NamedQuery(
+            name = "deleteTokenCodes",
+            query = "DELETE FROM TokenCode t WHERE t.id IN :ids"
         )
 })
+@NamedNativeQuery(
+    // preSendCheck in one round trip: a range of (REALM_ID, PHONE_NUMBER, TYPE_CODE), which the target and the
+    // ongoing index share, then one of IDX_PHONE_CODE_SOURCE. A single select ORing both would leave only
+    // (REALM_ID, TYPE_CODE) as an index prefix.
+    name = "preSendCheck",
+    query = "SELECT 0 AS SIDE, SUM(CASE WHEN CREATED_AT >= :date THEN 1 ELSE 0 END) AS SENT, " +
+        "MAX(CASE WHEN EXPIRES_AT >= :now AND CONFIRMED = FALSE THEN EXPIRES_AT END) AS ONGOING_EXPIRES_AT " +
+        "FROM PHONE_MESSAGE_TOKEN_CODE " +
+        "WHERE REALM_ID = :realmId AND PHONE_NUMBER = :phoneNumber AND TYPE_CODE = :type " +
+        "AND (CREATED_AT >= :date OR EXPIRES_AT >= :now) " +
+        "UNION ALL " +
+        "SELECT 1, COUNT(*), NULL FROM PHONE_MESSAGE_TOKEN_CODE " +
+        "WHERE REALM_ID = :realmId AND IP = :addr AND TYPE_CODE = :type AND CREATED_AT >= :date",
+    resultSetMapping = "preSendCheck"
+)
+@SqlResultSetMapping(
+    name = "preSendCheck",
+    columns = {
+        @ColumnResult(name = "SIDE", type = Integer.class),
+        @ColumnResult(name = "SENT", type = Long.class),
+        @ColumnResult(name = "ONGOING_EXPIRES_AT", type = Date.class)
+    }
+)
 public class TokenCode {
 
     @Id
@@ -40,8 +90,16 @@ public class TokenCode {
     @Column(name = "PHONE_NUMBER", nullable = false)
     private String phoneNumber;
 
+    @Convert(converter = TokenCodeTypeConverter.class)
+    @Column(name = "TYPE_CODE")
+    private TokenCodeType type;
+
+    /**
+     * The type by name, the column releases before {@code TYPE_CODE} read. Written until it is dropped, so
+     * old and new nodes can run side by side during a rolling upgrade.
+     */
     @Column(name = "TYPE", nullable = false)
-    private String type;
+    private String legacyType;
 
     @Column(name = "CODE", nullable = false)
     private String code;
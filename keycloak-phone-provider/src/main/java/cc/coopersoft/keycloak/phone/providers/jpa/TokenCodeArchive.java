@@ -0,0 +1,37 @@
+package cc.coopersoft.keycloak.phone.providers.jpa;
+
+import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
+import lombok.Data;
+
+import jakarta.persistence.*;
+import java.util.Date;
+
+/**
+ * Compact copy of a confirmed {@link TokenCode}, kept after the purge task removed the original row.
+ */
+@Entity
+@Data
+@Table(name = "PHONE_MESSAGE_TOKEN_CODE_ARCHIVE")
+public class TokenCodeArchive {
+
+    @Id
+    @Column(name = "ID")
+    private String id;
+
+    @Column(name = "REALM_ID", nullable = false)
+    private String realmId;
+
+    @Column(name = "PHONE_NUMBER", nullable = false)
+    private String phoneNumber;
+
+    @Convert(converter = TokenCodeTypeConverter.class)
+    @Column(name = "TYPE_CODE", nullable = false)
+    private TokenCodeType type;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "CREATED_AT", nullable = false)
+    private Date createdAt;
+
+    @Column(name = "BY_WHOM")
+    private String byWhom;
+}
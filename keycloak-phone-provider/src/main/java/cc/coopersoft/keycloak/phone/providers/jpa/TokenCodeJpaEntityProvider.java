@@ -2,14 +2,14 @@ package cc.coopersoft.keycloak.phone.providers.jpa;
 
 import org.keycloak.connections.jpa.entityprovider.JpaEntityProvider;
 
-import java.util.Collections;
 import java.util.List;
 
 public class TokenCodeJpaEntityProvider implements JpaEntityProvider {
 
     @Override
     public List<Class<?>> getEntities() {
-        return Collections.singletonList(TokenCode.class);
+        return List.of(TokenCode.class, TokenCodeArchive.class, PhoneNumberIndex.class, MessageOutbox.class,
+            MessageDelivery.class);
     }
 
     @Override
@@ -0,0 +1,20 @@
+package cc.coopersoft.keycloak.phone.providers.jpa;
+
+import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
+
+import jakarta.persistence.AttributeConverter;
+import jakarta.persistence.Converter;
+
+@Converter
+public class TokenCodeTypeConverter implements AttributeConverter<TokenCodeType, Short> {
+
+    @Override
+    public Short convertToDatabaseColumn(TokenCodeType type) {
+        return type == null ? null : type.code;
+    }
+
+    @Override
+    public TokenCodeType convertToEntityAttribute(Short code) {
+        return code == null ? null : TokenCodeType.ofCode(code);
+    }
+}
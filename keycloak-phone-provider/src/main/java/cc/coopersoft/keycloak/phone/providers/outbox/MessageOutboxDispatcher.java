@@ -0,0 +1,321 @@
+package cc.coopersoft.keycloak.phone.providers.outbox;
+
+import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
+import cc.coopersoft.keycloak.phone.providers.delivery.DeliveryTracker;
+import cc.coopersoft.keycloak.phone.providers.exception.MessageSendException;
+import cc.coopersoft.keycloak.phone.providers.jpa.MessageOutbox;
+import cc.coopersoft.keycloak.phone.providers.representations.SendResult;
+import cc.coopersoft.keycloak.phone.providers.spi.MessageSenderService;
+import cc.coopersoft.keycloak.phone.providers.spi.PhoneProvider;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import org.jboss.logging.Logger;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.LockModeType;
+import jakarta.persistence.TemporalType;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends the messages of {@code PHONE_MESSAGE_OUTBOX} from a pool of background threads. A worker claims a
+ * batch with {@code SELECT ... FOR UPDATE SKIP LOCKED}, pushes the rows' next attempt out by the lease time
+ * and commits, so other workers and nodes skip them. Each message is then sent with no transaction open:
+ * its realm and sender are looked up in a short transaction of their own, and the outcome is written in
+ * another. Sent rows are deleted, in the transaction recording the delivery when deliveries are tracked; failed
+ * ones are retried with exponential backoff until {@code maxAttempts}. A code that expired before it went out
+ * is not sent, its row is marked {@code EXPIRED}.
+ */
+public class MessageOutboxDispatcher {
+
+    private static final Logger logger = Logger.getLogger(MessageOutboxDispatcher.class);
+
+    // org.hibernate.LockOptions.SKIP_LOCKED
+    private static final int SKIP_LOCKED = -2;
+    private static final int LAST_ERROR_LENGTH = 255;
+
+    private record Message(String id, String realmId, String service, TokenCodeType type, String phoneNumber,
+                           String code, long expiresAt, String kind, int attempts) {
+    }
+
+    private final int threads;
+    private final int batchSize;
+    private final int maxAttempts;
+    private final long leaseMillis;
+    private final long pollMillis;
+    private final long backoffMillis;
+    private final long drainMillis;
+
+    private final AtomicLong depth = Metrics.gauge("keycloak.phone.outbox.depth", new AtomicLong());
+    private final Counter expired = Metrics.counter("keycloak.phone.outbox.expired");
+    private final AtomicInteger signals = new AtomicInteger();
+    private final Object monitor = new Object();
+
+    private volatile boolean running;
+    private KeycloakSessionFactory sessionFactory;
+    private ExecutorService workers;
+
+    public MessageOutboxDispatcher(int threads, int batchSize, int maxAttempts, long leaseMillis, long pollMillis,
+                                   long backoffMillis, long drainMillis) {
+        this.threads = threads;
+        this.batchSize = batchSize;
+        this.maxAttempts = maxAttempts;
+        this.leaseMillis = leaseMillis;
+        this.pollMillis = pollMillis;
+        this.backoffMillis = backoffMillis;
+        this.drainMillis = drainMillis;
+    }
+
+    public synchronized void start(KeycloakSessionFactory sessionFactory) {
+        if (running) {
+            return;
+        }
+        this.sessionFactory = sessionFactory;
+        this.running = true;
+        this.workers = Executors.newFixedThreadPool(threads, Thread.ofPlatform().name("phone-outbox-", 0).daemon().factory());
+        for (int i = 0; i < threads; i++) {
+            workers.execute(this::work);
+        }
+    }
+
+    /**
+     * Stops claiming and waits up to the drain timeout for messages already claimed; rows left behind stay
+     * in the table for the next start or another node.
+     */
+    public synchronized void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        signal();
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(drainMillis, TimeUnit.MILLISECONDS)) {
+                logger.warn("Phone message outbox did not drain in time, remaining messages are sent after restart");
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Adds the message to the outbox in the current transaction and wakes the workers once it committed.
+     *
+     * @param tokenCodeId id of the code sent, the row's id and that of its delivery once sent
+     */
+    public void enqueue(KeycloakSession session, String tokenCodeId, String service, TokenCodeType type,
+                        String phoneNumber, String code, int expiresIn, String kind) {
+        Date now = new Date();
+        MessageOutbox entity = new MessageOutbox();
+        entity.setId(tokenCodeId);
+        entity.setRealmId(session.getContext().getRealm().getId());
+        entity.setService(service);
+        entity.setType(type);
+        entity.setPhoneNumber(phoneNumber);
+        entity.setCode(code);
+        entity.setExpiresIn(expiresIn);
+        entity.setExpiresAt(new Date(now.getTime() + TimeUnit.SECONDS.toMillis(expiresIn)));
+        entity.setKind(kind);
+        entity.setStatus(MessageOutbox.Status.PENDING);
+        entity.setAttempts(0);
+        entity.setCreatedAt(now);
+        entity.setNextAttemptAt(now);
+        session.getProvider(JpaConnectionProvider.class).getEntityManager().persist(entity);
+
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                signal();
+            }
+
+            @Override
+            protected void rollbackImpl() {
+            }
+        });
+    }
+
+    private void signal() {
+        synchronized (monitor) {
+            signals.incrementAndGet();
+            monitor.notifyAll();
+        }
+    }
+
+    private void await() throws InterruptedException {
+        synchronized (monitor) {
+            if (signals.get() == 0 && running) {
+                monitor.wait(pollMillis);
+            }
+            signals.set(0);
+        }
+    }
+
+    private void work() {
+        while (running) {
+            try {
+                List<Message> claimed = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, this::claim);
+                if (claimed.isEmpty()) {
+                    await();
+                    continue;
+                }
+                claimed.forEach(this::dispatch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                logger.warn("Phone message outbox worker failed, retrying after the poll interval", e);
+                try {
+                    Thread.sleep(pollMillis);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private List<Message> claim(KeycloakSession session) {
+        EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+        Date now = new Date();
+        List<MessageOutbox> rows = em.createNamedQuery("claimOutboxMessages", MessageOutbox.class)
+            .setParameter("status", MessageOutbox.Status.PENDING)
+            .setParameter("now", now, TemporalType.TIMESTAMP)
+            .setLockMode(LockModeType.PESSIMISTIC_WRITE)
+            .setHint("jakarta.persistence.lock.timeout", SKIP_LOCKED)
+            .setMaxResults(batchSize)
+            .getResultList();
+
+        Date lease = new Date(now.getTime() + leaseMillis);
+        List<Message> claimed = new ArrayList<>();
+        for (MessageOutbox row : rows) {
+            long expiresAt = row.getExpiresAt().getTime();
+            if (expiresAt <= now.getTime()) {
+                row.setStatus(MessageOutbox.Status.EXPIRED);
+                expired.increment();
+                logger.debugf("%s code to %s expired before it was sent", row.getType().label, row.getPhoneNumber());
+                continue;
+            }
+            row.setAttempts(row.getAttempts() + 1);
+            row.setNextAttemptAt(lease);
+            claimed.add(new Message(row.getId(), row.getRealmId(), row.getService(), row.getType(), row.getPhoneNumber(),
+                row.getCode(), expiresAt, row.getKind(), row.getAttempts()));
+        }
+        // every poll, so the gauge also falls while the outbox is busy
+        depth.set(em.createNamedQuery("countOutboxMessages", Long.class)
+            .setParameter("status", MessageOutbox.Status.PENDING)
+            .getSingleResult());
+        return claimed;
+    }
+
+    private void dispatch(Message message) {
+        String error;
+        try (KeycloakSession session = sessionFactory.create()) {
+            KeycloakTransactionManager transaction = session.getTransactionManager();
+            transaction.begin();
+            RealmModel realm = session.realms().getRealm(message.realmId());
+            MessageSenderService sender = null;
+            if (realm != null) {
+                session.getContext().setRealm(realm);
+                sender = session.getProvider(MessageSenderService.class, message.service());
+            }
+            transaction.commit();
+
+            long expiresIn = TimeUnit.MILLISECONDS.toSeconds(message.expiresAt() - System.currentTimeMillis());
+            if (expiresIn <= 0) {
+                expired.increment();
+                KeycloakModelUtils.runJobInTransaction(sessionFactory, outcome -> {
+                    MessageOutbox row = outcome.getProvider(JpaConnectionProvider.class).getEntityManager()
+                        .find(MessageOutbox.class, message.id());
+                    if (row != null) {
+                        row.setStatus(MessageOutbox.Status.EXPIRED);
+                    }
+                });
+                return;
+            }
+            SendResult result = null;
+            if (sender != null) {
+                // the code says how long it is still valid, not how long it was when it was enqueued
+                result = await(sender.sendSmsMessageAsync(message.type(), message.phoneNumber(), message.code(),
+                    (int) expiresIn, message.kind()));
+                logger.info(String.format("Sent %s code to %s over %s", message.type().label, message.phoneNumber(), message.service()));
+            }
+            SendResult sent = result;
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, outcome -> {
+                outcome.getProvider(JpaConnectionProvider.class).getEntityManager()
+                    .createNamedQuery("deleteOutboxMessage")
+                    .setParameter("id", message.id())
+                    .executeUpdate();
+                if (sent != null) {
+                    recordSent(outcome, message, sent);
+                }
+            });
+            return;
+        } catch (MessageSendException e) {
+            error = String.format("%s: %s", e.getErrorCode(), e.getErrorMessage());
+        } catch (RuntimeException e) {
+            error = String.valueOf(e.getMessage());
+        }
+
+        boolean failed = message.attempts() >= maxAttempts;
+        logger.error(String.format("Message sending to %s failed (attempt %d of %d): %s",
+            message.phoneNumber(), message.attempts(), maxAttempts, error));
+        String lastError = error.length() > LAST_ERROR_LENGTH ? error.substring(0, LAST_ERROR_LENGTH) : error;
+        long backoff = backoffMillis << Math.min(message.attempts() - 1, 10);
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            MessageOutbox row = session.getProvider(JpaConnectionProvider.class).getEntityManager()
+                .find(MessageOutbox.class, message.id());
+            if (row != null) {
+                row.setLastError(lastError);
+                row.setNextAttemptAt(new Date(System.currentTimeMillis() + backoff));
+                if (failed) {
+                    row.setStatus(MessageOutbox.Status.FAILED);
+                }
+            }
+        });
+    }
+
+    private static SendResult await(CompletionStage<SendResult> sending) throws MessageSendException {
+        try {
+            return sending.toCompletableFuture().join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof MessageSendException sendException) {
+                throw sendException;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Records the delivery of the code, whose id is the one of its row, when deliveries are tracked.
+     */
+    private static void recordSent(KeycloakSession session, Message message, SendResult result) {
+        RealmModel realm = session.realms().getRealm(message.realmId());
+        if (realm == null) {
+            return;
+        }
+        session.getContext().setRealm(realm);
+        PhoneProvider phoneProvider = session.getProvider(PhoneProvider.class);
+        DeliveryTracker tracker = phoneProvider.deliveryTracker();
+        if (tracker != null) {
+            tracker.recordSent(session, message.id(), message.service(), message.phoneNumber(),
+                phoneProvider.phonePolicy().getDefaultRegion(), result);
+        }
+    }
+}
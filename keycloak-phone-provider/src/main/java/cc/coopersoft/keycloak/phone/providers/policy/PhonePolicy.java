@@ -0,0 +1,90 @@
+package cc.coopersoft.keycloak.phone.providers.policy;
+
+import cc.coopersoft.common.OptionalUtils;
+import com.google.i18n.phonenumbers.PhoneNumberUtil.PhoneNumberFormat;
+import lombok.Getter;
+import org.jboss.logging.Logger;
+import org.keycloak.models.RealmModel;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.regex.Pattern;
+
+/**
+ * Immutable snapshot of a realm's phone number settings, with the canonicalize format parsed, the number
+ * regex compiled and the default region resolved from the realm's default locale when not configured.
+ */
+@Getter
+public final class PhonePolicy {
+
+    private static final Logger logger = Logger.getLogger(PhonePolicy.class);
+
+    private static final Pattern LOCALE_COUNTRY = Pattern.compile("[^a-z]*\\-?([A-Z]{2,3})");
+
+    private final String realmName;
+    private final String realmDefaultLocale;
+
+    private final boolean duplicatePhoneAllowed;
+    private final boolean validPhoneNumber;
+    private final boolean compatibleMode;
+    private final int otpExpires;
+
+    private final Optional<String> canonicalizeFormatName;
+    /**
+     * null when numbers are kept as entered
+     */
+    private final PhoneNumberFormat canonicalizeFormat;
+    private final Optional<String> configuredRegion;
+    private final String defaultRegion;
+    private final Optional<String> numberRegexSource;
+    private final Pattern numberRegex;
+
+    /**
+     * Identifies every setting a canonicalized number depends on.
+     */
+    private final String key;
+
+    public PhonePolicy(RealmModel realm, boolean duplicatePhoneAllowed, boolean validPhoneNumber,
+                       boolean compatibleMode, int otpExpires, Optional<String> canonicalizeFormatName,
+                       Optional<String> configuredRegion, Optional<String> numberRegexSource) {
+        this.realmName = realm.getName();
+        this.realmDefaultLocale = realm.getDefaultLocale();
+        this.duplicatePhoneAllowed = duplicatePhoneAllowed;
+        this.validPhoneNumber = validPhoneNumber;
+        this.compatibleMode = compatibleMode;
+        this.otpExpires = otpExpires;
+        this.canonicalizeFormatName = canonicalizeFormatName;
+        this.canonicalizeFormat = canonicalizeFormatName.map(PhonePolicy::parseFormat).orElse(null);
+        this.configuredRegion = configuredRegion;
+        this.defaultRegion = configuredRegion.orElseGet(() -> localeToCountry(realmDefaultLocale).orElse(null));
+        this.numberRegexSource = numberRegexSource;
+        this.numberRegex = numberRegexSource.map(Pattern::compile).orElse(null);
+        this.key = String.join("|", realm.getId(), String.valueOf(defaultRegion), String.valueOf(validPhoneNumber),
+            String.valueOf(canonicalizeFormat), numberRegexSource.orElse(""));
+    }
+
+    private static PhoneNumberFormat parseFormat(String format) {
+        try {
+            return PhoneNumberFormat.valueOf(format);
+        } catch (RuntimeException e) {
+            logger.warn(String.format("canonicalize format param error! '%s' is not in supported list: %s, E164 Will be used.",
+                format, Arrays.toString(PhoneNumberFormat.values())), e);
+            return PhoneNumberFormat.E164;
+        }
+    }
+
+    public static Optional<String> localeToCountry(String locale) {
+        return OptionalUtils.ofBlank(locale)
+            .map(LOCALE_COUNTRY::matcher)
+            .flatMap(m -> m.find() ? OptionalUtils.ofBlank(m.group(1)) : Optional.empty());
+    }
+
+    /**
+     * @return true when realm settings the policy was derived from changed since it was built
+     */
+    public boolean isStale(RealmModel realm) {
+        return !Objects.equals(realmName, realm.getName()) ||
+            !Objects.equals(realmDefaultLocale, realm.getDefaultLocale());
+    }
+}
@@ -0,0 +1,124 @@
+package cc.coopersoft.keycloak.phone.providers.ratelimit;
+
+import cc.coopersoft.keycloak.phone.providers.sender.LatencyTracker;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds the code sends a node runs at once, so a slow gateway cannot tie up the worker threads logins and
+ * token refreshes need. The limit adapts AIMD style: it grows by one with each send that finished in time
+ * while at least half of it was in use, and shrinks by the backoff ratio with each send that failed or
+ * took longer than the latency threshold.
+ */
+public class AdaptiveConcurrencyLimiter {
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double backoffRatio;
+    private final long latencyThresholdNanos;
+
+    private final LatencyTracker latency = new LatencyTracker(0.2);
+    private final Counter rejected = Metrics.counter("keycloak.phone.sms.rejected", "reason", "concurrency");
+
+    private int limit;
+    private int inFlight;
+
+    public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, double backoffRatio,
+                                      long latencyThresholdMillis) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.backoffRatio = backoffRatio;
+        this.latencyThresholdNanos = TimeUnit.MILLISECONDS.toNanos(latencyThresholdMillis);
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+        Metrics.gauge("keycloak.phone.sms.inflight", this, AdaptiveConcurrencyLimiter::getInFlight);
+        Metrics.gauge("keycloak.phone.sms.limit", this, AdaptiveConcurrencyLimiter::getLimit);
+    }
+
+    /**
+     * @return a permit to complete once the send is done, or null when the limit is reached
+     */
+    public Permit tryAcquire() {
+        synchronized (this) {
+            if (inFlight >= limit) {
+                rejected.increment();
+                return null;
+            }
+            inFlight++;
+        }
+        return new Permit(System.nanoTime());
+    }
+
+    private synchronized void release(long nanos, boolean dropped, boolean sample) {
+        int used = inFlight--;
+        if (!sample) {
+            return;
+        }
+        if (dropped || nanos > latencyThresholdNanos) {
+            limit = Math.max(minLimit, (int) (limit * backoffRatio));
+        } else if (used * 2 >= limit) {
+            limit = Math.min(maxLimit, limit + 1);
+        }
+    }
+
+    /**
+     * @return seconds until a rejected caller should try again, the average send time rounded up
+     */
+    public long retryAfter() {
+        return Math.max(1, (long) Math.ceil(latency.getAverage() / 1000));
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public class Permit {
+
+        private final long start;
+        private boolean released;
+
+        private Permit(long start) {
+            this.start = start;
+        }
+
+        /**
+         * The send went through.
+         */
+        public void success() {
+            long nanos = System.nanoTime() - start;
+            if (done()) {
+                latency.record(TimeUnit.NANOSECONDS.toMillis(nanos));
+                release(nanos, false, true);
+            }
+        }
+
+        /**
+         * The gateway failed or timed out, a sign of overload.
+         */
+        public void dropped() {
+            if (done()) {
+                release(System.nanoTime() - start, true, true);
+            }
+        }
+
+        /**
+         * The request ended without telling anything about the gateway, e.g. it was rate limited.
+         */
+        public void ignore() {
+            if (done()) {
+                release(0, false, false);
+            }
+        }
+
+        private synchronized boolean done() {
+            boolean first = !released;
+            released = true;
+            return first;
+        }
+    }
+}
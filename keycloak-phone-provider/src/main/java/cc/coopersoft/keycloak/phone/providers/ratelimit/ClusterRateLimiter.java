@@ -0,0 +1,182 @@
+package cc.coopersoft.keycloak.phone.providers.ratelimit;
+
+import org.infinispan.Cache;
+import org.jboss.logging.Logger;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cluster wide sliding window kept as time buckets in Keycloak's replicated {@code work} cache, keyed by
+ * limiter key and bucket. Reads are node local because the cache is replicated. Sends are counted in
+ * local adders and added to the cluster buckets by {@link #flush()}, which runs every sync interval, so the
+ * send path never waits on the network; a node sees the sends of other nodes at most one sync interval
+ * late. With a sync interval of zero every send is written through.
+ */
+public class ClusterRateLimiter implements RateLimiter {
+
+    private static final Logger logger = Logger.getLogger(ClusterRateLimiter.class);
+
+    private static final String KEY_PREFIX = "phone-rate-limit::";
+
+    private static final int BUCKETS = 12;
+    private static final long BUCKET_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final long LIFESPAN_MILLIS = BUCKET_MILLIS * (BUCKETS + 1);
+
+    private final boolean writeThrough;
+    private final Map<String, LongAdder> pending = new ConcurrentHashMap<>();
+
+    private volatile Cache<String, Long> cache;
+
+    public ClusterRateLimiter(long syncIntervalMillis) {
+        this.writeThrough = syncIntervalMillis <= 0;
+    }
+
+    /**
+     * The cache is only available once the session factory is up, sends counted before are kept locally
+     * until the first flush.
+     */
+    public void setCache(Cache<String, Long> cache) {
+        this.cache = cache;
+    }
+
+    private static long currentBucket() {
+        return System.currentTimeMillis() / BUCKET_MILLIS;
+    }
+
+    private static String bucketKey(String key, long bucket) {
+        return KEY_PREFIX + key + "::" + bucket;
+    }
+
+    /**
+     * Records first and checks after, taking the send back when it went over, so of concurrent sends on any
+     * node none passes a check the others are not counted in yet. Sends of other nodes are seen one sync
+     * interval late, write through makes the check exact.
+     */
+    @Override
+    public boolean tryAcquire(String key, int maximum) {
+        record(key);
+        if (maximum > 0 && count(key) - 1 > maximum) {
+            release(key);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void release(String key) {
+        add(key, -1);
+    }
+
+    /**
+     * @return the sends recorded for key in the last hour, those of this node not synced yet included
+     */
+    public long count(String key) {
+        Cache<String, Long> cache = this.cache;
+        long now = currentBucket();
+        long total = 0;
+        for (long bucket = now - BUCKETS + 1; bucket <= now; bucket++) {
+            total += count(cache, bucketKey(key, bucket));
+        }
+        return total;
+    }
+
+    @Override
+    public long retryAfter(String key, int maximum) {
+        if (maximum <= 0) {
+            return 0;
+        }
+        Cache<String, Long> cache = this.cache;
+        long nowMillis = System.currentTimeMillis();
+        long now = nowMillis / BUCKET_MILLIS;
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = count(cache, bucketKey(key, now - BUCKETS + 1 + i));
+            total += counts[i];
+        }
+        for (int i = 0; i < BUCKETS && total > maximum; i++) {
+            total -= counts[i];
+            if (total <= maximum) {
+                long bucket = now - BUCKETS + 1 + i;
+                return TimeUnit.MILLISECONDS.toSeconds((bucket + BUCKETS) * BUCKET_MILLIS - nowMillis + 999);
+            }
+        }
+        return 0;
+    }
+
+    private long count(Cache<String, Long> cache, String bucketKey) {
+        long count = 0;
+        if (cache != null) {
+            Long shared = cache.get(bucketKey);
+            if (shared != null) {
+                count += shared;
+            }
+        }
+        LongAdder local = pending.get(bucketKey);
+        if (local != null) {
+            count += local.sum();
+        }
+        return count;
+    }
+
+    /**
+     * Counts a send for key without checking it against a maximum.
+     */
+    public void record(String key) {
+        add(key, 1);
+    }
+
+    private void add(String key, long delta) {
+        String bucketKey = bucketKey(key, currentBucket());
+        Cache<String, Long> cache = this.cache;
+        if (writeThrough && cache != null) {
+            add(cache, bucketKey, delta);
+            return;
+        }
+        pending.computeIfAbsent(bucketKey, k -> new LongAdder()).add(delta);
+    }
+
+    /**
+     * Adds the locally counted sends to the cluster buckets.
+     */
+    public void flush() {
+        Cache<String, Long> cache = this.cache;
+        if (cache == null) {
+            return;
+        }
+        String currentSuffix = "::" + currentBucket();
+        for (Map.Entry<String, LongAdder> entry : pending.entrySet()) {
+            // past buckets are no longer recorded into, their adders can go once drained
+            if (!entry.getKey().endsWith(currentSuffix)) {
+                pending.remove(entry.getKey(), entry.getValue());
+            }
+            long delta = entry.getValue().sumThenReset();
+            if (delta == 0) {
+                continue;
+            }
+            try {
+                add(cache, entry.getKey(), delta);
+            } catch (RuntimeException e) {
+                pending.computeIfAbsent(entry.getKey(), k -> new LongAdder()).add(delta);
+                logger.warn("Failed to sync phone rate limit counters, retrying on next sync", e);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Compare and swap increment; function based compute would need the lambda marshalled to other nodes.
+     */
+    private static void add(Cache<String, Long> cache, String bucketKey, long delta) {
+        while (true) {
+            Long current = cache.putIfAbsent(bucketKey, delta, LIFESPAN_MILLIS, TimeUnit.MILLISECONDS);
+            if (current == null ||
+                cache.replace(bucketKey, current, current + delta, LIFESPAN_MILLIS, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package cc.coopersoft.keycloak.phone.providers.ratelimit;
+
+/**
+ * Counts sends per key over the last hour, the window used by {@code targetHourMaximum} and
+ * {@code sourceHourMaximum}. Keys are opaque, callers build them from realm, token code type and
+ * phone number or source address.
+ */
+public interface RateLimiter {
+
+    /**
+     * Checks and records a send in one step, so concurrent sends cannot all pass a check none of them has
+     * counted yet.
+     *
+     * @param maximum sends allowed in the last hour, 0 or less for no limit
+     * @return true when the send was recorded, false when the sends recorded for key in the last hour
+     * already exceed maximum
+     */
+    boolean tryAcquire(String key, int maximum);
+
+    /**
+     * Takes back a send recorded by {@link #tryAcquire} that did not happen.
+     */
+    void release(String key);
+
+    /**
+     * @return seconds until enough recorded sends for key left the window to be below maximum again, 0 when
+     * it is not limited
+     */
+    long retryAfter(String key, int maximum);
+}
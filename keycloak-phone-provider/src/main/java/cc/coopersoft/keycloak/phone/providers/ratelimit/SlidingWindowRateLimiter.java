@@ -0,0 +1,143 @@
+package cc.coopersoft.keycloak.phone.providers.ratelimit;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Node local sliding window of one hour, kept as a ring of 60 per-minute buckets in a primitive array per
+ * key. Keys are spread over lock stripes; a stripe drops keys that saw no send for a whole window the
+ * first time it is touched in a new minute, so idle phone numbers and addresses do not pile up.
+ */
+public class SlidingWindowRateLimiter implements RateLimiter {
+
+    private static final int BUCKETS = 60;
+    private static final long BUCKET_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final class Window {
+        private final int[] counts = new int[BUCKETS];
+        private long minute;
+        private int total;
+
+        private Window(long minute) {
+            this.minute = minute;
+        }
+
+        private void advance(long now) {
+            if (now - minute >= BUCKETS) {
+                Arrays.fill(counts, 0);
+                total = 0;
+            } else {
+                for (long m = minute + 1; m <= now; m++) {
+                    int bucket = (int) (m % BUCKETS);
+                    total -= counts[bucket];
+                    counts[bucket] = 0;
+                }
+            }
+            minute = Math.max(minute, now);
+        }
+    }
+
+    private static final class Stripe {
+        private final Map<String, Window> windows = new HashMap<>();
+        private long sweptMinute;
+    }
+
+    private final Stripe[] stripes;
+
+    public SlidingWindowRateLimiter(int concurrency) {
+        int size = Integer.highestOneBit(Math.max(1, concurrency - 1)) << 1;
+        this.stripes = new Stripe[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    private Stripe stripe(String key) {
+        int h = key.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (stripes.length - 1)];
+    }
+
+    private static long currentMinute() {
+        return System.currentTimeMillis() / BUCKET_MILLIS;
+    }
+
+    @Override
+    public boolean tryAcquire(String key, int maximum) {
+        long now = currentMinute();
+        Stripe stripe = stripe(key);
+        synchronized (stripe) {
+            sweep(stripe, now);
+            Window window = stripe.windows.computeIfAbsent(key, k -> new Window(now));
+            window.advance(now);
+            if (maximum > 0 && window.total > maximum) {
+                return false;
+            }
+            window.counts[(int) (now % BUCKETS)]++;
+            window.total++;
+            return true;
+        }
+    }
+
+    @Override
+    public void release(String key) {
+        long now = currentMinute();
+        Stripe stripe = stripe(key);
+        synchronized (stripe) {
+            Window window = stripe.windows.get(key);
+            if (window == null) {
+                return;
+            }
+            window.advance(now);
+            // the send was recorded in the latest minute that still has one
+            for (long m = now; m > now - BUCKETS; m--) {
+                int bucket = (int) (m % BUCKETS);
+                if (window.counts[bucket] > 0) {
+                    window.counts[bucket]--;
+                    window.total--;
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public long retryAfter(String key, int maximum) {
+        if (maximum <= 0) {
+            return 0;
+        }
+        long nowMillis = System.currentTimeMillis();
+        long now = nowMillis / BUCKET_MILLIS;
+        Stripe stripe = stripe(key);
+        synchronized (stripe) {
+            Window window = stripe.windows.get(key);
+            if (window == null) {
+                return 0;
+            }
+            window.advance(now);
+            int total = window.total;
+            for (long m = now - BUCKETS + 1; m <= now && total > maximum; m++) {
+                total -= window.counts[(int) (m % BUCKETS)];
+                if (total <= maximum) {
+                    return TimeUnit.MILLISECONDS.toSeconds((m + BUCKETS) * BUCKET_MILLIS - nowMillis + 999);
+                }
+            }
+        }
+        return 0;
+    }
+
+    private static void sweep(Stripe stripe, long now) {
+        if (stripe.sweptMinute == now) {
+            return;
+        }
+        stripe.sweptMinute = now;
+        Iterator<Window> it = stripe.windows.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().minute >= BUCKETS) {
+                it.remove();
+            }
+        }
+    }
+}
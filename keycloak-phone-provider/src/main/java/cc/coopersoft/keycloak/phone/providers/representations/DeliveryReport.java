@@ -0,0 +1,40 @@
+package cc.coopersoft.keycloak.phone.providers.representations;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.Instant;
+
+/**
+ * A gateway's final word on a message, as read by a {@code DeliveryReportParser}.
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class DeliveryReport {
+
+    public enum Status {
+        DELIVERED,
+        FAILED
+    }
+
+    /**
+     * the id the gateway returned in the {@link SendResult}
+     */
+    private String messageId;
+    /**
+     * null when the report does not tell, needed when the gateway gave one id to a whole batch; may lack the
+     * country code or the leading {@code +}
+     */
+    private String phoneNumber;
+    private Status status;
+    /**
+     * null when delivered
+     */
+    private String errorCode;
+    /**
+     * null when the report does not tell, the time it was received is taken then
+     */
+    private Instant deliveredAt;
+}
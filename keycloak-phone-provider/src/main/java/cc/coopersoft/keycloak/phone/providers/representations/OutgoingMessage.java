@@ -0,0 +1,22 @@
+package cc.coopersoft.keycloak.phone.providers.representations;
+
+import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * One token code message of a {@code MessageSenderService.sendBatch}, the arguments of a
+ * {@code sendSmsMessage} call.
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class OutgoingMessage {
+
+    private TokenCodeType type;
+    private String phoneNumber;
+    private String code;
+    private int expires;
+    private String kind;
+}
@@ -0,0 +1,35 @@
+package cc.coopersoft.keycloak.phone.providers.representations;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.Duration;
+
+/**
+ * Outcome of a message handed to a gateway. Failed sends complete exceptionally with a
+ * {@code MessageSendException} instead.
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class SendResult {
+
+    public enum Status {
+        /**
+         * the gateway returned without telling what happened to the message, e.g. a blocking sender
+         */
+        SENT,
+        /**
+         * the gateway queued the message for delivery
+         */
+        ACCEPTED
+    }
+
+    private Status status;
+    /**
+     * null when the gateway does not return one
+     */
+    private String providerMessageId;
+    private Duration latency;
+}
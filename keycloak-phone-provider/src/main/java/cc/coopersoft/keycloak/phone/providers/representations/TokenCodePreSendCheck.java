@@ -0,0 +1,26 @@
+package cc.coopersoft.keycloak.phone.providers.representations;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Date;
+
+/**
+ * Everything {@code sendTokenCode} needs to know before sending, read in a single round trip of one
+ * lookup per index: codes sent to the target and from the source in the last hour, and the expiry of a
+ * code that is still valid, if any.
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class TokenCodePreSendCheck {
+
+    private long targetCount;
+    private long sourceCount;
+    private Date ongoingExpiresAt;
+
+    public boolean hasOngoing() {
+        return ongoingExpiresAt != null;
+    }
+}
@@ -0,0 +1,93 @@
+package cc.coopersoft.keycloak.phone.providers.rest;
+
+import cc.coopersoft.keycloak.phone.providers.delivery.DeliveryTracker;
+import cc.coopersoft.keycloak.phone.providers.representations.DeliveryReport;
+import cc.coopersoft.keycloak.phone.providers.spi.DeliveryReportParser;
+import cc.coopersoft.keycloak.phone.providers.spi.PhoneProvider;
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+
+import jakarta.ws.rs.*;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Map;
+
+import static jakarta.ws.rs.core.MediaType.APPLICATION_JSON;
+import static jakarta.ws.rs.core.MediaType.APPLICATION_JSON_TYPE;
+
+/**
+ * Takes the delivery reports gateways post to {@code delivery-report/{provider}}, read by the
+ * {@link DeliveryReportParser} of that id and handed to the {@link DeliveryTracker} without waiting for them
+ * to be written.
+ */
+public class DeliveryReportResource {
+
+  private static final Logger logger = Logger.getLogger(DeliveryReportResource.class);
+  private static final long RETRY_AFTER_SECONDS = 5;
+  static final String TOKEN_HEADER = "X-Delivery-Report-Token";
+
+  private final KeycloakSession session;
+  private final String token;
+
+  /**
+   * @param token the secret gateways have to pass in the {@value #TOKEN_HEADER} header or the {@code token}
+   *              query parameter, null when none was configured and reports are refused
+   */
+  DeliveryReportResource(KeycloakSession session, String token) {
+    this.session = session;
+    this.token = token;
+  }
+
+  @POST
+  @Path("{provider}")
+  @Consumes(MediaType.WILDCARD)
+  @Produces(APPLICATION_JSON)
+  public Response report(@PathParam("provider") String provider, @QueryParam("token") String token,
+                         @HeaderParam(TOKEN_HEADER) String headerToken, String body) {
+    DeliveryTracker tracker = session.getProvider(PhoneProvider.class).deliveryTracker();
+    if (tracker == null) {
+      throw new NotFoundException("Delivery tracking is disabled");
+    }
+    if (this.token == null) {
+      logger.warnf("Refused %s delivery report, no delivery report token is configured", provider);
+      throw new ForbiddenException("Invalid token");
+    }
+    String given = headerToken != null ? headerToken : token;
+    if (given == null || !MessageDigest.isEqual(this.token.getBytes(StandardCharsets.UTF_8),
+        given.getBytes(StandardCharsets.UTF_8))) {
+      throw new ForbiddenException("Invalid token");
+    }
+
+    DeliveryReportParser parser = session.getProvider(DeliveryReportParser.class, provider);
+    if (parser == null) {
+      throw new NotFoundException("No delivery report parser " + provider);
+    }
+    if (!parser.verify(session.getContext().getUri().getRequestUri(), session.getContext().getRequestHeaders(),
+        body == null ? "" : body)) {
+      logger.warnf("Refused %s delivery report with an invalid signature", provider);
+      throw new ForbiddenException("Invalid signature");
+    }
+
+    List<DeliveryReport> reports;
+    try {
+      reports = parser.parse(session.getContext().getRequestHeaders().getMediaType(), body == null ? "" : body);
+    } catch (IllegalArgumentException e) {
+      logger.warnf("Could not read %s delivery report: %s", provider, e.getMessage());
+      throw new BadRequestException("Invalid delivery report");
+    }
+
+    if (!tracker.submit(provider, reports)) {
+      logger.warnf("Delivery report queue is full, asked %s to send again", provider);
+      return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+          .header(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS)
+          .entity(Map.of("error", "Too many delivery reports, try again later"))
+          .type(APPLICATION_JSON_TYPE)
+          .build();
+    }
+    return Response.ok(Map.of("accepted", reports.size()), APPLICATION_JSON_TYPE).build();
+  }
+}
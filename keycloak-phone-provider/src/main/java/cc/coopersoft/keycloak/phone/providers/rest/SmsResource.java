@@ -1,6 +1,7 @@
 package cc.coopersoft.keycloak.phone.providers.rest;
 
 import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
+import cc.coopersoft.keycloak.phone.providers.ratelimit.AdaptiveConcurrencyLimiter;
 import org.keycloak.models.KeycloakSession;
 
 import jakarta.ws.rs.Path;
@@ -8,34 +9,47 @@ import jakarta.ws.rs.Path;
 public class SmsResource {
 
     private final KeycloakSession session;
-
-    public SmsResource(KeycloakSession session) {
+    private final AdaptiveConcurrencyLimiter limiter;
+    private final String deliveryReportToken;
+
+    /**
+     * @param limiter             bounds the code sends running at once, null for no bound
+     * @param deliveryReportToken secret delivery reports have to come with, null for none
+     */
+    public SmsResource(KeycloakSession session, AdaptiveConcurrencyLimiter limiter, String deliveryReportToken) {
         this.session = session;
+        this.limiter = limiter;
+        this.deliveryReportToken = deliveryReportToken;
     }
 
     @Path("verification-code")
     public VerificationCodeResource getVerificationCodeResource() {
-        return new VerificationCodeResource(session);
+        return new VerificationCodeResource(session, limiter);
     }
 
     @Path("authentication-code")
     public TokenCodeResource getAuthenticationCodeResource() {
-        return new TokenCodeResource(session, TokenCodeType.AUTH);
+        return new TokenCodeResource(session, TokenCodeType.AUTH, limiter);
     }
 
     @Path("registration-code")
     public TokenCodeResource getRegistrationCodeResource() {
-        return new TokenCodeResource(session, TokenCodeType.REGISTRATION);
+        return new TokenCodeResource(session, TokenCodeType.REGISTRATION, limiter);
     }
 
     @Path("reset-code")
     public TokenCodeResource getResetCodeResource() {
-        return new TokenCodeResource(session, TokenCodeType.RESET);
+        return new TokenCodeResource(session, TokenCodeType.RESET, limiter);
     }
 
     @Path("otp-code")
     public TokenCodeResource getOTPCodeResource() {
-        return new TokenCodeResource(session, TokenCodeType.OTP);
+        return new TokenCodeResource(session, TokenCodeType.OTP, limiter);
+    }
+
+    @Path("delivery-report")
+    public DeliveryReportResource getDeliveryReportResource() {
+        return new DeliveryReportResource(session, deliveryReportToken);
     }
 
 }
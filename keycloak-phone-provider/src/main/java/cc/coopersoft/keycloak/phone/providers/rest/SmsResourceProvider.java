@@ -1,19 +1,24 @@
 package cc.coopersoft.keycloak.phone.providers.rest;
 
+import cc.coopersoft.keycloak.phone.providers.ratelimit.AdaptiveConcurrencyLimiter;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.services.resource.RealmResourceProvider;
 
 public class SmsResourceProvider implements RealmResourceProvider {
 
     private final KeycloakSession session;
+    private final AdaptiveConcurrencyLimiter limiter;
+    private final String deliveryReportToken;
 
-    SmsResourceProvider(KeycloakSession session) {
+    SmsResourceProvider(KeycloakSession session, AdaptiveConcurrencyLimiter limiter, String deliveryReportToken) {
         this.session = session;
+        this.limiter = limiter;
+        this.deliveryReportToken = deliveryReportToken;
     }
 
     @Override
     public Object getResource() {
-        return new SmsResource(session);
+        return new SmsResource(session, limiter, deliveryReportToken);
     }
 
     @Override
@@ -1,5 +1,6 @@
 package cc.coopersoft.keycloak.phone.providers.rest;
 
+import cc.coopersoft.keycloak.phone.providers.ratelimit.AdaptiveConcurrencyLimiter;
 import org.jboss.logging.Logger;
 import org.keycloak.Config.Scope;
 import org.keycloak.models.KeycloakSession;
@@ -12,6 +13,9 @@ public class SmsResourceProviderFactory implements RealmResourceProviderFactory
 
     private static final Logger logger = Logger.getLogger(SmsResourceProviderFactory.class);
 
+    private AdaptiveConcurrencyLimiter limiter;
+    private String deliveryReportToken;
+
     @Override
     public String getId() {
         return "sms";
@@ -19,11 +23,21 @@ public class SmsResourceProviderFactory implements RealmResourceProviderFactory
 
     @Override
     public RealmResourceProvider create(KeycloakSession session) {
-        return new SmsResourceProvider(session);
+        return new SmsResourceProvider(session, limiter, deliveryReportToken);
     }
 
     @Override
     public void init(Scope config) {
+        if (config.getBoolean("concurrencyLimit", false)) {
+            this.limiter = new AdaptiveConcurrencyLimiter(
+                config.getInt("concurrencyInitialLimit", 20),
+                config.getInt("concurrencyMinLimit", 2),
+                config.getInt("concurrencyMaxLimit", 200),
+                Double.parseDouble(config.get("concurrencyBackoffRatio", "0.9")),
+                config.getLong("concurrencyLatencyThreshold", 5000L));
+            logger.infof("Code sends are limited adaptively, starting at %d at once", limiter.getLimit());
+        }
+        this.deliveryReportToken = config.get("deliveryReportToken");
     }
 
     @Override
@@ -3,6 +3,8 @@ package cc.coopersoft.keycloak.phone.providers.rest;
 import cc.coopersoft.keycloak.phone.Utils;
 import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
 import cc.coopersoft.keycloak.phone.providers.exception.PhoneNumberInvalidException;
+import cc.coopersoft.keycloak.phone.providers.exception.TooManyRequestsException;
+import cc.coopersoft.keycloak.phone.providers.ratelimit.AdaptiveConcurrencyLimiter;
 import cc.coopersoft.keycloak.phone.providers.spi.PhoneProvider;
 import org.jboss.logging.Logger;
 
@@ -10,8 +12,11 @@ import org.keycloak.models.KeycloakSession;
 import org.keycloak.services.validation.Validation;
 
 import jakarta.validation.constraints.NotBlank;
+import io.micrometer.core.instrument.Metrics;
 import jakarta.ws.rs.*;
+import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.Response;
+import java.util.Map;
 
 import static jakarta.ws.rs.core.MediaType.APPLICATION_JSON;
 import static jakarta.ws.rs.core.MediaType.APPLICATION_JSON_TYPE;
@@ -21,10 +26,12 @@ public class TokenCodeResource {
   private static final Logger logger = Logger.getLogger(TokenCodeResource.class);
   protected final KeycloakSession session;
   protected final TokenCodeType tokenCodeType;
+  private final AdaptiveConcurrencyLimiter limiter;
 
-  TokenCodeResource(KeycloakSession session, TokenCodeType tokenCodeType) {
+  TokenCodeResource(KeycloakSession session, TokenCodeType tokenCodeType, AdaptiveConcurrencyLimiter limiter) {
     this.session = session;
     this.tokenCodeType = tokenCodeType;
+    this.limiter = limiter;
   }
 
 
@@ -54,11 +61,49 @@ public class TokenCodeResource {
     }
 
     logger.info(String.format("Requested %s code to %s", tokenCodeType.label, phoneNumber));
-    int tokenExpiresIn = phoneProvider.sendTokenCode(phoneNumber,
-        session.getContext().getConnection().getRemoteAddr(), tokenCodeType, kind);
+
+    AdaptiveConcurrencyLimiter.Permit permit = null;
+    if (limiter != null) {
+      permit = limiter.tryAcquire();
+      if (permit == null) {
+        logger.warn(String.format("Too many codes being sent at once, rejected %s code to %s", tokenCodeType.label, phoneNumber));
+        return retryLater(Response.Status.SERVICE_UNAVAILABLE, "Too many codes are being sent, try again later",
+            limiter.retryAfter());
+      }
+    }
+
+    int tokenExpiresIn;
+    try {
+      tokenExpiresIn = phoneProvider.sendTokenCode(phoneNumber,
+          session.getContext().getConnection().getRemoteAddr(), tokenCodeType, kind);
+      if (permit != null) permit.success();
+    } catch (TooManyRequestsException e) {
+      Metrics.counter("keycloak.phone.sms.rejected", "reason", "rate-limit").increment();
+      return retryLater(Response.Status.TOO_MANY_REQUESTS, e.getMessage(), e.getRetryAfter());
+    } catch (ServiceUnavailableException e) {
+      if (permit != null) permit.dropped();
+      return retryLater(Response.Status.SERVICE_UNAVAILABLE, e.getMessage(),
+          limiter != null ? limiter.retryAfter() : 1);
+    } finally {
+      // a no-op when the send already settled the permit
+      if (permit != null) permit.ignore();
+    }
 
     String response = String.format("{\"expires_in\":%s}", tokenExpiresIn);
 
     return Response.ok(response, APPLICATION_JSON_TYPE).build();
   }
+
+  /**
+   * Responds with the Retry-After header set instead of throwing, so it reaches the client, and rolls back
+   * what the request wrote.
+   */
+  private Response retryLater(Response.Status status, String message, long retryAfter) {
+    session.getTransactionManager().setRollbackOnly();
+    return Response.status(status)
+        .header(HttpHeaders.RETRY_AFTER, retryAfter)
+        .entity(Map.of("error", message))
+        .type(APPLICATION_JSON_TYPE)
+        .build();
+  }
 }
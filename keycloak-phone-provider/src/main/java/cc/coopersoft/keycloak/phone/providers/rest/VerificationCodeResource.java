@@ -1,6 +1,7 @@
 package cc.coopersoft.keycloak.phone.providers.rest;
 
 import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
+import cc.coopersoft.keycloak.phone.providers.ratelimit.AdaptiveConcurrencyLimiter;
 import cc.coopersoft.keycloak.phone.providers.spi.PhoneVerificationCodeProvider;
 import org.jboss.logging.Logger;
 
@@ -20,8 +21,8 @@ public class VerificationCodeResource extends TokenCodeResource {
 
     private final AuthResult auth;
 
-    VerificationCodeResource(KeycloakSession session) {
-        super(session, TokenCodeType.VERIFY);
+    VerificationCodeResource(KeycloakSession session, AdaptiveConcurrencyLimiter limiter) {
+        super(session, TokenCodeType.VERIFY, limiter);
         this.auth = new AppAuthManager.BearerTokenAuthenticator(session).authenticate();
     }
 
@@ -0,0 +1,130 @@
+package cc.coopersoft.keycloak.phone.providers.sender;
+
+/**
+ * Count based circuit breaker over the last {@code windowSize} calls of one provider. It opens when, after at
+ * least {@code minimumCalls}, the share of failed or of slow calls reaches its threshold, rejects calls while
+ * open, then lets {@code halfOpenProbes} calls through: all of them succeeding closes it, any failure opens it
+ * again.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED,
+        HALF_OPEN,
+        OPEN
+    }
+
+    private final int windowSize;
+    private final int minimumCalls;
+    private final double failureRateThreshold;
+    private final long slowCallMillis;
+    private final double slowCallRateThreshold;
+    private final long openMillis;
+    private final int halfOpenProbes;
+
+    private final boolean[] failed;
+    private final boolean[] slow;
+    private int calls;
+    private int next;
+    private int failures;
+    private int slowCalls;
+
+    private State state = State.CLOSED;
+    private long openedAt;
+    private int probesStarted;
+    private int probesSucceeded;
+
+    public CircuitBreaker(int windowSize, int minimumCalls, double failureRateThreshold, long slowCallMillis,
+                          double slowCallRateThreshold, long openMillis, int halfOpenProbes) {
+        this.windowSize = windowSize;
+        this.minimumCalls = Math.min(minimumCalls, windowSize);
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallMillis = slowCallMillis;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.openMillis = openMillis;
+        this.halfOpenProbes = halfOpenProbes;
+        this.failed = new boolean[windowSize];
+        this.slow = new boolean[windowSize];
+    }
+
+    /**
+     * @return true when a call may go to the provider, it must then be reported through {@link #record}
+     */
+    public synchronized boolean tryAcquire() {
+        if (state == State.OPEN) {
+            if (System.currentTimeMillis() - openedAt < openMillis) {
+                return false;
+            }
+            state = State.HALF_OPEN;
+            probesStarted = 0;
+            probesSucceeded = 0;
+        }
+        if (state == State.HALF_OPEN) {
+            if (probesStarted >= halfOpenProbes) {
+                return false;
+            }
+            probesStarted++;
+        }
+        return true;
+    }
+
+    /**
+     * @return true when the provider would accept a call right now, without taking a probe
+     */
+    public synchronized boolean isCallPermitted() {
+        return switch (state) {
+            case CLOSED -> true;
+            case HALF_OPEN -> probesStarted < halfOpenProbes;
+            case OPEN -> System.currentTimeMillis() - openedAt >= openMillis;
+        };
+    }
+
+    public synchronized void record(boolean success, long latencyMillis) {
+        if (state == State.HALF_OPEN) {
+            if (!success) {
+                open();
+            } else if (++probesSucceeded >= halfOpenProbes) {
+                close();
+            }
+            return;
+        }
+        if (state == State.OPEN) {
+            // a call started before the breaker opened
+            return;
+        }
+
+        boolean isSlow = latencyMillis >= slowCallMillis;
+        if (calls == windowSize) {
+            failures -= failed[next] ? 1 : 0;
+            slowCalls -= slow[next] ? 1 : 0;
+        } else {
+            calls++;
+        }
+        failed[next] = !success;
+        slow[next] = isSlow;
+        failures += success ? 0 : 1;
+        slowCalls += isSlow ? 1 : 0;
+        next = (next + 1) % windowSize;
+
+        if (calls >= minimumCalls && (failures >= failureRateThreshold * calls || slowCalls >= slowCallRateThreshold * calls)) {
+            open();
+        }
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+    }
+
+    private void close() {
+        state = State.CLOSED;
+        calls = 0;
+        next = 0;
+        failures = 0;
+        slowCalls = 0;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+}
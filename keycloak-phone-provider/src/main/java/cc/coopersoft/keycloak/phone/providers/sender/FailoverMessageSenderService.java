@@ -0,0 +1,172 @@
+package cc.coopersoft.keycloak.phone.providers.sender;
+
+import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
+import cc.coopersoft.keycloak.phone.providers.exception.MessageSendException;
+import cc.coopersoft.keycloak.phone.providers.representations.SendResult;
+import cc.coopersoft.keycloak.phone.providers.sender.FailoverMessageSenderServiceProviderFactory.Member;
+import cc.coopersoft.keycloak.phone.providers.spi.BlockingSendExecutor;
+import cc.coopersoft.keycloak.phone.providers.spi.MessageSenderService;
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+public class FailoverMessageSenderService implements MessageSenderService {
+
+    private static final Logger logger = Logger.getLogger(FailoverMessageSenderService.class);
+
+    private record Candidate(Member member, MessageSenderService sender) {
+    }
+
+    /**
+     * @param sendsLater whether send may be started off the calling thread
+     */
+    private record Attempt(Member member, Supplier<CompletionStage<SendResult>> send, boolean sendsLater) {
+    }
+
+    private final KeycloakSession session;
+    private final FailoverMessageSenderServiceProviderFactory factory;
+
+    FailoverMessageSenderService(KeycloakSession session, FailoverMessageSenderServiceProviderFactory factory) {
+        this.session = session;
+        this.factory = factory;
+    }
+
+    /**
+     * Resolved up front on the calling thread, the session is not meant to be used from completion threads.
+     */
+    private List<Candidate> candidates() {
+        List<Candidate> candidates = new ArrayList<>();
+        for (Member member : factory.candidates()) {
+            if (!factory.isDelegate(member.id)) {
+                logger.warnf("Message sender '%s' of failover is not deployed or is a composite sender, skipped", member.id);
+                continue;
+            }
+            candidates.add(new Candidate(member, session.getProvider(MessageSenderService.class, member.id)));
+        }
+        return candidates;
+    }
+
+    private static MessageSendException unavailable() {
+        return new MessageSendException(503, "NO_PROVIDER", "No message sender provider available");
+    }
+
+    private static long millisSince(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    @Override
+    public void sendSmsMessage(TokenCodeType type, String phoneNumber, String code, int expires, String kind)
+        throws MessageSendException {
+        MessageSendException last = null;
+        for (Candidate candidate : candidates()) {
+            Member member = candidate.member();
+            if (!member.breaker.tryAcquire()) {
+                member.rejected();
+                continue;
+            }
+            long start = System.nanoTime();
+            try {
+                candidate.sender().sendSmsMessage(type, phoneNumber, code, expires, kind);
+                member.succeeded(millisSince(start));
+                return;
+            } catch (MessageSendException e) {
+                member.failed(millisSince(start));
+                logger.warnf("Message sending to %s over %s failed with %s: %s, trying next",
+                    phoneNumber, member.id, e.getErrorCode(), e.getErrorMessage());
+                last = e;
+            } catch (RuntimeException e) {
+                member.failed(millisSince(start));
+                logger.warnf(e, "Message sending to %s over %s failed, trying next", phoneNumber, member.id);
+                last = new MessageSendException(e.getMessage(), e);
+            }
+        }
+        throw last != null ? last : unavailable();
+    }
+
+    /**
+     * Every candidate's send is prepared on the calling thread. The first one goes out from it, fallbacks
+     * from a {@link BlockingSendExecutor} thread, where only candidates that can send later are tried.
+     */
+    @Override
+    public CompletionStage<SendResult> sendSmsMessageAsync(TokenCodeType type, String phoneNumber, String code,
+                                                           int expires, String kind) {
+        List<Attempt> attempts = new ArrayList<>();
+        for (Candidate candidate : candidates()) {
+            MessageSenderService sender = candidate.sender();
+            Supplier<CompletionStage<SendResult>> later;
+            try {
+                later = sender.prepareSmsMessage(type, phoneNumber, code, expires, kind);
+            } catch (RuntimeException e) {
+                logger.warnf(e, "Preparing message to %s over %s failed", phoneNumber, candidate.member().id);
+                later = () -> CompletableFuture.failedFuture(e);
+            }
+            boolean sendsLater = later != null;
+            if (!sendsLater) {
+                later = () -> sender.sendSmsMessageAsync(type, phoneNumber, code, expires, kind);
+            }
+            attempts.add(new Attempt(candidate.member(), later, sendsLater));
+        }
+        CompletableFuture<SendResult> result = new CompletableFuture<>();
+        attempt(attempts, 0, null, true, phoneNumber, result);
+        return result;
+    }
+
+    /**
+     * @param callerThread whether this runs on the calling thread, which may start any attempt
+     */
+    private void attempt(List<Attempt> attempts, int from, Throwable last, boolean callerThread, String phoneNumber,
+                         CompletableFuture<SendResult> result) {
+        for (int i = from; i < attempts.size(); i++) {
+            Attempt attempt = attempts.get(i);
+            Member member = attempt.member();
+            if (!callerThread && !attempt.sendsLater()) {
+                logger.warnf("Message sender '%s' can not send off the calling thread, skipped for failover", member.id);
+                continue;
+            }
+            if (!member.breaker.tryAcquire()) {
+                member.rejected();
+                continue;
+            }
+            int next = i + 1;
+            long start = System.nanoTime();
+            CompletionStage<SendResult> sending;
+            try {
+                sending = attempt.send().get();
+            } catch (RuntimeException e) {
+                sending = CompletableFuture.failedFuture(e);
+            }
+            sending.whenComplete((sent, e) -> {
+                if (e == null) {
+                    member.succeeded(millisSince(start));
+                    result.complete(sent);
+                    return;
+                }
+                member.failed(millisSince(start));
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                logger.warnf("Message sending to %s over %s failed: %s, trying next", phoneNumber, member.id, cause.getMessage());
+                // not on the thread of the sender that failed, which may be a client's I/O thread
+                BlockingSendExecutor.supply(() -> {
+                    attempt(attempts, next, cause, false, phoneNumber, result);
+                    return null;
+                });
+            });
+            return;
+        }
+        if (last == null) {
+            result.completeExceptionally(unavailable());
+        } else {
+            result.completeExceptionally(last instanceof MessageSendException ? last : new MessageSendException(last.getMessage(), last));
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,175 @@
+package cc.coopersoft.keycloak.phone.providers.sender;
+
+import cc.coopersoft.keycloak.phone.providers.spi.MessageSenderService;
+import cc.coopersoft.keycloak.phone.providers.spi.MessageSenderServiceProviderFactory;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sender {@code failover}: tries the senders listed in {@code providers} one after another until one accepts
+ * the message. Each sender has a {@link CircuitBreaker} and a {@link LatencyTracker}, shared by all sessions,
+ * so senders in trouble are skipped and, with {@code selection=weighted}, traffic leans towards fast ones.
+ */
+public class FailoverMessageSenderServiceProviderFactory implements MessageSenderServiceProviderFactory {
+
+    private static final Logger logger = Logger.getLogger(FailoverMessageSenderServiceProviderFactory.class);
+
+    public static final String ID = "failover";
+
+    private static final double LATENCY_ALPHA = 0.2;
+
+    /**
+     * One configured sender with its health.
+     */
+    static final class Member {
+        final String id;
+        final double weight;
+        final CircuitBreaker breaker;
+        final LatencyTracker latency = new LatencyTracker(LATENCY_ALPHA);
+        private final Counter successes;
+        private final Counter failures;
+        private final Counter rejections;
+
+        private Member(String id, double weight, CircuitBreaker breaker) {
+            this.id = id;
+            this.weight = weight;
+            this.breaker = breaker;
+            Tags tags = Tags.of("provider", id);
+            this.successes = Metrics.counter("keycloak.phone.sender.calls", tags.and("outcome", "success"));
+            this.failures = Metrics.counter("keycloak.phone.sender.calls", tags.and("outcome", "failure"));
+            this.rejections = Metrics.counter("keycloak.phone.sender.calls", tags.and("outcome", "rejected"));
+            Metrics.gauge("keycloak.phone.sender.circuit.state", tags, this, m -> m.breaker.getState().ordinal());
+            Metrics.gauge("keycloak.phone.sender.latency.ewma", tags, this, m -> m.latency.getAverage());
+        }
+
+        void succeeded(long latencyMillis) {
+            breaker.record(true, latencyMillis);
+            latency.record(latencyMillis);
+            successes.increment();
+        }
+
+        void failed(long latencyMillis) {
+            breaker.record(false, latencyMillis);
+            failures.increment();
+        }
+
+        void rejected() {
+            rejections.increment();
+        }
+    }
+
+    private final List<Member> members = new ArrayList<>();
+    private boolean weighted;
+    private KeycloakSessionFactory sessionFactory;
+
+    @Override
+    public MessageSenderService create(KeycloakSession session) {
+        return new FailoverMessageSenderService(session, this);
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        String[] providers = config.getArray("providers");
+        String selection = config.get("selection", "ordered");
+        switch (selection) {
+            case "ordered" -> this.weighted = false;
+            case "weighted" -> this.weighted = true;
+            default -> throw new IllegalArgumentException("Unknown failover selection '" + selection + "', use one of: ordered, weighted");
+        }
+
+        if (providers == null) {
+            return;
+        }
+        for (String provider : providers) {
+            String[] idAndWeight = provider.trim().split(":");
+            String id = idAndWeight[0].trim();
+            if (id.isEmpty() || id.equals(getId())) {
+                continue;
+            }
+            double weight = idAndWeight.length > 1 ? Double.parseDouble(idAndWeight[1].trim()) : 1;
+            members.add(new Member(id, weight, new CircuitBreaker(
+                config.getInt("windowSize", 20),
+                config.getInt("minimumCalls", 10),
+                config.getInt("failureRateThreshold", 50) / 100.0,
+                config.getLong("slowCallThreshold", 5000L),
+                config.getInt("slowCallRateThreshold", 80) / 100.0,
+                TimeUnit.SECONDS.toMillis(config.getLong("openDuration", 30L)),
+                config.getInt("halfOpenProbes", 3))));
+        }
+        logger.infof("Failover message sender over %s, selection: %s",
+            members.stream().map(m -> m.id).toList(), selection);
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory keycloakSessionFactory) {
+        this.sessionFactory = keycloakSessionFactory;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public boolean isComposite() {
+        return true;
+    }
+
+    /**
+     * @return false for senders that are not deployed or delegate themselves
+     */
+    boolean isDelegate(String id) {
+        return sessionFactory.getProviderFactory(MessageSenderService.class, id)
+            instanceof MessageSenderServiceProviderFactory factory && !factory.isComposite();
+    }
+
+    /**
+     * @return the members in the order they should be tried: as configured, or for weighted selection one
+     * picked at random by weight over average latency first, then the others fastest first
+     */
+    List<Member> candidates() {
+        if (!weighted || members.size() < 2) {
+            return members;
+        }
+        // health snapshot, it keeps changing under concurrent sends
+        record Health(Member member, boolean permitted, double latency) {
+        }
+        List<Health> health = new ArrayList<>(members.stream()
+            .map(m -> new Health(m, m.breaker.isCallPermitted(), m.latency.getAverage()))
+            .toList());
+        health.sort(Comparator.comparing((Health h) -> !h.permitted()).thenComparingDouble(Health::latency));
+
+        List<Member> ordered = new ArrayList<>(health.stream().map(Health::member).toList());
+        List<Health> permitted = health.stream().filter(Health::permitted).toList();
+        double total = permitted.stream().mapToDouble(h -> score(h.member().weight, h.latency())).sum();
+        double pick = ThreadLocalRandom.current().nextDouble() * total;
+        for (Health h : permitted) {
+            pick -= score(h.member().weight, h.latency());
+            if (pick <= 0) {
+                ordered.remove(h.member());
+                ordered.add(0, h.member());
+                break;
+            }
+        }
+        return ordered;
+    }
+
+    private static double score(double weight, double latency) {
+        return weight / Math.max(1, latency);
+    }
+}
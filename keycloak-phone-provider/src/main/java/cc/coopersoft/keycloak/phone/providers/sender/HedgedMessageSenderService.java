@@ -0,0 +1,172 @@
+package cc.coopersoft.keycloak.phone.providers.sender;
+
+import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
+import cc.coopersoft.keycloak.phone.providers.exception.MessageSendException;
+import cc.coopersoft.keycloak.phone.providers.representations.SendResult;
+import cc.coopersoft.keycloak.phone.providers.spi.BlockingSendExecutor;
+import cc.coopersoft.keycloak.phone.providers.spi.MessageSenderService;
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+public class HedgedMessageSenderService implements MessageSenderService {
+
+    private static final Logger logger = Logger.getLogger(HedgedMessageSenderService.class);
+
+    /**
+     * The attempts of one send: it succeeds with the first attempt that does, and fails once every attempt
+     * started failed and no hedge is pending.
+     */
+    private static final class Race {
+        private final CompletableFuture<SendResult> result = new CompletableFuture<>();
+        private int outstanding = 1;
+        private long secondaryWonAt = -1;
+
+        synchronized boolean startHedge() {
+            if (result.isDone()) {
+                return false;
+            }
+            outstanding++;
+            return true;
+        }
+
+        /**
+         * @return true when this attempt won
+         */
+        synchronized boolean finished(SendResult sent, Throwable error, boolean secondary, long elapsed) {
+            outstanding--;
+            if (error == null) {
+                if (result.complete(sent)) {
+                    if (secondary) {
+                        secondaryWonAt = elapsed;
+                    }
+                    return true;
+                }
+            } else if (outstanding == 0) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                result.completeExceptionally(cause);
+            }
+            return false;
+        }
+
+        /**
+         * @return the elapsed milliseconds the secondary won at, -1 when it did not win
+         */
+        synchronized long getSecondaryWonAt() {
+            return secondaryWonAt;
+        }
+    }
+
+    private final KeycloakSession session;
+    private final HedgedMessageSenderServiceProviderFactory factory;
+
+    HedgedMessageSenderService(KeycloakSession session, HedgedMessageSenderServiceProviderFactory factory) {
+        this.session = session;
+        this.factory = factory;
+    }
+
+    private MessageSenderService sender(String id) {
+        return id == null || id.equals(factory.getId()) ? null : session.getProvider(MessageSenderService.class, id);
+    }
+
+    @Override
+    public void sendSmsMessage(TokenCodeType type, String phoneNumber, String code, int expires, String kind)
+        throws MessageSendException {
+        try {
+            sendSmsMessageAsync(type, phoneNumber, code, expires, kind).toCompletableFuture().get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof MessageSendException sendException ? sendException
+                : new MessageSendException(e.getCause().getMessage(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessageSendException("Interrupted while sending", e);
+        }
+    }
+
+    /**
+     * The hedge is prepared on the calling thread and started from a {@link BlockingSendExecutor} thread, so
+     * only secondaries that can send later through {@link #prepareSmsMessage} are hedged to.
+     */
+    @Override
+    public CompletionStage<SendResult> sendSmsMessageAsync(TokenCodeType type, String phoneNumber, String code,
+                                                           int expires, String kind) {
+        MessageSenderService primary = sender(factory.getPrimary());
+        MessageSenderService secondary = sender(factory.getSecondary());
+        if (primary == null) {
+            return CompletableFuture.failedFuture(new MessageSendException(500, "NO_PROVIDER",
+                "Primary message sender '" + factory.getPrimary() + "' not available"));
+        }
+        Supplier<CompletionStage<SendResult>> hedged =
+            secondary == null ? null : prepare(secondary, type, phoneNumber, code, expires, kind);
+
+        factory.sent();
+        Race race = new Race();
+        long start = System.nanoTime();
+        attempt(() -> primary.sendSmsMessageAsync(type, phoneNumber, code, expires, kind)).whenComplete((sent, e) -> {
+            long elapsed = HedgedMessageSenderServiceProviderFactory.millis(start);
+            race.finished(sent, e, false, elapsed);
+            if (e == null) {
+                factory.primaryAnswered(elapsed);
+                long secondaryWonAt = race.getSecondaryWonAt();
+                if (secondaryWonAt >= 0) {
+                    factory.latencySaved(elapsed - secondaryWonAt);
+                }
+            }
+        });
+
+        if (hedged != null) {
+            ScheduledFuture<?> hedge = factory.getTimer().schedule(() -> {
+                if (race.result.isDone() || !factory.tryHedge() || !race.startHedge()) {
+                    return;
+                }
+                logger.debugf("Primary sender did not answer in time, hedging message to %s", phoneNumber);
+                BlockingSendExecutor.supply(() -> attempt(hedged)).thenCompose(Function.identity())
+                    .whenComplete((sent, e) -> {
+                        if (race.finished(sent, e, true, HedgedMessageSenderServiceProviderFactory.millis(start))) {
+                            factory.secondaryWon();
+                        }
+                    });
+            }, factory.hedgeDelay(), TimeUnit.MILLISECONDS);
+            race.result.whenComplete((sent, e) -> hedge.cancel(false));
+        }
+        return race.result;
+    }
+
+    /**
+     * @return the send of the secondary, null when it can not be hedged to
+     */
+    private Supplier<CompletionStage<SendResult>> prepare(MessageSenderService secondary, TokenCodeType type,
+                                                          String phoneNumber, String code, int expires, String kind) {
+        Supplier<CompletionStage<SendResult>> send;
+        try {
+            send = secondary.prepareSmsMessage(type, phoneNumber, code, expires, kind);
+        } catch (RuntimeException e) {
+            logger.warnf(e, "Preparing the hedge over %s failed, not hedging", factory.getSecondary());
+            return null;
+        }
+        if (send == null) {
+            logger.debugf("Message sender '%s' can not send off the calling thread, not hedging", factory.getSecondary());
+        }
+        return send;
+    }
+
+    private static CompletionStage<SendResult> attempt(Supplier<CompletionStage<SendResult>> send) {
+        try {
+            return send.get();
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,182 @@
+package cc.coopersoft.keycloak.phone.providers.sender;
+
+import cc.coopersoft.keycloak.phone.providers.spi.MessageSenderService;
+import cc.coopersoft.keycloak.phone.providers.spi.MessageSenderServiceProviderFactory;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sender {@code hedged}: sends through {@code primary} and, when it has not answered after the
+ * {@code percentile} of its recent latencies, also through {@code secondary}; the first success wins. Each
+ * send earns {@code budget} percent of a hedge, a hedge spends a whole one, which keeps hedges at most at
+ * that share of sends. The hedge starts after the calling thread moved on, so {@code secondary} must be a
+ * sender that can send later, see {@link MessageSenderService#prepareSmsMessage}; others are never hedged to.
+ */
+public class HedgedMessageSenderServiceProviderFactory implements MessageSenderServiceProviderFactory {
+
+    private static final Logger logger = Logger.getLogger(HedgedMessageSenderServiceProviderFactory.class);
+
+    public static final String ID = "hedged";
+
+    // budget in thousandths of a hedge
+    private static final long HEDGE_COST = 1000;
+    private static final long RECOMPUTE_MILLIS = 1000;
+
+    private String primary;
+    private String secondary;
+    private double percentile;
+    private long initialDelay;
+    private long minDelay;
+    private long maxDelay;
+    private int minSamples;
+    private long budgetPerSend;
+    private long budgetCap;
+
+    private LatencyWindow primaryLatencies;
+    private final AtomicLong budget = new AtomicLong();
+    private final AtomicLong delay = new AtomicLong();
+    private volatile long delayComputedAt;
+
+    private ScheduledExecutorService timer;
+
+    private Counter sends;
+    private Counter hedges;
+    private Counter budgetExhausted;
+    private Counter secondaryWins;
+    private Timer saved;
+
+    @Override
+    public MessageSenderService create(KeycloakSession session) {
+        return new HedgedMessageSenderService(session, this);
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        this.primary = config.get("primary");
+        this.secondary = config.get("secondary");
+        this.percentile = config.getInt("percentile", 95);
+        this.initialDelay = config.getLong("initialDelay", 2000L);
+        this.minDelay = config.getLong("minDelay", 200L);
+        this.maxDelay = config.getLong("maxDelay", 10000L);
+        this.minSamples = config.getInt("minSamples", 50);
+        this.budgetPerSend = Math.round(Double.parseDouble(config.get("budget", "5")) * HEDGE_COST / 100);
+        this.budgetCap = config.getInt("budgetBurst", 10) * HEDGE_COST;
+        this.primaryLatencies = new LatencyWindow(config.getInt("latencySamples", 1000));
+        this.delay.set(initialDelay);
+
+        this.sends = Metrics.counter("keycloak.phone.sender.hedge.sends");
+        this.hedges = Metrics.counter("keycloak.phone.sender.hedge.hedged");
+        this.budgetExhausted = Metrics.counter("keycloak.phone.sender.hedge.budget.exhausted");
+        this.secondaryWins = Metrics.counter("keycloak.phone.sender.hedge.secondary.wins");
+        this.saved = Metrics.timer("keycloak.phone.sender.hedge.saved");
+        Metrics.gauge("keycloak.phone.sender.hedge.delay", delay);
+
+        if (primary == null || secondary == null) {
+            logger.warn("Hedged message sender needs both 'primary' and 'secondary'");
+        } else {
+            logger.infof("Hedged message sender: %s, hedging to %s after p%s", primary, secondary, percentile);
+        }
+        this.timer = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("phone-hedge-timer").daemon().factory());
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory keycloakSessionFactory) {
+    }
+
+    @Override
+    public void close() {
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+    }
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public boolean isComposite() {
+        return true;
+    }
+
+    String getPrimary() {
+        return primary;
+    }
+
+    String getSecondary() {
+        return secondary;
+    }
+
+    ScheduledExecutorService getTimer() {
+        return timer;
+    }
+
+    /**
+     * Counts a send and earns its share of the hedge budget.
+     */
+    void sent() {
+        sends.increment();
+        budget.updateAndGet(b -> Math.min(budgetCap, b + budgetPerSend));
+    }
+
+    /**
+     * @return true when the budget allows another hedge, which is then spent
+     */
+    boolean tryHedge() {
+        long left = budget.getAndUpdate(b -> b >= HEDGE_COST ? b - HEDGE_COST : b);
+        if (left < HEDGE_COST) {
+            budgetExhausted.increment();
+            return false;
+        }
+        hedges.increment();
+        return true;
+    }
+
+    void primaryAnswered(long latencyMillis) {
+        primaryLatencies.record(latencyMillis);
+    }
+
+    void secondaryWon() {
+        secondaryWins.increment();
+    }
+
+    /**
+     * @param savedMillis how much later than the winning secondary the primary answered
+     */
+    void latencySaved(long savedMillis) {
+        if (savedMillis > 0) {
+            saved.record(Duration.ofMillis(savedMillis));
+        }
+    }
+
+    /**
+     * @return the percentile of the primary's recent latencies within the configured bounds, recomputed at
+     * most once a second
+     */
+    long hedgeDelay() {
+        long now = System.currentTimeMillis();
+        if (now - delayComputedAt >= RECOMPUTE_MILLIS) {
+            delayComputedAt = now;
+            if (primaryLatencies.getCount() >= minSamples) {
+                delay.set(Math.max(minDelay, Math.min(maxDelay, primaryLatencies.percentile(percentile))));
+            }
+        }
+        return delay.get();
+    }
+
+    static long millis(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+}
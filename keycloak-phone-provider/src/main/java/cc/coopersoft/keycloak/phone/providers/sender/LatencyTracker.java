@@ -0,0 +1,25 @@
+package cc.coopersoft.keycloak.phone.providers.sender;
+
+/**
+ * Exponentially weighted moving average of a provider's send latency, the first sample taken as is.
+ */
+public class LatencyTracker {
+
+    private final double alpha;
+    private double average = Double.NaN;
+
+    public LatencyTracker(double alpha) {
+        this.alpha = alpha;
+    }
+
+    public synchronized void record(long latencyMillis) {
+        average = Double.isNaN(average) ? latencyMillis : alpha * latencyMillis + (1 - alpha) * average;
+    }
+
+    /**
+     * @return the average in milliseconds, 0 before the first sample
+     */
+    public synchronized double getAverage() {
+        return Double.isNaN(average) ? 0 : average;
+    }
+}
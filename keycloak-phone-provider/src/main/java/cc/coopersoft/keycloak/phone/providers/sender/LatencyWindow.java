@@ -0,0 +1,44 @@
+package cc.coopersoft.keycloak.phone.providers.sender;
+
+import java.util.Arrays;
+
+/**
+ * The last {@code size} latencies of a sender, for percentiles.
+ */
+public class LatencyWindow {
+
+    private final long[] samples;
+    private int count;
+    private int next;
+
+    public LatencyWindow(int size) {
+        this.samples = new long[size];
+    }
+
+    public synchronized void record(long latencyMillis) {
+        samples[next] = latencyMillis;
+        next = (next + 1) % samples.length;
+        count = Math.min(count + 1, samples.length);
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the latency below which that share of the samples lie, 0 without samples
+     */
+    public long percentile(double percentile) {
+        long[] sorted;
+        synchronized (this) {
+            if (count == 0) {
+                return 0;
+            }
+            sorted = Arrays.copyOf(samples, count);
+        }
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+}
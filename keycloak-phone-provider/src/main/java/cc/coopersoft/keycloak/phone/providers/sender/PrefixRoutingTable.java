@@ -0,0 +1,108 @@
+package cc.coopersoft.keycloak.phone.providers.sender;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Immutable digit trie mapping E.164 prefixes to routes. Children are kept in one int array, ten slots per
+ * node, so a lookup is a walk over the digits of the number without locking or allocating.
+ * <p>
+ * The table source has one route per line, {@code prefix,provider[,template[,senderId]]}, e.g.
+ * {@code +44,bulksms} or {@code +86,tencent,otp-cn}; blank lines and lines starting with {@code #} are skipped.
+ */
+public final class PrefixRoutingTable {
+
+    public record Route(String prefix, String provider, String template, String senderId) {
+    }
+
+    public static final PrefixRoutingTable EMPTY = parse("");
+
+    private final int[] children;
+    private final Route[] routes;
+
+    private PrefixRoutingTable(int[] children, Route[] routes) {
+        this.children = children;
+        this.routes = routes;
+    }
+
+    /**
+     * @throws IllegalArgumentException for malformed lines, naming the line
+     */
+    public static PrefixRoutingTable parse(String source) {
+        List<int[]> children = new ArrayList<>();
+        List<Route> routes = new ArrayList<>();
+        children.add(empty());
+        routes.add(null);
+
+        String[] lines = source.split("\\R");
+        for (int n = 0; n < lines.length; n++) {
+            String line = lines[n].trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split(",", -1);
+            String prefix = fields[0].trim();
+            String digits = prefix.startsWith("+") ? prefix.substring(1) : prefix;
+            if (fields.length < 2 || fields[1].isBlank() || digits.isEmpty() || !digits.chars().allMatch(Character::isDigit)) {
+                throw new IllegalArgumentException(String.format("Routing table line %d is not 'prefix,provider[,template[,senderId]]': %s", n + 1, line));
+            }
+
+            int node = 0;
+            for (int i = 0; i < digits.length(); i++) {
+                int digit = digits.charAt(i) - '0';
+                int child = children.get(node)[digit];
+                if (child == 0) {
+                    child = children.size();
+                    children.add(empty());
+                    routes.add(null);
+                    children.get(node)[digit] = child;
+                }
+                node = child;
+            }
+            routes.set(node, new Route("+" + digits, fields[1].trim(), field(fields, 2), field(fields, 3)));
+        }
+
+        int[] flat = new int[children.size() * 10];
+        for (int i = 0; i < children.size(); i++) {
+            System.arraycopy(children.get(i), 0, flat, i * 10, 10);
+        }
+        return new PrefixRoutingTable(flat, routes.toArray(Route[]::new));
+    }
+
+    private static int[] empty() {
+        return new int[10];
+    }
+
+    private static String field(String[] fields, int index) {
+        return fields.length > index && !fields[index].isBlank() ? fields[index].trim() : null;
+    }
+
+    /**
+     * @param phoneNumber in E.164, characters other than digits are skipped
+     * @return the route of the longest matching prefix, null when none matches
+     */
+    public Route match(String phoneNumber) {
+        Route match = routes[0];
+        int node = 0;
+        for (int i = 0; i < phoneNumber.length(); i++) {
+            char c = phoneNumber.charAt(i);
+            if (c < '0' || c > '9') {
+                continue;
+            }
+            node = children[node * 10 + (c - '0')];
+            if (node == 0) {
+                break;
+            }
+            if (routes[node] != null) {
+                match = routes[node];
+            }
+        }
+        return match;
+    }
+
+    public int size() {
+        return (int) Arrays.stream(routes).filter(Objects::nonNull).count();
+    }
+}
@@ -0,0 +1,148 @@
+package cc.coopersoft.keycloak.phone.providers.sender;
+
+import cc.coopersoft.keycloak.phone.Utils;
+import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
+import cc.coopersoft.keycloak.phone.providers.exception.MessageSendException;
+import cc.coopersoft.keycloak.phone.providers.representations.OutgoingMessage;
+import cc.coopersoft.keycloak.phone.providers.representations.SendResult;
+import cc.coopersoft.keycloak.phone.providers.spi.MessageSenderService;
+import cc.coopersoft.keycloak.phone.providers.spi.PhoneProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Supplier;
+
+public class RoutingMessageSenderService implements MessageSenderService {
+
+    private record Target(String provider, String kind, String senderId) {
+    }
+
+    private interface SenderCall<T> {
+        T call(MessageSenderService sender) throws MessageSendException;
+    }
+
+    private final KeycloakSession session;
+    private final RoutingMessageSenderServiceProviderFactory factory;
+
+    RoutingMessageSenderService(KeycloakSession session, RoutingMessageSenderServiceProviderFactory factory) {
+        this.session = session;
+        this.factory = factory;
+    }
+
+    /**
+     * Matches on the E.164 form of the number, a route's template replaces the message kind.
+     */
+    private Target target(String phoneNumber, String kind) throws MessageSendException {
+        RealmModel realm = session.getContext().getRealm();
+        String e164 = Utils.phoneNumberKey(session.getProvider(PhoneProvider.class).phonePolicy(realm), phoneNumber);
+        PrefixRoutingTable.Route route = factory.route(realm, e164);
+        if (route != null) {
+            return new Target(route.provider(), route.template() != null ? route.template() : kind, route.senderId());
+        }
+        if (factory.getDefaultProvider() != null) {
+            return new Target(factory.getDefaultProvider(), kind, null);
+        }
+        throw new MessageSendException(400, "NO_ROUTE", "No message sender route for " + e164);
+    }
+
+    private MessageSenderService sender(Target target) throws MessageSendException {
+        MessageSenderService sender = target.provider().equals(factory.getId()) ? null
+            : session.getProvider(MessageSenderService.class, target.provider());
+        if (sender == null) {
+            throw new MessageSendException(500, "NO_PROVIDER", "Message sender '" + target.provider() + "' of route not available");
+        }
+        return sender;
+    }
+
+    /**
+     * Calls the sender of target with the route's sender id in {@link #SENDER_ID_ATTRIBUTE}, removed again
+     * once the call returned, so each call sees the id of its own route.
+     */
+    private <T> T call(Target target, SenderCall<T> call) throws MessageSendException {
+        MessageSenderService sender = sender(target);
+        if (target.senderId() != null) {
+            session.setAttribute(SENDER_ID_ATTRIBUTE, target.senderId());
+        }
+        try {
+            return call.call(sender);
+        } finally {
+            session.removeAttribute(SENDER_ID_ATTRIBUTE);
+        }
+    }
+
+    @Override
+    public void sendSmsMessage(TokenCodeType type, String phoneNumber, String code, int expires, String kind)
+        throws MessageSendException {
+        Target target = target(phoneNumber, kind);
+        call(target, sender -> {
+            sender.sendSmsMessage(type, phoneNumber, code, expires, target.kind());
+            return null;
+        });
+    }
+
+    @Override
+    public CompletionStage<SendResult> sendSmsMessageAsync(TokenCodeType type, String phoneNumber, String code,
+                                                           int expires, String kind) {
+        try {
+            Target target = target(phoneNumber, kind);
+            return call(target, sender -> sender.sendSmsMessageAsync(type, phoneNumber, code, expires, target.kind()));
+        } catch (MessageSendException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    @Override
+    public Supplier<CompletionStage<SendResult>> prepareSmsMessage(TokenCodeType type, String phoneNumber, String code,
+                                                                   int expires, String kind) {
+        try {
+            Target target = target(phoneNumber, kind);
+            return call(target, sender -> sender.prepareSmsMessage(type, phoneNumber, code, expires, target.kind()));
+        } catch (MessageSendException e) {
+            return () -> CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Messages routed to the same sender, template and sender id go to that sender as one batch, each batch
+     * with its own sender id.
+     */
+    @Override
+    public List<CompletionStage<SendResult>> sendBatch(List<OutgoingMessage> messages) {
+        List<CompletionStage<SendResult>> results = new ArrayList<>(Collections.nCopies(messages.size(), null));
+        Map<Target, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < messages.size(); i++) {
+            OutgoingMessage m = messages.get(i);
+            try {
+                groups.computeIfAbsent(target(m.getPhoneNumber(), m.getKind()), k -> new ArrayList<>()).add(i);
+            } catch (MessageSendException e) {
+                results.set(i, CompletableFuture.failedFuture(e));
+            }
+        }
+
+        groups.forEach((target, indexes) -> {
+            List<OutgoingMessage> batch = indexes.stream().map(messages::get)
+                .map(m -> new OutgoingMessage(m.getType(), m.getPhoneNumber(), m.getCode(), m.getExpires(), target.kind()))
+                .toList();
+            try {
+                List<CompletionStage<SendResult>> sent = call(target, sender -> sender.sendBatch(batch));
+                for (int n = 0; n < indexes.size(); n++) {
+                    results.set(indexes.get(n), sent.get(n));
+                }
+            } catch (MessageSendException e) {
+                indexes.forEach(i -> results.set(i, CompletableFuture.failedFuture(e)));
+            }
+        });
+        return results;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,139 @@
+package cc.coopersoft.keycloak.phone.providers.sender;
+
+import cc.coopersoft.keycloak.phone.providers.spi.MessageSenderService;
+import cc.coopersoft.keycloak.phone.providers.spi.MessageSenderServiceProviderFactory;
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.models.utils.PostMigrationEvent;
+import org.keycloak.timer.TimerProvider;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sender {@code routing}: picks the sender per destination from a {@link PrefixRoutingTable}. A realm's table
+ * comes from its {@code phoneRoutingTable} attribute when set, otherwise from the {@code table} file, which
+ * is checked for changes every {@code reload-interval}. Tables are swapped whole, lookups never lock.
+ */
+public class RoutingMessageSenderServiceProviderFactory implements MessageSenderServiceProviderFactory {
+
+    private static final Logger logger = Logger.getLogger(RoutingMessageSenderServiceProviderFactory.class);
+
+    public static final String ID = "routing";
+
+    private static final String RELOAD_TASK = "PhoneRoutingTableReload";
+
+    private record RealmTable(String source, PrefixRoutingTable table) {
+    }
+
+    private Path file;
+    private long reloadInterval;
+    private String defaultProvider;
+    private String realmAttribute;
+
+    private volatile PrefixRoutingTable fileTable = PrefixRoutingTable.EMPTY;
+    private volatile FileTime fileModified;
+    private final Map<String, RealmTable> realmTables = new ConcurrentHashMap<>();
+
+    @Override
+    public MessageSenderService create(KeycloakSession session) {
+        return new RoutingMessageSenderService(session, this);
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        String table = config.get("table");
+        this.file = table == null || table.isBlank() ? null : Path.of(table);
+        this.reloadInterval = config.getLong("reloadInterval", 30L);
+        this.defaultProvider = config.get("default");
+        this.realmAttribute = config.get("realmAttribute", "phoneRoutingTable");
+        if (file != null) {
+            reload();
+        }
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory keycloakSessionFactory) {
+        if (file == null || reloadInterval <= 0) {
+            return;
+        }
+        keycloakSessionFactory.register(event -> {
+            if (event instanceof PostMigrationEvent) {
+                KeycloakModelUtils.runJobInTransaction(keycloakSessionFactory, session ->
+                    session.getProvider(TimerProvider.class).schedule(this::reload,
+                        TimeUnit.SECONDS.toMillis(reloadInterval), RELOAD_TASK));
+            } else if (event instanceof RealmModel.RealmRemovedEvent removed) {
+                realmTables.remove(removed.getRealm().getId());
+            }
+        });
+    }
+
+    /**
+     * Loads the file when it changed, a table that does not parse leaves the current one in place.
+     */
+    void reload() {
+        try {
+            FileTime modified = Files.getLastModifiedTime(file);
+            if (modified.equals(fileModified)) {
+                return;
+            }
+            PrefixRoutingTable table = PrefixRoutingTable.parse(Files.readString(file, StandardCharsets.UTF_8));
+            fileTable = table;
+            fileModified = modified;
+            logger.infof("Loaded %d routes from %s", table.size(), file);
+        } catch (IOException | IllegalArgumentException e) {
+            logger.errorf(e, "Could not load routing table %s, keeping the current one", file);
+        }
+    }
+
+    /**
+     * @return the route of the longest prefix of phoneNumber in the realm's table, null when none matches
+     */
+    PrefixRoutingTable.Route route(RealmModel realm, String phoneNumber) {
+        String source = realm.getAttribute(realmAttribute);
+        if (source == null || source.isBlank()) {
+            return fileTable.match(phoneNumber);
+        }
+        RealmTable realmTable = realmTables.get(realm.getId());
+        if (realmTable == null || !realmTable.source().equals(source)) {
+            try {
+                realmTable = new RealmTable(source, PrefixRoutingTable.parse(source));
+                logger.infof("Loaded %d routes of realm %s", realmTable.table().size(), realm.getName());
+            } catch (IllegalArgumentException e) {
+                logger.errorf(e, "Routing table of realm %s does not parse, using %s", realm.getName(),
+                    realmTable == null ? "the file table" : "its previous table");
+                realmTable = new RealmTable(source, realmTable == null ? fileTable : realmTable.table());
+            }
+            realmTables.put(realm.getId(), realmTable);
+        }
+        return realmTable.table().match(phoneNumber);
+    }
+
+    String getDefaultProvider() {
+        return defaultProvider;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public boolean isComposite() {
+        return true;
+    }
+}
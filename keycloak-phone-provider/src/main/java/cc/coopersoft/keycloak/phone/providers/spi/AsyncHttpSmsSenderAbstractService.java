@@ -0,0 +1,103 @@
+package cc.coopersoft.keycloak.phone.providers.spi;
+
+import cc.coopersoft.keycloak.phone.providers.exception.MessageSendException;
+import cc.coopersoft.keycloak.phone.providers.representations.SendResult;
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+
+import java.net.ConnectException;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Base of senders talking to a REST gateway. Requests go out through the shared {@link SmsHttpClient}
+ * without blocking a thread, each with the request timeout of the sender, and are retried by
+ * {@link #shouldRetry} and {@link #retryDelay}; the blocking {@link #sendMessage} only waits on
+ * {@link #sendMessageAsync}.
+ */
+public abstract class AsyncHttpSmsSenderAbstractService extends FullSmsSenderAbstractService {
+
+    private static final Logger logger = Logger.getLogger(AsyncHttpSmsSenderAbstractService.class);
+
+    private final Duration requestTimeout;
+
+    public AsyncHttpSmsSenderAbstractService(KeycloakSession session, Duration requestTimeout) {
+        super(session);
+        this.requestTimeout = requestTimeout;
+    }
+
+    @Override
+    public abstract CompletionStage<SendResult> sendMessageAsync(String phoneNumber, String message);
+
+    @Override
+    public void sendMessage(String phoneNumber, String message) throws MessageSendException {
+        await(sendMessageAsync(phoneNumber, message));
+    }
+
+    /**
+     * Sends the request with the sender's timeout, retrying as long as {@link #shouldRetry} allows.
+     */
+    protected CompletableFuture<HttpResponse<String>> send(HttpRequest.Builder request) {
+        return attempt(request.timeout(requestTimeout).build(), 1);
+    }
+
+    private CompletableFuture<HttpResponse<String>> attempt(HttpRequest request, int attempt) {
+        return SmsHttpClient.send(request).handle((response, error) -> {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            if (attempt <= SmsHttpClient.getMaxRetries() && shouldRetry(response, cause)) {
+                Duration delay = retryDelay(attempt);
+                logger.debugf("Retrying request to %s in %d ms (attempt %d)", request.uri().getHost(), delay.toMillis(), attempt + 1);
+                return CompletableFuture.runAsync(() -> {
+                }, CompletableFuture.delayedExecutor(delay.toMillis(), TimeUnit.MILLISECONDS))
+                    .thenCompose(ignored -> attempt(request, attempt + 1));
+            }
+            return cause == null ? CompletableFuture.completedFuture(response)
+                : CompletableFuture.<HttpResponse<String>>failedFuture(cause);
+        }).thenCompose(Function.identity());
+    }
+
+    /**
+     * Only retries what the gateway surely did not act on, so no message goes out twice: connections that
+     * could not be opened and requests it turned away with 429 or 503.
+     *
+     * @param response the response, null when the request failed with error
+     */
+    protected boolean shouldRetry(HttpResponse<String> response, Throwable error) {
+        if (response != null) {
+            return response.statusCode() == 429 || response.statusCode() == 503;
+        }
+        return error instanceof ConnectException || error instanceof HttpConnectTimeoutException;
+    }
+
+    /**
+     * @param attempt the attempt that failed, starting with 1
+     */
+    protected Duration retryDelay(int attempt) {
+        return SmsHttpClient.getRetryBackoff().multipliedBy(1L << Math.min(attempt - 1, 10));
+    }
+
+    protected static boolean isSuccess(HttpResponse<?> response) {
+        return response.statusCode() >= 200 && response.statusCode() <= 299;
+    }
+
+    /**
+     * Waits for a send, for callers of the blocking API.
+     */
+    protected static <T> T await(CompletionStage<T> sending) throws MessageSendException {
+        try {
+            return sending.toCompletableFuture().join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof MessageSendException sendException) {
+                throw sendException;
+            }
+            throw new MessageSendException("Error while sending message.", e.getCause());
+        }
+    }
+}
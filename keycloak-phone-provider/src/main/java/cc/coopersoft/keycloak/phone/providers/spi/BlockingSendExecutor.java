@@ -0,0 +1,90 @@
+package cc.coopersoft.keycloak.phone.providers.spi;
+
+import cc.coopersoft.keycloak.phone.providers.exception.MessageSendException;
+import cc.coopersoft.keycloak.phone.providers.representations.SendResult;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs blocking gateway calls of senders without a non blocking client, each on its own virtual thread, at
+ * most {@code async-send-concurrency} of them talking to gateways at a time. The calls run outside of the
+ * request, so they get plain values only: the realm, templates and anything else read through the session
+ * are resolved by the caller before it submits them.
+ */
+public final class BlockingSendExecutor {
+
+    @FunctionalInterface
+    public interface BlockingSend {
+        void send() throws MessageSendException;
+    }
+
+    @FunctionalInterface
+    public interface BlockingCall<T> {
+        T call() throws MessageSendException;
+    }
+
+    public static final int DEFAULT_CONCURRENCY = 64;
+
+    private static final ExecutorService executor =
+        Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("phone-send-", 0).factory());
+
+    private static volatile Semaphore permits = new Semaphore(DEFAULT_CONCURRENCY);
+
+    private BlockingSendExecutor() {
+    }
+
+    public static void setConcurrency(int concurrency) {
+        permits = new Semaphore(Math.max(1, concurrency));
+    }
+
+    /**
+     * Runs the send on the calling thread, for senders that read the session while sending.
+     */
+    public static CompletionStage<SendResult> callerRuns(BlockingSend send) {
+        long start = System.nanoTime();
+        try {
+            send.send();
+        } catch (MessageSendException e) {
+            return CompletableFuture.failedStage(e);
+        }
+        return CompletableFuture.completedStage(
+            new SendResult(SendResult.Status.SENT, null, Duration.ofNanos(System.nanoTime() - start)));
+    }
+
+    public static CompletionStage<SendResult> submit(BlockingSend send) {
+        return supply(() -> {
+            long start = System.nanoTime();
+            send.send();
+            return new SendResult(SendResult.Status.SENT, null, Duration.ofNanos(System.nanoTime() - start));
+        });
+    }
+
+    /**
+     * Like {@link #submit} for blocking clients that return something, e.g. the per message outcome of a batch.
+     */
+    public static <T> CompletionStage<T> supply(BlockingCall<T> call) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        executor.execute(() -> {
+            Semaphore semaphore = permits;
+            try {
+                semaphore.acquire();
+            } catch (InterruptedException e) {
+                result.completeExceptionally(e);
+                return;
+            }
+            try {
+                result.complete(call.call());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            } finally {
+                semaphore.release();
+            }
+        });
+        return result;
+    }
+}
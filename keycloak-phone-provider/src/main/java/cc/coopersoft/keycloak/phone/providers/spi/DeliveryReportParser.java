@@ -0,0 +1,37 @@
+package cc.coopersoft.keycloak.phone.providers.spi;
+
+import cc.coopersoft.keycloak.phone.providers.representations.DeliveryReport;
+import org.keycloak.provider.Provider;
+
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.MediaType;
+import java.net.URI;
+import java.util.List;
+
+/**
+ * Reads the delivery reports a gateway posts to {@code sms/delivery-report/{id}}, the id being the parser's
+ * provider id.
+ */
+public interface DeliveryReportParser extends Provider {
+
+    /**
+     * @param mediaType the content type of the request, null when not given
+     * @return the final reports in body, reports of intermediate states like queued or sent left out
+     * @throws IllegalArgumentException when body is not in the gateway's format
+     */
+    List<DeliveryReport> parse(MediaType mediaType, String body);
+
+    /**
+     * Checked before the body is parsed, by parsers of gateways that sign their reports.
+     *
+     * @param requestUri the url the gateway posted to, with its query
+     * @return whether the request was signed by the gateway
+     */
+    default boolean verify(URI requestUri, HttpHeaders headers, String body) {
+        return true;
+    }
+
+    @Override
+    default void close() {
+    }
+}
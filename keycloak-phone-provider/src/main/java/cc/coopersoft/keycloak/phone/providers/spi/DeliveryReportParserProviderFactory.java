@@ -0,0 +1,23 @@
+package cc.coopersoft.keycloak.phone.providers.spi;
+
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.provider.ProviderFactory;
+
+/**
+ * Parsers are usually stateless and need no configuration, so the lifecycle methods default to doing nothing.
+ */
+public interface DeliveryReportParserProviderFactory extends ProviderFactory<DeliveryReportParser> {
+
+    @Override
+    default void init(Config.Scope config) {
+    }
+
+    @Override
+    default void postInit(KeycloakSessionFactory factory) {
+    }
+
+    @Override
+    default void close() {
+    }
+}
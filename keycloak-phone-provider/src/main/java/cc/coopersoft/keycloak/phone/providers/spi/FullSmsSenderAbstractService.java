@@ -3,11 +3,16 @@ package cc.coopersoft.keycloak.phone.providers.spi;
 import cc.coopersoft.keycloak.phone.Utils;
 import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
 import cc.coopersoft.keycloak.phone.providers.exception.MessageSendException;
+import cc.coopersoft.keycloak.phone.providers.representations.OutgoingMessage;
+import cc.coopersoft.keycloak.phone.providers.representations.SendResult;
 
 import java.text.MessageFormat;
+import java.util.List;
 import java.util.Locale;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Supplier;
 
 import org.jboss.logging.Logger;
 import org.keycloak.models.KeycloakSession;
@@ -17,6 +22,20 @@ import org.keycloak.theme.Theme;
 public abstract class FullSmsSenderAbstractService implements MessageSenderService {
     private static final Logger logger = Logger.getLogger(FullSmsSenderAbstractService.class);
 
+    /**
+     * A rendered message of a batch.
+     */
+    public record TextMessage(String phoneNumber, String message) {
+    }
+
+    /**
+     * The routed sender id of a prepared send while it is being started, maybe on another thread.
+     */
+    private record Prepared(String senderId) {
+    }
+
+    private static final ThreadLocal<Prepared> prepared = new ThreadLocal<>();
+
     private final String realmDisplay;
 
     public final KeycloakSession session;
@@ -34,13 +53,79 @@ public abstract class FullSmsSenderAbstractService implements MessageSenderServi
 
     public abstract void sendMessage(String phoneNumber, String message) throws MessageSendException;
 
+    /**
+     * Senders with a non blocking client override this, by default {@link #sendMessage} runs on a
+     * {@link BlockingSendExecutor} thread. Prepared sends call it from other threads, so it reads nothing
+     * through the session but {@link #routedSenderId}.
+     */
+    public CompletionStage<SendResult> sendMessageAsync(String phoneNumber, String message) {
+        return BlockingSendExecutor.submit(() -> sendMessage(phoneNumber, message));
+    }
+
+    /**
+     * Senders whose gateway takes several recipients per request override this, by default each message
+     * goes through {@link #sendMessageAsync}.
+     *
+     * @return the outcome of each message, in the order of messages
+     */
+    public List<CompletionStage<SendResult>> sendMessageBatch(List<TextMessage> messages) {
+        return messages.stream().map(m -> sendMessageAsync(m.phoneNumber(), m.message())).toList();
+    }
+
     @Override
     public void sendSmsMessage(TokenCodeType type, String phoneNumber, String code, int expires, String kind)
             throws MessageSendException {
+        sendMessage(phoneNumber, buildMessage(type, phoneNumber, code, expires));
+    }
+
+    @Override
+    public CompletionStage<SendResult> sendSmsMessageAsync(TokenCodeType type, String phoneNumber, String code,
+                                                           int expires, String kind) {
+        return sendMessageAsync(phoneNumber, buildMessage(type, phoneNumber, code, expires));
+    }
+
+    /**
+     * Renders the message and takes the routed sender id on the calling thread.
+     */
+    @Override
+    public Supplier<CompletionStage<SendResult>> prepareSmsMessage(TokenCodeType type, String phoneNumber, String code,
+                                                                   int expires, String kind) {
+        String message = buildMessage(type, phoneNumber, code, expires);
+        Prepared send = new Prepared(routedSenderId());
+        return () -> {
+            prepared.set(send);
+            try {
+                return sendMessageAsync(phoneNumber, message);
+            } finally {
+                prepared.remove();
+            }
+        };
+    }
+
+    @Override
+    public List<CompletionStage<SendResult>> sendBatch(List<OutgoingMessage> messages) {
+        return sendMessageBatch(messages.stream()
+                .map(m -> new TextMessage(m.getPhoneNumber(),
+                        buildMessage(m.getType(), m.getPhoneNumber(), m.getCode(), m.getExpires())))
+                .toList());
+    }
+
+    /**
+     * @return the sender id a routing table gave the message being sent, null for the sender's own; only
+     * set while a send method is called, so read it before handing the send to another thread
+     */
+    protected String routedSenderId() {
+        Prepared send = prepared.get();
+        if (send != null) {
+            return send.senderId();
+        }
+        return session == null ? null : session.getAttribute(SENDER_ID_ATTRIBUTE, String.class);
+    }
+
+    private String buildMessage(TokenCodeType type, String phoneNumber, String code, int expires) {
         final String defaultMessage = String.format("[%s] - " + type.label + " code: %s, expires: %s minute ",
                 realmDisplay, code, expires / 60);
-        final String MESSAGE = localizeMessage(type, phoneNumber, code, expires).orElse(defaultMessage);
-        sendMessage(phoneNumber, MESSAGE);
+        return localizeMessage(type, phoneNumber, code, expires).orElse(defaultMessage);
     }
 
     /**
@@ -2,16 +2,65 @@ package cc.coopersoft.keycloak.phone.providers.spi;
 
 import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
 import cc.coopersoft.keycloak.phone.providers.exception.MessageSendException;
+import cc.coopersoft.keycloak.phone.providers.representations.OutgoingMessage;
+import cc.coopersoft.keycloak.phone.providers.representations.SendResult;
 import org.keycloak.provider.Provider;
 
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Supplier;
+
 
 /**
  * SMS, Voice, APP
  */
 public interface MessageSenderService extends Provider {
 
+    /**
+     * Session attribute holding the sender id a routing table gave the message, set only while the routed
+     * sender is called; senders that support one read it on the calling thread.
+     */
+    String SENDER_ID_ATTRIBUTE = "phone.sender.senderId";
+
     //void sendVoiceMessage((TokenCodeType type, String realmName, String realmDisplayName, String phoneNumber, String code , int expires) throws MessageSendException;
 
 
     void sendSmsMessage(TokenCodeType type, String phoneNumber, String code , int expires , String kind) throws MessageSendException;
+
+    /**
+     * Non blocking {@link #sendSmsMessage}, completing exceptionally with a {@link MessageSendException} when
+     * sending failed. Unless overridden it runs {@link #sendSmsMessage} on the calling thread, which may read
+     * the session; senders resolve what they need from it first and hand the gateway call with those values
+     * to {@link BlockingSendExecutor#submit} to have it run in the background. Like any use of the session it
+     * is only called from the thread the session belongs to; composites that send later from threads of their
+     * own go through {@link #prepareSmsMessage} instead.
+     */
+    default CompletionStage<SendResult> sendSmsMessageAsync(TokenCodeType type, String phoneNumber, String code, int expires, String kind) {
+        return BlockingSendExecutor.callerRuns(() -> sendSmsMessage(type, phoneNumber, code, expires, kind));
+    }
+
+    /**
+     * Reads what sending the message needs from the session on the calling thread and returns the send, to be
+     * started later from any thread, e.g. by a composite hedging or failing over to this sender. Starting it
+     * does not block, the gateway call goes to a non blocking client or a {@link BlockingSendExecutor} thread.
+     *
+     * @return null when the sender can only send from the session's thread, as {@link #sendSmsMessageAsync}
+     * does unless overridden; composites then do not send through it later
+     */
+    default Supplier<CompletionStage<SendResult>> prepareSmsMessage(TokenCodeType type, String phoneNumber, String code,
+                                                                     int expires, String kind) {
+        return null;
+    }
+
+    /**
+     * Sends several messages, in as few gateway requests as the gateway allows when overridden, by default
+     * one {@link #sendSmsMessageAsync} each.
+     *
+     * @return the outcome of each message, in the order of messages
+     */
+    default List<CompletionStage<SendResult>> sendBatch(List<OutgoingMessage> messages) {
+        return messages.stream()
+            .map(m -> sendSmsMessageAsync(m.getType(), m.getPhoneNumber(), m.getCode(), m.getExpires(), m.getKind()))
+            .toList();
+    }
 }
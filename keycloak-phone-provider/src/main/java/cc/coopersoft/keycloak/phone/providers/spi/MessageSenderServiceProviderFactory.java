@@ -3,4 +3,11 @@ package cc.coopersoft.keycloak.phone.providers.spi;
 import org.keycloak.provider.ProviderFactory;
 
 public interface MessageSenderServiceProviderFactory extends ProviderFactory<MessageSenderService> {
+
+    /**
+     * @return true for senders that delegate to other senders, they are never picked as the default service
+     */
+    default boolean isComposite() {
+        return false;
+    }
 }
@@ -1,6 +1,11 @@
 package cc.coopersoft.keycloak.phone.providers.spi;
 
+import cc.coopersoft.keycloak.phone.providers.cache.PhoneNumberCanonicalCache;
+import cc.coopersoft.keycloak.phone.providers.cache.PhoneUserCache;
 import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
+import cc.coopersoft.keycloak.phone.providers.delivery.DeliveryTracker;
+import cc.coopersoft.keycloak.phone.providers.policy.PhonePolicy;
+import org.keycloak.models.RealmModel;
 import org.keycloak.provider.Provider;
 
 import java.util.Optional;
@@ -11,6 +16,13 @@ public interface PhoneProvider extends Provider {
     //TODO on key login support
     //boolean Verification(String phoneNumber, String token);
 
+    /**
+     * @return the phone number settings of the current realm
+     */
+    PhonePolicy phonePolicy();
+
+    PhonePolicy phonePolicy(RealmModel realm);
+
     boolean isDuplicatePhoneAllowed();
 
     boolean validPhoneNumber();
@@ -25,6 +37,32 @@ public interface PhoneProvider extends Provider {
 
     Optional<String> phoneNumberRegex();
 
+    /**
+     * @return the cache shared by {@code Utils.canonicalizePhoneNumber}, null when results are not cached
+     */
+    default PhoneNumberCanonicalCache canonicalCache() {
+        return null;
+    }
+
+    /**
+     * @return the cache in front of {@code Utils.findUserByPhone}, null when lookups are not cached
+     */
+    default PhoneUserCache phoneUserCache() {
+        return null;
+    }
+
+    /**
+     * @return where delivery reports go, null when deliveries are not tracked
+     */
+    default DeliveryTracker deliveryTracker() {
+        return null;
+    }
+
+    /**
+     * @return seconds until the code sent expires
+     * @throws cc.coopersoft.keycloak.phone.providers.exception.TooManyRequestsException when the hour maximum
+     * of the number or source address is reached
+     */
     int sendTokenCode(String phoneNumber, String sourceAddr, TokenCodeType type, String kind);
 
 
@@ -1,7 +1,9 @@
 package cc.coopersoft.keycloak.phone.providers.spi;
 
 import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
+import cc.coopersoft.keycloak.phone.providers.representations.TokenCodePreSendCheck;
 import cc.coopersoft.keycloak.phone.providers.representations.TokenCodeRepresentation;
+import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
 import org.keycloak.provider.Provider;
 
@@ -11,8 +13,34 @@ public interface PhoneVerificationCodeProvider extends Provider {
 
     boolean isAbusing(String phoneNumber, TokenCodeType tokenCodeType,String sourceAddr ,int sourceHourMaximum,int targetHourMaximum);
 
+    /**
+     * Combines {@link #isAbusing} counters and {@link #ongoingProcess} into one lookup for the send path.
+     */
+    TokenCodePreSendCheck preSendCheck(String phoneNumber, TokenCodeType tokenCodeType, String sourceAddr);
+
     void persistCode(TokenCodeRepresentation tokenCode, TokenCodeType tokenCodeType, int tokenExpiresIn);
 
+    /**
+     * Withdraws a code persisted by {@link #persistCode} whose message could not be sent.
+     */
+    void discardCode(TokenCodeRepresentation tokenCode, TokenCodeType tokenCodeType);
+
+    /**
+     * Atomically marks the ongoing, unconfirmed code as confirmed by userId when it matches. After
+     * {@code max-attempts} wrong answers the code is invalidated.
+     *
+     * @return false when there is no such code, it does not match or another request consumed it first
+     */
+    boolean consumeCode(RealmModel realm, String phoneNumber, TokenCodeType tokenCodeType, String code, String userId);
+
+    /**
+     * Checks code against the ongoing code without consuming it, counting wrong answers like
+     * {@link #consumeCode} does.
+     *
+     * @return the ongoing code when it matches, otherwise null
+     */
+    TokenCodeRepresentation verifyCode(String phoneNumber, TokenCodeType tokenCodeType, String code);
+
     void validateCode(UserModel user, String phoneNumber, String code);
 
     void validateCode(UserModel user, String phoneNumber, String code, TokenCodeType tokenCodeType);
@@ -21,5 +49,9 @@ public interface PhoneVerificationCodeProvider extends Provider {
 
     //void cleanUpAction(UserModel user, boolean isOTP);
 
+    /**
+     * Applies the verified phone number to user, tokenCodeId is null when the code was already consumed by
+     * {@link #consumeCode}.
+     */
     void tokenValidated(UserModel user, String phoneNumber, String tokenCodeId, boolean isOTP);
 }
@@ -0,0 +1,130 @@
+package cc.coopersoft.keycloak.phone.providers.spi;
+
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The HTTP client shared by all {@link AsyncHttpSmsSenderAbstractService} senders: one non blocking client
+ * preferring HTTP/2, so requests to a gateway share its pooled connections. Requests in flight are bounded
+ * per host; requests beyond the bound wait in a queue, without holding a thread, until one completes.
+ */
+public final class SmsHttpClient {
+
+    public static final long DEFAULT_CONNECT_TIMEOUT = 5000L;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 20;
+    public static final int DEFAULT_MAX_RETRIES = 2;
+    public static final long DEFAULT_RETRY_BACKOFF = 200L;
+
+    private static final class HostLimit {
+        private final Deque<Runnable> waiting = new ArrayDeque<>();
+        private int active;
+    }
+
+    private static final Map<String, HostLimit> hosts = new ConcurrentHashMap<>();
+
+    private static volatile Duration connectTimeout = Duration.ofMillis(DEFAULT_CONNECT_TIMEOUT);
+    private static volatile int maxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+    private static volatile int maxRetries = DEFAULT_MAX_RETRIES;
+    private static volatile Duration retryBackoff = Duration.ofMillis(DEFAULT_RETRY_BACKOFF);
+
+    private static HttpClient client;
+
+    private SmsHttpClient() {
+    }
+
+    /**
+     * Applies to the client built next, i.e. set before the first send.
+     */
+    public static void configure(long connectTimeoutMillis, int maxConnectionsPerHost, int maxRetries,
+                                 long retryBackoffMillis) {
+        SmsHttpClient.connectTimeout = Duration.ofMillis(connectTimeoutMillis);
+        SmsHttpClient.maxConnectionsPerHost = Math.max(1, maxConnectionsPerHost);
+        SmsHttpClient.maxRetries = Math.max(0, maxRetries);
+        SmsHttpClient.retryBackoff = Duration.ofMillis(retryBackoffMillis);
+    }
+
+    public static int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public static Duration getRetryBackoff() {
+        return retryBackoff;
+    }
+
+    public static synchronized HttpClient client() {
+        if (client == null) {
+            client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(connectTimeout)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+        }
+        return client;
+    }
+
+    /**
+     * Sends once a request to the host is allowed; the request's timeout starts then, not while queued.
+     */
+    public static CompletableFuture<HttpResponse<String>> send(HttpRequest request) {
+        HostLimit limit = hosts.computeIfAbsent(request.uri().getHost(), h -> new HostLimit());
+        CompletableFuture<HttpResponse<String>> result = new CompletableFuture<>();
+        acquire(limit, () -> {
+            CompletableFuture<HttpResponse<String>> sent;
+            try {
+                sent = client().sendAsync(request, HttpResponse.BodyHandlers.ofString());
+            } catch (RuntimeException e) {
+                sent = CompletableFuture.failedFuture(e);
+            }
+            sent.whenComplete((response, error) -> {
+                release(limit);
+                if (error != null) {
+                    result.completeExceptionally(error);
+                } else {
+                    result.complete(response);
+                }
+            });
+        });
+        return result;
+    }
+
+    private static void acquire(HostLimit limit, Runnable send) {
+        synchronized (limit) {
+            if (limit.active >= maxConnectionsPerHost) {
+                limit.waiting.add(send);
+                return;
+            }
+            limit.active++;
+        }
+        send.run();
+    }
+
+    /**
+     * Hands the permit to the next waiting request, if any.
+     */
+    private static void release(HostLimit limit) {
+        Runnable next;
+        synchronized (limit) {
+            next = limit.waiting.poll();
+            if (next == null) {
+                limit.active--;
+            }
+        }
+        if (next != null) {
+            next.run();
+        }
+    }
+
+    public static synchronized void close() {
+        if (client != null) {
+            client.close();
+            client = null;
+        }
+    }
+}
@@ -1,21 +1,40 @@
 package cc.coopersoft.keycloak.phone.providers.spi.impl;
 
-import cc.coopersoft.common.OptionalUtils;
+import cc.coopersoft.keycloak.phone.providers.batch.MessageBatcher;
+import cc.coopersoft.keycloak.phone.providers.cache.PhoneNumberCanonicalCache;
+import cc.coopersoft.keycloak.phone.providers.cache.PhoneUserCache;
+import cc.coopersoft.keycloak.phone.providers.delivery.DeliveryTracker;
+import cc.coopersoft.keycloak.phone.providers.outbox.MessageOutboxDispatcher;
+import cc.coopersoft.keycloak.phone.providers.policy.PhonePolicy;
 import cc.coopersoft.keycloak.phone.providers.spi.PhoneProvider;
 import cc.coopersoft.keycloak.phone.providers.spi.PhoneVerificationCodeProvider;
 import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
 import cc.coopersoft.keycloak.phone.providers.exception.MessageSendException;
+import cc.coopersoft.keycloak.phone.providers.exception.TooManyRequestsException;
+import cc.coopersoft.keycloak.phone.providers.ratelimit.RateLimiter;
+import cc.coopersoft.keycloak.phone.providers.representations.OutgoingMessage;
+import cc.coopersoft.keycloak.phone.providers.representations.SendResult;
+import cc.coopersoft.keycloak.phone.providers.representations.TokenCodePreSendCheck;
 import cc.coopersoft.keycloak.phone.providers.representations.TokenCodeRepresentation;
 import cc.coopersoft.keycloak.phone.providers.spi.MessageSenderService;
+import cc.coopersoft.keycloak.phone.providers.spi.MessageSenderServiceProviderFactory;
 import org.jboss.logging.Logger;
 import org.keycloak.Config.Scope;
+import org.keycloak.models.AbstractKeycloakTransaction;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.services.validation.Validation;
 
-import jakarta.ws.rs.ForbiddenException;
 import jakarta.ws.rs.ServiceUnavailableException;
 import java.time.Instant;
+import java.util.Locale;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class DefaultPhoneProvider implements PhoneProvider {
 
@@ -25,19 +44,24 @@ public class DefaultPhoneProvider implements PhoneProvider {
     private final int tokenExpiresIn;
     private final int targetHourMaximum;
     private final int sourceHourMaximum;
+    private final long sendTimeout;
 
+    private final DefaultPhoneProviderFactory factory;
     private final Scope config;
+    private final RateLimiter rateLimiter;
 
-    DefaultPhoneProvider(KeycloakSession session, Scope config) {
+    DefaultPhoneProvider(KeycloakSession session, DefaultPhoneProviderFactory factory) {
         this.session = session;
-        this.config = config;
+        this.factory = factory;
+        this.config = factory.getConfig();
+        this.rateLimiter = factory.getRateLimiter();
 
 
         this.service = session.listProviderIds(MessageSenderService.class)
                 .stream().filter(s -> s.equals(config.get("service")))
                 .findFirst().orElse(
                         session.listProviderIds(MessageSenderService.class)
-                                .stream().findFirst().orElse(null)
+                                .stream().filter(s -> !isCompositeSender(s)).findFirst().orElse(null)
                 );
 
         if (Validation.isBlank(this.service)){
@@ -51,12 +75,21 @@ public class DefaultPhoneProvider implements PhoneProvider {
         this.tokenExpiresIn = config.getInt("tokenExpiresIn", 60);
         this.targetHourMaximum = config.getInt("targetHourMaximum",3);
         this.sourceHourMaximum = config.getInt("sourceHourMaximum", 10);
+        this.sendTimeout = config.getLong("sendTimeout", 10000L);
     }
 
     @Override
     public void close() {
     }
 
+    /**
+     * Composite senders need configuring, they are only used when named as the service.
+     */
+    private boolean isCompositeSender(String id) {
+        return session.getKeycloakSessionFactory().getProviderFactory(MessageSenderService.class, id)
+            instanceof MessageSenderServiceProviderFactory factory && factory.isComposite();
+    }
+
 
     private PhoneVerificationCodeProvider getTokenCodeService() {
         return session.getProvider(PhoneVerificationCodeProvider.class);
@@ -66,52 +99,86 @@ public class DefaultPhoneProvider implements PhoneProvider {
         return session.getContext().getRealm().getName();
     }
 
-    private Optional<String> getStringConfigValue(String configName){
-        return OptionalUtils.ofBlank(OptionalUtils.ofBlank(config.get(getRealmName() + "-" + configName))
-            .orElse(config.get(configName)));
+    @Override
+    public PhonePolicy phonePolicy() {
+        return phonePolicy(session.getContext().getRealm());
     }
 
-    private boolean getBooleanConfigValue(String configName, boolean defaultValue){
-        Boolean result = config.getBoolean(getRealmName() + "-" + configName,null);
-        if (result == null) {
-            result = config.getBoolean(configName,defaultValue);
-        }
-        return result;
+    @Override
+    public PhonePolicy phonePolicy(RealmModel realm) {
+        return factory.getPhonePolicy(realm);
     }
 
     @Override
     public boolean isDuplicatePhoneAllowed() {
-        return getBooleanConfigValue("duplicate-phone", false);
+        return phonePolicy().isDuplicatePhoneAllowed();
     }
 
     @Override
     public boolean validPhoneNumber() {
-        return getBooleanConfigValue("valid-phone", true);
+        return phonePolicy().isValidPhoneNumber();
     }
 
     @Override
     public boolean compatibleMode() {
-        return getBooleanConfigValue("compatible", false);
+        return phonePolicy().isCompatibleMode();
     }
 
     @Override
     public int otpExpires() {
-        return getStringConfigValue("otp-expires").map(Integer::valueOf).orElse(60 * 60);
+        return phonePolicy().getOtpExpires();
     }
 
     @Override
     public Optional<String> canonicalizePhoneNumber() {
-        return getStringConfigValue("canonicalize-phone-numbers");
+        return phonePolicy().getCanonicalizeFormatName();
     }
 
     @Override
     public Optional<String> defaultPhoneRegion() {
-        return getStringConfigValue("phone-default-region");
+        return phonePolicy().getConfiguredRegion();
     }
 
     @Override
     public Optional<String> phoneNumberRegex() {
-        return getStringConfigValue("number-regex");
+        return phonePolicy().getNumberRegexSource();
+    }
+
+    @Override
+    public PhoneNumberCanonicalCache canonicalCache() {
+        return factory.getCanonicalCache();
+    }
+
+    @Override
+    public PhoneUserCache phoneUserCache() {
+        return factory.getPhoneUserCache();
+    }
+
+    @Override
+    public DeliveryTracker deliveryTracker() {
+        return factory.getDeliveryTracker();
+    }
+
+    /**
+     * Realm and token code type specific limits fall back to the realm, the type and finally the global limit:
+     * {@code [$realm-][$type-]target-hour-maximum}
+     */
+    private int getHourMaximum(String configName, TokenCodeType type, int defaultValue){
+        String typeName = type.name().toLowerCase(Locale.ROOT);
+        for (String name : new String[]{
+            getRealmName() + "-" + typeName + "-" + configName,
+            getRealmName() + "-" + configName,
+            typeName + "-" + configName}) {
+            Integer result = config.getInt(name);
+            if (result != null) {
+                return result;
+            }
+        }
+        return defaultValue;
+    }
+
+    private String rateLimitKey(TokenCodeType type, String kind, String value){
+        return session.getContext().getRealm().getId() + ":" + type.name() + ":" + kind + ":" + value;
     }
 
     @Override
@@ -119,32 +186,173 @@ public class DefaultPhoneProvider implements PhoneProvider {
 
         logger.info("send code to:" + phoneNumber );
 
-        if (getTokenCodeService().isAbusing(phoneNumber, type,sourceAddr, sourceHourMaximum, targetHourMaximum)) {
-            throw new ForbiddenException("You requested the maximum number of messages the last hour");
+        SendSingleFlight singleFlight = factory.getSingleFlight();
+        if (singleFlight == null) {
+            return doSendTokenCode(phoneNumber, sourceAddr, type, kind);
+        }
+        // concurrent requests for the same number share one code instead of each sending their own
+        return singleFlight.send(session, session.getContext().getRealm().getId() + ":" + type.name() + ":" + phoneNumber,
+            () -> Optional.ofNullable(getTokenCodeService().ongoingProcess(phoneNumber, type))
+                .map(ongoing -> secondsUntil(ongoing.getExpiresAt().toInstant())),
+            () -> doSendTokenCode(phoneNumber, sourceAddr, type, kind), tokenExpiresIn);
+    }
+
+    private static int secondsUntil(Instant expiresAt) {
+        return (int) (expiresAt.toEpochMilli() - Instant.now().toEpochMilli()) / 1000;
+    }
+
+    private int doSendTokenCode(String phoneNumber, String sourceAddr, TokenCodeType type, String kind) {
+        int targetMaximum = getHourMaximum("target-hour-maximum", type, targetHourMaximum);
+        int sourceMaximum = getHourMaximum("source-hour-maximum", type, sourceHourMaximum);
+
+        if (rateLimiter == null) {
+            TokenCodePreSendCheck check = getTokenCodeService().preSendCheck(phoneNumber, type, sourceAddr);
+            if ((targetMaximum > 0 && check.getTargetCount() > targetMaximum) ||
+                (sourceMaximum > 0 && check.getSourceCount() > sourceMaximum)) {
+                // the database only counts the sends of the window, not when they leave it
+                throw new TooManyRequestsException("You requested the maximum number of messages the last hour",
+                    TimeUnit.HOURS.toSeconds(1));
+            }
+            if (check.hasOngoing()) {
+                return noNewCode(phoneNumber, type, check.getOngoingExpiresAt().toInstant());
+            }
+            return send(phoneNumber, type, kind);
         }
 
-        TokenCodeRepresentation ongoing = getTokenCodeService().ongoingProcess(phoneNumber, type);
-        if (ongoing != null) {
-            logger.info(String.format("No need of sending a new %s code for %s",type.label, phoneNumber));
-            return (int) (ongoing.getExpiresAt().getTime() - Instant.now().toEpochMilli()) / 1000;
+        String targetKey = rateLimitKey(type, "target", phoneNumber);
+        String sourceKey = sourceAddr == null ? null : rateLimitKey(type, "source", sourceAddr);
+        if (!rateLimiter.tryAcquire(targetKey, targetMaximum)) {
+            throw tooManyRequests(targetKey, targetMaximum, sourceKey, sourceMaximum);
+        }
+        if (sourceKey != null && !rateLimiter.tryAcquire(sourceKey, sourceMaximum)) {
+            rateLimiter.release(targetKey);
+            throw tooManyRequests(targetKey, targetMaximum, sourceKey, sourceMaximum);
         }
+        // counted up front, taken back unless a new code went out
+        boolean sent = false;
+        try {
+            TokenCodeRepresentation ongoing = getTokenCodeService().ongoingProcess(phoneNumber, type);
+            if (ongoing != null) {
+                return noNewCode(phoneNumber, type, ongoing.getExpiresAt().toInstant());
+            }
+            int expiresIn = send(phoneNumber, type, kind);
+            sent = true;
+            return expiresIn;
+        } finally {
+            if (!sent) {
+                rateLimiter.release(targetKey);
+                if (sourceKey != null) {
+                    rateLimiter.release(sourceKey);
+                }
+            }
+        }
+    }
 
-        TokenCodeRepresentation token = TokenCodeRepresentation.forPhoneNumber(phoneNumber);
+    private TooManyRequestsException tooManyRequests(String targetKey, int targetMaximum,
+                                                     String sourceKey, int sourceMaximum) {
+        long retryAfter = Math.max(rateLimiter.retryAfter(targetKey, targetMaximum),
+            sourceKey == null ? 0 : rateLimiter.retryAfter(sourceKey, sourceMaximum));
+        return new TooManyRequestsException("You requested the maximum number of messages the last hour",
+            Math.max(1, retryAfter));
+    }
 
-        try {
-            session.getProvider(MessageSenderService.class, service).sendSmsMessage(type,phoneNumber,token.getCode(),tokenExpiresIn,kind);
-            getTokenCodeService().persistCode(token, type, tokenExpiresIn);
+    private int noNewCode(String phoneNumber, TokenCodeType type, Instant ongoingExpiresAt) {
+        logger.info(String.format("No need of sending a new %s code for %s",type.label, phoneNumber));
+        return secondsUntil(ongoingExpiresAt);
+    }
 
-            logger.info(String.format("Sent %s code to %s over %s",type.label, phoneNumber, service));
+    private int send(String phoneNumber, TokenCodeType type, String kind) {
+        TokenCodeRepresentation token = TokenCodeRepresentation.forPhoneNumber(phoneNumber);
 
-        } catch (MessageSendException e) {
+        MessageOutboxDispatcher outbox = factory.getOutboxDispatcher();
+        if (outbox != null) {
+            // sent once the code is committed, failures are retried by the dispatcher
+            getTokenCodeService().persistCode(token, type, tokenExpiresIn);
+            outbox.enqueue(session, token.getId(), service, type, phoneNumber, token.getCode(), tokenExpiresIn, kind);
+            logger.info(String.format("Queued %s code to %s over %s",type.label, phoneNumber, service));
+        } else {
+            MessageBatcher batcher = factory.getBatcher();
+            CompletableFuture<SendResult> sending = (batcher != null
+                ? batcher.submit(session, service, new OutgoingMessage(type, phoneNumber, token.getCode(), tokenExpiresIn, kind))
+                : session.getProvider(MessageSenderService.class, service)
+                    .sendSmsMessageAsync(type, phoneNumber, token.getCode(), tokenExpiresIn, kind))
+                .toCompletableFuture();
+            // written while the gateway works, withdrawn again when sending fails
+            getTokenCodeService().persistCode(token, type, tokenExpiresIn);
 
-            logger.error(String.format("Message sending to %s failed with %s: %s",
-                    phoneNumber, e.getErrorCode(), e.getErrorMessage()));
-            throw new ServiceUnavailableException("Internal server error");
+            try {
+                SendResult result = sending.get(sendTimeout, TimeUnit.MILLISECONDS);
+                logger.info(String.format("Sent %s code to %s over %s in %d ms",type.label, phoneNumber, service,
+                    result.getLatency().toMillis()));
+                DeliveryTracker tracker = factory.getDeliveryTracker();
+                if (tracker != null) {
+                    tracker.recordSent(session, token.getId(), service, phoneNumber,
+                        phonePolicy().getDefaultRegion(), result);
+                }
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof MessageSendException sendException) {
+                    logger.error(String.format("Message sending to %s failed with %s: %s",
+                            phoneNumber, sendException.getErrorCode(), sendException.getErrorMessage()));
+                } else {
+                    logger.error(String.format("Message sending to %s failed", phoneNumber), e.getCause());
+                }
+                throw sendFailed(token, type);
+            } catch (TimeoutException e) {
+                // the gateway may still deliver the code, so it stays valid unless the send ends up failing
+                logger.warn(String.format("Message sending to %s did not complete in %d ms, keeping the code",
+                    phoneNumber, sendTimeout));
+                withdrawIfFailed(sending, token, type);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                withdrawIfFailed(sending, token, type);
+            }
         }
 
         return tokenExpiresIn;
     }
 
+    /**
+     * Withdraws the code in a session of its own should the send still in flight fail, once the request
+     * committed the code.
+     */
+    private void withdrawIfFailed(CompletableFuture<SendResult> sending, TokenCodeRepresentation token,
+                                  TokenCodeType type) {
+        KeycloakSessionFactory sessionFactory = session.getKeycloakSessionFactory();
+        String realmId = session.getContext().getRealm().getId();
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                sending.whenComplete((result, error) -> {
+                    if (error == null) {
+                        logger.info(String.format("Sent %s code to %s over %s in %d ms", type.label,
+                            token.getPhoneNumber(), service, result.getLatency().toMillis()));
+                        return;
+                    }
+                    logger.error(String.format("Message sending to %s failed, withdrawing the code",
+                        token.getPhoneNumber()), error);
+                    try {
+                        KeycloakModelUtils.runJobInTransaction(sessionFactory, job -> {
+                            RealmModel realm = job.realms().getRealm(realmId);
+                            if (realm != null) {
+                                job.getContext().setRealm(realm);
+                                job.getProvider(PhoneVerificationCodeProvider.class).discardCode(token, type);
+                            }
+                        });
+                    } catch (RuntimeException e) {
+                        logger.warn(String.format("Failed to withdraw the code of %s", token.getPhoneNumber()), e);
+                    }
+                });
+            }
+
+            @Override
+            protected void rollbackImpl() {
+            }
+        });
+    }
+
+    private ServiceUnavailableException sendFailed(TokenCodeRepresentation token, TokenCodeType type) {
+        getTokenCodeService().discardCode(token, type);
+        return new ServiceUnavailableException("Internal server error");
+    }
+
 }
@@ -1,35 +1,268 @@
 package cc.coopersoft.keycloak.phone.providers.spi.impl;
 
+import cc.coopersoft.common.OptionalUtils;
+import cc.coopersoft.keycloak.phone.providers.batch.MessageBatcher;
+import cc.coopersoft.keycloak.phone.providers.cache.PhoneNumberCanonicalCache;
+import cc.coopersoft.keycloak.phone.providers.cache.PhoneUserCache;
+import cc.coopersoft.keycloak.phone.providers.delivery.DeliveryTracker;
+import cc.coopersoft.keycloak.phone.providers.outbox.MessageOutboxDispatcher;
+import cc.coopersoft.keycloak.phone.providers.policy.PhonePolicy;
+import cc.coopersoft.keycloak.phone.providers.ratelimit.ClusterRateLimiter;
+import cc.coopersoft.keycloak.phone.providers.ratelimit.RateLimiter;
+import cc.coopersoft.keycloak.phone.providers.ratelimit.SlidingWindowRateLimiter;
+import cc.coopersoft.keycloak.phone.providers.spi.BlockingSendExecutor;
 import cc.coopersoft.keycloak.phone.providers.spi.PhoneProvider;
 import cc.coopersoft.keycloak.phone.providers.spi.PhoneProviderFactory;
+import cc.coopersoft.keycloak.phone.providers.spi.SmsHttpClient;
+import org.jboss.logging.Logger;
 import org.keycloak.Config.Scope;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.models.utils.PostMigrationEvent;
+import org.keycloak.services.scheduled.ClusterAwareScheduledTaskRunner;
+import org.keycloak.timer.TimerProvider;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 public class DefaultPhoneProviderFactory implements PhoneProviderFactory {
 
+    private static final Logger logger = Logger.getLogger(DefaultPhoneProviderFactory.class);
+
+    private static final String RATE_LIMITER_SYNC_TASK = "PhoneRateLimiterSync";
+
     private Scope config;
+    private RateLimiter rateLimiter;
+    private long rateLimiterSyncInterval;
+    private PhoneNumberCanonicalCache canonicalCache;
+    private PhoneUserCache phoneUserCache;
+    private long indexBackfillInterval;
+    private int indexBackfillBatchSize;
+    private MessageOutboxDispatcher outboxDispatcher;
+    private MessageBatcher batcher;
+    private SendSingleFlight singleFlight;
+    private DeliveryTracker deliveryTracker;
+    private final Map<String, PhonePolicy> policies = new ConcurrentHashMap<>();
 
     @Override
     public PhoneProvider create(KeycloakSession session) {
-        return new DefaultPhoneProvider(session, config);
+        return new DefaultPhoneProvider(session, this);
     }
 
     @Override
     public void init(Scope config) {
         this.config = config;
+
+        // counts token code rows, right on any number of nodes; local only holds for a single node
+        String limiter = config.get("rateLimiter", "database");
+        switch (limiter) {
+            case "local":
+                this.rateLimiter = new SlidingWindowRateLimiter(config.getInt("rateLimiterConcurrency", 64));
+                break;
+            case "cluster":
+                this.rateLimiterSyncInterval = config.getLong("rateLimiterSyncInterval", 1000L);
+                this.rateLimiter = new ClusterRateLimiter(rateLimiterSyncInterval);
+                break;
+            case "database":
+                this.rateLimiter = null;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown rate limiter '" + limiter + "', use one of: local, cluster, database");
+        }
+        logger.infof("Phone send rate limiter: %s", limiter);
+
+        int canonicalCacheSize = config.getInt("canonicalCacheSize", 10000);
+        if (canonicalCacheSize > 0) {
+            this.canonicalCache = new PhoneNumberCanonicalCache(canonicalCacheSize,
+                config.getLong("canonicalCacheTtl", 600L), config.getInt("canonicalCacheConcurrency", 16));
+        }
+
+        long userCacheLifespan = config.getLong("userCacheLifespan", 300L);
+        if (userCacheLifespan > 0) {
+            this.phoneUserCache = new PhoneUserCache(userCacheLifespan, config.getLong("userCacheNegativeLifespan", 60L));
+        }
+
+        BlockingSendExecutor.setConcurrency(config.getInt("asyncSendConcurrency", BlockingSendExecutor.DEFAULT_CONCURRENCY));
+        SmsHttpClient.configure(
+            config.getLong("httpConnectTimeout", SmsHttpClient.DEFAULT_CONNECT_TIMEOUT),
+            config.getInt("httpMaxConnectionsPerHost", SmsHttpClient.DEFAULT_MAX_CONNECTIONS_PER_HOST),
+            config.getInt("httpMaxRetries", SmsHttpClient.DEFAULT_MAX_RETRIES),
+            config.getLong("httpRetryBackoff", SmsHttpClient.DEFAULT_RETRY_BACKOFF));
+
+        long batchWindow = config.getLong("batchWindow", 0L);
+        if (batchWindow > 0) {
+            this.batcher = new MessageBatcher(batchWindow, config.getInt("batchMaxSize", 50));
+        }
+
+        if (config.getBoolean("singleFlight", false)) {
+            this.singleFlight = new SendSingleFlight(config.getLong("singleFlightClaimLifespan", 60L),
+                config.getLong("singleFlightWait", 500L));
+        }
+
+        this.indexBackfillInterval = config.getLong("indexBackfillInterval", 300L);
+        this.indexBackfillBatchSize = config.getInt("indexBackfillBatchSize", 500);
+
+        if (config.getBoolean("outbox", false)) {
+            this.outboxDispatcher = new MessageOutboxDispatcher(
+                config.getInt("outboxThreads", 4),
+                config.getInt("outboxBatchSize", 20),
+                config.getInt("outboxMaxAttempts", 5),
+                TimeUnit.SECONDS.toMillis(config.getLong("outboxLease", 60L)),
+                config.getLong("outboxPollInterval", 1000L),
+                config.getLong("outboxBackoff", 5000L),
+                TimeUnit.SECONDS.toMillis(config.getLong("outboxDrainTimeout", 10L)));
+            logger.info("Phone messages are sent through the outbox");
+        }
+
+        if (config.getBoolean("deliveryTracking", false)) {
+            this.deliveryTracker = new DeliveryTracker(
+                config.getInt("deliveryBatchSize", 500),
+                config.getLong("deliveryFlushInterval", 1000L),
+                config.getInt("deliveryQueueSize", 10000));
+        }
     }
 
     @Override
     public void postInit(KeycloakSessionFactory keycloakSessionFactory) {
+        if (batcher != null) {
+            batcher.start(keycloakSessionFactory);
+        }
+        if (deliveryTracker != null) {
+            deliveryTracker.start(keycloakSessionFactory);
+        }
+        keycloakSessionFactory.register(event -> {
+            if (event instanceof RealmModel.RealmRemovedEvent removed) {
+                policies.remove(removed.getRealm().getId());
+                removed.getKeycloakSession().getProvider(JpaConnectionProvider.class).getEntityManager()
+                    .createNamedQuery("deletePhoneNumberIndexByRealm")
+                    .setParameter("realmId", removed.getRealm().getId())
+                    .executeUpdate();
+            } else if (event instanceof UserModel.UserRemovedEvent removed) {
+                removed.getKeycloakSession().getProvider(JpaConnectionProvider.class).getEntityManager()
+                    .createNamedQuery("deletePhoneNumberIndexByUser")
+                    .setParameter("userId", removed.getUser().getId())
+                    .executeUpdate();
+            } else if (event instanceof PostMigrationEvent) {
+                KeycloakModelUtils.runJobInTransaction(keycloakSessionFactory, session -> {
+                    TimerProvider timer = session.getProvider(TimerProvider.class);
+                    if (indexBackfillInterval > 0) {
+                        long interval = TimeUnit.SECONDS.toMillis(indexBackfillInterval);
+                        timer.schedule(new ClusterAwareScheduledTaskRunner(keycloakSessionFactory,
+                                new PhoneNumberIndexBackfillTask(this, indexBackfillBatchSize), interval),
+                            interval, PhoneNumberIndexBackfillTask.TASK_NAME);
+                    }
+                    if (rateLimiter instanceof ClusterRateLimiter clusterRateLimiter) {
+                        clusterRateLimiter.setCache(session.getProvider(InfinispanConnectionProvider.class)
+                            .getCache(InfinispanConnectionProvider.WORK_CACHE_NAME));
+                        if (rateLimiterSyncInterval > 0) {
+                            timer.schedule(clusterRateLimiter::flush, rateLimiterSyncInterval, RATE_LIMITER_SYNC_TASK);
+                        }
+                    }
+                });
+                if (outboxDispatcher != null) {
+                    outboxDispatcher.start(keycloakSessionFactory);
+                }
+            }
+        });
     }
 
     @Override
     public void close() {
+        if (outboxDispatcher != null) {
+            outboxDispatcher.close();
+        }
+        if (batcher != null) {
+            batcher.close();
+        }
+        // after the outbox and batcher drained, which may still send through it
+        SmsHttpClient.close();
+        if (deliveryTracker != null) {
+            deliveryTracker.close();
+        }
+        if (rateLimiter instanceof ClusterRateLimiter clusterRateLimiter) {
+            clusterRateLimiter.flush();
+        }
     }
 
     @Override
     public String getId() {
         return "default";
     }
+
+    Scope getConfig() {
+        return config;
+    }
+
+    RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    PhoneNumberCanonicalCache getCanonicalCache() {
+        return canonicalCache;
+    }
+
+    PhoneUserCache getPhoneUserCache() {
+        return phoneUserCache;
+    }
+
+    MessageOutboxDispatcher getOutboxDispatcher() {
+        return outboxDispatcher;
+    }
+
+    MessageBatcher getBatcher() {
+        return batcher;
+    }
+
+    SendSingleFlight getSingleFlight() {
+        return singleFlight;
+    }
+
+    DeliveryTracker getDeliveryTracker() {
+        return deliveryTracker;
+    }
+
+    /**
+     * Policies are built once per realm and rebuilt when the realm was renamed, as config keys are prefixed
+     * with the realm name, or its default locale changed.
+     */
+    PhonePolicy getPhonePolicy(RealmModel realm) {
+        PhonePolicy policy = policies.get(realm.getId());
+        if (policy == null || policy.isStale(realm)) {
+            policy = buildPhonePolicy(realm);
+            policies.put(realm.getId(), policy);
+        }
+        return policy;
+    }
+
+    private PhonePolicy buildPhonePolicy(RealmModel realm) {
+        String realmName = realm.getName();
+        return new PhonePolicy(realm,
+            getBooleanConfigValue(realmName, "duplicate-phone", false),
+            getBooleanConfigValue(realmName, "valid-phone", true),
+            getBooleanConfigValue(realmName, "compatible", false),
+            getStringConfigValue(realmName, "otp-expires").map(Integer::valueOf).orElse(60 * 60),
+            getStringConfigValue(realmName, "canonicalize-phone-numbers"),
+            getStringConfigValue(realmName, "phone-default-region"),
+            getStringConfigValue(realmName, "number-regex"));
+    }
+
+    private Optional<String> getStringConfigValue(String realmName, String configName){
+        return OptionalUtils.ofBlank(OptionalUtils.ofBlank(config.get(realmName + "-" + configName))
+            .orElse(config.get(configName)));
+    }
+
+    private boolean getBooleanConfigValue(String realmName, String configName, boolean defaultValue){
+        Boolean result = config.getBoolean(realmName + "-" + configName,null);
+        if (result == null) {
+            result = config.getBoolean(configName,defaultValue);
+        }
+        return result;
+    }
 }
@@ -9,15 +9,19 @@ import cc.coopersoft.keycloak.phone.credential.PhoneOtpCredentialProviderFactory
 import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
 import cc.coopersoft.keycloak.phone.providers.exception.PhoneNumberInvalidException;
 import cc.coopersoft.keycloak.phone.providers.jpa.TokenCode;
+import cc.coopersoft.keycloak.phone.providers.representations.TokenCodePreSendCheck;
 import cc.coopersoft.keycloak.phone.providers.representations.TokenCodeRepresentation;
 import cc.coopersoft.keycloak.phone.providers.spi.PhoneVerificationCodeProvider;
 import org.jboss.logging.Logger;
 import org.keycloak.connections.jpa.JpaConnectionProvider;
 import org.keycloak.credential.CredentialModel;
 import org.keycloak.credential.CredentialProvider;
+import org.keycloak.models.AbstractKeycloakTransaction;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.services.validation.Validation;
 import org.keycloak.util.JsonSerialization;
 
@@ -29,29 +33,45 @@ import jakarta.ws.rs.ForbiddenException;
 import java.io.IOException;
 import java.time.Instant;
 import java.util.Date;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 public class DefaultPhoneVerificationCodeProvider implements PhoneVerificationCodeProvider {
 
     private static final Logger logger = Logger.getLogger(DefaultPhoneVerificationCodeProvider.class);
-    private final KeycloakSession session;
 
-    DefaultPhoneVerificationCodeProvider(KeycloakSession session) {
+    private static final String ATTEMPT_KEY = "phone-token-attempt::%s::%s::%s::%d";
+    private static final long ATTEMPT_LIFESPAN_SECONDS = TimeUnit.HOURS.toSeconds(1);
+
+    protected final KeycloakSession session;
+    private final int maxAttempts;
+
+    DefaultPhoneVerificationCodeProvider(KeycloakSession session, int maxAttempts) {
         this.session = session;
+        this.maxAttempts = maxAttempts;
         if (getRealm() == null) {
             throw new IllegalStateException("The service cannot accept a session without a realm in its context.");
         }
     }
 
-    private EntityManager getEntityManager() {
+    protected EntityManager getEntityManager() {
         return session.getProvider(JpaConnectionProvider.class).getEntityManager();
     }
 
-    private RealmModel getRealm() {
+    protected RealmModel getRealm() {
         return session.getContext().getRealm();
     }
 
+    private String canonicalize(String phoneNumber) {
+        try {
+            return Utils.canonicalizePhoneNumber(session, phoneNumber);
+        } catch (PhoneNumberInvalidException e) {
+            logger.warn("Invalid number: "+phoneNumber);
+            throw new BadRequestException("Phone number is invalid");
+        }
+    }
+
     @Override
     public TokenCodeRepresentation ongoingProcess(String phoneNumber, TokenCodeType tokenCodeType) {
 
@@ -62,7 +82,7 @@ public class DefaultPhoneVerificationCodeProvider implements PhoneVerificationCo
                     .setParameter("realmId", getRealm().getId())
                     .setParameter("phoneNumber", resultPhoneNumber)
                     .setParameter("now", new Date(), TemporalType.TIMESTAMP)
-                    .setParameter("type", tokenCodeType.name())
+                    .setParameter("type", tokenCodeType)
                     .getSingleResult();
 
             TokenCodeRepresentation tokenCodeRepresentation = new TokenCodeRepresentation();
@@ -70,7 +90,7 @@ public class DefaultPhoneVerificationCodeProvider implements PhoneVerificationCo
             tokenCodeRepresentation.setId(entity.getId());
             tokenCodeRepresentation.setPhoneNumber(entity.getPhoneNumber());
             tokenCodeRepresentation.setCode(entity.getCode());
-            tokenCodeRepresentation.setType(entity.getType());
+            tokenCodeRepresentation.setType(entity.getType().name());
             tokenCodeRepresentation.setCreatedAt(entity.getCreatedAt());
             tokenCodeRepresentation.setExpiresAt(entity.getExpiresAt());
             tokenCodeRepresentation.setConfirmed(entity.getConfirmed());
@@ -96,7 +116,7 @@ public class DefaultPhoneVerificationCodeProvider implements PhoneVerificationCo
                 .setParameter("realmId", getRealm().getId())
                 .setParameter("phoneNumber", phoneNumber)
                 .setParameter("date", oneHourAgo, TemporalType.TIMESTAMP)
-                .setParameter("type", tokenCodeType.name())
+                .setParameter("type", tokenCodeType)
                 .getSingleResult());
             if (targetCount > targetHourMaximum)
                 return true;
@@ -108,7 +128,7 @@ public class DefaultPhoneVerificationCodeProvider implements PhoneVerificationCo
                 .setParameter("realmId", getRealm().getId())
                 .setParameter("addr", sourceAddr)
                 .setParameter("date", oneHourAgo, TemporalType.TIMESTAMP)
-                .setParameter("type", tokenCodeType.name())
+                .setParameter("type", tokenCodeType)
                 .getSingleResult());
             if (sourceCount > sourceHourMaximum)
                 return true;
@@ -117,9 +137,56 @@ public class DefaultPhoneVerificationCodeProvider implements PhoneVerificationCo
         return false;
     }
 
+    /**
+     * Two aggregates, on the target and on the source, each a range of one index, sent as one query: a row
+     * for the target, then one for the source. Without a source address its count is 0.
+     */
+    @Override
+    public TokenCodePreSendCheck preSendCheck(String phoneNumber, TokenCodeType tokenCodeType, String sourceAddr) {
+
+        try {
+            String resultPhoneNumber = Utils.canonicalizePhoneNumber(session, phoneNumber);
+            Date oneHourAgo = new Date(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1));
+            List<?> rows = getEntityManager()
+                .createNamedQuery("preSendCheck")
+                .setParameter("realmId", getRealm().getId())
+                .setParameter("phoneNumber", resultPhoneNumber)
+                .setParameter("addr", sourceAddr)
+                .setParameter("date", oneHourAgo, TemporalType.TIMESTAMP)
+                .setParameter("now", new Date(), TemporalType.TIMESTAMP)
+                .setParameter("type", tokenCodeType.code)
+                .getResultList();
+
+            TokenCodePreSendCheck check = new TokenCodePreSendCheck();
+            for (Object result : rows) {
+                Object[] row = (Object[]) result;
+                long count = row[1] == null ? 0 : (Long) row[1];
+                if ((Integer) row[0] == 0) {
+                    check.setTargetCount(count);
+                    check.setOngoingExpiresAt((Date) row[2]);
+                } else {
+                    check.setSourceCount(count);
+                }
+            }
+            return check;
+        } catch (PhoneNumberInvalidException e) {
+            logger.warn("Invalid number: "+phoneNumber);
+            throw new BadRequestException("Phone number is invalid");
+        }
+    }
+
     @Override
     public void persistCode(TokenCodeRepresentation tokenCode, TokenCodeType tokenCodeType, int tokenExpiresIn) {
+        getEntityManager().persist(createEntity(tokenCode, tokenCodeType, tokenExpiresIn));
+        resetAttempts(getRealm(), tokenCode.getPhoneNumber(), tokenCodeType);
+    }
+
+    @Override
+    public void discardCode(TokenCodeRepresentation tokenCode, TokenCodeType tokenCodeType) {
+        invalidateCode(getRealm(), tokenCode.getPhoneNumber(), tokenCodeType);
+    }
 
+    protected TokenCode createEntity(TokenCodeRepresentation tokenCode, TokenCodeType tokenCodeType, int tokenExpiresIn) {
         TokenCode entity = new TokenCode();
         Instant now = Instant.now();
 
@@ -127,7 +194,8 @@ public class DefaultPhoneVerificationCodeProvider implements PhoneVerificationCo
         entity.setRealmId(getRealm().getId());
         entity.setPhoneNumber(tokenCode.getPhoneNumber());
         entity.setCode(tokenCode.getCode());
-        entity.setType(tokenCodeType.name());
+        entity.setType(tokenCodeType);
+        entity.setLegacyType(tokenCodeType.name());
         entity.setCreatedAt(Date.from(now));
         entity.setExpiresAt(Date.from(now.plusSeconds(tokenExpiresIn)));
         entity.setConfirmed(tokenCode.getConfirmed());
@@ -136,8 +204,7 @@ public class DefaultPhoneVerificationCodeProvider implements PhoneVerificationCo
             entity.setPort(session.getContext().getConnection().getRemotePort());
             entity.setHost(session.getContext().getConnection().getRemoteHost());
         }
-
-        getEntityManager().persist(entity);
+        return entity;
     }
 
     @Override
@@ -145,23 +212,170 @@ public class DefaultPhoneVerificationCodeProvider implements PhoneVerificationCo
         validateCode(user, phoneNumber, code, TokenCodeType.VERIFY);
     }
 
+    @Override
+    public boolean consumeCode(RealmModel realm, String phoneNumber, TokenCodeType tokenCodeType, String code, String userId) {
+        String resultPhoneNumber = canonicalize(phoneNumber);
+        if (isLockedOut(realm, resultPhoneNumber, tokenCodeType)) {
+            return false;
+        }
+        if (consume(realm, resultPhoneNumber, tokenCodeType, code, userId)) {
+            return true;
+        }
+        recordFailedAttempt(realm, resultPhoneNumber, tokenCodeType);
+        return false;
+    }
+
+    @Override
+    public TokenCodeRepresentation verifyCode(String phoneNumber, TokenCodeType tokenCodeType, String code) {
+        String resultPhoneNumber = canonicalize(phoneNumber);
+        if (isLockedOut(getRealm(), resultPhoneNumber, tokenCodeType)) {
+            return null;
+        }
+        TokenCodeRepresentation tokenCode = ongoingProcess(resultPhoneNumber, tokenCodeType);
+        if (tokenCode == null) {
+            return null;
+        }
+        if (!tokenCode.getCode().equals(code)) {
+            recordFailedAttempt(getRealm(), resultPhoneNumber, tokenCodeType);
+            return null;
+        }
+        return tokenCode;
+    }
+
+    /**
+     * Store specific part of {@link #consumeCode}, phoneNumber is canonicalized.
+     */
+    protected boolean consume(RealmModel realm, String phoneNumber, TokenCodeType tokenCodeType, String code, String userId) {
+        return getEntityManager()
+            .createNamedQuery("consumeCode")
+            .setParameter("userId", userId)
+            .setParameter("realmId", realm.getId())
+            .setParameter("phoneNumber", phoneNumber)
+            .setParameter("type", tokenCodeType)
+            .setParameter("code", code)
+            .setParameter("now", new Date(), TemporalType.TIMESTAMP)
+            .executeUpdate() > 0;
+    }
+
+    /**
+     * Ends the ongoing code of phoneNumber after too many wrong answers.
+     */
+    protected void invalidateCode(RealmModel realm, String phoneNumber, TokenCodeType tokenCodeType) {
+        invalidateCode(getEntityManager(), realm.getId(), phoneNumber, tokenCodeType);
+    }
+
+    private static void invalidateCode(EntityManager em, String realmId, String phoneNumber, TokenCodeType tokenCodeType) {
+        Date now = new Date();
+        em.createNamedQuery("invalidateCode")
+            .setParameter("expired", new Date(now.getTime() - 1), TemporalType.TIMESTAMP)
+            .setParameter("realmId", realmId)
+            .setParameter("phoneNumber", phoneNumber)
+            .setParameter("type", tokenCodeType)
+            .setParameter("now", now, TemporalType.TIMESTAMP)
+            .executeUpdate();
+    }
+
+    private String attemptKey(RealmModel realm, String phoneNumber, TokenCodeType tokenCodeType, int attempt) {
+        return String.format(ATTEMPT_KEY, realm.getId(), tokenCodeType.name(), phoneNumber, attempt);
+    }
+
+    /**
+     * Failed attempts are kept in the single use object store next to the code, one entry per attempt, so
+     * a lockout is a single cache lookup and never reaches the database.
+     */
+    protected boolean isLockedOut(RealmModel realm, String phoneNumber, TokenCodeType tokenCodeType) {
+        return maxAttempts > 0 && session.singleUseObjects().contains(attemptKey(realm, phoneNumber, tokenCodeType, maxAttempts));
+    }
+
+    /**
+     * Claims the next free attempt slot with putIfAbsent, so concurrent wrong answers each count; the one
+     * claiming the last slot invalidates the code.
+     */
+    protected void recordFailedAttempt(RealmModel realm, String phoneNumber, TokenCodeType tokenCodeType) {
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            if (session.singleUseObjects().putIfAbsent(attemptKey(realm, phoneNumber, tokenCodeType, attempt), ATTEMPT_LIFESPAN_SECONDS)) {
+                if (attempt == maxAttempts) {
+                    logger.info(String.format("Too many wrong %s codes for %s, invalidating the code", tokenCodeType.label, phoneNumber));
+                    lockOut(realm, phoneNumber, tokenCodeType);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Invalidates the code of the last wrong answer allowed. The request fails and its transaction is rolled
+     * back, so the update runs in a transaction of its own, once the request's ended: run before, it could
+     * wait on the row locks the request's consume took.
+     */
+    protected void lockOut(RealmModel realm, String phoneNumber, TokenCodeType tokenCodeType) {
+        KeycloakSessionFactory sessionFactory = session.getKeycloakSessionFactory();
+        String realmId = realm.getId();
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                invalidate();
+            }
+
+            @Override
+            protected void rollbackImpl() {
+                invalidate();
+            }
+
+            private void invalidate() {
+                try {
+                    KeycloakModelUtils.runJobInTransaction(sessionFactory, lockOutSession -> invalidateCode(
+                        lockOutSession.getProvider(JpaConnectionProvider.class).getEntityManager(), realmId,
+                        phoneNumber, tokenCodeType));
+                } catch (RuntimeException e) {
+                    logger.warn("Failed to invalidate the code of " + phoneNumber + " after too many wrong answers", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Attempts are counted under the canonical number, the one answers are checked with, whatever form the
+     * number of the new code came in.
+     */
+    protected void resetAttempts(RealmModel realm, String phoneNumber, TokenCodeType tokenCodeType) {
+        if (maxAttempts <= 0) {
+            return;
+        }
+        String resultPhoneNumber;
+        try {
+            resultPhoneNumber = Utils.canonicalizePhoneNumber(session, phoneNumber);
+        } catch (PhoneNumberInvalidException e) {
+            // no answer for it could have been counted
+            return;
+        }
+        if (!session.singleUseObjects().contains(attemptKey(realm, resultPhoneNumber, tokenCodeType, 1))) {
+            return;
+        }
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            session.singleUseObjects().remove(attemptKey(realm, resultPhoneNumber, tokenCodeType, attempt));
+        }
+    }
+
     @Override
     public void validateCode(UserModel user, String phoneNumber, String code, TokenCodeType tokenCodeType) {
 
         logger.info(String.format("valid %s , phone: %s, code: %s", tokenCodeType, phoneNumber, code));
 
-        TokenCodeRepresentation tokenCode = ongoingProcess(phoneNumber, tokenCodeType);
-        if (tokenCode == null)
-            throw new BadRequestException(String.format("There is no valid ongoing %s process", tokenCodeType.label));
-
-        if (!tokenCode.getCode().equals(code)) throw new ForbiddenException("Code does not match with expected value");
+        if (!consumeCode(getRealm(), phoneNumber, tokenCodeType, code, user.getId())) {
+            // only failed attempts pay for the second lookup that tells the two errors apart
+            if (isLockedOut(getRealm(), canonicalize(phoneNumber), tokenCodeType) ||
+                ongoingProcess(phoneNumber, tokenCodeType) == null)
+                throw new BadRequestException(String.format("There is no valid ongoing %s process", tokenCodeType.label));
+            throw new ForbiddenException("Code does not match with expected value");
+        }
 
         logger.info(String.format("User %s correctly answered the %s code", user.getId(), tokenCodeType.label));
 
-        tokenValidated(user,phoneNumber,tokenCode.getId(),TokenCodeType.OTP.equals(tokenCodeType));
+        tokenValidated(user,phoneNumber,null,TokenCodeType.OTP.equals(tokenCodeType));
 
         if (TokenCodeType.OTP.equals(tokenCodeType))
-            updateUserOTPCredential(user,phoneNumber,tokenCode.getCode());
+            updateUserOTPCredential(user,phoneNumber,code);
     }
 
     @Override
@@ -179,12 +393,12 @@ public class DefaultPhoneVerificationCodeProvider implements PhoneVerificationCo
 
         if (updateUserPhoneNumber){
             if (!Utils.isDuplicatePhoneAllowed(session)){
-                session.users()
-                    .searchForUserByUserAttributeStream(session.getContext().getRealm(),"phoneNumber", phoneNumber)
+                Utils.findUsersByPhone(session, getRealm(), phoneNumber)
                     .filter(u -> !u.getId().equals(user.getId()))
                     .forEach(u -> {
                         logger.info(String.format("User %s also has phone number %s. Un-verifying.", u.getId(), phoneNumber));
                         u.setSingleAttribute("phoneNumberVerified", "false");
+                        Utils.indexPhoneNumber(session, getRealm(), u);
 
                         u.addRequiredAction(UpdatePhoneNumberRequiredAction.PROVIDER_ID);
 
@@ -211,13 +425,14 @@ public class DefaultPhoneVerificationCodeProvider implements PhoneVerificationCo
             }
             user.setSingleAttribute("phoneNumberVerified", "true");
             user.setSingleAttribute("phoneNumber", phoneNumber);
+            Utils.indexPhoneNumber(session, getRealm(), user);
 
             user.removeRequiredAction(UpdatePhoneNumberRequiredAction.PROVIDER_ID);
         }
 
-        validateProcess(tokenCodeId, user);
-
-
+        if (tokenCodeId != null) {
+            validateProcess(tokenCodeId, user);
+        }
     }
 
     @Override
@@ -2,23 +2,61 @@ package cc.coopersoft.keycloak.phone.providers.spi.impl;
 
 import cc.coopersoft.keycloak.phone.providers.spi.PhoneVerificationCodeProvider;
 import cc.coopersoft.keycloak.phone.providers.spi.PhoneVerificationCodeProviderFactory;
+import org.jboss.logging.Logger;
 import org.keycloak.Config;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.models.utils.PostMigrationEvent;
+import org.keycloak.services.scheduled.ClusterAwareScheduledTaskRunner;
+import org.keycloak.timer.TimerProvider;
+
+import java.util.concurrent.TimeUnit;
 
 public class DefaultVerificationCodeProviderFactory implements PhoneVerificationCodeProviderFactory {
 
+    private static final Logger logger = Logger.getLogger(DefaultVerificationCodeProviderFactory.class);
+
+    // isAbusing looks back one hour, never purge rows it still counts
+    private static final long MIN_RETENTION_SECONDS = TimeUnit.HOURS.toSeconds(1);
+
+    private int maxAttempts;
+    private long purgeInterval;
+    private TokenCodePurgeTask purgeTask;
+
     @Override
     public PhoneVerificationCodeProvider create(KeycloakSession session) {
-        return new DefaultPhoneVerificationCodeProvider(session);
+        return new DefaultPhoneVerificationCodeProvider(session, maxAttempts);
     }
 
     @Override
     public void init(Config.Scope scope) {
+        this.maxAttempts = scope.getInt("maxAttempts", 5);
+        this.purgeInterval = scope.getLong("purgeInterval", TimeUnit.HOURS.toSeconds(1));
+        long retention = Math.max(scope.getLong("purgeRetention", TimeUnit.DAYS.toSeconds(1)), MIN_RETENTION_SECONDS);
+        this.purgeTask = new TokenCodePurgeTask(retention,
+            scope.getInt("purgeBatchSize", 500),
+            scope.getInt("purgeMaxBatches", 100),
+            scope.getBoolean("purgeArchive", false));
     }
 
     @Override
     public void postInit(KeycloakSessionFactory keycloakSessionFactory) {
+        if (purgeInterval <= 0) {
+            logger.info("Phone token code purge is disabled");
+            return;
+        }
+        keycloakSessionFactory.register(event -> {
+            // every factory of the spi is initialized, only the one in use purges
+            if (event instanceof PostMigrationEvent &&
+                keycloakSessionFactory.getProviderFactory(PhoneVerificationCodeProvider.class) == this) {
+                long interval = TimeUnit.SECONDS.toMillis(purgeInterval);
+                KeycloakModelUtils.runJobInTransaction(keycloakSessionFactory, session ->
+                    session.getProvider(TimerProvider.class).schedule(
+                        new ClusterAwareScheduledTaskRunner(keycloakSessionFactory, purgeTask, interval),
+                        interval, TokenCodePurgeTask.TASK_NAME));
+            }
+        });
     }
 
     @Override
@@ -29,4 +67,8 @@ public class DefaultVerificationCodeProviderFactory implements PhoneVerification
     public String getId() {
         return "default";
     }
+
+    int getMaxAttempts() {
+        return maxAttempts;
+    }
 }
@@ -0,0 +1,285 @@
+package cc.coopersoft.keycloak.phone.providers.spi.impl;
+
+import cc.coopersoft.keycloak.phone.Utils;
+import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
+import cc.coopersoft.keycloak.phone.providers.exception.PhoneNumberInvalidException;
+import cc.coopersoft.keycloak.phone.providers.jpa.TokenCode;
+import cc.coopersoft.keycloak.phone.providers.ratelimit.ClusterRateLimiter;
+import cc.coopersoft.keycloak.phone.providers.representations.TokenCodePreSendCheck;
+import cc.coopersoft.keycloak.phone.providers.representations.TokenCodeRepresentation;
+import org.jboss.logging.Logger;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.executors.ExecutorsProvider;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakSessionTask;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.SingleUseObjectProvider;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import jakarta.ws.rs.BadRequestException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps live token codes in Keycloak's single use object store (the replicated Infinispan
+ * {@code actionTokens} cache) keyed by realm, phone number and {@link TokenCodeType}, so the send and
+ * validate paths never touch the database. Sends per number and source address are counted in the time
+ * buckets of a write through {@link ClusterRateLimiter}. The {@code PHONE_MESSAGE_TOKEN_CODE} table is only
+ * written when the {@code audit} option is on, asynchronously and after the request transaction committed.
+ */
+public class InfinispanPhoneVerificationCodeProvider extends DefaultPhoneVerificationCodeProvider {
+
+    private static final Logger logger = Logger.getLogger(InfinispanPhoneVerificationCodeProvider.class);
+
+    static final String AUDIT_EXECUTOR = "phone-token-code-audit";
+
+    private static final String CODE_KEY = "phone-token-code::%s::%s::%s";
+    private static final String CODE_ID_KEY = "phone-token-code-id::%s";
+    private static final String TARGET_KEY = "phone-token-target::%s::%s::%s";
+    private static final String SOURCE_KEY = "phone-token-source::%s::%s::%s";
+
+    private static final String NOTE_ID = "id";
+    private static final String NOTE_KEY = "key";
+    private static final String NOTE_PHONE_NUMBER = "phoneNumber";
+    private static final String NOTE_CODE = "code";
+    private static final String NOTE_TYPE = "type";
+    private static final String NOTE_CREATED_AT = "createdAt";
+    private static final String NOTE_EXPIRES_AT = "expiresAt";
+    private static final String NOTE_CONFIRMED = "confirmed";
+    private static final String NOTE_BY_WHOM = "byWhom";
+
+    private final boolean audit;
+    private final ClusterRateLimiter sendHistory;
+    // ids of the codes this request put, the store writes them when the request commits
+    private final Set<String> persisted = new HashSet<>();
+
+    InfinispanPhoneVerificationCodeProvider(KeycloakSession session, boolean audit, int maxAttempts,
+                                            ClusterRateLimiter sendHistory) {
+        super(session, maxAttempts);
+        this.audit = audit;
+        this.sendHistory = sendHistory;
+    }
+
+    private SingleUseObjectProvider getStore() {
+        return session.singleUseObjects();
+    }
+
+    private String codeKey(String phoneNumber, TokenCodeType tokenCodeType) {
+        return String.format(CODE_KEY, getRealm().getId(), tokenCodeType.name(), phoneNumber);
+    }
+
+    @Override
+    public TokenCodeRepresentation ongoingProcess(String phoneNumber, TokenCodeType tokenCodeType) {
+        String resultPhoneNumber;
+        try {
+            resultPhoneNumber = Utils.canonicalizePhoneNumber(session, phoneNumber);
+        } catch (PhoneNumberInvalidException e) {
+            logger.warn("Invalid number: " + phoneNumber);
+            throw new BadRequestException("Phone number is invalid");
+        }
+
+        Map<String, String> notes = getStore().get(codeKey(resultPhoneNumber, tokenCodeType));
+        if (notes == null || Long.parseLong(notes.get(NOTE_EXPIRES_AT)) < System.currentTimeMillis() ||
+            Boolean.parseBoolean(notes.get(NOTE_CONFIRMED))) {
+            return null;
+        }
+
+        TokenCodeRepresentation tokenCodeRepresentation = new TokenCodeRepresentation();
+
+        tokenCodeRepresentation.setId(notes.get(NOTE_ID));
+        tokenCodeRepresentation.setPhoneNumber(notes.get(NOTE_PHONE_NUMBER));
+        tokenCodeRepresentation.setCode(notes.get(NOTE_CODE));
+        tokenCodeRepresentation.setType(notes.get(NOTE_TYPE));
+        tokenCodeRepresentation.setCreatedAt(new Date(Long.parseLong(notes.get(NOTE_CREATED_AT))));
+        tokenCodeRepresentation.setExpiresAt(new Date(Long.parseLong(notes.get(NOTE_EXPIRES_AT))));
+        tokenCodeRepresentation.setConfirmed(Boolean.parseBoolean(notes.get(NOTE_CONFIRMED)));
+
+        return tokenCodeRepresentation;
+    }
+
+    @Override
+    public boolean isAbusing(String phoneNumber, TokenCodeType tokenCodeType,
+                             String sourceAddr, int sourceHourMaximum, int targetHourMaximum) {
+
+        if (targetHourMaximum > 0 &&
+            sendHistory.count(String.format(TARGET_KEY, getRealm().getId(), tokenCodeType.name(), phoneNumber)) > targetHourMaximum)
+            return true;
+
+        return sourceHourMaximum > 0 &&
+            sendHistory.count(String.format(SOURCE_KEY, getRealm().getId(), tokenCodeType.name(), sourceAddr)) > sourceHourMaximum;
+    }
+
+    @Override
+    public TokenCodePreSendCheck preSendCheck(String phoneNumber, TokenCodeType tokenCodeType, String sourceAddr) {
+        TokenCodeRepresentation ongoing = ongoingProcess(phoneNumber, tokenCodeType);
+        return new TokenCodePreSendCheck(
+            sendHistory.count(String.format(TARGET_KEY, getRealm().getId(), tokenCodeType.name(), phoneNumber)),
+            sourceAddr == null ? 0 : sendHistory.count(String.format(SOURCE_KEY, getRealm().getId(), tokenCodeType.name(), sourceAddr)),
+            ongoing == null ? null : ongoing.getExpiresAt());
+    }
+
+    @Override
+    public void persistCode(TokenCodeRepresentation tokenCode, TokenCodeType tokenCodeType, int tokenExpiresIn) {
+        TokenCode entity = createEntity(tokenCode, tokenCodeType, tokenExpiresIn);
+        String key = codeKey(entity.getPhoneNumber(), tokenCodeType);
+
+        Map<String, String> notes = new HashMap<>();
+        notes.put(NOTE_ID, entity.getId());
+        notes.put(NOTE_PHONE_NUMBER, entity.getPhoneNumber());
+        notes.put(NOTE_CODE, entity.getCode());
+        notes.put(NOTE_TYPE, tokenCodeType.name());
+        notes.put(NOTE_CREATED_AT, String.valueOf(entity.getCreatedAt().getTime()));
+        notes.put(NOTE_EXPIRES_AT, String.valueOf(entity.getExpiresAt().getTime()));
+        notes.put(NOTE_CONFIRMED, String.valueOf(Boolean.TRUE.equals(entity.getConfirmed())));
+
+        getStore().put(key, tokenExpiresIn, notes);
+        getStore().put(String.format(CODE_ID_KEY, entity.getId()), tokenExpiresIn, Map.of(NOTE_KEY, key));
+        persisted.add(entity.getId());
+        resetAttempts(getRealm(), entity.getPhoneNumber(), tokenCodeType);
+
+        sendHistory.record(String.format(TARGET_KEY, getRealm().getId(), tokenCodeType.name(), entity.getPhoneNumber()));
+        if (entity.getIp() != null) {
+            sendHistory.record(String.format(SOURCE_KEY, getRealm().getId(), tokenCodeType.name(), entity.getIp()));
+        }
+
+        audit(auditSession -> auditSession.getProvider(JpaConnectionProvider.class).getEntityManager().persist(entity));
+    }
+
+    /**
+     * The store writes the code when the request commits but removes at once, so a code this request
+     * persisted would come back after the remove: it is removed again once the request committed, unless
+     * another request replaced it by then.
+     */
+    @Override
+    public void discardCode(TokenCodeRepresentation tokenCode, TokenCodeType tokenCodeType) {
+        super.discardCode(tokenCode, tokenCodeType);
+        String id = tokenCode.getId();
+        if (!persisted.remove(id)) {
+            return;
+        }
+        String key = codeKey(tokenCode.getPhoneNumber(), tokenCodeType);
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                Map<String, String> notes = getStore().get(key);
+                if (notes != null && id.equals(notes.get(NOTE_ID))) {
+                    getStore().remove(key);
+                }
+                getStore().remove(String.format(CODE_ID_KEY, id));
+            }
+
+            @Override
+            protected void rollbackImpl() {
+            }
+        });
+    }
+
+    /**
+     * Only the request whose remove returns the entry wins, a concurrent submission of the same code finds
+     * nothing to remove.
+     */
+    @Override
+    protected boolean consume(RealmModel realm, String phoneNumber, TokenCodeType tokenCodeType, String code, String userId) {
+        String key = String.format(CODE_KEY, realm.getId(), tokenCodeType.name(), phoneNumber);
+        Map<String, String> notes = getStore().get(key);
+        if (notes == null || Long.parseLong(notes.get(NOTE_EXPIRES_AT)) < System.currentTimeMillis() ||
+            Boolean.parseBoolean(notes.get(NOTE_CONFIRMED)) || !notes.get(NOTE_CODE).equals(code)) {
+            return false;
+        }
+        if (getStore().remove(key) == null) {
+            return false;
+        }
+
+        String tokenCodeId = notes.get(NOTE_ID);
+        getStore().remove(String.format(CODE_ID_KEY, tokenCodeId));
+        audit(auditSession -> {
+            TokenCode entity = auditSession.getProvider(JpaConnectionProvider.class).getEntityManager()
+                .find(TokenCode.class, tokenCodeId);
+            if (entity != null) {
+                entity.setConfirmed(true);
+                entity.setByWhom(userId);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * The store's remove is not undone by the rollback of the request, the code goes at once.
+     */
+    @Override
+    protected void lockOut(RealmModel realm, String phoneNumber, TokenCodeType tokenCodeType) {
+        invalidateCode(realm, phoneNumber, tokenCodeType);
+    }
+
+    @Override
+    protected void invalidateCode(RealmModel realm, String phoneNumber, TokenCodeType tokenCodeType) {
+        Map<String, String> notes = getStore().remove(String.format(CODE_KEY, realm.getId(), tokenCodeType.name(), phoneNumber));
+        if (notes != null) {
+            getStore().remove(String.format(CODE_ID_KEY, notes.get(NOTE_ID)));
+        }
+    }
+
+    @Override
+    public void validateProcess(String tokenCodeId, UserModel user) {
+        Map<String, String> index = getStore().get(String.format(CODE_ID_KEY, tokenCodeId));
+        if (index != null) {
+            String key = index.get(NOTE_KEY);
+            Map<String, String> notes = getStore().get(key);
+            if (notes != null) {
+                long remaining = TimeUnit.MILLISECONDS.toSeconds(
+                    Long.parseLong(notes.get(NOTE_EXPIRES_AT)) - System.currentTimeMillis());
+                if (remaining > 0) {
+                    Map<String, String> confirmed = new HashMap<>(notes);
+                    confirmed.put(NOTE_CONFIRMED, Boolean.TRUE.toString());
+                    confirmed.put(NOTE_BY_WHOM, user.getId());
+                    getStore().put(key, remaining, confirmed);
+                }
+            }
+        }
+
+        String userId = user.getId();
+        audit(auditSession -> {
+            TokenCode entity = auditSession.getProvider(JpaConnectionProvider.class).getEntityManager()
+                .find(TokenCode.class, tokenCodeId);
+            if (entity != null) {
+                entity.setConfirmed(true);
+                entity.setByWhom(userId);
+            }
+        });
+    }
+
+    /**
+     * Writes to the audit table once the current transaction committed, on a separate executor and
+     * session, so the database is off the request path.
+     */
+    private void audit(KeycloakSessionTask task) {
+        if (!audit) {
+            return;
+        }
+        KeycloakSessionFactory sessionFactory = session.getKeycloakSessionFactory();
+        ExecutorsProvider executors = session.getProvider(ExecutorsProvider.class);
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                executors.getExecutor(AUDIT_EXECUTOR).execute(() -> {
+                    try {
+                        KeycloakModelUtils.runJobInTransaction(sessionFactory, task);
+                    } catch (RuntimeException e) {
+                        logger.warn("Failed to write token code audit record", e);
+                    }
+                });
+            }
+
+            @Override
+            protected void rollbackImpl() {
+            }
+        });
+    }
+}
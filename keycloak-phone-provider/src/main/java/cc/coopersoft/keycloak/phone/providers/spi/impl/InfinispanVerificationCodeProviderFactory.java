@@ -0,0 +1,49 @@
+package cc.coopersoft.keycloak.phone.providers.spi.impl;
+
+import cc.coopersoft.keycloak.phone.providers.ratelimit.ClusterRateLimiter;
+import cc.coopersoft.keycloak.phone.providers.spi.PhoneVerificationCodeProvider;
+import org.keycloak.Config;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.models.utils.PostMigrationEvent;
+
+/**
+ * Audit rows are purged with the options of the default store, along with the deliveries and outbox rows
+ * that are written whatever the store.
+ */
+public class InfinispanVerificationCodeProviderFactory extends DefaultVerificationCodeProviderFactory {
+
+    private boolean audit;
+    // written through, the send counts are read right after by the limit check of the next send
+    private final ClusterRateLimiter sendHistory = new ClusterRateLimiter(0);
+
+    @Override
+    public PhoneVerificationCodeProvider create(KeycloakSession session) {
+        return new InfinispanPhoneVerificationCodeProvider(session, audit, getMaxAttempts(), sendHistory);
+    }
+
+    @Override
+    public void init(Config.Scope scope) {
+        super.init(scope);
+        this.audit = scope.getBoolean("audit", false);
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory keycloakSessionFactory) {
+        keycloakSessionFactory.register(event -> {
+            if (event instanceof PostMigrationEvent) {
+                KeycloakModelUtils.runJobInTransaction(keycloakSessionFactory, session ->
+                    sendHistory.setCache(session.getProvider(InfinispanConnectionProvider.class)
+                        .getCache(InfinispanConnectionProvider.WORK_CACHE_NAME)));
+            }
+        });
+        super.postInit(keycloakSessionFactory);
+    }
+
+    @Override
+    public String getId() {
+        return "infinispan";
+    }
+}
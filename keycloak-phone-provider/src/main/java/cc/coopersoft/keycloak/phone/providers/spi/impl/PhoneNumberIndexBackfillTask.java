@@ -0,0 +1,108 @@
+package cc.coopersoft.keycloak.phone.providers.spi.impl;
+
+import cc.coopersoft.keycloak.phone.Utils;
+import cc.coopersoft.keycloak.phone.providers.policy.PhonePolicy;
+import org.jboss.logging.Logger;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.timer.ScheduledTask;
+
+import jakarta.persistence.EntityManager;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Fills {@code PHONE_NUMBER_INDEX} from the {@code phoneNumber} user attributes of every realm that is not
+ * indexed yet, in batches of short transactions, then flags the realm so lookups switch to the index.
+ * Realms already flagged cost one attribute read per run.
+ */
+public class PhoneNumberIndexBackfillTask implements ScheduledTask {
+
+    private static final Logger logger = Logger.getLogger(PhoneNumberIndexBackfillTask.class);
+
+    public static final String TASK_NAME = "PhoneNumberIndexBackfill";
+
+    private static final String PHONE_NUMBERS_QUERY = "SELECT a.user.id, a.value FROM UserAttributeEntity a " +
+        "WHERE a.name = 'phoneNumber' AND a.user.realmId = :realmId AND a.user.id > :after ORDER BY a.user.id";
+    private static final String VERIFIED_QUERY = "SELECT a.user.id FROM UserAttributeEntity a " +
+        "WHERE a.name = 'phoneNumberVerified' AND a.value = 'true' AND a.user.id IN :ids";
+
+    private final DefaultPhoneProviderFactory factory;
+    private final int batchSize;
+
+    PhoneNumberIndexBackfillTask(DefaultPhoneProviderFactory factory, int batchSize) {
+        this.factory = factory;
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public String getTaskName() {
+        return TASK_NAME;
+    }
+
+    @Override
+    public void run(KeycloakSession session) {
+        KeycloakSessionFactory sessionFactory = session.getKeycloakSessionFactory();
+        List<String> realmIds = session.realms().getRealmsStream()
+            .filter(realm -> !Boolean.parseBoolean(realm.getAttribute(Utils.PHONE_NUMBER_INDEXED_ATTRIBUTE)))
+            .map(RealmModel::getId)
+            .toList();
+
+        for (String realmId : realmIds) {
+            long indexed = 0;
+            String after = "";
+            while (after != null) {
+                String from = after;
+                String[] last = new String[1];
+                indexed += KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory,
+                    batchSession -> backfillBatch(batchSession, realmId, from, last));
+                after = last[0];
+            }
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, flagSession -> {
+                RealmModel realm = flagSession.realms().getRealm(realmId);
+                if (realm != null) {
+                    realm.setAttribute(Utils.PHONE_NUMBER_INDEXED_ATTRIBUTE, Boolean.TRUE.toString());
+                }
+            });
+            logger.infof("Indexed %d phone numbers of realm %s", indexed, realmId);
+        }
+    }
+
+    /**
+     * @param last receives the last user id of the batch, or null when this was the final batch
+     */
+    private int backfillBatch(KeycloakSession session, String realmId, String after, String[] last) {
+        RealmModel realm = session.realms().getRealm(realmId);
+        if (realm == null) {
+            return 0;
+        }
+        EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+        List<Object[]> rows = em.createQuery(PHONE_NUMBERS_QUERY, Object[].class)
+            .setParameter("realmId", realmId)
+            .setParameter("after", after)
+            .setMaxResults(batchSize)
+            .getResultList();
+        if (rows.isEmpty()) {
+            return 0;
+        }
+
+        List<String> ids = rows.stream().map(row -> (String) row[0]).toList();
+        Set<String> verified = new HashSet<>(em.createQuery(VERIFIED_QUERY, String.class)
+            .setParameter("ids", ids)
+            .getResultList());
+
+        PhonePolicy policy = factory.getPhonePolicy(realm);
+        for (Object[] row : rows) {
+            String userId = (String) row[0];
+            Utils.indexPhoneNumber(em, policy, realmId, userId, (String) row[1], verified.contains(userId));
+        }
+        if (rows.size() == batchSize) {
+            last[0] = ids.get(ids.size() - 1);
+        }
+        return rows.size();
+    }
+}
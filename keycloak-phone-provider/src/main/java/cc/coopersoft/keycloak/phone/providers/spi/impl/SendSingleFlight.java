@@ -0,0 +1,137 @@
+package cc.coopersoft.keycloak.phone.providers.spi.impl;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSession;
+
+import jakarta.ws.rs.ServiceUnavailableException;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Lets one request at a time send a code for a realm, type and number. Requests on the same node wait for
+ * the one in flight and share its result; across the cluster a claim in the single use object store picks
+ * the sender, the others poll until its code is committed. Followers wait a few polls at most and then answer
+ * as for a code already on its way, so they never hold a request thread for as long as a gateway may take.
+ * Claims are released once the sending transaction completed and expire on their own should a node die.
+ */
+class SendSingleFlight {
+
+    private static final Logger logger = Logger.getLogger(SendSingleFlight.class);
+
+    private static final String CLAIM_KEY = "phone-send-claim::%s";
+    private static final long POLL_MILLIS = 100;
+
+    private final Map<String, CompletableFuture<Integer>> inFlight = new ConcurrentHashMap<>();
+    private final long claimLifespanSeconds;
+    private final long waitMillis;
+
+    SendSingleFlight(long claimLifespanSeconds, long waitMillis) {
+        this.claimLifespanSeconds = claimLifespanSeconds;
+        this.waitMillis = waitMillis;
+    }
+
+    /**
+     * @param ongoing   seconds left of a code already sent, if there is one
+     * @param send      sends a code and returns its expires in
+     * @param expiresIn expires in of the code being sent by another request, for followers that stop waiting
+     */
+    int send(KeycloakSession session, String key, Supplier<Optional<Integer>> ongoing, IntSupplier send,
+             int expiresIn) {
+        CompletableFuture<Integer> mine = new CompletableFuture<>();
+        CompletableFuture<Integer> leader = inFlight.putIfAbsent(key, mine);
+        if (leader != null) {
+            logger.debugf("Waiting for the code in flight for %s", key);
+            return await(leader, expiresIn);
+        }
+
+        String claimKey = String.format(CLAIM_KEY, key);
+        boolean claimed = false;
+        try {
+            Optional<Integer> sentElsewhere = claim(session, claimKey, ongoing, expiresIn);
+            if (sentElsewhere.isPresent()) {
+                inFlight.remove(key, mine);
+                mine.complete(sentElsewhere.get());
+                return sentElsewhere.get();
+            }
+            claimed = true;
+
+            int sentExpiresIn = send.getAsInt();
+            session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+                @Override
+                protected void commitImpl() {
+                    release(session, key, claimKey, mine);
+                    mine.complete(sentExpiresIn);
+                }
+
+                @Override
+                protected void rollbackImpl() {
+                    release(session, key, claimKey, mine);
+                    mine.completeExceptionally(new ServiceUnavailableException("Sending the code was rolled back"));
+                }
+            });
+            return sentExpiresIn;
+        } catch (RuntimeException e) {
+            if (claimed) {
+                session.singleUseObjects().remove(claimKey);
+            }
+            inFlight.remove(key, mine);
+            mine.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * @return the expires in of the code another node sent meanwhile, or is still sending once the wait is
+     * over, empty when the claim is ours
+     */
+    private Optional<Integer> claim(KeycloakSession session, String claimKey, Supplier<Optional<Integer>> ongoing,
+                                    int inFlightExpiresIn) {
+        long deadline = System.currentTimeMillis() + waitMillis;
+        while (!session.singleUseObjects().putIfAbsent(claimKey, claimLifespanSeconds)) {
+            Optional<Integer> expiresIn = ongoing.get();
+            if (expiresIn.isPresent()) {
+                return expiresIn;
+            }
+            if (System.currentTimeMillis() >= deadline) {
+                logger.debugf("Code for %s is still being sent by another node", claimKey);
+                return Optional.of(inFlightExpiresIn);
+            }
+            try {
+                Thread.sleep(POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ServiceUnavailableException("Interrupted while waiting for another request");
+            }
+        }
+        return Optional.empty();
+    }
+
+    private void release(KeycloakSession session, String key, String claimKey, CompletableFuture<Integer> mine) {
+        inFlight.remove(key, mine);
+        session.singleUseObjects().remove(claimKey);
+    }
+
+    private int await(CompletableFuture<Integer> leader, int inFlightExpiresIn) {
+        try {
+            return leader.get(waitMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new ServiceUnavailableException("Internal server error");
+        } catch (TimeoutException e) {
+            return inFlightExpiresIn;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServiceUnavailableException("Interrupted while waiting for another request");
+        }
+    }
+}
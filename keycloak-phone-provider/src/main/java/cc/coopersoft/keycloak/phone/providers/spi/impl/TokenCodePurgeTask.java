@@ -0,0 +1,137 @@
+package cc.coopersoft.keycloak.phone.providers.spi.impl;
+
+import cc.coopersoft.keycloak.phone.providers.jpa.MessageOutbox;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.jboss.logging.Logger;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.timer.ScheduledTask;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.TemporalType;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+/**
+ * Deletes {@code PHONE_MESSAGE_TOKEN_CODE} rows older than the retention window, then the
+ * {@code PHONE_MESSAGE_DELIVERY} rows sent before it and the {@code PHONE_MESSAGE_OUTBOX} rows of that age
+ * that failed or expired, which the outbox keeps for inspection instead of deleting them. Every batch runs
+ * in its own short transaction so row locks are never held for long; a run stops after {@code maxBatches}
+ * batches of a table and the rest is picked up by the next run.
+ */
+public class TokenCodePurgeTask implements ScheduledTask {
+
+    private static final Logger logger = Logger.getLogger(TokenCodePurgeTask.class);
+
+    public static final String TASK_NAME = "PhoneTokenCodePurge";
+
+    private final long retentionSeconds;
+    private final int batchSize;
+    private final int maxBatches;
+    private final boolean archive;
+
+    private final Counter removedCodes = removedCounter("token_codes");
+    private final Counter removedDeliveries = removedCounter("deliveries");
+    private final Counter removedOutbox = removedCounter("outbox");
+    private final Timer durationTimer = Metrics.timer("keycloak.phone.token.code.purge.duration");
+
+    TokenCodePurgeTask(long retentionSeconds, int batchSize, int maxBatches, boolean archive) {
+        this.retentionSeconds = retentionSeconds;
+        this.batchSize = batchSize;
+        this.maxBatches = maxBatches;
+        this.archive = archive;
+    }
+
+    private static Counter removedCounter(String table) {
+        return Metrics.counter("keycloak.phone.token.code.purge.removed", "table", table);
+    }
+
+    @Override
+    public String getTaskName() {
+        return TASK_NAME;
+    }
+
+    @Override
+    public void run(KeycloakSession session) {
+        long start = System.nanoTime();
+        Date before = new Date(System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(retentionSeconds));
+
+        long removed = purge(session, before, this::purgeBatch);
+        long deliveries = purge(session, before, this::purgeDeliveryBatch);
+        long outbox = purge(session, before, this::purgeOutboxBatch);
+
+        long duration = System.nanoTime() - start;
+        removedCodes.increment(removed);
+        removedDeliveries.increment(deliveries);
+        removedOutbox.increment(outbox);
+        durationTimer.record(duration, TimeUnit.NANOSECONDS);
+        logger.infof("Purged %d phone token codes, %d deliveries and %d failed or expired outbox messages " +
+                "created before %s in %d ms", removed, deliveries, outbox, before, TimeUnit.NANOSECONDS.toMillis(duration));
+    }
+
+    private long purge(KeycloakSession session, Date before, BiFunction<EntityManager, Date, Integer> purgeBatch) {
+        long removed = 0;
+        for (int batch = 0; batch < maxBatches; batch++) {
+            int deleted = KeycloakModelUtils.runJobInTransactionWithResult(session.getKeycloakSessionFactory(),
+                batchSession -> purgeBatch.apply(batchSession.getProvider(JpaConnectionProvider.class).getEntityManager(), before));
+            removed += deleted;
+            if (deleted < batchSize) {
+                break;
+            }
+        }
+        return removed;
+    }
+
+    private int purgeBatch(EntityManager em, Date before) {
+        List<String> ids = em.createNamedQuery("tokenCodesCreatedBefore", String.class)
+            .setParameter("date", before, TemporalType.TIMESTAMP)
+            .setMaxResults(batchSize)
+            .getResultList();
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        if (archive) {
+            em.createNamedQuery("archiveConfirmedTokenCodes")
+                .setParameter("ids", ids)
+                .executeUpdate();
+        }
+        return em.createNamedQuery("deleteTokenCodes")
+            .setParameter("ids", ids)
+            .executeUpdate();
+    }
+
+    /**
+     * By their own age, the store of the codes may keep no rows to go by.
+     */
+    private int purgeDeliveryBatch(EntityManager em, Date before) {
+        List<String> ids = em.createNamedQuery("deliveriesSentBefore", String.class)
+            .setParameter("date", before, TemporalType.TIMESTAMP)
+            .setMaxResults(batchSize)
+            .getResultList();
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        return em.createNamedQuery("deleteDeliveries")
+            .setParameter("ids", ids)
+            .executeUpdate();
+    }
+
+    private int purgeOutboxBatch(EntityManager em, Date before) {
+        List<String> ids = em.createNamedQuery("outboxMessagesEndedBefore", String.class)
+            .setParameter("statuses", List.of(MessageOutbox.Status.FAILED, MessageOutbox.Status.EXPIRED))
+            .setParameter("date", before, TemporalType.TIMESTAMP)
+            .setMaxResults(batchSize)
+            .getResultList();
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        return em.createNamedQuery("deleteOutboxMessages")
+            .setParameter("ids", ids)
+            .executeUpdate();
+    }
+}
@@ -0,0 +1,135 @@
+package cc.coopersoft.keycloak.phone.providers.batch;
+
+import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
+import cc.coopersoft.keycloak.phone.providers.representations.OutgoingMessage;
+import cc.coopersoft.keycloak.phone.providers.representations.SendResult;
+import cc.coopersoft.keycloak.phone.providers.spi.MessageSenderService;
+import cc.coopersoft.keycloak.phone.test.TestSessions;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class MessageBatcherTest {
+
+    private static final String SERVICE = "batching";
+
+    private final RealmModel realm = TestSessions.realm("realm-id", "test");
+    private final BlockingQueue<List<OutgoingMessage>> batches = new LinkedBlockingQueue<>();
+    private MessageBatcher batcher;
+
+    /**
+     * Records every batch and accepts its messages.
+     */
+    private class RecordingSender implements MessageSenderService {
+
+        @Override
+        public void sendSmsMessage(TokenCodeType type, String phoneNumber, String code, int expires, String kind) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<CompletionStage<SendResult>> sendBatch(List<OutgoingMessage> messages) {
+            batches.add(messages);
+            return messages.stream()
+                .<CompletionStage<SendResult>>map(m -> CompletableFuture.completedFuture(
+                    new SendResult(SendResult.Status.ACCEPTED, m.getPhoneNumber(), null)))
+                .toList();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @AfterEach
+    void close() {
+        batcher.close();
+    }
+
+    private MessageBatcher batcher(long windowMillis, int maxSize) {
+        KeycloakSessionFactory sessionFactory = mock(KeycloakSessionFactory.class);
+        when(sessionFactory.create()).thenAnswer(invocation -> {
+            KeycloakSession session = mock(KeycloakSession.class);
+            RealmProvider realms = mock(RealmProvider.class);
+            when(realms.getRealm("realm-id")).thenReturn(realm);
+            when(session.realms()).thenReturn(realms);
+            when(session.getContext()).thenReturn(mock(KeycloakContext.class));
+            when(session.getTransactionManager()).thenReturn(mock(KeycloakTransactionManager.class));
+            when(session.getProvider(MessageSenderService.class, SERVICE)).thenReturn(new RecordingSender());
+            return session;
+        });
+        batcher = new MessageBatcher(windowMillis, maxSize);
+        batcher.start(sessionFactory);
+        return batcher;
+    }
+
+    private CompletableFuture<SendResult> submit(String phoneNumber) {
+        KeycloakContext context = mock(KeycloakContext.class);
+        when(context.getRealm()).thenReturn(realm);
+        KeycloakSession session = mock(KeycloakSession.class);
+        when(session.getContext()).thenReturn(context);
+        return batcher.submit(session, SERVICE, new OutgoingMessage(TokenCodeType.OTP, phoneNumber, "123456", 300, null))
+            .toCompletableFuture();
+    }
+
+    private static List<String> phoneNumbers(List<OutgoingMessage> batch) {
+        return batch.stream().map(OutgoingMessage::getPhoneNumber).toList();
+    }
+
+    @Test
+    void fullBatchGoesOutWithoutWaitingForItsWindow() throws Exception {
+        batcher(60_000, 2);
+
+        CompletableFuture<SendResult> first = submit("+12025550101");
+        CompletableFuture<SendResult> second = submit("+12025550102");
+
+        List<OutgoingMessage> batch = batches.poll(5, TimeUnit.SECONDS);
+        assertEquals(List.of("+12025550101", "+12025550102"), phoneNumbers(batch));
+        assertEquals("+12025550101", first.get(5, TimeUnit.SECONDS).getProviderMessageId());
+        assertEquals("+12025550102", second.get(5, TimeUnit.SECONDS).getProviderMessageId());
+    }
+
+    @Test
+    void batchGoesOutOnceItsWindowEnded() throws Exception {
+        batcher(100, 10);
+
+        CompletableFuture<SendResult> result = submit("+12025550101");
+
+        assertNull(batches.poll(50, TimeUnit.MILLISECONDS));
+        assertFalse(result.isDone());
+        List<OutgoingMessage> batch = batches.poll(5, TimeUnit.SECONDS);
+        assertEquals(List.of("+12025550101"), phoneNumbers(batch));
+        assertEquals("+12025550101", result.get(5, TimeUnit.SECONDS).getProviderMessageId());
+    }
+
+    @Test
+    void fullBatchIsNotSentAgainWhenItsWindowEnds() throws Exception {
+        batcher(100, 2);
+
+        submit("+12025550101");
+        submit("+12025550102");
+        submit("+12025550103");
+
+        assertEquals(2, batches.poll(5, TimeUnit.SECONDS).size());
+        assertEquals(List.of("+12025550103"), phoneNumbers(batches.poll(5, TimeUnit.SECONDS)));
+        assertNull(batches.poll(200, TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,101 @@
+package cc.coopersoft.keycloak.phone.providers.cache;
+
+import cc.coopersoft.keycloak.phone.Utils;
+import cc.coopersoft.keycloak.phone.providers.exception.PhoneNumberInvalidException;
+import cc.coopersoft.keycloak.phone.providers.policy.PhonePolicy;
+import cc.coopersoft.keycloak.phone.providers.spi.PhoneProvider;
+import cc.coopersoft.keycloak.phone.test.TestSessions;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a {@link Utils#canonicalizePhoneNumber(KeycloakSession, String)} call without and with the cache,
+ * for a realm that validates numbers against the numbering plan and a regex. Inputs are drawn from a pool
+ * of differently formatted numbers, a few of them invalid; the cache is sized so the pool fits, as the
+ * numbers of the logins in flight would. Both sides pay the same proxied session lookup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PhoneNumberCanonicalCacheBenchmark {
+
+    private static final int NUMBERS = 1000;
+    private static final String[] FORMATS = {"(650) 253-%04d", "650-253-%04d", "+1 650 253 %04d", "6502530%03d"};
+
+    @Param({"none", "lru"})
+    public String cache;
+
+    private KeycloakSession session;
+    private String[] numbers;
+
+    @Setup
+    public void setup() {
+        RealmModel realm = TestSessions.realm("realm-id", "test");
+        PhonePolicy policy = new PhonePolicy(realm, false, true, false, 3600, Optional.of("E164"),
+            Optional.of("US"), Optional.of("^\\+1\\d{10}$"));
+        PhoneNumberCanonicalCache canonicalCache = cache.equals("lru")
+            ? new PhoneNumberCanonicalCache(10000, 600, 16) : null;
+        // plain proxies, Mockito's stubbing lookup is synchronized and would be what is measured
+        PhoneProvider phoneProvider = proxy(PhoneProvider.class, (proxy, method, args) -> switch (method.getName()) {
+            case "phonePolicy" -> policy;
+            case "canonicalCache" -> canonicalCache;
+            default -> throw new UnsupportedOperationException(method.getName());
+        });
+        session = proxy(KeycloakSession.class, (proxy, method, args) -> {
+            if (method.getName().equals("getProvider") && args.length == 1 && args[0] == PhoneProvider.class) {
+                return phoneProvider;
+            }
+            throw new UnsupportedOperationException(method.getName());
+        });
+
+        numbers = new String[NUMBERS];
+        for (int i = 0; i < NUMBERS; i++) {
+            // every 50th number is too short to be valid
+            numbers[i] = i % 50 == 0 ? "253-" + i : String.format(FORMATS[i % FORMATS.length], i % 1000);
+        }
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, handler));
+    }
+
+    private Object canonicalize() {
+        try {
+            return Utils.canonicalizePhoneNumber(session, numbers[ThreadLocalRandom.current().nextInt(NUMBERS)]);
+        } catch (PhoneNumberInvalidException e) {
+            return e.getErrorType();
+        }
+    }
+
+    @Benchmark
+    public Object singleThread() {
+        return canonicalize();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Object eightThreads() {
+        return canonicalize();
+    }
+}
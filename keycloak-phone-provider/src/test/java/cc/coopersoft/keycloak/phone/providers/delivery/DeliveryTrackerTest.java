@@ -0,0 +1,65 @@
+package cc.coopersoft.keycloak.phone.providers.delivery;
+
+import cc.coopersoft.keycloak.phone.providers.jpa.MessageDelivery;
+import cc.coopersoft.keycloak.phone.providers.representations.DeliveryReport;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DeliveryTrackerTest {
+
+    private static MessageDelivery row(String phoneNumber) {
+        MessageDelivery row = new MessageDelivery();
+        row.setPhoneNumber(phoneNumber);
+        return row;
+    }
+
+    private static DeliveryReport report(String messageId) {
+        return new DeliveryReport(messageId, null, DeliveryReport.Status.DELIVERED, null, null);
+    }
+
+    @Test
+    void reportWithoutNumberTakesTheFirstRow() {
+        MessageDelivery first = row("+12025550123");
+        List<MessageDelivery> rows = new ArrayList<>(List.of(first, row("+12025550124")));
+
+        assertSame(first, DeliveryTracker.take(rows, null));
+        assertEquals(1, rows.size());
+    }
+
+    @Test
+    void rowOfABatchIsMatchedByNumberWithoutCountryCodeOrPlus() {
+        MessageDelivery second = row("+12025550124");
+        List<MessageDelivery> rows = new ArrayList<>(List.of(row("+12025550123"), second));
+
+        assertSame(second, DeliveryTracker.take(rows, "2025550124"));
+        assertSame(rows.get(0), DeliveryTracker.take(rows, "12025550123"));
+        assertTrue(rows.isEmpty());
+    }
+
+    @Test
+    void reportOfAnotherNumberTakesNothing() {
+        List<MessageDelivery> rows = new ArrayList<>(List.of(row("+12025550123")));
+
+        assertNull(DeliveryTracker.take(rows, "+12025550199"));
+        assertNull(DeliveryTracker.take(rows, ""));
+        assertNull(DeliveryTracker.take(null, "+12025550123"));
+        assertEquals(1, rows.size());
+    }
+
+    @Test
+    void reportsAreQueuedAllOrNone() {
+        DeliveryTracker tracker = new DeliveryTracker(10, 1000, 2);
+
+        assertFalse(tracker.submit("twilio", List.of(report("SM1"), report("SM2"), report("SM3"))));
+        assertTrue(tracker.submit("twilio", List.of(report("SM1"), report("SM2"))));
+        assertFalse(tracker.submit("twilio", List.of(report("SM3"))));
+    }
+}
@@ -0,0 +1,155 @@
+package cc.coopersoft.keycloak.phone.providers.events;
+
+import cc.coopersoft.keycloak.phone.Utils;
+import cc.coopersoft.keycloak.phone.test.InMemorySingleUseObjectProvider;
+import cc.coopersoft.keycloak.phone.test.TestDatabase;
+import cc.coopersoft.keycloak.phone.test.TestSessions;
+import jakarta.persistence.EntityManager;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventType;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.OperationType;
+import org.keycloak.events.admin.ResourceType;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * The listener runs while the user change it reports is not committed yet, as Keycloak calls it.
+ */
+class PhoneNumberIndexEventListenerProviderTest {
+
+    private static final String USER_ID = "user-id";
+    private static final String PHONE = "+12025550123";
+    private static final String NEW_PHONE = "+12025550124";
+
+    private static TestDatabase database;
+
+    private final RealmModel realm = TestSessions.realm("realm-id", "test");
+    // phone numbers of the users as other transactions see them
+    private final Map<String, String> committed = new ConcurrentHashMap<>();
+    private EntityManager em;
+    private KeycloakSession session;
+
+    @BeforeAll
+    static void start() throws Exception {
+        database = new TestDatabase().migrate();
+    }
+
+    @AfterAll
+    static void stop() throws Exception {
+        database.close();
+    }
+
+    @BeforeEach
+    void open() {
+        when(realm.getAttribute(Utils.PHONE_NUMBER_INDEXED_ATTRIBUTE)).thenReturn("true");
+        UserProvider users = mock(UserProvider.class);
+        when(users.getUserById(any(RealmModel.class), anyString())).thenAnswer(invocation -> {
+            String id = invocation.getArgument(1);
+            return committed.containsKey(id) ? user(id) : null;
+        });
+        em = database.entityManagerFactory().createEntityManager();
+        session = TestSessions.session(realm, em, new InMemorySingleUseObjectProvider(), null, users);
+    }
+
+    @AfterEach
+    void clear() {
+        TestDatabase.inTransaction(em, e -> {
+            e.createQuery("DELETE FROM PhoneNumberIndex").executeUpdate();
+        });
+        em.close();
+    }
+
+    private UserModel user(String id) {
+        UserModel user = mock(UserModel.class);
+        when(user.getId()).thenReturn(id);
+        when(user.getFirstAttribute("phoneNumber")).thenAnswer(invocation -> committed.get(id));
+        return user;
+    }
+
+    /**
+     * Sets the user's number in the request transaction, visible to others once it committed.
+     */
+    private void savePhoneNumber(String phoneNumber) {
+        session.getTransactionManager().enlist(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                committed.put(USER_ID, phoneNumber);
+            }
+
+            @Override
+            protected void rollbackImpl() {
+            }
+        });
+    }
+
+    private void register(boolean commit) {
+        session.getTransactionManager().begin();
+        savePhoneNumber(PHONE);
+        Event event = new Event();
+        event.setType(EventType.REGISTER);
+        event.setRealmId(realm.getId());
+        event.setUserId(USER_ID);
+        new PhoneNumberIndexEventListenerProvider(session).onEvent(event);
+        if (commit) {
+            session.getTransactionManager().commit();
+        } else {
+            session.getTransactionManager().rollback();
+        }
+    }
+
+    private List<String> findUserIds(String phoneNumber) {
+        return Utils.findUsersByPhone(session, realm, phoneNumber).map(UserModel::getId).toList();
+    }
+
+    @Test
+    void registeredUserIsFoundByPhone() {
+        register(true);
+
+        assertEquals(List.of(USER_ID), findUserIds(PHONE));
+    }
+
+    @Test
+    void rolledBackRegistrationIsNotIndexed() {
+        register(false);
+
+        assertTrue(findUserIds(PHONE).isEmpty());
+    }
+
+    @Test
+    void adminUpdateIndexesTheNewNumber() {
+        register(true);
+
+        session.getTransactionManager().begin();
+        savePhoneNumber(NEW_PHONE);
+        AdminEvent event = new AdminEvent();
+        event.setRealmId(realm.getId());
+        event.setResourceType(ResourceType.USER);
+        event.setOperationType(OperationType.UPDATE);
+        event.setResourcePath("users/" + USER_ID);
+        new PhoneNumberIndexEventListenerProvider(session).onEvent(event, false);
+        session.getTransactionManager().commit();
+
+        assertTrue(findUserIds(PHONE).isEmpty());
+        assertEquals(List.of(USER_ID), findUserIds(NEW_PHONE));
+    }
+}
@@ -0,0 +1,192 @@
+package cc.coopersoft.keycloak.phone.providers.jpa;
+
+import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
+import cc.coopersoft.keycloak.phone.test.TestDatabase;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * The shapes the pre-send lookups can take on schema v2: the three queries of {@code ongoingProcess} and
+ * {@code isAbusing}, a single aggregate ORing target and source, the target and source aggregates as two
+ * queries, and the same two in one UNION ALL, as {@code preSendCheck} sends them. Seeded like {@link TokenCodeQueryBenchmark}; the plan of every query is printed first.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PreSendCheckBenchmark {
+
+    private static final String TABLE = " FROM PHONE_MESSAGE_TOKEN_CODE ";
+
+    private static final String ONGOING = "SELECT ID, CODE, EXPIRES_AT" + TABLE +
+        "WHERE REALM_ID = ? AND PHONE_NUMBER = ? AND EXPIRES_AT >= ? AND TYPE_CODE = ? AND CONFIRMED = FALSE";
+    private static final String TARGET_COUNT = "SELECT COUNT(*)" + TABLE +
+        "WHERE REALM_ID = ? AND PHONE_NUMBER = ? AND CREATED_AT >= ? AND TYPE_CODE = ?";
+    private static final String SOURCE_COUNT = "SELECT COUNT(*)" + TABLE +
+        "WHERE REALM_ID = ? AND IP = ? AND CREATED_AT >= ? AND TYPE_CODE = ?";
+    private static final String COMBINED = "SELECT " +
+        "SUM(CASE WHEN PHONE_NUMBER = ? AND CREATED_AT >= ? THEN 1 ELSE 0 END), " +
+        "SUM(CASE WHEN IP = ? AND CREATED_AT >= ? THEN 1 ELSE 0 END), " +
+        "MAX(CASE WHEN PHONE_NUMBER = ? AND EXPIRES_AT >= ? AND CONFIRMED = FALSE THEN EXPIRES_AT END)" + TABLE +
+        "WHERE REALM_ID = ? AND TYPE_CODE = ? " +
+        "AND ((PHONE_NUMBER = ? AND (CREATED_AT >= ? OR EXPIRES_AT >= ?)) OR (IP = ? AND CREATED_AT >= ?))";
+    private static final String TARGET = "SELECT " +
+        "SUM(CASE WHEN CREATED_AT >= ? THEN 1 ELSE 0 END), " +
+        "MAX(CASE WHEN EXPIRES_AT >= ? AND CONFIRMED = FALSE THEN EXPIRES_AT END)" + TABLE +
+        "WHERE REALM_ID = ? AND PHONE_NUMBER = ? AND TYPE_CODE = ? AND (CREATED_AT >= ? OR EXPIRES_AT >= ?)";
+    private static final String UNION = "SELECT 0, " +
+        "SUM(CASE WHEN CREATED_AT >= ? THEN 1 ELSE 0 END), " +
+        "MAX(CASE WHEN EXPIRES_AT >= ? AND CONFIRMED = FALSE THEN EXPIRES_AT END)" + TABLE +
+        "WHERE REALM_ID = ? AND PHONE_NUMBER = ? AND TYPE_CODE = ? AND (CREATED_AT >= ? OR EXPIRES_AT >= ?) " +
+        "UNION ALL SELECT 1, COUNT(*), NULL" + TABLE +
+        "WHERE REALM_ID = ? AND IP = ? AND TYPE_CODE = ? AND CREATED_AT >= ?";
+
+    private Path directory;
+    private TestDatabase database;
+    private Connection connection;
+    private int phones;
+    private int addresses;
+
+    private PreparedStatement ongoing;
+    private PreparedStatement targetCount;
+    private PreparedStatement sourceCount;
+    private PreparedStatement combined;
+    private PreparedStatement target;
+    private PreparedStatement union;
+
+    @Setup
+    public void setup() throws Exception {
+        int rows = Integer.getInteger("benchmark.rows", 1_000_000);
+        phones = Math.max(1, rows / 5);
+        addresses = Math.max(1, rows / 20);
+
+        directory = Files.createTempDirectory("pre-send-check-benchmark");
+        database = new TestDatabase("jdbc:h2:file:" + directory.resolve("codes")).migrate();
+        connection = database.connection();
+        TokenCodeQueryBenchmark.seed(connection, rows, phones, addresses, true);
+
+        ongoing = prepare(ONGOING, 0);
+        targetCount = prepare(TARGET_COUNT, 0);
+        sourceCount = prepare(SOURCE_COUNT, 0);
+        combined = prepare(COMBINED, 0);
+        target = prepare(TARGET, 0);
+        union = prepare(UNION, 0);
+    }
+
+    private PreparedStatement prepare(String sql, int i) throws SQLException {
+        try (PreparedStatement explain = connection.prepareStatement("EXPLAIN " + sql)) {
+            bind(explain, sql, i);
+            try (ResultSet plan = explain.executeQuery()) {
+                plan.next();
+                System.out.printf("%n%s%n", plan.getString(1));
+            }
+        }
+        return connection.prepareStatement(sql);
+    }
+
+    /**
+     * Binds the parameters of any of the queries, for the i-th number and address.
+     */
+    private void bind(PreparedStatement statement, String sql, int i) throws SQLException {
+        long millis = System.currentTimeMillis();
+        Timestamp now = new Timestamp(millis);
+        Timestamp hourAgo = new Timestamp(millis - TimeUnit.HOURS.toMillis(1));
+        String realm = TokenCodeQueryBenchmark.realm(i % TokenCodeQueryBenchmark.REALMS);
+        String phone = TokenCodeQueryBenchmark.phone(i % phones);
+        String address = TokenCodeQueryBenchmark.address(i % addresses);
+        short type = TokenCodeType.VERIFY.code;
+        Object[] values = switch (sql) {
+            case ONGOING -> new Object[]{realm, phone, now, type};
+            case TARGET_COUNT -> new Object[]{realm, phone, hourAgo, type};
+            case SOURCE_COUNT -> new Object[]{realm, address, hourAgo, type};
+            case COMBINED -> new Object[]{phone, hourAgo, address, hourAgo, phone, now, realm, type,
+                phone, hourAgo, now, address, hourAgo};
+            case TARGET -> new Object[]{hourAgo, now, realm, phone, type, hourAgo, now};
+            case UNION -> new Object[]{hourAgo, now, realm, phone, type, hourAgo, now, realm, address, type, hourAgo};
+            default -> throw new IllegalArgumentException(sql);
+        };
+        for (int p = 0; p < values.length; p++) {
+            statement.setObject(p + 1, values[p]);
+        }
+    }
+
+    private Object query(PreparedStatement statement, String sql, int i) throws SQLException {
+        bind(statement, sql, i);
+        try (ResultSet result = statement.executeQuery()) {
+            return result.next() ? result.getObject(1) : null;
+        }
+    }
+
+    /**
+     * @return the counts of all rows, so each is read
+     */
+    private long queryRows(PreparedStatement statement, String sql, int i) throws SQLException {
+        bind(statement, sql, i);
+        long total = 0;
+        try (ResultSet result = statement.executeQuery()) {
+            while (result.next()) {
+                total += result.getLong(2);
+            }
+        }
+        return total;
+    }
+
+    @Benchmark
+    public void separate(Blackhole blackhole) throws SQLException {
+        int i = ThreadLocalRandom.current().nextInt(phones);
+        blackhole.consume(query(ongoing, ONGOING, i));
+        blackhole.consume(query(targetCount, TARGET_COUNT, i));
+        blackhole.consume(query(sourceCount, SOURCE_COUNT, i));
+    }
+
+    @Benchmark
+    public Object combined() throws SQLException {
+        return query(combined, COMBINED, ThreadLocalRandom.current().nextInt(phones));
+    }
+
+    @Benchmark
+    public void split(Blackhole blackhole) throws SQLException {
+        int i = ThreadLocalRandom.current().nextInt(phones);
+        blackhole.consume(query(target, TARGET, i));
+        blackhole.consume(query(sourceCount, SOURCE_COUNT, i));
+    }
+
+    @Benchmark
+    public long union() throws SQLException {
+        return queryRows(union, UNION, ThreadLocalRandom.current().nextInt(phones));
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException, IOException {
+        connection.close();
+        database.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package cc.coopersoft.keycloak.phone.providers.jpa;
+
+import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
+import cc.coopersoft.keycloak.phone.test.TestDatabase;
+import jakarta.persistence.EntityManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Migrates codes written by the previous release, schema v1, and checks old and new nodes can share the table.
+ */
+class TokenCodeChangelogTest {
+
+    private static final int V1_CHANGESETS = 3;
+
+    private TestDatabase database;
+
+    @BeforeEach
+    void start() throws Exception {
+        database = new TestDatabase().migrate(V1_CHANGESETS);
+    }
+
+    @AfterEach
+    void stop() throws SQLException {
+        database.close();
+    }
+
+    /**
+     * Inserts a code the way a node of the previous release does, by type name only.
+     */
+    private void insertV1(String id, String type) throws SQLException {
+        try (Connection connection = database.connection();
+             PreparedStatement insert = connection.prepareStatement("INSERT INTO PHONE_MESSAGE_TOKEN_CODE " +
+                 "(ID, REALM_ID, PHONE_NUMBER, CODE, TYPE, CREATED_AT, EXPIRES_AT, CONFIRMED) " +
+                 "VALUES (?, 'realm-id', '+12025550123', '123456', ?, ?, ?, FALSE)")) {
+            long now = System.currentTimeMillis();
+            insert.setString(1, id);
+            insert.setString(2, type);
+            insert.setTimestamp(3, new Timestamp(now));
+            insert.setTimestamp(4, new Timestamp(now + 60_000));
+            insert.executeUpdate();
+        }
+    }
+
+    private Short typeCode(String id) throws SQLException {
+        try (Connection connection = database.connection();
+             PreparedStatement select = connection.prepareStatement(
+                 "SELECT TYPE_CODE FROM PHONE_MESSAGE_TOKEN_CODE WHERE ID = ?")) {
+            select.setString(1, id);
+            try (ResultSet result = select.executeQuery()) {
+                assertTrue(result.next(), id);
+                short code = result.getShort(1);
+                return result.wasNull() ? null : code;
+            }
+        }
+    }
+
+    @Test
+    void knownTypesAreBackfilled() throws Exception {
+        for (TokenCodeType type : TokenCodeType.values()) {
+            insertV1(type.name(), type.name());
+        }
+        database.migrate();
+
+        for (TokenCodeType type : TokenCodeType.values()) {
+            assertEquals(type.code, typeCode(type.name()));
+        }
+    }
+
+    @Test
+    void unknownTypesAreKept() throws Exception {
+        insertV1("unknown", "PASSWORDLESS");
+        database.migrate();
+
+        assertNull(typeCode("unknown"));
+    }
+
+    @Test
+    void previousReleaseStillInserts() throws Exception {
+        database.migrate();
+
+        insertV1("old-node", TokenCodeType.OTP.name());
+        assertNull(typeCode("old-node"));
+    }
+
+    @Test
+    void entitiesWriteBothColumns() throws Exception {
+        database.migrate();
+
+        TokenCode tokenCode = new TokenCode();
+        tokenCode.setId("new-node");
+        tokenCode.setRealmId("realm-id");
+        tokenCode.setPhoneNumber("+12025550123");
+        tokenCode.setCode("123456");
+        tokenCode.setType(TokenCodeType.RESET);
+        tokenCode.setLegacyType(TokenCodeType.RESET.name());
+        tokenCode.setCreatedAt(new Date());
+        tokenCode.setExpiresAt(new Date(System.currentTimeMillis() + 60_000));
+        tokenCode.setConfirmed(false);
+        EntityManager em = database.entityManagerFactory().createEntityManager();
+        try {
+            TestDatabase.inTransaction(em, e -> {
+                e.persist(tokenCode);
+            });
+        } finally {
+            em.close();
+        }
+
+        try (Connection connection = database.connection();
+             ResultSet result = connection.createStatement().executeQuery(
+                 "SELECT TYPE, TYPE_CODE FROM PHONE_MESSAGE_TOKEN_CODE WHERE ID = 'new-node'")) {
+            assertTrue(result.next());
+            assertEquals(TokenCodeType.RESET.name(), result.getString(1));
+            assertEquals(TokenCodeType.RESET.code, result.getShort(2));
+        }
+    }
+
+    @Test
+    void rollsBack() throws Exception {
+        insertV1(TokenCodeType.VERIFY.name(), TokenCodeType.VERIFY.name());
+        database.migrate(1).rollback(1);
+
+        try (Connection connection = database.connection();
+             ResultSet columns = connection.getMetaData().getColumns(null, null, "PHONE_MESSAGE_TOKEN_CODE", "TYPE_CODE")) {
+            assertFalse(columns.next());
+        }
+    }
+
+    @Test
+    void phoneNumberColumnsKeepTheirWidth() throws Exception {
+        database.migrate();
+
+        try (Connection connection = database.connection()) {
+            for (String table : new String[]{"PHONE_MESSAGE_TOKEN_CODE", "PHONE_MESSAGE_TOKEN_CODE_ARCHIVE",
+                "PHONE_NUMBER_INDEX", "PHONE_MESSAGE_OUTBOX", "PHONE_MESSAGE_DELIVERY"}) {
+                try (ResultSet columns = connection.getMetaData().getColumns(null, null, table, "PHONE_NUMBER")) {
+                    assertTrue(columns.next(), table);
+                    assertEquals(255, columns.getInt("COLUMN_SIZE"), table);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package cc.coopersoft.keycloak.phone.providers.jpa;
+
+import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
+import cc.coopersoft.keycloak.phone.test.TestDatabase;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * The ongoingProcess and processesSince* lookups of the send path on schema v1, the changesets up to
+ * {@code token-code-6.3} with the single {@code (REALM_ID, PHONE_NUMBER)} index, and on v2 with its covering
+ * indexes. Both are seeded with the same {@code -Dbenchmark.rows} codes of the last 30 days, and the plan of
+ * each query is printed before it is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenCodeQueryBenchmark {
+
+    static final int V1_CHANGESETS = 3;
+    static final int REALMS = 4;
+    static final long SEEDED_DAYS = 30;
+
+    @Param({"v1", "v2"})
+    public String schema;
+
+    private Path directory;
+    private TestDatabase database;
+    private Connection connection;
+    private int phones;
+    private int addresses;
+
+    private PreparedStatement ongoingProcess;
+    private PreparedStatement processesSinceTarget;
+    private PreparedStatement processesSinceSource;
+
+    static String phone(int i) {
+        return String.format("+1202%07d", i);
+    }
+
+    static String address(int i) {
+        return "10." + (i >> 16 & 0xff) + "." + (i >> 8 & 0xff) + "." + (i & 0xff);
+    }
+
+    static String realm(int i) {
+        return "realm-" + i;
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        int rows = Integer.getInteger("benchmark.rows", 1_000_000);
+        phones = Math.max(1, rows / 5);
+        addresses = Math.max(1, rows / 20);
+
+        directory = Files.createTempDirectory("token-code-benchmark");
+        database = new TestDatabase("jdbc:h2:file:" + directory.resolve("codes"));
+        boolean v2 = schema.equals("v2");
+        if (v2) {
+            database.migrate();
+        } else {
+            database.migrate(V1_CHANGESETS);
+        }
+        connection = database.connection();
+        seed(connection, rows, phones, addresses, v2);
+
+        String type = v2 ? "TYPE_CODE = ?" : "TYPE = ?";
+        ongoingProcess = prepare("SELECT ID, CODE, EXPIRES_AT FROM PHONE_MESSAGE_TOKEN_CODE " +
+            "WHERE REALM_ID = ? AND PHONE_NUMBER = ? AND EXPIRES_AT >= ? AND " + type + " AND CONFIRMED = FALSE");
+        processesSinceTarget = prepare("SELECT COUNT(*) FROM PHONE_MESSAGE_TOKEN_CODE " +
+            "WHERE REALM_ID = ? AND PHONE_NUMBER = ? AND CREATED_AT >= ? AND " + type);
+        processesSinceSource = prepare("SELECT COUNT(*) FROM PHONE_MESSAGE_TOKEN_CODE " +
+            "WHERE REALM_ID = ? AND IP = ? AND CREATED_AT >= ? AND " + type);
+    }
+
+    /**
+     * Inserts rows in batches, from a fixed seed so every run and both schemas get the same rows.
+     */
+    static void seed(Connection connection, int rows, int phones, int addresses, boolean v2) throws SQLException {
+        Random random = new Random(42);
+        TokenCodeType[] types = TokenCodeType.values();
+        long now = System.currentTimeMillis();
+        String sql = "INSERT INTO PHONE_MESSAGE_TOKEN_CODE (ID, REALM_ID, PHONE_NUMBER, CODE, TYPE, CREATED_AT, " +
+            "EXPIRES_AT, CONFIRMED, IP" + (v2 ? ", TYPE_CODE) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)"
+                                             : ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        connection.setAutoCommit(false);
+        try (PreparedStatement insert = connection.prepareStatement(sql)) {
+            for (int i = 0; i < rows; i++) {
+                TokenCodeType type = types[random.nextInt(types.length)];
+                long createdAt = now - (long) (random.nextDouble() * TimeUnit.DAYS.toMillis(SEEDED_DAYS));
+                insert.setString(1, String.format("%036d", i));
+                insert.setString(2, realm(random.nextInt(REALMS)));
+                insert.setString(3, phone(random.nextInt(phones)));
+                insert.setString(4, String.format("%06d", random.nextInt(1_000_000)));
+                insert.setString(5, type.name());
+                insert.setTimestamp(6, new Timestamp(createdAt));
+                insert.setTimestamp(7, new Timestamp(createdAt + TimeUnit.MINUTES.toMillis(1)));
+                insert.setBoolean(8, random.nextBoolean());
+                insert.setString(9, address(random.nextInt(addresses)));
+                if (v2) {
+                    insert.setShort(10, type.code);
+                }
+                insert.addBatch();
+                if (i % 10_000 == 9_999) {
+                    insert.executeBatch();
+                    connection.commit();
+                }
+            }
+            insert.executeBatch();
+            connection.commit();
+        } finally {
+            connection.setAutoCommit(true);
+        }
+        try (PreparedStatement analyze = connection.prepareStatement("ANALYZE")) {
+            analyze.execute();
+        }
+    }
+
+    private PreparedStatement prepare(String sql) throws SQLException {
+        try (PreparedStatement explain = connection.prepareStatement("EXPLAIN " + sql)) {
+            bind(explain, sql.contains("IP = ?"), 0);
+            try (ResultSet plan = explain.executeQuery()) {
+                plan.next();
+                System.out.printf("%n[%s] %s%n", schema, plan.getString(1));
+            }
+        }
+        return connection.prepareStatement(sql);
+    }
+
+    private void bind(PreparedStatement statement, boolean source, int i) throws SQLException {
+        long now = System.currentTimeMillis();
+        statement.setString(1, realm(i % REALMS));
+        statement.setString(2, source ? address(i % addresses) : phone(i % phones));
+        // ongoingProcess compares the expiry with now, the counts the creation with an hour ago
+        statement.setTimestamp(3, new Timestamp(statement == ongoingProcess ? now : now - TimeUnit.HOURS.toMillis(1)));
+        if (schema.equals("v2")) {
+            statement.setShort(4, TokenCodeType.VERIFY.code);
+        } else {
+            statement.setString(4, TokenCodeType.VERIFY.name());
+        }
+    }
+
+    private Object query(PreparedStatement statement, boolean source) throws SQLException {
+        bind(statement, source, ThreadLocalRandom.current().nextInt(phones));
+        try (ResultSet result = statement.executeQuery()) {
+            return result.next() ? result.getObject(1) : null;
+        }
+    }
+
+    @Benchmark
+    public Object ongoingProcess() throws SQLException {
+        return query(ongoingProcess, false);
+    }
+
+    @Benchmark
+    public Object processesSinceTarget() throws SQLException {
+        return query(processesSinceTarget, false);
+    }
+
+    @Benchmark
+    public Object processesSinceSource() throws SQLException {
+        return query(processesSinceSource, true);
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException, IOException {
+        connection.close();
+        database.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
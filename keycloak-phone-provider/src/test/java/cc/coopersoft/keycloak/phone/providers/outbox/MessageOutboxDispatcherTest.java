@@ -0,0 +1,232 @@
+package cc.coopersoft.keycloak.phone.providers.outbox;
+
+import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
+import cc.coopersoft.keycloak.phone.providers.delivery.DeliveryTracker;
+import cc.coopersoft.keycloak.phone.providers.exception.MessageSendException;
+import cc.coopersoft.keycloak.phone.providers.jpa.MessageDelivery;
+import cc.coopersoft.keycloak.phone.providers.jpa.MessageOutbox;
+import cc.coopersoft.keycloak.phone.providers.representations.SendResult;
+import cc.coopersoft.keycloak.phone.providers.spi.MessageSenderService;
+import cc.coopersoft.keycloak.phone.providers.spi.PhoneProvider;
+import cc.coopersoft.keycloak.phone.test.TestDatabase;
+import cc.coopersoft.keycloak.phone.test.TestSessions;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.LockModeType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class MessageOutboxDispatcherTest {
+
+    private static final String SERVICE = "outbox";
+    private static final long LEASE = 30_000;
+    private static final long BACKOFF = 60_000;
+
+    private final RealmModel realm = TestSessions.realm("realm-id", "test");
+    private final StubSender sender = new StubSender();
+    private final DeliveryTracker tracker = new DeliveryTracker(10, 1000, 10);
+    private TestDatabase database;
+    private EntityManager em;
+    private KeycloakSessionFactory sessionFactory;
+    private MessageOutboxDispatcher dispatcher;
+
+    /**
+     * Accepts or fails every message and records the numbers sent to.
+     */
+    private static class StubSender implements MessageSenderService {
+        private final List<String> sent = new CopyOnWriteArrayList<>();
+        private volatile boolean fails;
+
+        @Override
+        public void sendSmsMessage(TokenCodeType type, String phoneNumber, String code, int expires, String kind) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletionStage<SendResult> sendSmsMessageAsync(TokenCodeType type, String phoneNumber, String code,
+                                                               int expires, String kind) {
+            sent.add(phoneNumber);
+            return fails ? CompletableFuture.failedFuture(new MessageSendException(503, "DOWN", "gateway down"))
+                : CompletableFuture.completedFuture(new SendResult(SendResult.Status.ACCEPTED, "SM" + phoneNumber, null));
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @BeforeEach
+    void setUp() throws Exception {
+        database = new TestDatabase().migrate();
+        em = database.entityManagerFactory().createEntityManager();
+        KeycloakSessionFactory jobs = TestSessions.session(realm, em, null, null).getKeycloakSessionFactory();
+        sessionFactory = mock(KeycloakSessionFactory.class);
+        when(sessionFactory.create()).thenAnswer(invocation -> {
+            KeycloakSession session = jobs.create();
+            when(session.getProvider(MessageSenderService.class, SERVICE)).thenReturn(sender);
+            PhoneProvider phoneProvider = session.getProvider(PhoneProvider.class);
+            when(phoneProvider.deliveryTracker()).thenReturn(tracker);
+            return session;
+        });
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (dispatcher != null) {
+            dispatcher.close();
+        }
+        em.close();
+        database.close();
+    }
+
+    private void start(int maxAttempts) {
+        dispatcher = new MessageOutboxDispatcher(1, 10, maxAttempts, LEASE, 50, BACKOFF, 5000);
+        dispatcher.start(sessionFactory);
+    }
+
+    private void enqueue(String id, String phoneNumber, long expiresInMillis, int attempts) {
+        Date now = new Date();
+        MessageOutbox row = new MessageOutbox();
+        row.setId(id);
+        row.setRealmId(realm.getId());
+        row.setService(SERVICE);
+        row.setType(TokenCodeType.OTP);
+        row.setPhoneNumber(phoneNumber);
+        row.setCode("123456");
+        row.setExpiresIn((int) TimeUnit.MILLISECONDS.toSeconds(expiresInMillis));
+        row.setExpiresAt(new Date(now.getTime() + expiresInMillis));
+        row.setStatus(MessageOutbox.Status.PENDING);
+        row.setAttempts(attempts);
+        row.setCreatedAt(now);
+        row.setNextAttemptAt(now);
+        TestDatabase.inTransaction(em, e -> {
+            e.persist(row);
+        });
+    }
+
+    private <T> T find(Class<T> type, String id) {
+        EntityManager reader = database.entityManagerFactory().createEntityManager();
+        try {
+            return reader.find(type, id);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @return the row once it matches, null when it matched by being deleted
+     */
+    private MessageOutbox await(String id, Predicate<MessageOutbox> condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            MessageOutbox row = find(MessageOutbox.class, id);
+            if (condition.test(row)) {
+                return row;
+            }
+            Thread.sleep(20);
+        }
+        throw new AssertionError("outbox row " + id + " did not reach the expected state");
+    }
+
+    @Test
+    void sentMessageIsDeletedWithItsDeliveryRecorded() throws Exception {
+        enqueue("code-1", "+12025550101", 300_000, 0);
+        start(3);
+
+        await("code-1", row -> row == null);
+
+        MessageDelivery delivery = find(MessageDelivery.class, "code-1");
+        assertNotNull(delivery);
+        assertEquals("SM+12025550101", delivery.getMessageId());
+        assertEquals(SERVICE, delivery.getService());
+        assertEquals("US", delivery.getCountry());
+        assertEquals(MessageDelivery.Status.SENT, delivery.getStatus());
+    }
+
+    @Test
+    void rowLockedByAnotherDispatcherIsSkipped() throws Exception {
+        enqueue("locked", "+12025550101", 300_000, 0);
+        enqueue("free", "+12025550102", 300_000, 0);
+        EntityManager other = database.entityManagerFactory().createEntityManager();
+        other.getTransaction().begin();
+        other.find(MessageOutbox.class, "locked", LockModeType.PESSIMISTIC_WRITE);
+        try {
+            start(3);
+
+            await("free", row -> row == null);
+            assertEquals(List.of("+12025550102"), sender.sent);
+            assertEquals(0, find(MessageOutbox.class, "locked").getAttempts());
+        } finally {
+            other.getTransaction().rollback();
+            other.close();
+        }
+
+        await("locked", row -> row == null);
+        assertEquals(List.of("+12025550102", "+12025550101"), sender.sent);
+    }
+
+    @Test
+    void failedSendIsRetriedWithExponentialBackoff() throws Exception {
+        sender.fails = true;
+        enqueue("first", "+12025550101", 300_000, 0);
+        enqueue("second", "+12025550102", 300_000, 1);
+        long before = System.currentTimeMillis();
+        start(3);
+
+        MessageOutbox first = await("first", row -> row.getLastError() != null);
+        MessageOutbox second = await("second", row -> row.getLastError() != null);
+        long after = System.currentTimeMillis();
+
+        assertEquals(MessageOutbox.Status.PENDING, first.getStatus());
+        assertEquals(1, first.getAttempts());
+        assertEquals("DOWN: gateway down", first.getLastError());
+        long firstDelay = first.getNextAttemptAt().getTime();
+        assertTrue(firstDelay >= before + BACKOFF && firstDelay <= after + BACKOFF, "retried at " + firstDelay);
+
+        assertEquals(2, second.getAttempts());
+        long secondDelay = second.getNextAttemptAt().getTime();
+        assertTrue(secondDelay >= before + 2 * BACKOFF && secondDelay <= after + 2 * BACKOFF,
+            "retried at " + secondDelay);
+    }
+
+    @Test
+    void lastFailedAttemptMarksTheRowFailed() throws Exception {
+        sender.fails = true;
+        enqueue("code-1", "+12025550101", 300_000, 2);
+        start(3);
+
+        MessageOutbox row = await("code-1", r -> r.getStatus() == MessageOutbox.Status.FAILED);
+
+        assertEquals(3, row.getAttempts());
+        assertNull(find(MessageDelivery.class, "code-1"));
+    }
+
+    @Test
+    void codeExpiredBeforeItWentOutIsNotSent() throws Exception {
+        enqueue("code-1", "+12025550101", -1000, 0);
+        start(3);
+
+        MessageOutbox row = await("code-1", r -> r.getStatus() == MessageOutbox.Status.EXPIRED);
+
+        assertEquals(0, row.getAttempts());
+        assertTrue(sender.sent.isEmpty());
+    }
+}
@@ -0,0 +1,146 @@
+package cc.coopersoft.keycloak.phone.providers.ratelimit;
+
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.global.GlobalConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Two embedded nodes sharing a replicated {@code work} cache the way Keycloak's cluster does, over an in-JVM
+ * JGroups transport.
+ */
+class ClusterRateLimiterTest {
+
+    private static final String KEY = "realm-id:VERIFY:target:+12025550123";
+    private static final int MAXIMUM = 5;
+
+    private static DefaultCacheManager node1;
+    private static DefaultCacheManager node2;
+
+    @BeforeAll
+    static void start() {
+        node1 = node("node1");
+        node2 = node("node2");
+        // both caches are started and joined before any test writes
+        node1.getCache("work");
+        node2.getCache("work");
+        assertEquals(2, node1.getMembers().size());
+    }
+
+    private static DefaultCacheManager node(String name) {
+        GlobalConfigurationBuilder global = GlobalConfigurationBuilder.defaultClusteredBuilder();
+        global.transport().clusterName("phone-rate-limit-test").nodeName(name)
+            .addProperty("configurationFile", "jgroups-loopback.xml");
+        DefaultCacheManager cacheManager = new DefaultCacheManager(global.build());
+        cacheManager.defineConfiguration("work", new ConfigurationBuilder()
+            .clustering().cacheMode(CacheMode.REPL_SYNC)
+            .build());
+        return cacheManager;
+    }
+
+    @AfterAll
+    static void stop() {
+        node2.stop();
+        node1.stop();
+    }
+
+    @AfterEach
+    void clear() {
+        node1.getCache("work").clear();
+    }
+
+    private static ClusterRateLimiter limiter(DefaultCacheManager node, long syncIntervalMillis) {
+        Cache<String, Long> cache = node.getCache("work");
+        ClusterRateLimiter limiter = new ClusterRateLimiter(syncIntervalMillis);
+        limiter.setCache(cache);
+        return limiter;
+    }
+
+    @Test
+    void writeThroughLimitsAcrossNodes() {
+        ClusterRateLimiter limiter1 = limiter(node1, 0);
+        ClusterRateLimiter limiter2 = limiter(node2, 0);
+
+        for (int i = 0; i <= MAXIMUM; i++) {
+            assertTrue((i % 2 == 0 ? limiter1 : limiter2).tryAcquire(KEY, MAXIMUM));
+        }
+        assertEquals(MAXIMUM + 1, limiter1.count(KEY));
+        assertEquals(MAXIMUM + 1, limiter2.count(KEY));
+        assertFalse(limiter1.tryAcquire(KEY, MAXIMUM));
+        assertFalse(limiter2.tryAcquire(KEY, MAXIMUM));
+        assertTrue(limiter2.retryAfter(KEY, MAXIMUM) > 0);
+
+        limiter1.release(KEY);
+        assertTrue(limiter2.tryAcquire(KEY, MAXIMUM));
+    }
+
+    @Test
+    void othersSeeSendsOnceFlushed() {
+        ClusterRateLimiter limiter1 = limiter(node1, 1000);
+        ClusterRateLimiter limiter2 = limiter(node2, 1000);
+
+        for (int i = 0; i <= MAXIMUM; i++) {
+            assertTrue(limiter1.tryAcquire(KEY, MAXIMUM));
+        }
+        assertFalse(limiter1.tryAcquire(KEY, MAXIMUM));
+        assertEquals(0, limiter2.count(KEY));
+
+        limiter1.flush();
+        assertEquals(MAXIMUM + 1, limiter2.count(KEY));
+        assertFalse(limiter2.tryAcquire(KEY, MAXIMUM));
+        // the refused send was taken back locally and is nothing to flush
+        limiter2.flush();
+        assertEquals(MAXIMUM + 1, limiter1.count(KEY));
+    }
+
+    @Test
+    void concurrentSendsOnBothNodesCannotAllPass() throws Exception {
+        ClusterRateLimiter[] limiters = {limiter(node1, 0), limiter(node2, 0)};
+        int threads = 16;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger acquired = new AtomicInteger();
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                ClusterRateLimiter limiter = limiters[i % 2];
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    if (limiter.tryAcquire(KEY, MAXIMUM)) {
+                        acquired.incrementAndGet();
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertTrue(acquired.get() >= 1 && acquired.get() <= MAXIMUM + 1, "acquired " + acquired.get());
+        // refused sends are all taken back
+        assertEquals(acquired.get(), limiters[0].count(KEY));
+        assertEquals(acquired.get(), limiters[1].count(KEY));
+    }
+}
@@ -0,0 +1,132 @@
+package cc.coopersoft.keycloak.phone.providers.ratelimit;
+
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RateLimiterTest {
+
+    enum Limiter {
+        LOCAL,
+        CLUSTER,
+        CLUSTER_WRITE_THROUGH
+    }
+
+    private static final String KEY = "realm-id:VERIFY:target:+12025550123";
+    private static final int MAXIMUM = 3;
+
+    private static DefaultCacheManager cacheManager;
+
+    @BeforeAll
+    static void start() {
+        cacheManager = new DefaultCacheManager();
+        cacheManager.defineConfiguration("work", new ConfigurationBuilder().build());
+    }
+
+    @AfterAll
+    static void stop() {
+        cacheManager.stop();
+    }
+
+    @AfterEach
+    void clear() {
+        cacheManager.getCache("work").clear();
+    }
+
+    private static RateLimiter limiter(Limiter limiter) {
+        if (limiter == Limiter.LOCAL) {
+            return new SlidingWindowRateLimiter(16);
+        }
+        Cache<String, Long> cache = cacheManager.getCache("work");
+        ClusterRateLimiter cluster = new ClusterRateLimiter(limiter == Limiter.CLUSTER ? 1000 : 0);
+        cluster.setCache(cache);
+        return cluster;
+    }
+
+    @ParameterizedTest
+    @EnumSource(Limiter.class)
+    void sendsAboveTheMaximumAreRefused(Limiter type) {
+        RateLimiter limiter = limiter(type);
+
+        // like the database limiter, a key is limited once its sends exceed the maximum
+        for (int i = 0; i <= MAXIMUM; i++) {
+            assertTrue(limiter.tryAcquire(KEY, MAXIMUM));
+        }
+        assertFalse(limiter.tryAcquire(KEY, MAXIMUM));
+        assertTrue(limiter.retryAfter(KEY, MAXIMUM) > 0);
+        assertTrue(limiter.tryAcquire("other", MAXIMUM));
+    }
+
+    @ParameterizedTest
+    @EnumSource(Limiter.class)
+    void releasedSendsDoNotCount(Limiter type) {
+        RateLimiter limiter = limiter(type);
+
+        for (int i = 0; i <= MAXIMUM; i++) {
+            assertTrue(limiter.tryAcquire(KEY, MAXIMUM));
+        }
+        limiter.release(KEY);
+        assertTrue(limiter.tryAcquire(KEY, MAXIMUM));
+        assertFalse(limiter.tryAcquire(KEY, MAXIMUM));
+    }
+
+    @ParameterizedTest
+    @EnumSource(Limiter.class)
+    void noMaximumIsNoLimit(Limiter type) {
+        RateLimiter limiter = limiter(type);
+
+        for (int i = 0; i < 100; i++) {
+            assertTrue(limiter.tryAcquire(KEY, 0));
+        }
+        assertEquals(0, limiter.retryAfter(KEY, 0));
+    }
+
+    @ParameterizedTest
+    @EnumSource(Limiter.class)
+    void concurrentSendsCannotAllPass(Limiter type) throws Exception {
+        RateLimiter limiter = limiter(type);
+        int threads = 32;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger acquired = new AtomicInteger();
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    if (limiter.tryAcquire(KEY, MAXIMUM)) {
+                        acquired.incrementAndGet();
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertTrue(acquired.get() <= MAXIMUM + 1, "acquired " + acquired.get());
+        assertTrue(acquired.get() >= 1);
+    }
+}
@@ -0,0 +1,138 @@
+package cc.coopersoft.keycloak.phone.providers.sender;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CircuitBreakerTest {
+
+    private static final long SLOW_MILLIS = 1000;
+
+    /**
+     * Window of 10, opening after at least 4 calls at half of them failed or 80% slow, 2 probes.
+     */
+    private static CircuitBreaker breaker(long openMillis) {
+        return new CircuitBreaker(10, 4, 0.5, SLOW_MILLIS, 0.8, openMillis, 2);
+    }
+
+    private static void calls(CircuitBreaker breaker, boolean success, long latencyMillis, int count) {
+        for (int i = 0; i < count; i++) {
+            assertTrue(breaker.tryAcquire());
+            breaker.record(success, latencyMillis);
+        }
+    }
+
+    /**
+     * Opens the breaker, which is half open again once openMillis passed.
+     */
+    private static CircuitBreaker opened(long openMillis) {
+        CircuitBreaker breaker = breaker(openMillis);
+        calls(breaker, false, 10, 4);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        return breaker;
+    }
+
+    @Test
+    void staysClosedBelowTheMinimumCalls() {
+        CircuitBreaker breaker = breaker(60_000);
+
+        calls(breaker, false, 10, 3);
+
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.isCallPermitted());
+    }
+
+    @Test
+    void opensOnceTheFailureRateIsReached() {
+        CircuitBreaker breaker = breaker(60_000);
+        calls(breaker, true, 10, 3);
+        calls(breaker, false, 10, 2);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+        calls(breaker, false, 10, 1);
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+        assertFalse(breaker.isCallPermitted());
+    }
+
+    @Test
+    void opensOnSlowCalls() {
+        CircuitBreaker breaker = breaker(60_000);
+
+        calls(breaker, true, SLOW_MILLIS, 4);
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    void oldCallsLeaveTheWindow() {
+        CircuitBreaker breaker = breaker(60_000);
+        calls(breaker, true, 10, 6);
+        calls(breaker, false, 10, 4);
+        calls(breaker, true, 10, 10);
+
+        // 4 of the last 10 failed, the earlier failures left the window
+        calls(breaker, false, 10, 4);
+
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    void halfOpenLetsOnlyItsProbesThrough() {
+        CircuitBreaker breaker = opened(0);
+
+        assertTrue(breaker.tryAcquire());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertTrue(breaker.isCallPermitted());
+        assertTrue(breaker.tryAcquire());
+
+        assertFalse(breaker.isCallPermitted());
+        assertFalse(breaker.tryAcquire());
+    }
+
+    @Test
+    void closesOnceEveryProbeSucceeded() {
+        CircuitBreaker breaker = opened(0);
+        assertTrue(breaker.tryAcquire());
+        assertTrue(breaker.tryAcquire());
+
+        breaker.record(true, 10);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        breaker.record(true, 10);
+
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        // with a fresh window
+        calls(breaker, false, 10, 3);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    void failedProbeOpensAgain() {
+        CircuitBreaker breaker = opened(0);
+        assertTrue(breaker.tryAcquire());
+        assertTrue(breaker.tryAcquire());
+
+        breaker.record(true, 10);
+        breaker.record(false, 10);
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    void openBreakerRejectsUntilItsDurationPassed() throws Exception {
+        CircuitBreaker breaker = opened(100);
+
+        assertFalse(breaker.tryAcquire());
+        // a call started before it opened does not count
+        breaker.record(true, 10);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        Thread.sleep(150);
+        assertTrue(breaker.isCallPermitted());
+        assertTrue(breaker.tryAcquire());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    }
+}
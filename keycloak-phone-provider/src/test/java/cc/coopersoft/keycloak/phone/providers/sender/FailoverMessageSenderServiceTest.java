@@ -0,0 +1,194 @@
+package cc.coopersoft.keycloak.phone.providers.sender;
+
+import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
+import cc.coopersoft.keycloak.phone.providers.exception.MessageSendException;
+import cc.coopersoft.keycloak.phone.providers.representations.SendResult;
+import cc.coopersoft.keycloak.phone.providers.sender.FailoverMessageSenderServiceProviderFactory.Member;
+import cc.coopersoft.keycloak.phone.providers.spi.MessageSenderService;
+import cc.coopersoft.keycloak.phone.providers.spi.MessageSenderServiceProviderFactory;
+import cc.coopersoft.keycloak.phone.test.TestSessions;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class FailoverMessageSenderServiceTest {
+
+    private static final int PICKS = 4000;
+
+    private final Map<String, MessageSenderService> senders = new HashMap<>();
+
+    /**
+     * Sends as configured and records the thread each send started on.
+     */
+    private static class StubSender implements MessageSenderService {
+        private final boolean succeeds;
+        private final boolean sendsLater;
+        private volatile String thread;
+
+        StubSender(boolean succeeds, boolean sendsLater) {
+            this.succeeds = succeeds;
+            this.sendsLater = sendsLater;
+        }
+
+        @Override
+        public void sendSmsMessage(TokenCodeType type, String phoneNumber, String code, int expires, String kind) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletionStage<SendResult> sendSmsMessageAsync(TokenCodeType type, String phoneNumber, String code,
+                                                               int expires, String kind) {
+            return send();
+        }
+
+        @Override
+        public Supplier<CompletionStage<SendResult>> prepareSmsMessage(TokenCodeType type, String phoneNumber,
+                                                                       String code, int expires, String kind) {
+            return sendsLater ? this::send : null;
+        }
+
+        private CompletionStage<SendResult> send() {
+            thread = Thread.currentThread().getName();
+            return succeeds ? CompletableFuture.completedFuture(new SendResult(SendResult.Status.ACCEPTED, "id", null))
+                : CompletableFuture.failedFuture(new MessageSendException(503, "DOWN", "gateway down"));
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private FailoverMessageSenderServiceProviderFactory factory(String providers, String selection) {
+        FailoverMessageSenderServiceProviderFactory factory = new FailoverMessageSenderServiceProviderFactory();
+        factory.init(TestSessions.config(Map.of("providers", providers, "selection", selection,
+            "minimumCalls", "2", "windowSize", "2")));
+        KeycloakSessionFactory sessionFactory = mock(KeycloakSessionFactory.class);
+        MessageSenderServiceProviderFactory delegate = mock(MessageSenderServiceProviderFactory.class);
+        when(sessionFactory.getProviderFactory(MessageSenderService.class, "a")).thenReturn(delegate);
+        when(sessionFactory.getProviderFactory(MessageSenderService.class, "b")).thenReturn(delegate);
+        when(sessionFactory.getProviderFactory(MessageSenderService.class, "c")).thenReturn(delegate);
+        factory.postInit(sessionFactory);
+        return factory;
+    }
+
+    private FailoverMessageSenderService failover(FailoverMessageSenderServiceProviderFactory factory) {
+        KeycloakSession session = mock(KeycloakSession.class);
+        senders.forEach((id, sender) -> when(session.getProvider(MessageSenderService.class, id)).thenReturn(sender));
+        return (FailoverMessageSenderService) factory.create(session);
+    }
+
+    private static CompletableFuture<SendResult> send(FailoverMessageSenderService failover) {
+        return failover.sendSmsMessageAsync(TokenCodeType.OTP, "+12025550123", "123456", 60, "otp").toCompletableFuture();
+    }
+
+    private static Member member(FailoverMessageSenderServiceProviderFactory factory, String id) {
+        return factory.candidates().stream().filter(m -> m.id.equals(id)).findFirst().orElseThrow();
+    }
+
+    /**
+     * @return how often each member was tried first
+     */
+    private static Map<String, Integer> firstPicks(FailoverMessageSenderServiceProviderFactory factory) {
+        Map<String, Integer> picks = new HashMap<>();
+        for (int i = 0; i < PICKS; i++) {
+            picks.merge(factory.candidates().get(0).id, 1, Integer::sum);
+        }
+        return picks;
+    }
+
+    @Test
+    void fallbackStartsOnASendThread() throws Exception {
+        StubSender failing = new StubSender(false, true);
+        StubSender fallback = new StubSender(true, true);
+        senders.put("a", failing);
+        senders.put("b", fallback);
+
+        send(failover(factory("a,b", "ordered"))).get(5, TimeUnit.SECONDS);
+
+        assertEquals(Thread.currentThread().getName(), failing.thread);
+        assertTrue(fallback.thread.startsWith("phone-send-"), fallback.thread);
+    }
+
+    @Test
+    void fallbackThatCanOnlySendOnTheCallingThreadIsSkipped() throws Exception {
+        StubSender blocking = new StubSender(true, false);
+        senders.put("a", new StubSender(false, true));
+        senders.put("b", blocking);
+        senders.put("c", new StubSender(true, true));
+
+        send(failover(factory("a,b,c", "ordered"))).get(5, TimeUnit.SECONDS);
+
+        assertNull(blocking.thread);
+    }
+
+    @Test
+    void failsWithTheLastErrorOnceEveryCandidateFailed() {
+        senders.put("a", new StubSender(false, true));
+        senders.put("b", new StubSender(false, true));
+
+        CompletionException e = assertThrows(CompletionException.class,
+            () -> send(failover(factory("a,b", "ordered"))).join());
+        assertEquals("DOWN", assertInstanceOf(MessageSendException.class, e.getCause()).getErrorCode());
+    }
+
+    @Test
+    void orderedSelectionKeepsTheConfiguredOrder() {
+        FailoverMessageSenderServiceProviderFactory factory = factory("b,a:5,c", "ordered");
+
+        assertEquals(List.of("b", "a", "c"), factory.candidates().stream().map(m -> m.id).toList());
+    }
+
+    @Test
+    void weightedSelectionPicksByWeight() {
+        Map<String, Integer> picks = firstPicks(factory("a:3,b:1", "weighted"));
+
+        double share = picks.get("a") / (double) PICKS;
+        assertTrue(share > 0.7 && share < 0.8, "a first in " + share);
+    }
+
+    @Test
+    void weightedSelectionLeansTowardsFastSenders() {
+        FailoverMessageSenderServiceProviderFactory factory = factory("a,b", "weighted");
+        member(factory, "a").succeeded(10);
+        member(factory, "b").succeeded(40);
+
+        Map<String, Integer> picks = firstPicks(factory);
+
+        double share = picks.get("a") / (double) PICKS;
+        assertTrue(share > 0.75 && share < 0.85, "a first in " + share);
+    }
+
+    @Test
+    void weightedSelectionTriesFastestFirstAfterThePickAndOpenBreakersLast() {
+        FailoverMessageSenderServiceProviderFactory factory = factory("a:100,b,c", "weighted");
+        member(factory, "a").failed(10);
+        member(factory, "a").failed(10);
+        member(factory, "b").succeeded(40);
+        member(factory, "c").succeeded(10);
+
+        for (int i = 0; i < 100; i++) {
+            List<String> order = factory.candidates().stream().map(m -> m.id).toList();
+            assertEquals("a", order.get(2));
+            if (order.get(0).equals("b")) {
+                assertEquals(List.of("b", "c", "a"), order);
+            }
+        }
+    }
+}
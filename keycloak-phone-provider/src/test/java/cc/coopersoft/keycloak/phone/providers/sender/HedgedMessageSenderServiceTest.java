@@ -0,0 +1,198 @@
+package cc.coopersoft.keycloak.phone.providers.sender;
+
+import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
+import cc.coopersoft.keycloak.phone.providers.exception.MessageSendException;
+import cc.coopersoft.keycloak.phone.providers.representations.SendResult;
+import cc.coopersoft.keycloak.phone.providers.spi.MessageSenderService;
+import cc.coopersoft.keycloak.phone.test.TestSessions;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakSession;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class HedgedMessageSenderServiceTest {
+
+    private static final long HEDGE_DELAY = 50;
+
+    private HedgedMessageSenderServiceProviderFactory factory;
+
+    /**
+     * A sender whose sends complete when the test completes them.
+     */
+    private static class PendingSender implements MessageSenderService {
+        private final boolean sendsLater;
+        private final BlockingQueue<CompletableFuture<SendResult>> sends = new LinkedBlockingQueue<>();
+        private volatile String thread;
+
+        PendingSender(boolean sendsLater) {
+            this.sendsLater = sendsLater;
+        }
+
+        @Override
+        public void sendSmsMessage(TokenCodeType type, String phoneNumber, String code, int expires, String kind) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletionStage<SendResult> sendSmsMessageAsync(TokenCodeType type, String phoneNumber, String code,
+                                                               int expires, String kind) {
+            return start();
+        }
+
+        @Override
+        public Supplier<CompletionStage<SendResult>> prepareSmsMessage(TokenCodeType type, String phoneNumber,
+                                                                       String code, int expires, String kind) {
+            return sendsLater ? this::start : null;
+        }
+
+        private CompletableFuture<SendResult> start() {
+            thread = Thread.currentThread().getName();
+            CompletableFuture<SendResult> send = new CompletableFuture<>();
+            sends.add(send);
+            return send;
+        }
+
+        /**
+         * @return the next send, null when none started within the wait
+         */
+        CompletableFuture<SendResult> next(long waitMillis) throws InterruptedException {
+            return sends.poll(waitMillis, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @AfterEach
+    void close() {
+        factory.close();
+    }
+
+    private HedgedMessageSenderService hedged(MessageSenderService primary, MessageSenderService secondary,
+                                              Map<String, String> config) {
+        Map<String, String> values = new HashMap<>(Map.of(
+            "primary", "primary",
+            "secondary", "secondary",
+            "initialDelay", String.valueOf(HEDGE_DELAY),
+            "budget", "100"));
+        values.putAll(config);
+        factory = new HedgedMessageSenderServiceProviderFactory();
+        factory.init(TestSessions.config(values));
+        KeycloakSession session = mock(KeycloakSession.class);
+        when(session.getProvider(MessageSenderService.class, "primary")).thenReturn(primary);
+        when(session.getProvider(MessageSenderService.class, "secondary")).thenReturn(secondary);
+        return (HedgedMessageSenderService) factory.create(session);
+    }
+
+    private static CompletableFuture<SendResult> send(HedgedMessageSenderService hedged) {
+        return hedged.sendSmsMessageAsync(TokenCodeType.OTP, "+12025550123", "123456", 60, "otp").toCompletableFuture();
+    }
+
+    private static SendResult result(String id) {
+        return new SendResult(SendResult.Status.ACCEPTED, id, null);
+    }
+
+    @Test
+    void secondaryWinsWhenThePrimaryIsLate() throws Exception {
+        PendingSender primary = new PendingSender(true);
+        PendingSender secondary = new PendingSender(true);
+        CompletableFuture<SendResult> result = send(hedged(primary, secondary, Map.of()));
+        CompletableFuture<SendResult> first = primary.next(0);
+
+        CompletableFuture<SendResult> hedge = secondary.next(5000);
+        assertNotNull(hedge);
+        hedge.complete(result("secondary"));
+
+        assertEquals("secondary", result.get(5, TimeUnit.SECONDS).getProviderMessageId());
+        first.complete(result("primary"));
+        assertEquals("secondary", result.join().getProviderMessageId());
+        assertTrue(secondary.thread.startsWith("phone-send-"), secondary.thread);
+    }
+
+    @Test
+    void primaryAnsweringInTimeIsNotHedged() throws Exception {
+        PendingSender primary = new PendingSender(true);
+        PendingSender secondary = new PendingSender(true);
+        CompletableFuture<SendResult> result = send(hedged(primary, secondary, Map.of()));
+
+        primary.next(0).complete(result("primary"));
+
+        assertEquals("primary", result.get(5, TimeUnit.SECONDS).getProviderMessageId());
+        assertNull(secondary.next(HEDGE_DELAY * 4));
+    }
+
+    @Test
+    void failsOnlyOnceEveryAttemptFailed() throws Exception {
+        PendingSender primary = new PendingSender(true);
+        PendingSender secondary = new PendingSender(true);
+        CompletableFuture<SendResult> result = send(hedged(primary, secondary, Map.of()));
+        CompletableFuture<SendResult> first = primary.next(0);
+
+        secondary.next(5000).completeExceptionally(new MessageSendException(500, "S", "secondary failed"));
+        Thread.sleep(HEDGE_DELAY);
+        assertFalse(result.isDone());
+
+        MessageSendException failure = new MessageSendException(500, "P", "primary failed");
+        first.completeExceptionally(failure);
+        CompletionException e = assertThrows(CompletionException.class, result::join);
+        assertSame(failure, e.getCause());
+    }
+
+    @Test
+    void neverHedgesToASenderThatCannotSendLater() throws Exception {
+        PendingSender primary = new PendingSender(true);
+        PendingSender secondary = new PendingSender(false);
+        CompletableFuture<SendResult> result = send(hedged(primary, secondary, Map.of()));
+
+        assertNull(secondary.next(HEDGE_DELAY * 4));
+        primary.next(0).complete(result("primary"));
+        assertEquals("primary", result.get(5, TimeUnit.SECONDS).getProviderMessageId());
+    }
+
+    @Test
+    void noHedgeWithoutBudget() throws Exception {
+        PendingSender primary = new PendingSender(true);
+        PendingSender secondary = new PendingSender(true);
+        send(hedged(primary, secondary, Map.of("budget", "0")));
+
+        assertNull(secondary.next(HEDGE_DELAY * 4));
+    }
+
+    @Test
+    void everySendEarnsItsShareOfAHedgeUpToTheBurst() {
+        hedged(new PendingSender(true), new PendingSender(true), Map.of("budget", "50", "budgetBurst", "1"));
+
+        assertFalse(factory.tryHedge());
+        factory.sent();
+        assertFalse(factory.tryHedge());
+        factory.sent();
+        assertTrue(factory.tryHedge());
+        assertFalse(factory.tryHedge());
+
+        for (int i = 0; i < 10; i++) {
+            factory.sent();
+        }
+        assertTrue(factory.tryHedge());
+        assertFalse(factory.tryHedge());
+    }
+}
@@ -0,0 +1,68 @@
+package cc.coopersoft.keycloak.phone.providers.sender;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PrefixRoutingTableTest {
+
+    private static final PrefixRoutingTable TABLE = PrefixRoutingTable.parse("""
+        # country routes
+        +1,aws
+        +44,bulksms,,UKSENDER
+
+        +447,twilio,otp-uk
+        86,tencent,otp-cn
+        """);
+
+    @Test
+    void longestMatchingPrefixWins() {
+        assertEquals("+447", TABLE.match("+447911123456").prefix());
+        assertEquals("+44", TABLE.match("+442071234567").prefix());
+        assertEquals("+1", TABLE.match("+12025550123").prefix());
+        assertEquals("+86", TABLE.match("+8613800000000").prefix());
+    }
+
+    @Test
+    void numberWithoutMatchingPrefixHasNoRoute() {
+        assertNull(TABLE.match("+33612345678"));
+        assertNull(TABLE.match("+4"));
+        assertNull(PrefixRoutingTable.EMPTY.match("+12025550123"));
+    }
+
+    @Test
+    void charactersOtherThanDigitsAreSkipped() {
+        assertEquals("+447", TABLE.match("+44 7911 123-456").prefix());
+    }
+
+    @Test
+    void blankFieldsAreLeftOut() {
+        assertEquals(new PrefixRoutingTable.Route("+44", "bulksms", null, "UKSENDER"), TABLE.match("+442071234567"));
+        assertEquals(new PrefixRoutingTable.Route("+447", "twilio", "otp-uk", null), TABLE.match("+447911123456"));
+        assertEquals(4, TABLE.size());
+    }
+
+    @Test
+    void laterLineOfAPrefixReplacesTheEarlier() {
+        PrefixRoutingTable table = PrefixRoutingTable.parse("+1,aws\n+1,twilio");
+
+        assertEquals("twilio", table.match("+12025550123").provider());
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    void malformedLineIsNamed() {
+        assertMalformed("+1,aws\n+44", 2);
+        assertMalformed("+1,aws\n\n+44, ", 3);
+        assertMalformed("+4a,aws", 1);
+        assertMalformed("+,aws", 1);
+    }
+
+    private static void assertMalformed(String source, int line) {
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> PrefixRoutingTable.parse(source));
+        assertTrue(e.getMessage().startsWith("Routing table line " + line + " "), e.getMessage());
+    }
+}
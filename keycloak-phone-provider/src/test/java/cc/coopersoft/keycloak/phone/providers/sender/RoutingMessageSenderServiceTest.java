@@ -0,0 +1,136 @@
+package cc.coopersoft.keycloak.phone.providers.sender;
+
+import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
+import cc.coopersoft.keycloak.phone.providers.representations.OutgoingMessage;
+import cc.coopersoft.keycloak.phone.providers.representations.SendResult;
+import cc.coopersoft.keycloak.phone.providers.spi.FullSmsSenderAbstractService;
+import cc.coopersoft.keycloak.phone.providers.spi.MessageSenderService;
+import cc.coopersoft.keycloak.phone.test.TestSessions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.when;
+
+class RoutingMessageSenderServiceTest {
+
+    private final RealmModel realm = TestSessions.realm("realm-id", "test");
+    private final Map<String, Object> attributes = new HashMap<>();
+    // what the sender was called with and the sender id it saw
+    private final List<String> calls = new ArrayList<>();
+    private RoutingMessageSenderService routing;
+    private KeycloakSession session;
+
+    /**
+     * Records the sender id of the session while it is called, as senders read it.
+     */
+    private class RecordingSender implements MessageSenderService {
+
+        @Override
+        public void sendSmsMessage(TokenCodeType type, String phoneNumber, String code, int expires, String kind) {
+            calls.add(phoneNumber + " " + kind + " " + session.getAttribute(SENDER_ID_ATTRIBUTE, String.class));
+        }
+
+        @Override
+        public CompletionStage<SendResult> sendSmsMessageAsync(TokenCodeType type, String phoneNumber, String code,
+                                                               int expires, String kind) {
+            sendSmsMessage(type, phoneNumber, code, expires, kind);
+            return CompletableFuture.completedFuture(new SendResult(SendResult.Status.ACCEPTED, phoneNumber, null));
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Records the routed sender id it sees when sending and the thread it sends on.
+     */
+    private class RecordingFullSender extends FullSmsSenderAbstractService {
+
+        RecordingFullSender(KeycloakSession session) {
+            super(session);
+        }
+
+        @Override
+        public void sendMessage(String phoneNumber, String message) {
+        }
+
+        @Override
+        public CompletionStage<SendResult> sendMessageAsync(String phoneNumber, String message) {
+            calls.add(phoneNumber + " " + message + " " + routedSenderId() + " " + Thread.currentThread().getName());
+            return CompletableFuture.completedFuture(new SendResult(SendResult.Status.ACCEPTED, phoneNumber, null));
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @BeforeEach
+    void create() {
+        session = TestSessions.session(realm, null, null, null);
+        doAnswer(i -> attributes.put(i.getArgument(0), i.getArgument(1))).when(session).setAttribute(anyString(), any());
+        doAnswer(i -> attributes.remove(i.<String>getArgument(0))).when(session).removeAttribute(anyString());
+        when(session.getAttribute(anyString(), eq(String.class))).thenAnswer(i -> attributes.get(i.<String>getArgument(0)));
+        when(session.getProvider(MessageSenderService.class, "sender")).thenReturn(new RecordingSender());
+        when(realm.getAttribute("phoneRoutingTable")).thenReturn("+44,sender,,UKSENDER\n+1,sender,otp-us");
+
+        RoutingMessageSenderServiceProviderFactory factory = new RoutingMessageSenderServiceProviderFactory();
+        factory.init(TestSessions.config(Map.of()));
+        routing = (RoutingMessageSenderService) factory.create(session);
+    }
+
+    private static OutgoingMessage message(String phoneNumber) {
+        return new OutgoingMessage(TokenCodeType.OTP, phoneNumber, "123456", 60, "otp");
+    }
+
+    @Test
+    void senderSeesTheSenderIdOfItsRouteOnlyWhileCalled() throws Exception {
+        routing.sendSmsMessage(TokenCodeType.OTP, "+447911123456", "123456", 60, "otp");
+        routing.sendSmsMessage(TokenCodeType.OTP, "+12025550123", "123456", 60, "otp");
+
+        assertEquals(List.of("+447911123456 otp UKSENDER", "+12025550123 otp-us null"), calls);
+        assertNull(attributes.get(MessageSenderService.SENDER_ID_ATTRIBUTE));
+    }
+
+    @Test
+    void everyBatchIsSentWithTheSenderIdOfItsRoute() {
+        List<CompletionStage<SendResult>> results = routing.sendBatch(List.of(
+            message("+447911123456"), message("+12025550123"), message("+447911123457")));
+
+        assertEquals(List.of("+447911123456 otp UKSENDER", "+447911123457 otp UKSENDER", "+12025550123 otp-us null"),
+            calls);
+        assertEquals("+12025550123", results.get(1).toCompletableFuture().join().getProviderMessageId());
+        assertNull(attributes.get(MessageSenderService.SENDER_ID_ATTRIBUTE));
+    }
+
+    @Test
+    void preparedSendKeepsTheSenderIdOfItsRouteOnAnotherThread() throws Exception {
+        MessageSenderService sender = new RecordingFullSender(session);
+        when(session.getProvider(MessageSenderService.class, "sender")).thenReturn(sender);
+
+        Supplier<CompletionStage<SendResult>> send =
+            routing.prepareSmsMessage(TokenCodeType.OTP, "+447911123456", "123456", 60, "otp");
+        assertNull(attributes.get(MessageSenderService.SENDER_ID_ATTRIBUTE));
+        Thread thread = Thread.ofPlatform().name("other").start(send::get);
+        thread.join();
+
+        assertEquals(List.of("+447911123456 123456 UKSENDER other"), calls);
+    }
+}
@@ -0,0 +1,167 @@
+package cc.coopersoft.keycloak.phone.providers.spi;
+
+import cc.coopersoft.keycloak.phone.providers.representations.SendResult;
+import cc.coopersoft.keycloak.phone.test.LocalHttpsServer;
+import cc.coopersoft.keycloak.phone.test.TestSessions;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class AsyncHttpSmsSenderAbstractServiceTest {
+
+    private static final int MAX_RETRIES = 2;
+    private static final long BACKOFF = 20;
+
+    private final Queue<Integer> statuses = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger requests = new AtomicInteger();
+    private LocalHttpsServer server;
+    private TestSender sender;
+
+    /**
+     * Sends whatever request the test gives it and records the errors it was asked to retry.
+     */
+    private static class TestSender extends AsyncHttpSmsSenderAbstractService {
+        private final List<Throwable> retryErrors = new ArrayList<>();
+
+        TestSender(KeycloakSession session) {
+            super(session, Duration.ofSeconds(10));
+        }
+
+        @Override
+        public CompletionStage<SendResult> sendMessageAsync(String phoneNumber, String message) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected synchronized boolean shouldRetry(HttpResponse<String> response, Throwable error) {
+            if (error != null) {
+                retryErrors.add(error);
+            }
+            return super.shouldRetry(response, error);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @BeforeAll
+    static void configure() {
+        LocalHttpsServer.trustCertificate();
+        SmsHttpClient.configure(SmsHttpClient.DEFAULT_CONNECT_TIMEOUT, SmsHttpClient.DEFAULT_MAX_CONNECTIONS_PER_HOST,
+            MAX_RETRIES, BACKOFF);
+    }
+
+    @AfterAll
+    static void reset() {
+        SmsHttpClient.close();
+        SmsHttpClient.configure(SmsHttpClient.DEFAULT_CONNECT_TIMEOUT, SmsHttpClient.DEFAULT_MAX_CONNECTIONS_PER_HOST,
+            SmsHttpClient.DEFAULT_MAX_RETRIES, SmsHttpClient.DEFAULT_RETRY_BACKOFF);
+    }
+
+    @BeforeEach
+    void start() throws Exception {
+        // answers with the queued statuses, 200 once they ran out
+        server = LocalHttpsServer.start(exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            requests.incrementAndGet();
+            Integer status = statuses.poll();
+            exchange.sendResponseHeaders(status != null ? status : 200, -1);
+            exchange.close();
+        });
+        RealmModel realm = TestSessions.realm("realm-id", "test");
+        KeycloakContext context = mock(KeycloakContext.class);
+        when(context.getRealm()).thenReturn(realm);
+        KeycloakSession session = mock(KeycloakSession.class);
+        when(session.getContext()).thenReturn(context);
+        sender = new TestSender(session);
+    }
+
+    @AfterEach
+    void stop() {
+        server.close();
+    }
+
+    private CompletableFuture<HttpResponse<String>> send(String authority) {
+        return sender.send(HttpRequest.newBuilder(URI.create("https://" + authority + "/"))
+            .POST(HttpRequest.BodyPublishers.ofString("{}")));
+    }
+
+    private int status() throws Exception {
+        return send(server.authority()).get(5, TimeUnit.SECONDS).statusCode();
+    }
+
+    @Test
+    void turnedAwayRequestIsRetriedUntilItGoesThrough() throws Exception {
+        statuses.addAll(List.of(429, 503));
+
+        assertEquals(200, status());
+        assertEquals(3, requests.get());
+    }
+
+    @Test
+    void givesUpAfterTheConfiguredRetries() throws Exception {
+        statuses.addAll(List.of(503, 503, 503, 503));
+
+        assertEquals(503, status());
+        assertEquals(MAX_RETRIES + 1, requests.get());
+    }
+
+    @Test
+    void errorsTheGatewayMayHaveActedOnAreNotRetried() throws Exception {
+        statuses.addAll(List.of(500, 502));
+
+        assertEquals(500, status());
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    void refusedConnectionIsRetried() throws Exception {
+        int closedPort;
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            closedPort = socket.getLocalPort();
+        }
+
+        ExecutionException e = assertThrows(ExecutionException.class,
+            () -> send("localhost:" + closedPort).get(5, TimeUnit.SECONDS));
+        assertInstanceOf(ConnectException.class, e.getCause());
+        // asked after every attempt but the last, which had no retry left
+        assertEquals(MAX_RETRIES, sender.retryErrors.size());
+        sender.retryErrors.forEach(error -> assertInstanceOf(ConnectException.class, error));
+    }
+
+    @Test
+    void retryDelayDoublesWithEveryAttempt() {
+        assertEquals(Duration.ofMillis(BACKOFF), sender.retryDelay(1));
+        assertEquals(Duration.ofMillis(BACKOFF * 2), sender.retryDelay(2));
+        assertEquals(Duration.ofMillis(BACKOFF * 4), sender.retryDelay(3));
+    }
+}
@@ -0,0 +1,145 @@
+package cc.coopersoft.keycloak.phone.providers.spi;
+
+import cc.coopersoft.keycloak.phone.test.LocalHttpsServer;
+import com.sun.net.httpserver.HttpExchange;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SmsHttpClientTest {
+
+    private static final int MAX_CONNECTIONS = 2;
+
+    private final BlockingQueue<String> arrived = new LinkedBlockingQueue<>();
+    private final Semaphore answers = new Semaphore(0);
+    private LocalHttpsServer server;
+
+    @BeforeAll
+    static void trust() {
+        LocalHttpsServer.trustCertificate();
+        SmsHttpClient.configure(SmsHttpClient.DEFAULT_CONNECT_TIMEOUT, MAX_CONNECTIONS, 0, 0);
+    }
+
+    @AfterAll
+    static void reset() {
+        SmsHttpClient.close();
+        SmsHttpClient.configure(SmsHttpClient.DEFAULT_CONNECT_TIMEOUT, SmsHttpClient.DEFAULT_MAX_CONNECTIONS_PER_HOST,
+            SmsHttpClient.DEFAULT_MAX_RETRIES, SmsHttpClient.DEFAULT_RETRY_BACKOFF);
+    }
+
+    @BeforeEach
+    void start() throws Exception {
+        // every request waits for the test to let one answer
+        server = LocalHttpsServer.start(exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            arrived.add(exchange.getRequestURI().getPath());
+            answers.acquireUninterruptibly();
+            respond(exchange);
+        });
+    }
+
+    @AfterEach
+    void stop() {
+        answers.release(100);
+        server.close();
+    }
+
+    private static void respond(HttpExchange exchange) throws IOException {
+        exchange.sendResponseHeaders(204, -1);
+        exchange.close();
+    }
+
+    private CompletableFuture<HttpResponse<String>> send(String path) {
+        return SmsHttpClient.send(HttpRequest.newBuilder(URI.create("https://" + server.authority() + path))
+            .timeout(Duration.ofSeconds(10))
+            .GET()
+            .build());
+    }
+
+    private List<String> arrivals(int count) throws InterruptedException {
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String path = arrived.poll(5, TimeUnit.SECONDS);
+            assertNotNull(path, "request " + (i + 1) + " of " + count);
+            paths.add(path);
+        }
+        return paths;
+    }
+
+    @Test
+    void requestsBeyondTheBoundWaitForOneToComplete() throws Exception {
+        List<CompletableFuture<HttpResponse<String>>> sent = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            sent.add(send("/" + i));
+        }
+
+        assertEquals(List.of("/0", "/1"), arrivals(MAX_CONNECTIONS).stream().sorted().toList());
+        assertNull(arrived.poll(200, TimeUnit.MILLISECONDS));
+
+        answers.release();
+        // the waiting requests go out in the order they were sent
+        assertEquals(List.of("/2"), arrivals(1));
+        assertNull(arrived.poll(200, TimeUnit.MILLISECONDS));
+
+        answers.release(3);
+        assertEquals(List.of("/3"), arrivals(1));
+        for (CompletableFuture<HttpResponse<String>> response : sent) {
+            assertEquals(204, response.get(5, TimeUnit.SECONDS).statusCode());
+        }
+    }
+
+    @Test
+    void failedRequestGivesBackItsPermit() throws Exception {
+        int closedPort;
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            closedPort = socket.getLocalPort();
+        }
+        send("/0");
+        CompletableFuture<HttpResponse<String>> refused = SmsHttpClient.send(HttpRequest.newBuilder(
+            URI.create("https://localhost:" + closedPort + "/")).timeout(Duration.ofSeconds(10)).GET().build());
+        send("/1");
+        send("/2");
+
+        assertThrows(ExecutionException.class, () -> refused.get(5, TimeUnit.SECONDS));
+        assertEquals(List.of("/0", "/1"), arrivals(MAX_CONNECTIONS).stream().sorted().toList());
+        assertNull(arrived.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void hostsAreBoundedSeparately() throws Exception {
+        send("/0");
+        send("/1");
+        arrivals(MAX_CONNECTIONS);
+
+        String port = server.authority().substring(server.authority().indexOf(':') + 1);
+        CompletableFuture<HttpResponse<String>> otherHost = SmsHttpClient.send(HttpRequest.newBuilder(
+            URI.create("https://127.0.0.1:" + port + "/2")).timeout(Duration.ofSeconds(10)).GET().build());
+
+        assertEquals(List.of("/2"), arrivals(1));
+        answers.release(3);
+        assertEquals(204, otherHost.get(5, TimeUnit.SECONDS).statusCode());
+    }
+}
@@ -0,0 +1,75 @@
+package cc.coopersoft.keycloak.phone.providers.spi.impl;
+
+import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
+import cc.coopersoft.keycloak.phone.providers.ratelimit.ClusterRateLimiter;
+import cc.coopersoft.keycloak.phone.providers.representations.TokenCodePreSendCheck;
+import cc.coopersoft.keycloak.phone.providers.representations.TokenCodeRepresentation;
+import cc.coopersoft.keycloak.phone.test.InMemorySingleUseObjectProvider;
+import cc.coopersoft.keycloak.phone.test.TestSessions;
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.RealmModel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class InfinispanPhoneVerificationCodeProviderTest {
+
+    private DefaultCacheManager cacheManager;
+    private ClusterRateLimiter sendHistory;
+
+    @BeforeEach
+    void start() {
+        cacheManager = new DefaultCacheManager();
+        cacheManager.defineConfiguration("work", new ConfigurationBuilder().build());
+        Cache<String, Long> cache = cacheManager.getCache("work");
+        sendHistory = new ClusterRateLimiter(0);
+        sendHistory.setCache(cache);
+    }
+
+    @AfterEach
+    void stop() {
+        cacheManager.stop();
+    }
+
+    @Test
+    void concurrentSendsAreAllCounted() throws Exception {
+        RealmModel realm = TestSessions.realm("realm-id", "test");
+        InfinispanPhoneVerificationCodeProvider provider = new InfinispanPhoneVerificationCodeProvider(
+            TestSessions.session(realm, null, new InMemorySingleUseObjectProvider(), "10.0.0.1"), false, 5, sendHistory);
+
+        int sends = 200;
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < sends; i++) {
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    provider.persistCode(TokenCodeRepresentation.forPhoneNumber("+12025550123"), TokenCodeType.AUTH, 60);
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        TokenCodePreSendCheck check = provider.preSendCheck("+12025550123", TokenCodeType.AUTH, "10.0.0.1");
+        assertEquals(sends, check.getTargetCount());
+        assertEquals(sends, check.getSourceCount());
+    }
+}
@@ -0,0 +1,356 @@
+package cc.coopersoft.keycloak.phone.providers.spi.impl;
+
+import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
+import cc.coopersoft.keycloak.phone.providers.ratelimit.ClusterRateLimiter;
+import cc.coopersoft.keycloak.phone.providers.representations.TokenCodePreSendCheck;
+import cc.coopersoft.keycloak.phone.providers.representations.TokenCodeRepresentation;
+import cc.coopersoft.keycloak.phone.providers.spi.PhoneVerificationCodeProvider;
+import cc.coopersoft.keycloak.phone.test.InMemorySingleUseObjectProvider;
+import cc.coopersoft.keycloak.phone.test.TestDatabase;
+import cc.coopersoft.keycloak.phone.test.TestSessions;
+import jakarta.persistence.EntityManager;
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the same scenarios against the JPA and the Infinispan store, both have to pass the same assertions.
+ */
+class PhoneVerificationCodeProviderEquivalenceTest {
+
+    enum Store {
+        JPA,
+        INFINISPAN
+    }
+
+    private static final int MAX_ATTEMPTS = 3;
+    private static final int EXPIRES_IN = 60;
+    private static final String PHONE = "+12025550123";
+    private static final String OTHER_PHONE = "+12025550124";
+    private static final String FORMATTED_PHONE = "(202) 555-0123";
+    private static final String ADDR = "10.0.0.1";
+
+    private static TestDatabase database;
+    private static DefaultCacheManager cacheManager;
+
+    private final RealmModel realm = TestSessions.realm("realm-id", "test");
+    private EntityManager em;
+    private KeycloakSession session;
+
+    @BeforeAll
+    static void start() throws Exception {
+        database = new TestDatabase().migrate();
+        cacheManager = new DefaultCacheManager();
+        cacheManager.defineConfiguration("work", new ConfigurationBuilder().build());
+    }
+
+    @AfterAll
+    static void stop() throws Exception {
+        cacheManager.stop();
+        database.close();
+    }
+
+    @AfterEach
+    void clear() {
+        if (em != null) {
+            TestDatabase.inTransaction(em, e -> {
+                e.createQuery("DELETE FROM TokenCode").executeUpdate();
+            });
+            em.close();
+        }
+        cacheManager.getCache("work").clear();
+    }
+
+    private PhoneVerificationCodeProvider provider(Store store) {
+        em = database.entityManagerFactory().createEntityManager();
+        InMemorySingleUseObjectProvider singleUseObjects = new InMemorySingleUseObjectProvider();
+        session = TestSessions.session(realm, em, singleUseObjects, ADDR);
+        if (store == Store.JPA) {
+            return new DefaultPhoneVerificationCodeProvider(session, MAX_ATTEMPTS);
+        }
+        singleUseObjects.deferPuts(session.getTransactionManager());
+        Cache<String, Long> cache = cacheManager.getCache("work");
+        ClusterRateLimiter sendHistory = new ClusterRateLimiter(0);
+        sendHistory.setCache(cache);
+        return new InfinispanPhoneVerificationCodeProvider(session, false, MAX_ATTEMPTS, sendHistory);
+    }
+
+    /**
+     * Every call is a request of its own.
+     */
+    private <T> T call(Function<EntityManager, T> job) {
+        KeycloakTransactionManager transaction = session.getTransactionManager();
+        transaction.begin();
+        try {
+            T result = job.apply(em);
+            transaction.commit();
+            return result;
+        } catch (RuntimeException e) {
+            transaction.rollback();
+            throw e;
+        }
+    }
+
+    private TokenCodeRepresentation send(PhoneVerificationCodeProvider provider, String phoneNumber, TokenCodeType type) {
+        TokenCodeRepresentation token = TokenCodeRepresentation.forPhoneNumber(phoneNumber);
+        call(e -> {
+            provider.persistCode(token, type, EXPIRES_IN);
+            return null;
+        });
+        return token;
+    }
+
+    private boolean consume(PhoneVerificationCodeProvider provider, String phoneNumber, TokenCodeType type, String code) {
+        return call(e -> provider.consumeCode(realm, phoneNumber, type, code, "user-id"));
+    }
+
+    private boolean isAbusing(PhoneVerificationCodeProvider provider, String phoneNumber, int sourceMaximum,
+                              int targetMaximum) {
+        return call(e -> provider.isAbusing(phoneNumber, TokenCodeType.REGISTRATION, ADDR, sourceMaximum, targetMaximum));
+    }
+
+    private static String wrong(TokenCodeRepresentation token) {
+        return token.getCode().equals("000000") ? "000001" : "000000";
+    }
+
+    @ParameterizedTest
+    @EnumSource(Store.class)
+    void nothingOngoingBeforeTheFirstSend(Store store) {
+        PhoneVerificationCodeProvider provider = provider(store);
+
+        assertNull(call(e -> provider.ongoingProcess(PHONE, TokenCodeType.VERIFY)));
+        TokenCodePreSendCheck check = call(e -> provider.preSendCheck(PHONE, TokenCodeType.VERIFY, ADDR));
+        assertEquals(0, check.getTargetCount());
+        assertEquals(0, check.getSourceCount());
+        assertFalse(check.hasOngoing());
+    }
+
+    @ParameterizedTest
+    @EnumSource(Store.class)
+    void persistedCodeIsOngoing(Store store) {
+        PhoneVerificationCodeProvider provider = provider(store);
+        TokenCodeRepresentation token = send(provider, PHONE, TokenCodeType.VERIFY);
+
+        TokenCodeRepresentation ongoing = call(e -> provider.ongoingProcess(PHONE, TokenCodeType.VERIFY));
+        assertNotNull(ongoing);
+        assertEquals(token.getId(), ongoing.getId());
+        assertEquals(token.getCode(), ongoing.getCode());
+        assertEquals(PHONE, ongoing.getPhoneNumber());
+        assertEquals(TokenCodeType.VERIFY.name(), ongoing.getType());
+        assertFalse(ongoing.getConfirmed());
+        assertEquals(EXPIRES_IN * 1000L, ongoing.getExpiresAt().getTime() - ongoing.getCreatedAt().getTime());
+
+        TokenCodePreSendCheck check = call(e -> provider.preSendCheck(PHONE, TokenCodeType.VERIFY, ADDR));
+        assertEquals(1, check.getTargetCount());
+        assertEquals(1, check.getSourceCount());
+        assertEquals(ongoing.getExpiresAt().getTime(), check.getOngoingExpiresAt().getTime());
+    }
+
+    @ParameterizedTest
+    @EnumSource(Store.class)
+    void numbersAreCanonicalizedOnLookup(Store store) {
+        PhoneVerificationCodeProvider provider = provider(store);
+        TokenCodeRepresentation token = send(provider, PHONE, TokenCodeType.AUTH);
+
+        assertNotNull(call(e -> provider.ongoingProcess("+1 (202) 555-0123", TokenCodeType.AUTH)));
+        assertTrue(consume(provider, "202 555 0123", TokenCodeType.AUTH, token.getCode()));
+    }
+
+    @ParameterizedTest
+    @EnumSource(Store.class)
+    void codesAreKeptPerType(Store store) {
+        PhoneVerificationCodeProvider provider = provider(store);
+        TokenCodeRepresentation token = send(provider, PHONE, TokenCodeType.VERIFY);
+
+        assertNull(call(e -> provider.ongoingProcess(PHONE, TokenCodeType.AUTH)));
+        assertFalse(consume(provider, PHONE, TokenCodeType.AUTH, token.getCode()));
+        assertTrue(consume(provider, PHONE, TokenCodeType.VERIFY, token.getCode()));
+    }
+
+    @ParameterizedTest
+    @EnumSource(Store.class)
+    void codeIsConsumedOnce(Store store) {
+        PhoneVerificationCodeProvider provider = provider(store);
+        TokenCodeRepresentation token = send(provider, PHONE, TokenCodeType.VERIFY);
+
+        assertFalse(consume(provider, PHONE, TokenCodeType.VERIFY, wrong(token)));
+        assertTrue(consume(provider, PHONE, TokenCodeType.VERIFY, token.getCode()));
+        assertFalse(consume(provider, PHONE, TokenCodeType.VERIFY, token.getCode()));
+        assertNull(call(e -> provider.ongoingProcess(PHONE, TokenCodeType.VERIFY)));
+    }
+
+    @ParameterizedTest
+    @EnumSource(Store.class)
+    void verifyCodeDoesNotConsume(Store store) {
+        PhoneVerificationCodeProvider provider = provider(store);
+        TokenCodeRepresentation token = send(provider, PHONE, TokenCodeType.VERIFY);
+
+        assertNull(call(e -> provider.verifyCode(PHONE, TokenCodeType.VERIFY, wrong(token))));
+        TokenCodeRepresentation verified = call(e -> provider.verifyCode(PHONE, TokenCodeType.VERIFY, token.getCode()));
+        assertNotNull(verified);
+        assertEquals(token.getId(), verified.getId());
+        assertTrue(consume(provider, PHONE, TokenCodeType.VERIFY, token.getCode()));
+    }
+
+    @ParameterizedTest
+    @EnumSource(Store.class)
+    void tooManyWrongAnswersInvalidateTheCode(Store store) {
+        PhoneVerificationCodeProvider provider = provider(store);
+        TokenCodeRepresentation token = send(provider, PHONE, TokenCodeType.OTP);
+
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            assertFalse(consume(provider, PHONE, TokenCodeType.OTP, wrong(token)));
+        }
+        assertFalse(consume(provider, PHONE, TokenCodeType.OTP, token.getCode()));
+        assertNull(call(e -> provider.ongoingProcess(PHONE, TokenCodeType.OTP)));
+    }
+
+    @ParameterizedTest
+    @EnumSource(Store.class)
+    void lockOutOutlivesTheRollbackOfTheRequest(Store store) {
+        PhoneVerificationCodeProvider provider = provider(store);
+        TokenCodeRepresentation token = send(provider, PHONE, TokenCodeType.OTP);
+        for (int attempt = 0; attempt < MAX_ATTEMPTS - 1; attempt++) {
+            assertFalse(consume(provider, PHONE, TokenCodeType.OTP, wrong(token)));
+        }
+
+        // the last wrong answer fails the request
+        assertThrows(IllegalStateException.class, () -> call(e -> {
+            provider.consumeCode(realm, PHONE, TokenCodeType.OTP, wrong(token), "user-id");
+            throw new IllegalStateException("request failed");
+        }));
+
+        assertNull(call(e -> provider.ongoingProcess(PHONE, TokenCodeType.OTP)));
+    }
+
+    @ParameterizedTest
+    @EnumSource(Store.class)
+    void newCodeInAnotherFormatEndsTheLockOut(Store store) {
+        PhoneVerificationCodeProvider provider = provider(store);
+        TokenCodeRepresentation token = send(provider, PHONE, TokenCodeType.OTP);
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            assertFalse(consume(provider, PHONE, TokenCodeType.OTP, wrong(token)));
+        }
+        DefaultPhoneVerificationCodeProvider attempts = (DefaultPhoneVerificationCodeProvider) provider;
+        assertTrue(attempts.isLockedOut(realm, PHONE, TokenCodeType.OTP));
+
+        send(provider, FORMATTED_PHONE, TokenCodeType.OTP);
+
+        assertFalse(attempts.isLockedOut(realm, PHONE, TokenCodeType.OTP));
+    }
+
+    @ParameterizedTest
+    @EnumSource(Store.class)
+    void newCodeStartsWithNoWrongAnswers(Store store) {
+        PhoneVerificationCodeProvider provider = provider(store);
+        TokenCodeRepresentation first = send(provider, PHONE, TokenCodeType.OTP);
+        for (int attempt = 0; attempt < MAX_ATTEMPTS - 1; attempt++) {
+            assertFalse(consume(provider, PHONE, TokenCodeType.OTP, wrong(first)));
+        }
+        call(e -> {
+            provider.discardCode(first, TokenCodeType.OTP);
+            return null;
+        });
+
+        TokenCodeRepresentation second = send(provider, PHONE, TokenCodeType.OTP);
+        for (int attempt = 0; attempt < MAX_ATTEMPTS - 1; attempt++) {
+            assertFalse(consume(provider, PHONE, TokenCodeType.OTP, wrong(second)));
+        }
+        assertTrue(consume(provider, PHONE, TokenCodeType.OTP, second.getCode()));
+    }
+
+    @ParameterizedTest
+    @EnumSource(Store.class)
+    void discardedCodeIsGone(Store store) {
+        PhoneVerificationCodeProvider provider = provider(store);
+        TokenCodeRepresentation token = send(provider, PHONE, TokenCodeType.RESET);
+
+        call(e -> {
+            provider.discardCode(token, TokenCodeType.RESET);
+            return null;
+        });
+
+        assertNull(call(e -> provider.ongoingProcess(PHONE, TokenCodeType.RESET)));
+        assertFalse(consume(provider, PHONE, TokenCodeType.RESET, token.getCode()));
+    }
+
+    @ParameterizedTest
+    @EnumSource(Store.class)
+    void codeDiscardedByTheRequestThatPersistedItIsGone(Store store) {
+        PhoneVerificationCodeProvider provider = provider(store);
+        TokenCodeRepresentation token = TokenCodeRepresentation.forPhoneNumber(PHONE);
+
+        call(e -> {
+            provider.persistCode(token, TokenCodeType.OTP, EXPIRES_IN);
+            provider.discardCode(token, TokenCodeType.OTP);
+            return null;
+        });
+
+        assertNull(call(e -> provider.ongoingProcess(PHONE, TokenCodeType.OTP)));
+        assertFalse(consume(provider, PHONE, TokenCodeType.OTP, token.getCode()));
+    }
+
+    @ParameterizedTest
+    @EnumSource(Store.class)
+    void discardKeepsTheRestOfTheRequest(Store store) {
+        PhoneVerificationCodeProvider provider = provider(store);
+        TokenCodeRepresentation kept = TokenCodeRepresentation.forPhoneNumber(OTHER_PHONE);
+        TokenCodeRepresentation discarded = TokenCodeRepresentation.forPhoneNumber(PHONE);
+
+        call(e -> {
+            provider.persistCode(kept, TokenCodeType.OTP, EXPIRES_IN);
+            provider.persistCode(discarded, TokenCodeType.OTP, EXPIRES_IN);
+            provider.discardCode(discarded, TokenCodeType.OTP);
+            return null;
+        });
+
+        assertNull(call(e -> provider.ongoingProcess(PHONE, TokenCodeType.OTP)));
+        assertEquals(kept.getId(), call(e -> provider.ongoingProcess(OTHER_PHONE, TokenCodeType.OTP)).getId());
+        assertEquals(1, call(e -> provider.preSendCheck(PHONE, TokenCodeType.OTP, ADDR)).getTargetCount());
+    }
+
+    @ParameterizedTest
+    @EnumSource(Store.class)
+    void sendsAreCountedPerTargetAndSource(Store store) {
+        PhoneVerificationCodeProvider provider = provider(store);
+        for (int i = 0; i < 3; i++) {
+            TokenCodeRepresentation token = send(provider, PHONE, TokenCodeType.REGISTRATION);
+            call(e -> {
+                provider.discardCode(token, TokenCodeType.REGISTRATION);
+                return null;
+            });
+        }
+        send(provider, OTHER_PHONE, TokenCodeType.REGISTRATION);
+        send(provider, PHONE, TokenCodeType.AUTH);
+
+        TokenCodePreSendCheck check = call(e -> provider.preSendCheck(PHONE, TokenCodeType.REGISTRATION, ADDR));
+        assertEquals(3, check.getTargetCount());
+        assertEquals(4, check.getSourceCount());
+        assertFalse(check.hasOngoing());
+        assertEquals(0, call(e -> provider.preSendCheck(PHONE, TokenCodeType.REGISTRATION, "10.0.0.2")).getSourceCount());
+        TokenCodePreSendCheck withoutSource = call(e -> provider.preSendCheck(PHONE, TokenCodeType.REGISTRATION, null));
+        assertEquals(3, withoutSource.getTargetCount());
+        assertEquals(0, withoutSource.getSourceCount());
+
+        assertTrue(isAbusing(provider, PHONE, 10, 2));
+        assertTrue(isAbusing(provider, OTHER_PHONE, 3, 10));
+        assertFalse(isAbusing(provider, PHONE, 4, 3));
+    }
+}
@@ -0,0 +1,89 @@
+package cc.coopersoft.keycloak.phone.providers.spi.impl;
+
+import cc.coopersoft.keycloak.phone.test.InMemorySingleUseObjectProvider;
+import cc.coopersoft.keycloak.phone.test.TestSessions;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SendSingleFlightTest {
+
+    private static final String KEY = "realm-id:OTP:+12025550123";
+    private static final long WAIT_MILLIS = 300;
+    private static final int EXPIRES_IN = 60;
+
+    private final RealmModel realm = TestSessions.realm("realm-id", "test");
+    private final InMemorySingleUseObjectProvider store = new InMemorySingleUseObjectProvider();
+    private final CountDownLatch gatewayAnswers = new CountDownLatch(1);
+    private final AtomicInteger sends = new AtomicInteger();
+
+    @AfterEach
+    void answer() {
+        gatewayAnswers.countDown();
+    }
+
+    private KeycloakSession session() {
+        return TestSessions.session(realm, null, store, null);
+    }
+
+    /**
+     * Sends with a gateway that does not answer until the test is over.
+     */
+    private CompletableFuture<Integer> leader(SendSingleFlight singleFlight) throws InterruptedException {
+        CountDownLatch sending = new CountDownLatch(1);
+        CompletableFuture<Integer> leader = CompletableFuture.supplyAsync(() ->
+            singleFlight.send(session(), KEY, Optional::empty, () -> {
+                sends.incrementAndGet();
+                sending.countDown();
+                try {
+                    gatewayAnswers.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return EXPIRES_IN;
+            }, EXPIRES_IN));
+        assertTrue(sending.await(5, TimeUnit.SECONDS));
+        return leader;
+    }
+
+    private long follow(SendSingleFlight singleFlight) {
+        long start = System.nanoTime();
+        assertEquals(EXPIRES_IN, singleFlight.send(session(), KEY, Optional::empty, () -> {
+            sends.incrementAndGet();
+            return EXPIRES_IN;
+        }, EXPIRES_IN));
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    @Test
+    void followerOnTheSameNodeStopsWaitingForASlowGateway() throws Exception {
+        SendSingleFlight singleFlight = new SendSingleFlight(60, WAIT_MILLIS);
+        leader(singleFlight);
+
+        long waited = follow(singleFlight);
+
+        assertEquals(1, sends.get());
+        assertTrue(waited < WAIT_MILLIS + 1000, "waited " + waited + " ms");
+    }
+
+    @Test
+    void followerOnAnotherNodeStopsPollingForASlowGateway() throws Exception {
+        leader(new SendSingleFlight(60, WAIT_MILLIS));
+
+        long waited = follow(new SendSingleFlight(60, WAIT_MILLIS));
+
+        assertEquals(1, sends.get());
+        assertTrue(waited >= WAIT_MILLIS, "waited " + waited + " ms");
+        assertTrue(waited < WAIT_MILLIS + 1000, "waited " + waited + " ms");
+    }
+}
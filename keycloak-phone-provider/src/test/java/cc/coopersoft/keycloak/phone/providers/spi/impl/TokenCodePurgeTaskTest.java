@@ -0,0 +1,142 @@
+package cc.coopersoft.keycloak.phone.providers.spi.impl;
+
+import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
+import cc.coopersoft.keycloak.phone.providers.jpa.MessageDelivery;
+import cc.coopersoft.keycloak.phone.providers.jpa.MessageOutbox;
+import cc.coopersoft.keycloak.phone.providers.jpa.TokenCode;
+import cc.coopersoft.keycloak.phone.test.TestDatabase;
+import cc.coopersoft.keycloak.phone.test.TestSessions;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.persistence.EntityManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class TokenCodePurgeTaskTest {
+
+    private static final long RETENTION = TimeUnit.HOURS.toSeconds(1);
+
+    private final RealmModel realm = TestSessions.realm("realm-id", "test");
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private TestDatabase database;
+    private EntityManager em;
+    private KeycloakSession session;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        Metrics.addRegistry(registry);
+        database = new TestDatabase().migrate();
+        em = database.entityManagerFactory().createEntityManager();
+        session = TestSessions.session(realm, em, null, null);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        Metrics.removeRegistry(registry);
+        em.close();
+        database.close();
+    }
+
+    private static Date hoursAgo(int hours) {
+        return new Date(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(hours));
+    }
+
+    private void tokenCode(String id, Date createdAt) {
+        TokenCode code = new TokenCode();
+        code.setId(id);
+        code.setRealmId(realm.getId());
+        code.setPhoneNumber("+12025550101");
+        code.setType(TokenCodeType.OTP);
+        code.setLegacyType(TokenCodeType.OTP.name());
+        code.setCode("123456");
+        code.setCreatedAt(createdAt);
+        code.setExpiresAt(createdAt);
+        code.setConfirmed(false);
+        TestDatabase.inTransaction(em, e -> {
+            e.persist(code);
+        });
+    }
+
+    private void delivery(String id, Date sentAt) {
+        MessageDelivery delivery = new MessageDelivery();
+        delivery.setId(id);
+        delivery.setRealmId(realm.getId());
+        delivery.setService("outbox");
+        delivery.setMessageId("SM" + id);
+        delivery.setPhoneNumber("+12025550101");
+        delivery.setCountry("US");
+        delivery.setStatus(MessageDelivery.Status.SENT);
+        delivery.setSentAt(sentAt);
+        TestDatabase.inTransaction(em, e -> {
+            e.persist(delivery);
+        });
+    }
+
+    private void outbox(String id, Date createdAt, MessageOutbox.Status status) {
+        MessageOutbox row = new MessageOutbox();
+        row.setId(id);
+        row.setRealmId(realm.getId());
+        row.setService("outbox");
+        row.setType(TokenCodeType.OTP);
+        row.setPhoneNumber("+12025550101");
+        row.setCode("123456");
+        row.setExpiresIn(300);
+        row.setExpiresAt(createdAt);
+        row.setStatus(status);
+        row.setAttempts(0);
+        row.setCreatedAt(createdAt);
+        row.setNextAttemptAt(createdAt);
+        TestDatabase.inTransaction(em, e -> {
+            e.persist(row);
+        });
+    }
+
+    private double removed(String table) {
+        return registry.get("keycloak.phone.token.code.purge.removed").tag("table", table).counter().count();
+    }
+
+    @Test
+    void removedRowsAreCountedPerTable() {
+        tokenCode("old-1", hoursAgo(2));
+        tokenCode("old-2", hoursAgo(3));
+        tokenCode("new", new Date());
+        delivery("old", hoursAgo(2));
+        delivery("new", new Date());
+        outbox("failed", hoursAgo(2), MessageOutbox.Status.FAILED);
+        outbox("pending", hoursAgo(2), MessageOutbox.Status.PENDING);
+
+        new TokenCodePurgeTask(RETENTION, 500, 100, false).run(session);
+
+        assertEquals(2, removed("token_codes"));
+        assertEquals(1, removed("deliveries"));
+        assertEquals(1, removed("outbox"));
+        em.clear();
+        assertNotNull(em.find(TokenCode.class, "new"));
+        assertNull(em.find(TokenCode.class, "old-1"));
+        assertNotNull(em.find(MessageDelivery.class, "new"));
+        assertNotNull(em.find(MessageOutbox.class, "pending"));
+    }
+
+    @Test
+    void runStopsAfterItsBatches() {
+        tokenCode("old-1", hoursAgo(2));
+        tokenCode("old-2", hoursAgo(3));
+        tokenCode("old-3", hoursAgo(4));
+
+        new TokenCodePurgeTask(RETENTION, 1, 2, false).run(session);
+
+        assertEquals(2, removed("token_codes"));
+        em.clear();
+        assertNotNull(em.find(TokenCode.class, "old-1"));
+    }
+}
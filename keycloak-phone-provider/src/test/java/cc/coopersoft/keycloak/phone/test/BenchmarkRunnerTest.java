@@ -0,0 +1,28 @@
+package cc.coopersoft.keycloak.phone.test;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks of the module, all of them or those matching {@code -Dbenchmark=<regex>}. System
+ * properties starting with {@code benchmark.} are passed on to the forked benchmark JVMs. The benchmark
+ * profile has sender modules run it from this test jar, on their own benchmarks.
+ */
+@Tag("benchmark")
+public class BenchmarkRunnerTest {
+
+    @Test
+    public void run() throws RunnerException {
+        ChainedOptionsBuilder options = new OptionsBuilder()
+            .include(System.getProperty("benchmark", ".*Benchmark"))
+            .shouldFailOnError(true);
+        System.getProperties().stringPropertyNames().stream()
+            .filter(name -> name.startsWith("benchmark."))
+            .forEach(name -> options.jvmArgsAppend("-D" + name + "=" + System.getProperty(name)));
+        new Runner(options.build()).run();
+    }
+}
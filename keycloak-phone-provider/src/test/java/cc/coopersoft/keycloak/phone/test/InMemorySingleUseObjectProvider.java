@@ -0,0 +1,97 @@
+package cc.coopersoft.keycloak.phone.test;
+
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.SingleUseObjectProvider;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keycloak's single use object store over a map, with the lifespans and atomic operations of the Infinispan
+ * one.
+ */
+public class InMemorySingleUseObjectProvider implements SingleUseObjectProvider {
+
+    private record Entry(Map<String, String> notes, long expiresAt) {
+
+        boolean isLive() {
+            return expiresAt > System.currentTimeMillis();
+        }
+    }
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, Entry> pending = new ConcurrentHashMap<>();
+    private KeycloakTransactionManager transactions;
+
+    /**
+     * Holds puts back until the transaction commits, as the Infinispan store does, while removes still act at
+     * once.
+     */
+    public InMemorySingleUseObjectProvider deferPuts(KeycloakTransactionManager transactions) {
+        this.transactions = transactions;
+        return this;
+    }
+
+    private static long expiresAt(long lifespanSeconds) {
+        return System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(lifespanSeconds);
+    }
+
+    @Override
+    public void put(String key, long lifespanSeconds, Map<String, String> notes) {
+        Entry entry = new Entry(Map.copyOf(notes), expiresAt(lifespanSeconds));
+        if (transactions == null || !transactions.isActive()) {
+            entries.put(key, entry);
+            return;
+        }
+        if (pending.isEmpty()) {
+            transactions.enlist(new AbstractKeycloakTransaction() {
+                @Override
+                protected void commitImpl() {
+                    entries.putAll(pending);
+                    pending.clear();
+                }
+
+                @Override
+                protected void rollbackImpl() {
+                    pending.clear();
+                }
+            });
+        }
+        pending.put(key, entry);
+    }
+
+    @Override
+    public Map<String, String> get(String key) {
+        Entry entry = pending.containsKey(key) ? pending.get(key) : entries.get(key);
+        return entry == null || !entry.isLive() ? null : entry.notes();
+    }
+
+    @Override
+    public Map<String, String> remove(String key) {
+        Entry entry = entries.remove(key);
+        return entry == null || !entry.isLive() ? null : entry.notes();
+    }
+
+    @Override
+    public boolean replace(String key, Map<String, String> notes) {
+        return entries.computeIfPresent(key, (k, entry) -> entry.isLive()
+            ? new Entry(Map.copyOf(notes), entry.expiresAt()) : null) != null;
+    }
+
+    @Override
+    public boolean putIfAbsent(String key, long lifespanSeconds) {
+        Entry created = new Entry(Map.of(), expiresAt(lifespanSeconds));
+        return entries.compute(key, (k, entry) -> entry == null || !entry.isLive() ? created : entry) == created;
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,113 @@
+package cc.coopersoft.keycloak.phone.test;
+
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsParameters;
+import com.sun.net.httpserver.HttpsServer;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An HTTPS server on an ephemeral port of 127.0.0.1 standing in for a gateway's REST API, so senders can be
+ * measured with real connection setup and TLS but without the network. Its certificate is for
+ * {@code localhost} and {@code 127.0.0.1}, issued by itself; {@link #trustCertificate()} makes the JVM's
+ * default trust store the one holding it.
+ */
+public class LocalHttpsServer implements AutoCloseable {
+
+    private static final String KEYSTORE = "/localhost.p12";
+    private static final char[] PASSWORD = "changeit".toCharArray();
+
+    static {
+        // headers and body go out in separate writes, with Nagle every response would wait for a delayed ack
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpsServer server;
+    // platform threads, a client pinning the only carrier thread in a blocking SDK must not starve the server
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final AtomicLong connections = new AtomicLong();
+
+    private LocalHttpsServer(HttpHandler handler) throws IOException, GeneralSecurityException {
+        server = HttpsServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setHttpsConfigurator(new HttpsConfigurator(sslContext()) {
+            // called once per connection, before its handshake
+            @Override
+            public void configure(HttpsParameters params) {
+                connections.incrementAndGet();
+                super.configure(params);
+            }
+        });
+        server.setExecutor(executor);
+        server.createContext("/", handler);
+        server.start();
+    }
+
+    public static LocalHttpsServer start(HttpHandler handler) throws IOException, GeneralSecurityException {
+        return new LocalHttpsServer(handler);
+    }
+
+    /**
+     * Points {@code javax.net.ssl.trustStore} at the server's certificate, for clients that build their SSL
+     * context from the default trust managers. Call it before the first client is built.
+     */
+    public static void trustCertificate() {
+        try (InputStream in = LocalHttpsServer.class.getResourceAsStream(KEYSTORE)) {
+            Path trustStore = Files.createTempFile("localhost", ".p12");
+            trustStore.toFile().deleteOnExit();
+            Files.copy(in, trustStore, StandardCopyOption.REPLACE_EXISTING);
+            System.setProperty("javax.net.ssl.trustStore", trustStore.toString());
+            System.setProperty("javax.net.ssl.trustStorePassword", new String(PASSWORD));
+            System.setProperty("javax.net.ssl.trustStoreType", "PKCS12");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static SSLContext sslContext() throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = LocalHttpsServer.class.getResourceAsStream(KEYSTORE)) {
+            keyStore.load(in, PASSWORD);
+        }
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, PASSWORD);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), null, null);
+        return context;
+    }
+
+    /**
+     * @return {@code localhost:<port>}
+     */
+    public String authority() {
+        return "localhost:" + server.getAddress().getPort();
+    }
+
+    /**
+     * @return connections opened since the start, each with a full handshake unless the client resumed a
+     * session
+     */
+    public long connections() {
+        return connections.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.close();
+    }
+}
@@ -0,0 +1,133 @@
+package cc.coopersoft.keycloak.phone.test;
+
+import cc.coopersoft.keycloak.phone.providers.jpa.TokenCodeJpaEntityProvider;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import jakarta.persistence.PersistenceConfiguration;
+import liquibase.Contexts;
+import liquibase.LabelExpression;
+import liquibase.Liquibase;
+import liquibase.database.Database;
+import liquibase.database.DatabaseFactory;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.resource.ClassLoaderResourceAccessor;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * An H2 database, in-memory unless given another url, migrated with the module's Liquibase changelog the
+ * way Keycloak migrates it, with JPA on top for the entities Keycloak registers.
+ */
+public class TestDatabase implements AutoCloseable {
+
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+
+    private final String url;
+    // an in-memory database lives as long as a connection to it
+    private final Connection keepAlive;
+    private EntityManagerFactory entityManagerFactory;
+
+    public TestDatabase() throws SQLException {
+        this("jdbc:h2:mem:phone" + DATABASES.incrementAndGet() + ";DB_CLOSE_DELAY=-1");
+    }
+
+    public TestDatabase(String url) throws SQLException {
+        this.url = url;
+        this.keepAlive = DriverManager.getConnection(url, "sa", "");
+    }
+
+    /**
+     * Applies all changesets.
+     */
+    public TestDatabase migrate() throws Exception {
+        return migrate(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Applies the next changeSets changesets not applied yet.
+     */
+    public TestDatabase migrate(int changeSets) throws Exception {
+        Database database = DatabaseFactory.getInstance()
+            .findCorrectDatabaseImplementation(new JdbcConnection(connection()));
+        try (Liquibase liquibase = new Liquibase(new TokenCodeJpaEntityProvider().getChangelogLocation(),
+            new ClassLoaderResourceAccessor(), database)) {
+            if (changeSets == Integer.MAX_VALUE) {
+                liquibase.update(new Contexts(), new LabelExpression());
+            } else {
+                liquibase.update(changeSets, new Contexts(), new LabelExpression());
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Rolls back the last changeSets changesets applied.
+     */
+    public TestDatabase rollback(int changeSets) throws Exception {
+        Database database = DatabaseFactory.getInstance()
+            .findCorrectDatabaseImplementation(new JdbcConnection(connection()));
+        try (Liquibase liquibase = new Liquibase(new TokenCodeJpaEntityProvider().getChangelogLocation(),
+            new ClassLoaderResourceAccessor(), database)) {
+            liquibase.rollback(changeSets, null, new Contexts(), new LabelExpression());
+        }
+        return this;
+    }
+
+    /**
+     * @return a new connection, closed by the caller
+     */
+    public Connection connection() throws SQLException {
+        return DriverManager.getConnection(url, "sa", "");
+    }
+
+    public synchronized EntityManagerFactory entityManagerFactory() {
+        if (entityManagerFactory == null) {
+            PersistenceConfiguration configuration = new PersistenceConfiguration("phone")
+                .property(PersistenceConfiguration.JDBC_URL, url)
+                .property(PersistenceConfiguration.JDBC_USER, "sa")
+                .property(PersistenceConfiguration.JDBC_PASSWORD, "")
+                // the schema is Liquibase's, the entities have to match it
+                .property("hibernate.hbm2ddl.auto", "validate");
+            new TokenCodeJpaEntityProvider().getEntities().forEach(configuration::managedClass);
+            entityManagerFactory = configuration.createEntityManagerFactory();
+        }
+        return entityManagerFactory;
+    }
+
+    /**
+     * Runs job in a transaction of em and clears em after, like a Keycloak request would start over.
+     */
+    public static <T> T inTransaction(EntityManager em, Function<EntityManager, T> job) {
+        em.getTransaction().begin();
+        try {
+            T result = job.apply(em);
+            em.getTransaction().commit();
+            return result;
+        } finally {
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            em.clear();
+        }
+    }
+
+    public static void inTransaction(EntityManager em, Consumer<EntityManager> job) {
+        inTransaction(em, (Function<EntityManager, Void>) e -> {
+            job.accept(e);
+            return null;
+        });
+    }
+
+    @Override
+    public void close() throws SQLException {
+        if (entityManagerFactory != null) {
+            entityManagerFactory.close();
+        }
+        keepAlive.close();
+    }
+}
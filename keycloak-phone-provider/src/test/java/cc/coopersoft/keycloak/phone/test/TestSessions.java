@@ -0,0 +1,163 @@
+package cc.coopersoft.keycloak.phone.test;
+
+import cc.coopersoft.keycloak.phone.providers.policy.PhonePolicy;
+import cc.coopersoft.keycloak.phone.providers.spi.PhoneProvider;
+import jakarta.persistence.EntityManager;
+import org.keycloak.Config;
+import org.keycloak.common.ClientConnection;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.keycloak.models.SingleUseObjectProvider;
+import org.keycloak.models.UserProvider;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Mocked Keycloak sessions with just what the phone providers read from them.
+ */
+public final class TestSessions {
+
+    private TestSessions() {
+    }
+
+    public static RealmModel realm(String id, String name) {
+        RealmModel realm = mock(RealmModel.class);
+        when(realm.getId()).thenReturn(id);
+        when(realm.getName()).thenReturn(name);
+        return realm;
+    }
+
+    /**
+     * Numbers are kept in E164, without checking them against the numbering plan.
+     */
+    public static PhonePolicy policy(RealmModel realm) {
+        return new PhonePolicy(realm, false, false, false, 3600, Optional.of("E164"), Optional.of("US"),
+            Optional.empty());
+    }
+
+    /**
+     * The transaction of the session is the one of em. Jobs get sessions of their own, on entity managers
+     * of the same database and with the same realm and store.
+     *
+     * @param remoteAddr address of the request, null for a session without a connection
+     */
+    public static KeycloakSession session(RealmModel realm, EntityManager em, SingleUseObjectProvider store,
+                                          String remoteAddr) {
+        return session(realm, em, store, remoteAddr, null);
+    }
+
+    /**
+     * A session whose users, and those of its jobs, are read from users.
+     */
+    public static KeycloakSession session(RealmModel realm, EntityManager em, SingleUseObjectProvider store,
+                                          String remoteAddr, UserProvider users) {
+        KeycloakSession session = mock(KeycloakSession.class);
+        KeycloakContext context = mock(KeycloakContext.class);
+        when(session.getContext()).thenReturn(context);
+        when(context.getRealm()).thenReturn(realm);
+        if (remoteAddr != null) {
+            ClientConnection connection = mock(ClientConnection.class);
+            when(connection.getRemoteAddr()).thenReturn(remoteAddr);
+            when(connection.getRemoteHost()).thenReturn(remoteAddr);
+            when(connection.getRemotePort()).thenReturn(443);
+            when(context.getConnection()).thenReturn(connection);
+        }
+
+        JpaConnectionProvider jpa = mock(JpaConnectionProvider.class);
+        when(jpa.getEntityManager()).thenReturn(em);
+        when(session.getProvider(JpaConnectionProvider.class)).thenReturn(jpa);
+        when(session.singleUseObjects()).thenReturn(store);
+        RealmProvider realms = mock(RealmProvider.class);
+        when(realms.getRealm(realm.getId())).thenReturn(realm);
+        when(session.realms()).thenReturn(realms);
+        when(session.users()).thenReturn(users);
+
+        TestTransactionManager transactionManager = new TestTransactionManager(em);
+        when(session.getTransactionManager()).thenReturn(transactionManager);
+        KeycloakSessionFactory sessionFactory = mock(KeycloakSessionFactory.class);
+        when(sessionFactory.create()).thenAnswer(invocation -> {
+            EntityManager jobEm = em.getEntityManagerFactory().createEntityManager();
+            KeycloakSession job = session(realm, jobEm, store, null, users);
+            doAnswer(close -> {
+                if (job.getTransactionManager().isActive()) {
+                    job.getTransactionManager().commit();
+                }
+                jobEm.close();
+                return null;
+            }).when(job).close();
+            return job;
+        });
+        when(session.getKeycloakSessionFactory()).thenReturn(sessionFactory);
+
+        PhonePolicy policy = policy(realm);
+        PhoneProvider phoneProvider = mock(PhoneProvider.class);
+        when(phoneProvider.phonePolicy()).thenReturn(policy);
+        when(phoneProvider.phonePolicy(realm)).thenReturn(policy);
+        when(session.getProvider(PhoneProvider.class)).thenReturn(phoneProvider);
+        return session;
+    }
+
+    /**
+     * A provider config scope reading the given options, without Mockito so benchmarks can use it.
+     */
+    public static Config.Scope config(Map<String, String> options) {
+        return (Config.Scope) Proxy.newProxyInstance(Config.Scope.class.getClassLoader(),
+            new Class<?>[]{Config.Scope.class}, (proxy, method, args) -> {
+                String value = args != null && args[0] instanceof String key ? options.get(key) : null;
+                Object fallback = args != null && args.length > 1 ? args[1] : null;
+                return switch (method.getName()) {
+                    case "get" -> value != null ? value : fallback;
+                    case "getInt" -> value != null ? Integer.valueOf(value) : fallback;
+                    case "getLong" -> value != null ? Long.valueOf(value) : fallback;
+                    case "getBoolean" -> value != null ? Boolean.valueOf(value) : fallback;
+                    case "getArray" -> value != null ? value.split(",") : null;
+                    case "getPropertyNames" -> options.keySet();
+                    case "toString" -> options.toString();
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "equals" -> proxy == args[0];
+                    default -> throw new UnsupportedOperationException(method.getName());
+                };
+            });
+    }
+
+    /**
+     * The session of a realm {@code test}, displayed as {@code Test}, for benchmarks: built from plain proxies
+     * since Mockito's stubbing lookup is synchronized and would be what is measured. Attributes of the session
+     * and realm are unset, anything else throws.
+     */
+    public static KeycloakSession benchmarkSession() {
+        RealmModel realm = proxy(RealmModel.class, (proxy, method, args) -> switch (method.getName()) {
+            case "getId" -> "realm-id";
+            case "getName" -> "test";
+            case "getDisplayName" -> "Test";
+            case "getAttribute" -> null;
+            default -> throw new UnsupportedOperationException(method.getName());
+        });
+        KeycloakContext context = proxy(KeycloakContext.class, (proxy, method, args) -> {
+            if (method.getName().equals("getRealm")) {
+                return realm;
+            }
+            throw new UnsupportedOperationException(method.getName());
+        });
+        return proxy(KeycloakSession.class, (proxy, method, args) -> switch (method.getName()) {
+            case "getContext" -> context;
+            case "getAttribute" -> null;
+            default -> throw new UnsupportedOperationException(method.getName());
+        });
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, handler));
+    }
+}
@@ -0,0 +1,108 @@
+package cc.coopersoft.keycloak.phone.test;
+
+import jakarta.persistence.EntityManager;
+import org.keycloak.models.KeycloakTransaction;
+import org.keycloak.models.KeycloakTransactionManager;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The transaction of a test session: the JPA transaction of its entity manager, with the enlisted
+ * transactions ended before it and those enlisted after completion once it ended, as Keycloak ends a request.
+ */
+public class TestTransactionManager implements KeycloakTransactionManager {
+
+    private final EntityManager em;
+    private final List<KeycloakTransaction> enlisted = new ArrayList<>();
+    private final List<KeycloakTransaction> afterCompletion = new ArrayList<>();
+    private boolean rollbackOnly;
+    private JTAPolicy jtaPolicy = JTAPolicy.REQUIRES_NEW;
+
+    public TestTransactionManager(EntityManager em) {
+        this.em = em;
+    }
+
+    @Override
+    public void begin() {
+        rollbackOnly = false;
+        em.getTransaction().begin();
+    }
+
+    @Override
+    public void commit() {
+        if (rollbackOnly) {
+            rollback();
+            return;
+        }
+        enlisted.forEach(KeycloakTransaction::commit);
+        enlisted.clear();
+        em.getTransaction().commit();
+        complete(true);
+    }
+
+    @Override
+    public void rollback() {
+        enlisted.forEach(KeycloakTransaction::rollback);
+        enlisted.clear();
+        if (em.getTransaction().isActive()) {
+            em.getTransaction().rollback();
+        }
+        complete(false);
+    }
+
+    private void complete(boolean committed) {
+        em.clear();
+        List<KeycloakTransaction> transactions = new ArrayList<>(afterCompletion);
+        afterCompletion.clear();
+        for (KeycloakTransaction transaction : transactions) {
+            if (committed) {
+                transaction.commit();
+            } else {
+                transaction.rollback();
+            }
+        }
+    }
+
+    @Override
+    public void setRollbackOnly() {
+        rollbackOnly = true;
+    }
+
+    @Override
+    public boolean getRollbackOnly() {
+        return rollbackOnly;
+    }
+
+    @Override
+    public boolean isActive() {
+        return em.getTransaction().isActive();
+    }
+
+    @Override
+    public JTAPolicy getJTAPolicy() {
+        return jtaPolicy;
+    }
+
+    @Override
+    public void setJTAPolicy(JTAPolicy policy) {
+        this.jtaPolicy = policy;
+    }
+
+    @Override
+    public void enlist(KeycloakTransaction transaction) {
+        transaction.begin();
+        enlisted.add(transaction);
+    }
+
+    @Override
+    public void enlistAfterCompletion(KeycloakTransaction transaction) {
+        transaction.begin();
+        afterCompletion.add(transaction);
+    }
+
+    @Override
+    public void enlistPrepare(KeycloakTransaction transaction) {
+        enlist(transaction);
+    }
+}
@@ -0,0 +1,63 @@
+package cc.coopersoft.keycloak.phone.providers.sender;
+
+import cc.coopersoft.keycloak.phone.providers.representations.DeliveryReport;
+import cc.coopersoft.keycloak.phone.providers.spi.DeliveryReportParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.keycloak.util.JsonSerialization;
+
+import jakarta.ws.rs.core.MediaType;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the SmsReport messages Aliyun pushes over HTTP, reports keyed by the {@code BizId} SendSms and
+ * SendBatchSms returned, so numbers of a batch are told apart by {@code phone_number}.
+ */
+public class AliyunDeliveryReportParser implements DeliveryReportParser {
+
+  private static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+  private static final ZoneId ZONE = ZoneId.of("Asia/Shanghai");
+
+  @Override
+  public List<DeliveryReport> parse(MediaType mediaType, String body) {
+    JsonNode messages;
+    try {
+      messages = JsonSerialization.readValue(body, JsonNode.class);
+    } catch (IOException e) {
+      throw new IllegalArgumentException("not json", e);
+    }
+    if (!messages.isArray()) {
+      throw new IllegalArgumentException("not an array of reports");
+    }
+    List<DeliveryReport> reports = new ArrayList<>();
+    for (JsonNode message : messages) {
+      String bizId = message.path("biz_id").asText(null);
+      if (bizId == null) {
+        throw new IllegalArgumentException("biz_id missing");
+      }
+      String number = message.path("phone_number").asText(null);
+      if (message.path("success").asBoolean()) {
+        reports.add(new DeliveryReport(bizId, number, DeliveryReport.Status.DELIVERED, null,
+            date(message.path("report_time").asText(null))));
+      } else {
+        reports.add(new DeliveryReport(bizId, number, DeliveryReport.Status.FAILED,
+            message.path("err_code").asText(null), null));
+      }
+    }
+    return reports;
+  }
+
+  private static Instant date(String date) {
+    try {
+      return date == null ? null : LocalDateTime.parse(date, DATE).atZone(ZONE).toInstant();
+    } catch (DateTimeParseException e) {
+      return null;
+    }
+  }
+}
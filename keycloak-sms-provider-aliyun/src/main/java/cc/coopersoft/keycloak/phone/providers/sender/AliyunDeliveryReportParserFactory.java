@@ -0,0 +1,20 @@
+package cc.coopersoft.keycloak.phone.providers.sender;
+
+import cc.coopersoft.keycloak.phone.providers.spi.DeliveryReportParser;
+import cc.coopersoft.keycloak.phone.providers.spi.DeliveryReportParserProviderFactory;
+import org.keycloak.models.KeycloakSession;
+
+public class AliyunDeliveryReportParserFactory implements DeliveryReportParserProviderFactory {
+
+  private static final AliyunDeliveryReportParser PARSER = new AliyunDeliveryReportParser();
+
+  @Override
+  public DeliveryReportParser create(KeycloakSession session) {
+    return PARSER;
+  }
+
+  @Override
+  public String getId() {
+    return "aliyun";
+  }
+}
@@ -2,21 +2,41 @@ package cc.coopersoft.keycloak.phone.providers.sender;
 
 import cc.coopersoft.keycloak.phone.providers.spi.MessageSenderService;
 import cc.coopersoft.keycloak.phone.providers.spi.MessageSenderServiceProviderFactory;
+import com.aliyuncs.DefaultAcsClient;
+import com.aliyuncs.IAcsClient;
+import com.aliyuncs.http.HttpClientConfig;
+import com.aliyuncs.http.ProtocolType;
+import com.aliyuncs.profile.DefaultProfile;
 import org.keycloak.Config;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
 
+/**
+ * Owns the Aliyun client and its connection pool for all sessions.
+ */
 public class AliyunMessageSenderServiceProviderFactory implements MessageSenderServiceProviderFactory {
   private Config.Scope config;
+  private IAcsClient client;
 
   @Override
   public MessageSenderService create(KeycloakSession keycloakSession) {
-    return new AliyunSmsSenderServiceProvider(config, keycloakSession.getContext().getRealm());
+    return new AliyunSmsSenderServiceProvider(config, keycloakSession.getContext().getRealm(), client);
   }
 
   @Override
   public void init(Config.Scope config) {
     this.config = config;
+    HttpClientConfig clientConfig = HttpClientConfig.getDefault();
+    clientConfig.setProtocolType(ProtocolType.HTTPS);
+    clientConfig.setMaxRequestsPerHost(config.getInt("maxConnections", 50));
+    clientConfig.setMaxIdleConnections(config.getInt("maxConnections", 50));
+    clientConfig.setConnectionTimeoutMillis(config.getLong("connectTimeout", 5000L));
+    clientConfig.setReadTimeoutMillis(config.getLong("requestTimeout", 10000L));
+    clientConfig.setWriteTimeoutMillis(config.getLong("requestTimeout", 10000L));
+    clientConfig.setKeepAliveDurationMillis(config.getLong("keepAlive", 60000L));
+    DefaultProfile profile = DefaultProfile.getProfile(config.get("region"), config.get("key"), config.get("secret"));
+    profile.setHttpClientConfig(clientConfig);
+    this.client = new DefaultAcsClient(profile);
   }
 
   @Override
@@ -25,6 +45,9 @@ public class AliyunMessageSenderServiceProviderFactory implements MessageSenderS
 
   @Override
   public void close() {
+    if (client != null) {
+      client.shutdown();
+    }
   }
 
   @Override
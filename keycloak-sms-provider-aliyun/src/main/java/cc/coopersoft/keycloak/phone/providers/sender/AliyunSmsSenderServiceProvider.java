@@ -2,60 +2,167 @@ package cc.coopersoft.keycloak.phone.providers.sender;
 
 import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
 import cc.coopersoft.keycloak.phone.providers.exception.MessageSendException;
+import cc.coopersoft.keycloak.phone.providers.representations.OutgoingMessage;
+import cc.coopersoft.keycloak.phone.providers.representations.SendResult;
+import cc.coopersoft.keycloak.phone.providers.spi.BlockingSendExecutor;
 import cc.coopersoft.keycloak.phone.providers.spi.MessageSenderService;
 import cc.coopersoft.common.OptionalUtils;
 import com.aliyuncs.CommonRequest;
 import com.aliyuncs.CommonResponse;
-import com.aliyuncs.DefaultAcsClient;
 import com.aliyuncs.IAcsClient;
 import com.aliyuncs.exceptions.ClientException;
 import com.aliyuncs.http.MethodType;
-import com.aliyuncs.profile.DefaultProfile;
+import com.fasterxml.jackson.databind.JsonNode;
 import org.jboss.logging.Logger;
 import org.keycloak.Config;
 import org.keycloak.models.RealmModel;
+import org.keycloak.util.JsonSerialization;
 
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Supplier;
 
 public class AliyunSmsSenderServiceProvider implements MessageSenderService {
 
   private static final Logger logger = Logger.getLogger(AliyunSmsSenderServiceProvider.class);
 
+  // SendBatchSms accepts at most 100 numbers per request
+  private static final int BATCH_LIMIT = 100;
+  private static final String DEFAULT_ENDPOINT = "dysmsapi.aliyuncs.com";
+
   private final Config.Scope config;
   private final RealmModel realm;
   private final IAcsClient client;
+  private final String endpoint;
 
-  public AliyunSmsSenderServiceProvider(Config.Scope config, RealmModel realm) {
+  public AliyunSmsSenderServiceProvider(Config.Scope config, RealmModel realm, IAcsClient client) {
     this.config = config;
     this.realm = realm;
-    DefaultProfile profile = DefaultProfile.getProfile(config.get("region") , config.get("key"), config.get("secret"));
-    client = new DefaultAcsClient(profile);
-
+    this.client = client;
+    this.endpoint = config.get("endpoint", DEFAULT_ENDPOINT);
   }
 
   @Override
   public void sendSmsMessage(TokenCodeType type, String phoneNumber, String code, int expires, String kind) throws MessageSendException {
+    sendSms(templateId(type, kind), realm.getDisplayName().toLowerCase(), phoneNumber, code, expires);
+  }
 
+  @Override
+  public CompletionStage<SendResult> sendSmsMessageAsync(TokenCodeType type, String phoneNumber, String code,
+                                                         int expires, String kind) {
+    return prepareSmsMessage(type, phoneNumber, code, expires, kind).get();
+  }
+
+  /**
+   * Goes out through SendSms, which returns the message id delivery reports refer to.
+   */
+  @Override
+  public Supplier<CompletionStage<SendResult>> prepareSmsMessage(TokenCodeType type, String phoneNumber, String code,
+                                                                 int expires, String kind) {
+    String templateId = templateId(type, kind);
+    String signName = realm.getDisplayName().toLowerCase();
+    return () -> BlockingSendExecutor.supply(() -> sendSms(templateId, signName, phoneNumber, code, expires));
+  }
+
+  private String templateId(TokenCodeType type, String kind) {
     String kindName = OptionalUtils.ofBlank(kind).orElse(type.name().toLowerCase());
-    String templateId = Optional.ofNullable(config.get(realm.getName().toLowerCase() + "-" + kindName + "-template"))
+    return Optional.ofNullable(config.get(realm.getName().toLowerCase() + "-" + kindName + "-template"))
         .orElse(config.get(kindName + "-template"));
+  }
+
+  /**
+   * Messages sharing a template go out through SendBatchSms, up to 100 per request, each number with its own
+   * template parameters; a message without others sharing its template through SendSms.
+   */
+  @Override
+  public List<CompletionStage<SendResult>> sendBatch(List<OutgoingMessage> messages) {
+    List<CompletionStage<SendResult>> results = new ArrayList<>(Collections.nCopies(messages.size(), null));
+    Map<String, List<Integer>> byTemplate = new LinkedHashMap<>();
+    for (int i = 0; i < messages.size(); i++) {
+      OutgoingMessage m = messages.get(i);
+      byTemplate.computeIfAbsent(templateId(m.getType(), m.getKind()), k -> new ArrayList<>()).add(i);
+    }
 
+    String signName = realm.getDisplayName().toLowerCase();
+    byTemplate.forEach((templateId, indexes) -> {
+      for (int from = 0; from < indexes.size(); from += BATCH_LIMIT) {
+        List<Integer> chunk = indexes.subList(from, Math.min(indexes.size(), from + BATCH_LIMIT));
+        List<OutgoingMessage> batch = chunk.stream().map(messages::get).toList();
+        OutgoingMessage first = batch.get(0);
+        CompletableFuture<SendResult> sent = BlockingSendExecutor.supply(() -> batch.size() == 1
+                ? sendSms(templateId, signName, first.getPhoneNumber(), first.getCode(), first.getExpires())
+                : sendBatchSms(templateId, signName, batch))
+            .toCompletableFuture();
+        chunk.forEach(i -> results.set(i, sent));
+      }
+    });
+    return results;
+  }
+
+  private SendResult sendSms(String templateId, String signName, String phoneNumber, String code, int expires)
+      throws MessageSendException {
+    CommonRequest request = request("SendSms", templateId);
+    request.putQueryParameter("PhoneNumbers", phoneNumber);
+    request.putQueryParameter("SignName", signName);
+    request.putQueryParameter("TemplateParam", String.format("{\"code\":\"%s\",\"expires\":\"%s\"}", code, expires / 60));
+    return send(request);
+  }
+
+  private SendResult sendBatchSms(String templateId, String signName, List<OutgoingMessage> batch) throws MessageSendException {
+    List<String> phoneNumbers = batch.stream().map(OutgoingMessage::getPhoneNumber).toList();
+    List<Map<String, String>> params = batch.stream()
+        .map(m -> Map.of("code", m.getCode(), "expires", String.valueOf(m.getExpires() / 60)))
+        .toList();
+
+    CommonRequest request = request("SendBatchSms", templateId);
+    try {
+      request.putQueryParameter("PhoneNumberJson", JsonSerialization.writeValueAsString(phoneNumbers));
+      request.putQueryParameter("SignNameJson", JsonSerialization.writeValueAsString(Collections.nCopies(batch.size(), signName)));
+      request.putQueryParameter("TemplateParamJson", JsonSerialization.writeValueAsString(params));
+    } catch (IOException e) {
+      throw new MessageSendException("Error while writing Aliyun request.", e);
+    }
+    return send(request);
+  }
+
+  private CommonRequest request(String action, String templateId) {
     CommonRequest request = new CommonRequest();
     request.setSysMethod(MethodType.POST);
-    request.setSysDomain("dysmsapi.aliyuncs.com");
+    request.setSysDomain(endpoint);
     request.setSysVersion("2017-05-25");
-    request.setSysAction("SendSms");
+    request.setSysAction(action);
     request.putQueryParameter("RegionId", config.get("region"));
-    request.putQueryParameter("PhoneNumbers", phoneNumber);
-    request.putQueryParameter("SignName", realm.getDisplayName().toLowerCase());
     request.putQueryParameter("TemplateCode", templateId);
+    return request;
+  }
 
-    request.putQueryParameter("TemplateParam", String.format("{\"code\":\"%s\",\"expires\":\"%s\"}",code,expires / 60));
+  /**
+   * @return the outcome with the BizId Aliyun gave the request
+   */
+  private SendResult send(CommonRequest request) throws MessageSendException {
+    long start = System.nanoTime();
     try {
       CommonResponse response = client.getCommonResponse(request);
       logger.debug(response.getData());
+      JsonNode data = JsonSerialization.readValue(response.getData(), JsonNode.class);
+      String code = data.path("Code").asText();
+      if (!"OK".equals(code)) {
+        throw new MessageSendException(500, code, data.path("Message").asText());
+      }
+      return new SendResult(SendResult.Status.ACCEPTED, data.path("BizId").asText(null),
+          Duration.ofNanos(System.nanoTime() - start));
     } catch (ClientException e) {
       throw new MessageSendException(500,e.getErrCode(),e.getMessage());
+    } catch (IOException e) {
+      throw new MessageSendException("Error while reading Aliyun response.", e);
     }
   }
 
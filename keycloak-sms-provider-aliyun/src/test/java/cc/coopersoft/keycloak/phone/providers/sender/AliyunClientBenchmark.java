@@ -0,0 +1,119 @@
+package cc.coopersoft.keycloak.phone.providers.sender;
+
+import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
+import cc.coopersoft.keycloak.phone.providers.exception.MessageSendException;
+import cc.coopersoft.keycloak.phone.providers.spi.MessageSenderService;
+import cc.coopersoft.keycloak.phone.test.LocalHttpsServer;
+import cc.coopersoft.keycloak.phone.test.TestSessions;
+import com.aliyuncs.DefaultAcsClient;
+import com.aliyuncs.http.HttpClientConfig;
+import com.aliyuncs.http.ProtocolType;
+import com.aliyuncs.profile.DefaultProfile;
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cost of a SendSms call with a client built per session, as before the factory owned it, and with the
+ * factory's client, against a local HTTPS stand-in for the Aliyun API. The SDK keeps one Apache connection
+ * pool per JVM whichever client uses it, so what the shared client saves is building the client, its
+ * credentials and endpoint resolver on every send. Connections the stand-in accepted are printed at the end.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AliyunClientBenchmark {
+
+    private static final byte[] RESPONSE = "{\"Code\":\"OK\",\"Message\":\"OK\",\"BizId\":\"900619746936498440^0\",\"RequestId\":\"F655A8D5-B967-440B-8683-DAD6FF8DE990\"}"
+        .getBytes(StandardCharsets.UTF_8);
+
+    @Param({"perSession", "shared"})
+    public String client;
+
+    private final AtomicLong numbers = new AtomicLong();
+    private LocalHttpsServer server;
+    private AliyunMessageSenderServiceProviderFactory factory;
+    private Config.Scope config;
+    private RealmModel realm;
+    private KeycloakSession session;
+
+    @Setup
+    public void setup() throws Exception {
+        LocalHttpsServer.trustCertificate();
+        server = LocalHttpsServer.start(exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, RESPONSE.length);
+            exchange.getResponseBody().write(RESPONSE);
+            exchange.close();
+        });
+        config = TestSessions.config(Map.of(
+            "region", "cn-hangzhou",
+            "key", "LTAI-benchmark",
+            "secret", "benchmark",
+            "endpoint", server.authority(),
+            "otp-template", "SMS_0001"));
+        session = TestSessions.benchmarkSession();
+        realm = session.getContext().getRealm();
+        factory = new AliyunMessageSenderServiceProviderFactory();
+        factory.init(config);
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.out.printf("%n%s: %d connections opened%n", client, server.connections());
+        factory.close();
+        server.close();
+    }
+
+    /**
+     * @return the service the way the provider got it before the factory owned the client
+     */
+    private MessageSenderService perSession() {
+        HttpClientConfig clientConfig = HttpClientConfig.getDefault();
+        clientConfig.setProtocolType(ProtocolType.HTTPS);
+        DefaultProfile profile = DefaultProfile.getProfile(config.get("region"), config.get("key"),
+            config.get("secret"));
+        profile.setHttpClientConfig(clientConfig);
+        return new AliyunSmsSenderServiceProvider(config, realm, new DefaultAcsClient(profile));
+    }
+
+    private long send() throws MessageSendException {
+        long number = numbers.incrementAndGet();
+        MessageSenderService service = client.equals("shared") ? factory.create(session) : perSession();
+        service.sendSmsMessage(TokenCodeType.OTP, "1390000" + number % 10000, "123456", 300, null);
+        return number;
+    }
+
+    @Benchmark
+    public long singleThread() throws MessageSendException {
+        return send();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public long eightThreads() throws MessageSendException {
+        return send();
+    }
+}
@@ -0,0 +1,37 @@
+package cc.coopersoft.keycloak.phone.providers.sender;
+
+import cc.coopersoft.keycloak.phone.providers.representations.DeliveryReport;
+import org.junit.jupiter.api.Test;
+
+import jakarta.ws.rs.core.MediaType;
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class AliyunDeliveryReportParserTest {
+
+  private final AliyunDeliveryReportParser parser = new AliyunDeliveryReportParser();
+
+  @Test
+  void reportsOfABatchAreToldApartByNumber() {
+    List<DeliveryReport> reports = parser.parse(MediaType.APPLICATION_JSON_TYPE, """
+        [{"biz_id": "B1", "phone_number": "13800000000", "success": true,
+          "report_time": "2024-01-02 12:00:00", "err_code": "DELIVERED"},
+         {"biz_id": "B1", "phone_number": "13800000001", "success": false, "err_code": "MOBILE_NOT_ON_SERVICE"}]""");
+
+    assertEquals(List.of(
+        new DeliveryReport("B1", "13800000000", DeliveryReport.Status.DELIVERED, null,
+            Instant.parse("2024-01-02T04:00:00Z")),
+        new DeliveryReport("B1", "13800000001", DeliveryReport.Status.FAILED, "MOBILE_NOT_ON_SERVICE", null)),
+        reports);
+  }
+
+  @Test
+  void reportWithoutBizIdIsInvalid() {
+    assertThrows(IllegalArgumentException.class, () ->
+        parser.parse(MediaType.APPLICATION_JSON_TYPE, "[{\"phone_number\": \"13800000000\"}]"));
+    assertThrows(IllegalArgumentException.class, () -> parser.parse(MediaType.APPLICATION_JSON_TYPE, "not json"));
+  }
+}
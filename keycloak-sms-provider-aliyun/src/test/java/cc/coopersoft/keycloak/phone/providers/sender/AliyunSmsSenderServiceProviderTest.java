@@ -0,0 +1,102 @@
+package cc.coopersoft.keycloak.phone.providers.sender;
+
+import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
+import cc.coopersoft.keycloak.phone.providers.representations.OutgoingMessage;
+import cc.coopersoft.keycloak.phone.providers.representations.SendResult;
+import cc.coopersoft.keycloak.phone.providers.spi.MessageSenderService;
+import cc.coopersoft.keycloak.phone.test.LocalHttpsServer;
+import cc.coopersoft.keycloak.phone.test.TestSessions;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class AliyunSmsSenderServiceProviderTest {
+
+    private final List<String> actions = new CopyOnWriteArrayList<>();
+    private LocalHttpsServer server;
+    private AliyunMessageSenderServiceProviderFactory factory;
+    private MessageSenderService sender;
+
+    @BeforeAll
+    static void trust() {
+        LocalHttpsServer.trustCertificate();
+    }
+
+    @BeforeEach
+    void start() throws Exception {
+        server = LocalHttpsServer.start(exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            String query = exchange.getRequestURI().getQuery();
+            String action = query.replaceAll(".*\\bAction=(\\w+).*", "$1");
+            actions.add(action);
+            byte[] body = ("{\"Code\":\"OK\",\"Message\":\"OK\",\"BizId\":\"" + action + "^0\"}")
+                .getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        factory = new AliyunMessageSenderServiceProviderFactory();
+        factory.init(TestSessions.config(Map.of(
+            "region", "cn-hangzhou",
+            "key", "LTAI-test",
+            "secret", "test",
+            "endpoint", server.authority(),
+            "otp-template", "SMS_0001")));
+        RealmModel realm = TestSessions.realm("realm-id", "test");
+        when(realm.getDisplayName()).thenReturn("Test");
+        KeycloakContext context = mock(KeycloakContext.class);
+        when(context.getRealm()).thenReturn(realm);
+        KeycloakSession session = mock(KeycloakSession.class);
+        when(session.getContext()).thenReturn(context);
+        sender = factory.create(session);
+    }
+
+    @AfterEach
+    void stop() {
+        factory.close();
+        server.close();
+    }
+
+    private static OutgoingMessage message(String phoneNumber) {
+        return new OutgoingMessage(TokenCodeType.OTP, phoneNumber, "123456", 300, null);
+    }
+
+    private static String bizId(CompletionStage<SendResult> sent) {
+        return sent.toCompletableFuture().join().getProviderMessageId();
+    }
+
+    @Test
+    void singleMessageGoesOutThroughSendSms() {
+        assertEquals("SendSms^0", bizId(sender.sendSmsMessageAsync(TokenCodeType.OTP, "13900000001", "123456", 300, null)));
+        assertEquals(List.of("SendSms"), actions);
+    }
+
+    @Test
+    void batchOfOneGoesOutThroughSendSms() {
+        assertEquals("SendSms^0", bizId(sender.sendBatch(List.of(message("13900000001"))).get(0)));
+    }
+
+    @Test
+    void batchOfSeveralGoesOutThroughSendBatchSms() {
+        List<CompletionStage<SendResult>> sent = sender.sendBatch(List.of(message("13900000001"), message("13900000002")));
+
+        assertEquals("SendBatchSms^0", bizId(sent.get(0)));
+        assertEquals("SendBatchSms^0", bizId(sent.get(1)));
+        assertEquals(List.of("SendBatchSms"), actions);
+    }
+}
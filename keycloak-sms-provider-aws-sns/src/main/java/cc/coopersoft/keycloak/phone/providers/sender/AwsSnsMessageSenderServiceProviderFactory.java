@@ -2,30 +2,135 @@ package cc.coopersoft.keycloak.phone.providers.sender;
 
 import cc.coopersoft.keycloak.phone.providers.spi.MessageSenderService;
 import cc.coopersoft.keycloak.phone.providers.spi.MessageSenderServiceProviderFactory;
+import org.jboss.logging.Logger;
 import org.keycloak.Config;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.sns.SnsAsyncClient;
+import software.amazon.awssdk.services.sns.SnsAsyncClientBuilder;
+import software.amazon.awssdk.services.sns.model.MessageAttributeValue;
 
+import java.net.URI;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Owns the async SNS client, and with it the Netty connection pool and resolved credentials, for all sessions.
+ * The SMS message attributes are built once per realm: a realm may set its own sender id in the
+ * {@code awsSnsSenderId} attribute, otherwise the {@code sender} option applies. A routing table's sender id
+ * replaces both for the messages of its route.
+ */
 public class AwsSnsMessageSenderServiceProviderFactory implements MessageSenderServiceProviderFactory {
 
-    private Config.Scope config;
+    private static final Logger logger = Logger.getLogger(AwsSnsMessageSenderServiceProviderFactory.class);
+
+    static final String SNS_SENDER_ID_ATTRIBUTE = "AWS.SNS.SMS.SenderID";
+    private static final String SMS_TYPE_ATTRIBUTE = "AWS.SNS.SMS.SMSType";
+
+    private record RealmAttributes(String senderId, Map<String, MessageAttributeValue> attributes) {
+    }
+
+    private String senderId;
+    private String smsType;
+    private String realmAttribute;
+    private AwsCredentialsProvider credentials;
+    private SnsAsyncClient client;
+
+    private final Map<String, RealmAttributes> realmAttributes = new ConcurrentHashMap<>();
 
     @Override
     public MessageSenderService create(KeycloakSession keycloakSession) {
-        return new AwsSnsSmsSenderService(keycloakSession.getContext().getRealm().getDisplayName(), config);
+        return new AwsSnsSmsSenderService(keycloakSession, client,
+            attributes(keycloakSession.getContext().getRealm()));
     }
 
     @Override
     public void init(Config.Scope scope) {
-        this.config = scope;
+        this.senderId = scope.get("sender");
+        this.smsType = scope.get("smsType", "Transactional");
+        this.realmAttribute = scope.get("realmAttribute", "awsSnsSenderId");
+        this.credentials = DefaultCredentialsProvider.create();
+
+        long requestTimeout = scope.getLong("requestTimeout", 10000L);
+        SnsAsyncClientBuilder builder = SnsAsyncClient.builder()
+            .credentialsProvider(credentials)
+            .httpClientBuilder(NettyNioAsyncHttpClient.builder()
+                .maxConcurrency(scope.getInt("maxConnections", 50))
+                .connectionTimeout(Duration.ofMillis(scope.getLong("connectTimeout", 5000L)))
+                .connectionMaxIdleTime(Duration.ofMillis(scope.getLong("keepAlive", 60000L)))
+                .tcpKeepAlive(true))
+            .overrideConfiguration(o -> o.apiCallTimeout(Duration.ofMillis(requestTimeout)));
+        String region = scope.get("region");
+        if (region != null) {
+            builder.region(Region.of(region));
+        }
+        String endpoint = scope.get("endpoint");
+        if (endpoint != null) {
+            builder.endpointOverride(URI.create(endpoint));
+        }
+        this.client = builder.build();
     }
 
     @Override
     public void postInit(KeycloakSessionFactory keycloakSessionFactory) {
+        // resolving the default chain now keeps the lookup out of the first send
+        try {
+            credentials.resolveCredentials();
+        } catch (SdkClientException e) {
+            logger.warn("AWS credentials could not be resolved at startup, retrying on first send", e);
+        }
+        keycloakSessionFactory.register(event -> {
+            if (event instanceof RealmModel.RealmRemovedEvent removed) {
+                realmAttributes.remove(removed.getRealm().getId());
+            }
+        });
+    }
+
+    /**
+     * @return the message attributes of the realm, rebuilt only when its sender id changed
+     */
+    Map<String, MessageAttributeValue> attributes(RealmModel realm) {
+        String realmSenderId = realm.getAttribute(realmAttribute);
+        String effective = realmSenderId == null || realmSenderId.isBlank() ? senderId : realmSenderId;
+        RealmAttributes cached = realmAttributes.get(realm.getId());
+        if (cached == null || !Objects.equals(cached.senderId(), effective)) {
+            cached = new RealmAttributes(effective, buildAttributes(effective));
+            realmAttributes.put(realm.getId(), cached);
+        }
+        return cached.attributes();
+    }
+
+    private Map<String, MessageAttributeValue> buildAttributes(String senderId) {
+        Map<String, MessageAttributeValue> attributes = new HashMap<>();
+        if (senderId != null) {
+            attributes.put(SNS_SENDER_ID_ATTRIBUTE, MessageAttributeValue.builder()
+                .dataType("String")
+                .stringValue(senderId)
+                .build());
+        }
+        if (smsType != null && !smsType.isBlank()) {
+            attributes.put(SMS_TYPE_ATTRIBUTE, MessageAttributeValue.builder()
+                .dataType("String")
+                .stringValue(smsType)
+                .build());
+        }
+        return Map.copyOf(attributes);
     }
 
     @Override
     public void close() {
+        if (client != null) {
+            client.close();
+        }
     }
 
     @Override
@@ -1,61 +1,72 @@
 package cc.coopersoft.keycloak.phone.providers.sender;
 
 import cc.coopersoft.keycloak.phone.providers.exception.MessageSendException;
+import cc.coopersoft.keycloak.phone.providers.representations.SendResult;
 import cc.coopersoft.keycloak.phone.providers.spi.FullSmsSenderAbstractService;
-import com.amazonaws.services.sns.AmazonSNS;
-import com.amazonaws.services.sns.AmazonSNSClientBuilder;
-import com.amazonaws.services.sns.model.MessageAttributeValue;
-import com.amazonaws.services.sns.model.PublishRequest;
-import com.amazonaws.services.sns.model.PublishResult;
 import org.jboss.logging.Logger;
-import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import software.amazon.awssdk.services.sns.SnsAsyncClient;
+import software.amazon.awssdk.services.sns.model.MessageAttributeValue;
+import software.amazon.awssdk.services.sns.model.PublishRequest;
 
+import java.time.Duration;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 
 public class AwsSnsSmsSenderService extends FullSmsSenderAbstractService {
 
     private static final Logger logger = Logger.getLogger(AwsSnsSmsSenderService.class);
-    private final Config.Scope config;
+    private final SnsAsyncClient snsClient;
+    private final Map<String, MessageAttributeValue> smsAttributes;
 
-    public AwsSnsSmsSenderService(String realmDisplay, Config.Scope config) {
-        super(realmDisplay);
-        this.config = config;
+    public AwsSnsSmsSenderService(KeycloakSession session, SnsAsyncClient snsClient,
+                                  Map<String, MessageAttributeValue> smsAttributes) {
+        super(session);
+        this.snsClient = snsClient;
+        this.smsAttributes = smsAttributes;
     }
 
     @Override
     public void sendMessage(String phoneNumber, String message) throws MessageSendException {
-        AmazonSNS snsClient = AmazonSNSClientBuilder.standard().build();
-        String senderId = config.get("sender");
-
-        Map<String, MessageAttributeValue> smsAttributes = null;
-
-        if (senderId != null) {
-            smsAttributes = new HashMap<>();
-            smsAttributes.put("AWS.SNS.SMS.SenderID", new MessageAttributeValue()
-                    .withStringValue(senderId)
-                    .withDataType("String"));
-        }
-
-        logger.debug("Sending phone verification code via aws sns");
-
         try {
-            sendSMSMessage(snsClient, message, phoneNumber, smsAttributes);
-        } catch (Exception ex) {
-            String msg = "Could not send message via aws sns";
-            logger.error(msg, ex);
-            throw new MessageSendException(msg, ex);
+            sendMessageAsync(phoneNumber, message).toCompletableFuture().join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof MessageSendException sendException) {
+                throw sendException;
+            }
+            throw new MessageSendException("Could not send message via aws sns", e.getCause());
         }
     }
 
-    private static void sendSMSMessage(AmazonSNS snsClient, String message,
-                                       String phoneNumber, Map<String, MessageAttributeValue> smsAttributes) {
-        PublishResult result = snsClient.publish(new PublishRequest()
-                .withMessage(message)
-                .withPhoneNumber(phoneNumber)
-                .withMessageAttributes(smsAttributes));
-
-        logger.debug(String.format("Sent phone verification code via aws sns with message id %s", result.getMessageId()));
+    @Override
+    public CompletionStage<SendResult> sendMessageAsync(String phoneNumber, String message) {
+        logger.debug("Sending phone verification code via aws sns");
+        String senderId = routedSenderId();
+        Map<String, MessageAttributeValue> attributes = smsAttributes;
+        if (senderId != null) {
+            attributes = new HashMap<>(smsAttributes);
+            attributes.put(AwsSnsMessageSenderServiceProviderFactory.SNS_SENDER_ID_ATTRIBUTE,
+                MessageAttributeValue.builder().dataType("String").stringValue(senderId).build());
+        }
+        long start = System.nanoTime();
+        return snsClient.publish(PublishRequest.builder()
+                .message(message)
+                .phoneNumber(phoneNumber)
+                .messageAttributes(attributes)
+                .build())
+            .handle((result, ex) -> {
+                if (ex != null) {
+                    String msg = "Could not send message via aws sns";
+                    Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+                    logger.error(msg, cause);
+                    throw new CompletionException(new MessageSendException(msg, cause));
+                }
+                logger.debugf("Sent phone verification code via aws sns with message id %s", result.messageId());
+                return new SendResult(SendResult.Status.ACCEPTED, result.messageId(),
+                    Duration.ofNanos(System.nanoTime() - start));
+            });
     }
 
     @Override
@@ -0,0 +1,144 @@
+package cc.coopersoft.keycloak.phone.providers.sender;
+
+import cc.coopersoft.keycloak.phone.providers.exception.MessageSendException;
+import cc.coopersoft.keycloak.phone.test.LocalHttpsServer;
+import cc.coopersoft.keycloak.phone.test.TestSessions;
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Messages per second the aws sender publishes against a local HTTPS stand-in for SNS that answers after
+ * {@code latency} milliseconds, as the real API would. Each of the four threads sends {@value #WINDOW}
+ * messages per invocation:
+ * <ul>
+ *   <li>{@code clientPerSend} builds a client for every message and waits for it, as the sender did before
+ *   the factory owned the client;</li>
+ *   <li>{@code blocking} waits for every message on the factory's client;</li>
+ *   <li>{@code async} has all of them in flight at once through {@code sendMessageAsync}.</li>
+ * </ul>
+ * Connections the stand-in accepted are printed at the end.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AwsSnsSendBenchmark {
+
+    private static final int WINDOW = 32;
+    private static final String RESPONSE = """
+        <PublishResponse xmlns="http://sns.amazonaws.com/doc/2010-03-31/">
+          <PublishResult><MessageId>%s</MessageId></PublishResult>
+          <ResponseMetadata><RequestId>%s</RequestId></ResponseMetadata>
+        </PublishResponse>""";
+
+    @Param({"clientPerSend", "blocking", "async"})
+    public String send;
+
+    @Param({"0", "50"})
+    public long latency;
+
+    private final AtomicLong numbers = new AtomicLong();
+    private LocalHttpsServer server;
+    private Config.Scope config;
+    private KeycloakSession session;
+    private AwsSnsMessageSenderServiceProviderFactory factory;
+
+    @Setup
+    public void setup() throws Exception {
+        LocalHttpsServer.trustCertificate();
+        System.setProperty("aws.accessKeyId", "AKIDBENCHMARK");
+        System.setProperty("aws.secretAccessKey", "benchmark");
+        server = LocalHttpsServer.start(exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] body = RESPONSE.formatted(UUID.randomUUID(), UUID.randomUUID()).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/xml");
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        config = TestSessions.config(Map.of(
+            "region", "us-east-1",
+            "endpoint", "https://" + server.authority(),
+            "sender", "Benchmark",
+            "maxConnections", "200"));
+        session = TestSessions.benchmarkSession();
+        factory = new AwsSnsMessageSenderServiceProviderFactory();
+        factory.init(config);
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.out.printf("%n%s, %d ms: %d connections opened%n", send, latency, server.connections());
+        factory.close();
+        server.close();
+    }
+
+    private String number() {
+        return "+1650253" + String.format("%04d", numbers.incrementAndGet() % 10000);
+    }
+
+    private void sendWithOwnClient() throws MessageSendException {
+        AwsSnsMessageSenderServiceProviderFactory own = new AwsSnsMessageSenderServiceProviderFactory();
+        own.init(config);
+        try {
+            ((AwsSnsSmsSenderService) own.create(session)).sendMessage(number(), "Your code is 123456");
+        } finally {
+            own.close();
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    @OperationsPerInvocation(WINDOW)
+    public void publish() throws MessageSendException {
+        switch (send) {
+            case "clientPerSend" -> {
+                for (int i = 0; i < WINDOW; i++) {
+                    sendWithOwnClient();
+                }
+            }
+            case "blocking" -> {
+                AwsSnsSmsSenderService service = (AwsSnsSmsSenderService) factory.create(session);
+                for (int i = 0; i < WINDOW; i++) {
+                    service.sendMessage(number(), "Your code is 123456");
+                }
+            }
+            default -> {
+                AwsSnsSmsSenderService service = (AwsSnsSmsSenderService) factory.create(session);
+                CompletableFuture<?>[] sent = new CompletableFuture<?>[WINDOW];
+                for (int i = 0; i < WINDOW; i++) {
+                    sent[i] = service.sendMessageAsync(number(), "Your code is 123456").toCompletableFuture();
+                }
+                CompletableFuture.allOf(sent).join();
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package cc.coopersoft.keycloak.phone.providers.sender;
+
+import cc.coopersoft.keycloak.phone.providers.representations.DeliveryReport;
+import cc.coopersoft.keycloak.phone.providers.spi.DeliveryReportParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.keycloak.util.JsonSerialization;
+
+import jakarta.ws.rs.core.MediaType;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the messages a Bulksms webhook posts, the same representation the messages API returns, with the
+ * status they moved to.
+ */
+public class BulksmsDeliveryReportParser implements DeliveryReportParser {
+
+    @Override
+    public List<DeliveryReport> parse(MediaType mediaType, String body) {
+        JsonNode messages;
+        try {
+            messages = JsonSerialization.readValue(body, JsonNode.class);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("not json", e);
+        }
+        if (!messages.isArray()) {
+            throw new IllegalArgumentException("not an array of messages");
+        }
+        List<DeliveryReport> reports = new ArrayList<>();
+        for (JsonNode message : messages) {
+            String id = message.path("id").asText(null);
+            if (id == null) {
+                throw new IllegalArgumentException("id missing");
+            }
+            JsonNode status = message.path("status");
+            switch (status.path("type").asText()) {
+                case "DELIVERED" -> reports.add(new DeliveryReport(id, message.path("to").asText(null),
+                        DeliveryReport.Status.DELIVERED, null, null));
+                case "FAILED" -> reports.add(new DeliveryReport(id, message.path("to").asText(null),
+                        DeliveryReport.Status.FAILED, status.path("id").asText(null), null));
+                default -> {
+                }
+            }
+        }
+        return reports;
+    }
+}
@@ -1,16 +1,27 @@
 package cc.coopersoft.keycloak.phone.providers.sender;
 
 import cc.coopersoft.keycloak.phone.providers.exception.MessageSendException;
-import cc.coopersoft.keycloak.phone.providers.spi.FullSmsSenderAbstractService;
+import cc.coopersoft.keycloak.phone.providers.representations.SendResult;
+import cc.coopersoft.keycloak.phone.providers.spi.AsyncHttpSmsSenderAbstractService;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import org.jboss.logging.Logger;
-import org.keycloak.broker.provider.util.SimpleHttp;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.Config.Scope;
+import org.keycloak.util.JsonSerialization;
 
 import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
-public class BulksmsSmsSenderServiceProvider extends FullSmsSenderAbstractService {
+public class BulksmsSmsSenderServiceProvider extends AsyncHttpSmsSenderAbstractService {
 
     public static final String CONFIG_API_SERVER = "url";
     public static final String CONFIG_API_USERNAME = "username";
@@ -44,8 +55,8 @@ public class BulksmsSmsSenderServiceProvider extends FullSmsSenderAbstractServic
         }
     }
 
-    BulksmsSmsSenderServiceProvider(Scope config, KeycloakSession session) {
-        super(session);
+    BulksmsSmsSenderServiceProvider(Scope config, KeycloakSession session, Duration requestTimeout) {
+        super(session, requestTimeout);
 
         String configUrl = config.get(CONFIG_API_SERVER);
         this.url = configUrl != null ? configUrl : "https://api.bulksms.com/v1/messages";
@@ -57,27 +68,69 @@ public class BulksmsSmsSenderServiceProvider extends FullSmsSenderAbstractServic
     }
 
     @Override
-    public void sendMessage(String phoneNumber, String message) throws MessageSendException {
-        SimpleHttp req = SimpleHttp.doPost(url, session);
-        req.json(new BulksmsMessage[] {
-                new BulksmsMessage(this.from, phoneNumber, message, this.encoding, this.routingGroup) });
-        req.authBasic(this.username, this.password);
+    public CompletionStage<SendResult> sendMessageAsync(String phoneNumber, String message) {
+        return sendMessageBatch(List.of(new TextMessage(phoneNumber, message))).get(0);
+    }
+
+    /**
+     * All messages go in one request, Bulksms answers with the submitted messages in the same order. They
+     * are sent from a routing table's sender id when given one.
+     */
+    @Override
+    public List<CompletionStage<SendResult>> sendMessageBatch(List<TextMessage> messages) {
+        List<CompletableFuture<SendResult>> results = new ArrayList<>();
+        messages.forEach(m -> results.add(new CompletableFuture<>()));
+        String senderId = routedSenderId();
+        String from = senderId != null ? senderId : this.from;
+        BulksmsMessage[] payload = messages.stream()
+                .map(m -> new BulksmsMessage(from, m.phoneNumber(), m.message(), this.encoding, this.routingGroup))
+                .toArray(BulksmsMessage[]::new);
+
+        String body;
         try {
-            SimpleHttp.Response res = req.asResponse();
-            if (res.getStatus() >= 200 && res.getStatus() <= 299) {
-                logger.debugv("Sent SMS to {0} with contents: {1}. Server responded with: {2}", phoneNumber, message,
-                        res.asString());
+            body = JsonSerialization.writeValueAsString(payload);
+        } catch (IOException ex) {
+            MessageSendException failure = new MessageSendException("Error while writing Bulksms request.", ex);
+            results.forEach(r -> r.completeExceptionally(failure));
+            return List.copyOf(results);
+        }
+        String credentials = Base64.getEncoder()
+                .encodeToString((this.username + ":" + this.password).getBytes(StandardCharsets.UTF_8));
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(url))
+                .header("Authorization", "Basic " + credentials)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body));
+        long start = System.nanoTime();
+        send(request).whenComplete((res, ex) -> {
+            if (ex != null) {
+                logger.errorv(ex,
+                        "Failed to send {0} SMS. An error occurred while communicating with SMS service {1}.",
+                        messages.size(), url);
+                MessageSendException failure = new MessageSendException("Error while communicating with Bulksms API.", ex);
+                results.forEach(r -> r.completeExceptionally(failure));
+            } else if (!isSuccess(res)) {
+                logger.errorv("Failed to deliver {0} SMS. Server responded with: {1}", messages.size(), res.body());
+                MessageSendException failure = new MessageSendException("Bulksms API responded with an error.",
+                        new Exception(res.body()));
+                results.forEach(r -> r.completeExceptionally(failure));
             } else {
-                logger.errorv("Failed to deliver SMS to {0} with contents: {1}. Server responded with: {2}",
-                        phoneNumber,
-                        message, res.asString());
-                throw new MessageSendException("Bulksms API responded with an error.", new Exception(res.asString()));
+                logger.debugv("Sent {0} SMS. Server responded with: {1}", messages.size(), res.body());
+                Duration latency = Duration.ofNanos(System.nanoTime() - start);
+                JsonNode submitted = submitted(res.body());
+                for (int i = 0; i < results.size(); i++) {
+                    results.get(i).complete(new SendResult(SendResult.Status.ACCEPTED,
+                            submitted.path(i).path("id").asText(null), latency));
+                }
             }
-        } catch (IOException ex) {
-            logger.errorv(ex,
-                    "Failed to send SMS to {0} with contents: {1}. An IOException occurred while communicating with SMS service {0}.",
-                    phoneNumber, message, url);
-            throw new MessageSendException("Error while communicating with Bulksms API.", ex);
+        });
+        return List.copyOf(results);
+    }
+
+    private static JsonNode submitted(String body) {
+        try {
+            return JsonSerialization.readValue(body, JsonNode.class);
+        } catch (IOException e) {
+            return JsonSerialization.mapper.missingNode();
         }
     }
 
@@ -0,0 +1,36 @@
+package cc.coopersoft.keycloak.phone.providers.sender;
+
+import cc.coopersoft.keycloak.phone.providers.representations.DeliveryReport;
+import org.junit.jupiter.api.Test;
+
+import jakarta.ws.rs.core.MediaType;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class BulksmsDeliveryReportParserTest {
+
+    private final BulksmsDeliveryReportParser parser = new BulksmsDeliveryReportParser();
+
+    @Test
+    void deliveredAndFailedMessagesAreRead() {
+        List<DeliveryReport> reports = parser.parse(MediaType.APPLICATION_JSON_TYPE, """
+            [{"id": "1", "to": "27821234567", "status": {"id": "DELIVERED.null", "type": "DELIVERED"}},
+             {"id": "2", "to": "27821234568", "status": {"id": "FAILED.ABSENT", "type": "FAILED"}},
+             {"id": "3", "to": "27821234569", "status": {"id": "SENT.null", "type": "SENT"}}]""");
+
+        assertEquals(List.of(
+            new DeliveryReport("1", "27821234567", DeliveryReport.Status.DELIVERED, null, null),
+            new DeliveryReport("2", "27821234568", DeliveryReport.Status.FAILED, "FAILED.ABSENT", null)), reports);
+    }
+
+    @Test
+    void bodyThatIsNoArrayOfMessagesIsInvalid() {
+        assertThrows(IllegalArgumentException.class, () ->
+            parser.parse(MediaType.APPLICATION_JSON_TYPE, "{\"id\": \"1\"}"));
+        assertThrows(IllegalArgumentException.class, () ->
+            parser.parse(MediaType.APPLICATION_JSON_TYPE, "[{\"to\": \"27821234567\"}]"));
+        assertThrows(IllegalArgumentException.class, () -> parser.parse(MediaType.APPLICATION_JSON_TYPE, "<xml/>"));
+    }
+}
@@ -2,31 +2,76 @@ package cc.coopersoft.keycloak.phone.providers.sender;
 
 import cc.coopersoft.keycloak.phone.providers.spi.MessageSenderService;
 import cc.coopersoft.keycloak.phone.providers.spi.MessageSenderServiceProviderFactory;
+import com.cloopen.rest.sdk.BodyType;
+import com.cloopen.rest.sdk.CCPRestSmsSDK;
 import org.keycloak.Config;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps one SDK client per app id for all sessions; the app id is client state, so realms with their own
+ * app do not share one. Sharing it saves building the client only: the SDK opens and closes an HTTP client,
+ * and with it a connection, on every request, see {@code CloopenClientBenchmark}.
+ */
 public class CloopenMessageSenderServiceProviderFactory implements MessageSenderServiceProviderFactory {
 
+    //生产环境请求地址：app.cloopen.com
+    private static final String SERVER_IP = "app.cloopen.com";
+    //请求端口
+    private static final String SERVER_PORT = "8883";
+
     private Config.Scope config;
+    private String serverIp;
+    private String serverPort;
+    private final Map<String, CCPRestSmsSDK> clients = new ConcurrentHashMap<>();
 
     @Override
     public MessageSenderService create(KeycloakSession session) {
 
-        return new CloopenSmsSenderServiceProvider(config,session.getContext().getRealm());
+        return new CloopenSmsSenderServiceProvider(config,session.getContext().getRealm(), this::client);
+    }
+
+    private CCPRestSmsSDK client(String appId) {
+        return clients.computeIfAbsent(appId, id -> {
+            CCPRestSmsSDK client = new CCPRestSmsSDK();
+            client.init(serverIp, serverPort);
+            //主账号,登陆云通讯网站后,可在控制台首页看到开发者主账号ACCOUNT SID和主账号令牌AUTH TOKEN
+            client.setAccount(config.get("account"), config.get("token"));
+            client.setAppId(id);
+            client.setBodyType(BodyType.Type_JSON);
+            return client;
+        });
     }
 
     @Override
     public void init(Config.Scope config) {
         this.config = config;
+        // host:port of the API, e.g. a gateway or a stand-in
+        String endpoint = config.get("endpoint");
+        if (endpoint != null) {
+            int colon = endpoint.lastIndexOf(':');
+            this.serverIp = colon < 0 ? endpoint : endpoint.substring(0, colon);
+            this.serverPort = colon < 0 ? SERVER_PORT : endpoint.substring(colon + 1);
+        } else {
+            this.serverIp = SERVER_IP;
+            this.serverPort = SERVER_PORT;
+        }
     }
 
     @Override
     public void postInit(KeycloakSessionFactory keycloakSessionFactory) {
+        String appId = config.get("app");
+        if (appId != null) {
+            client(appId);
+        }
     }
 
     @Override
     public void close() {
+        clients.clear();
     }
 
     @Override
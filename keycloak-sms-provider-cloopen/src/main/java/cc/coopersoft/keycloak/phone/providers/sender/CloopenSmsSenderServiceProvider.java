@@ -1,8 +1,9 @@
 package cc.coopersoft.keycloak.phone.providers.sender;
 
+import cc.coopersoft.keycloak.phone.providers.representations.SendResult;
+import cc.coopersoft.keycloak.phone.providers.spi.BlockingSendExecutor;
 import cc.coopersoft.keycloak.phone.providers.spi.MessageSenderService;
 import cc.coopersoft.common.OptionalUtils;
-import com.cloopen.rest.sdk.BodyType;
 import com.cloopen.rest.sdk.CCPRestSmsSDK;
 import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
 import cc.coopersoft.keycloak.phone.providers.exception.MessageSendException;
@@ -12,6 +13,9 @@ import org.keycloak.models.RealmModel;
 
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 public class CloopenSmsSenderServiceProvider implements MessageSenderService {
 
@@ -20,33 +24,18 @@ public class CloopenSmsSenderServiceProvider implements MessageSenderService {
 
     private static final String TEMPLATE_PARAM_NAME = "-template";
     private static final Logger logger = Logger.getLogger(CloopenSmsSenderServiceProvider.class);
-    private final CCPRestSmsSDK client;
+    private final Function<String, CCPRestSmsSDK> clients;
 
     private final Config.Scope config;
     private final RealmModel realm;
 
-    public CloopenSmsSenderServiceProvider(Config.Scope config, RealmModel realm) {
-
+    /**
+     * @param clients the shared client of an app id
+     */
+    public CloopenSmsSenderServiceProvider(Config.Scope config, RealmModel realm, Function<String, CCPRestSmsSDK> clients) {
         this.config = config;
         this.realm = realm;
-
-        //生产环境请求地址：app.cloopen.com
-        String serverIp = "app.cloopen.com";
-        //请求端口
-        String serverPort = "8883";
-        //主账号,登陆云通讯网站后,可在控制台首页看到开发者主账号ACCOUNT SID和主账号令牌AUTH TOKEN
-        String accountSId = config.get("account");
-        String accountToken = config.get("token");
-
-
-        logger.info(String.format("cloopen account: %s ; accountToken: %s", accountSId, accountToken));
-
-        client = new CCPRestSmsSDK();
-        client.init(serverIp, serverPort);
-        client.setAccount(accountSId, accountToken);
-
-        client.setBodyType(BodyType.Type_JSON);
-
+        this.clients = clients;
     }
 
     @Override
@@ -56,14 +45,45 @@ public class CloopenSmsSenderServiceProvider implements MessageSenderService {
 
     @Override
     public void sendSmsMessage(TokenCodeType type, String phoneNumber, String code, int expires, String kind) throws MessageSendException {
+        sendTemplateSms(appId(), templateId(type, kind), phoneNumber, code, expires);
+    }
+
+    @Override
+    public CompletionStage<SendResult> sendSmsMessageAsync(TokenCodeType type, String phoneNumber, String code,
+                                                           int expires, String kind) {
+        return prepareSmsMessage(type, phoneNumber, code, expires, kind).get();
+    }
+
+    /**
+     * The app id and template are read on the calling thread, the SDK call runs on a {@link BlockingSendExecutor}
+     * thread.
+     */
+    @Override
+    public Supplier<CompletionStage<SendResult>> prepareSmsMessage(TokenCodeType type, String phoneNumber, String code,
+                                                                   int expires, String kind) {
+        String appId = appId();
+        String templateId = templateId(type, kind);
+        return () -> BlockingSendExecutor.submit(() -> sendTemplateSms(appId, templateId, phoneNumber, code, expires));
+    }
+
+    private String appId() {
         //请使用管理控制台中已创建应用的APPID
-        String appId = Optional.ofNullable(config.get(realm.getName().toLowerCase() + "-" + APP_ID_PARAM_NAME))
+        return Optional.ofNullable(config.get(realm.getName().toLowerCase() + "-" + APP_ID_PARAM_NAME))
                 .orElse(config.get(APP_ID_PARAM_NAME));
-        client.setAppId(appId);
+    }
 
+    private String templateId(TokenCodeType type, String kind) {
         String kindName = OptionalUtils.ofBlank(kind).orElse(type.name().toLowerCase());
-        String templateId = Optional.ofNullable(config.get(realm.getName().toLowerCase() + "-" + kindName + "-template"))
+        return Optional.ofNullable(config.get(realm.getName().toLowerCase() + "-" + kindName + "-template"))
             .orElse(config.get(kindName + "-template"));
+    }
+
+    private void sendTemplateSms(String appId, String templateId, String phoneNumber, String code, int expires)
+            throws MessageSendException {
+        if (appId == null) {
+            throw new MessageSendException(500, "", "No cloopen app configured");
+        }
+        CCPRestSmsSDK client = clients.apply(appId);
 
         logger.info(String.format("cloopen appId: %s ; templateId: %s", appId, templateId));
 
@@ -0,0 +1,116 @@
+package cc.coopersoft.keycloak.phone.providers.sender;
+
+import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
+import cc.coopersoft.keycloak.phone.providers.exception.MessageSendException;
+import cc.coopersoft.keycloak.phone.test.LocalHttpsServer;
+import cc.coopersoft.keycloak.phone.test.TestSessions;
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cost of a template SMS with a client built per session, as before the factory owned it, and with the
+ * factory's client of the app, against a local HTTPS stand-in for the Cloopen API. The SDK builds and closes
+ * an Apache client for every request, so neither reuses connections: the stand-in accepts one per send either
+ * way, as printed at the end, and what the shared client saves is building it and its account setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CloopenClientBenchmark {
+
+    private static final byte[] RESPONSE = ("{\"statusCode\":\"000000\",\"templateSMS\":" +
+        "{\"smsMessageSid\":\"ff8080813c373cab013c94b0f0512345\",\"dateCreated\":\"20130201155306\"}}")
+        .getBytes(StandardCharsets.UTF_8);
+
+    @Param({"perSession", "shared"})
+    public String client;
+
+    private final AtomicLong numbers = new AtomicLong();
+    private final AtomicLong sends = new AtomicLong();
+    private LocalHttpsServer server;
+    private Config.Scope config;
+    private KeycloakSession session;
+    private CloopenMessageSenderServiceProviderFactory factory;
+
+    @Setup
+    public void setup() throws Exception {
+        server = LocalHttpsServer.start(exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            exchange.getResponseHeaders().set("Content-Type", "application/json;charset=utf-8");
+            exchange.sendResponseHeaders(200, RESPONSE.length);
+            exchange.getResponseBody().write(RESPONSE);
+            exchange.close();
+        });
+        config = TestSessions.config(Map.of(
+            "account", "8a216da8000000000000000000000000",
+            "token", "benchmark",
+            "app", "8a216da8000000000000000000000001",
+            "otp-template", "1",
+            "endpoint", server.authority()));
+        session = TestSessions.benchmarkSession();
+        factory = new CloopenMessageSenderServiceProviderFactory();
+        factory.init(config);
+        factory.postInit(null);
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.out.printf("%n%s: %d connections opened for %d sends%n", client, server.connections(), sends.get());
+        factory.close();
+        server.close();
+    }
+
+    private void sendWithOwnClient(String phoneNumber) throws MessageSendException {
+        CloopenMessageSenderServiceProviderFactory own = new CloopenMessageSenderServiceProviderFactory();
+        own.init(config);
+        try {
+            own.create(session).sendSmsMessage(TokenCodeType.OTP, phoneNumber, "123456", 300, null);
+        } finally {
+            own.close();
+        }
+    }
+
+    private long send() throws MessageSendException {
+        long number = numbers.incrementAndGet();
+        String phoneNumber = "1390000" + String.format("%04d", number % 10000);
+        if (client.equals("shared")) {
+            factory.create(session).sendSmsMessage(TokenCodeType.OTP, phoneNumber, "123456", 300, null);
+        } else {
+            sendWithOwnClient(phoneNumber);
+        }
+        sends.incrementAndGet();
+        return number;
+    }
+
+    @Benchmark
+    public long singleThread() throws MessageSendException {
+        return send();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public long eightThreads() throws MessageSendException {
+        return send();
+    }
+}
@@ -0,0 +1,62 @@
+package cc.coopersoft.keycloak.phone.providers.sender;
+
+import cc.coopersoft.keycloak.phone.providers.representations.DeliveryReport;
+import cc.coopersoft.keycloak.phone.providers.spi.DeliveryReportParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.keycloak.util.JsonSerialization;
+
+import jakarta.ws.rs.core.MediaType;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the Tencent SMS status callback, reports keyed by the {@code SerialNo} SendSms returned.
+ */
+public class TencentDeliveryReportParser implements DeliveryReportParser {
+
+  private static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+  private static final ZoneId ZONE = ZoneId.of("Asia/Shanghai");
+
+  @Override
+  public List<DeliveryReport> parse(MediaType mediaType, String body) {
+    JsonNode statuses;
+    try {
+      statuses = JsonSerialization.readValue(body, JsonNode.class);
+    } catch (IOException e) {
+      throw new IllegalArgumentException("not json", e);
+    }
+    if (!statuses.isArray()) {
+      throw new IllegalArgumentException("not an array of statuses");
+    }
+    List<DeliveryReport> reports = new ArrayList<>();
+    for (JsonNode status : statuses) {
+      String sid = status.path("sid").asText(null);
+      if (sid == null) {
+        throw new IllegalArgumentException("sid missing");
+      }
+      String number = status.path("nationcode").asText("") + status.path("mobile").asText("");
+      if ("SUCCESS".equals(status.path("report_status").asText())) {
+        reports.add(new DeliveryReport(sid, number, DeliveryReport.Status.DELIVERED, null,
+            date(status.path("user_receive_time").asText(null))));
+      } else {
+        reports.add(new DeliveryReport(sid, number, DeliveryReport.Status.FAILED,
+            status.path("errmsg").asText(null), null));
+      }
+    }
+    return reports;
+  }
+
+  private static Instant date(String date) {
+    try {
+      return date == null ? null : LocalDateTime.parse(date, DATE).atZone(ZONE).toInstant();
+    } catch (DateTimeParseException e) {
+      return null;
+    }
+  }
+}
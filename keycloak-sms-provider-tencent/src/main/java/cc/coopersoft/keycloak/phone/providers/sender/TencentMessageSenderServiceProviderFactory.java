@@ -2,22 +2,60 @@ package cc.coopersoft.keycloak.phone.providers.sender;
 
 import cc.coopersoft.keycloak.phone.providers.spi.MessageSenderService;
 import cc.coopersoft.keycloak.phone.providers.spi.MessageSenderServiceProviderFactory;
+import com.tencentcloudapi.common.Credential;
+import com.tencentcloudapi.common.profile.ClientProfile;
+import com.tencentcloudapi.common.profile.HttpProfile;
+import com.tencentcloudapi.sms.v20190711.SmsClient;
 import org.keycloak.Config;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
 
+/**
+ * Owns the Tencent client for all sessions, so its connections are kept alive between sends. The SDK client wraps
+ * an OkHttp client, whose pool sharing should keep; no stand-in benchmark measures it, as the SDK does not
+ * resolve in every build.
+ */
 public class TencentMessageSenderServiceProviderFactory implements MessageSenderServiceProviderFactory {
 
   private Config.Scope config;
+  private SmsClient client;
 
   @Override
   public MessageSenderService create(KeycloakSession keycloakSession) {
-    return new TencentSmsSenderServiceProvider(config, keycloakSession.getContext().getRealm());
+    return new TencentSmsSenderServiceProvider(config, keycloakSession.getContext().getRealm(), client);
   }
 
   @Override
   public void init(Config.Scope config) {
     this.config = config;
+
+    /* 必要步骤：
+     * 实例化一个认证对象，入参需要传入腾讯云账户密钥对 secretId 和 secretKey
+     * CAM 密钥查询：https://console.cloud.tencent.com/cam/capi*/
+    Credential cred = new Credential(config.get("secret"), config.get("key"));
+
+    // SDK 超时时间以秒为单位
+    HttpProfile httpProfile = new HttpProfile();
+    httpProfile.setReqMethod("POST");
+    httpProfile.setConnTimeout(toSeconds(config.getInt("connectTimeout", 5000)));
+    httpProfile.setReadTimeout(toSeconds(config.getInt("requestTimeout", 10000)));
+    httpProfile.setWriteTimeout(toSeconds(config.getInt("requestTimeout", 10000)));
+    String endpoint = config.get("endpoint");
+    if (endpoint != null) {
+      // 访问金融区的服务时必须手动指定域名，例如 sms.ap-shanghai-fsi.tencentcloudapi.com
+      httpProfile.setEndpoint(endpoint);
+    }
+
+    ClientProfile clientProfile = new ClientProfile();
+    clientProfile.setHttpProfile(httpProfile);
+
+    /* 实例化 SMS 的 client 对象
+     * 第二个参数是地域信息，可以直接填写字符串 ap-guangzhou，或者引用预设的常量 */
+    this.client = new SmsClient(cred, config.get("region", "ap-guangzhou"), clientProfile);
+  }
+
+  private static int toSeconds(int millis) {
+    return Math.max(1, (millis + 999) / 1000);
   }
 
   @Override
@@ -2,66 +2,35 @@ package cc.coopersoft.keycloak.phone.providers.sender;
 
 import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
 import cc.coopersoft.keycloak.phone.providers.exception.MessageSendException;
+import cc.coopersoft.keycloak.phone.providers.representations.SendResult;
+import cc.coopersoft.keycloak.phone.providers.spi.BlockingSendExecutor;
 import cc.coopersoft.keycloak.phone.providers.spi.MessageSenderService;
 import cc.coopersoft.common.OptionalUtils;
-import com.tencentcloudapi.common.Credential;
 import com.tencentcloudapi.common.exception.TencentCloudSDKException;
 import com.tencentcloudapi.sms.v20190711.SmsClient;
 import com.tencentcloudapi.sms.v20190711.models.SendSmsRequest;
 import com.tencentcloudapi.sms.v20190711.models.SendSmsResponse;
+import com.tencentcloudapi.sms.v20190711.models.SendStatus;
 import org.keycloak.Config;
 import org.keycloak.models.RealmModel;
 
+import java.time.Duration;
 import java.util.Optional;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Supplier;
 
 public class TencentSmsSenderServiceProvider implements MessageSenderService {
 
   private static final String APP_ID_PARAM_NAME = "app";
   private static final String TEMPLATE_PARAM_NAME = "template";
-
   private final Config.Scope config;
   private final RealmModel realm;
   private final SmsClient client;
 
-  public TencentSmsSenderServiceProvider(Config.Scope config,RealmModel realm) {
-
+  public TencentSmsSenderServiceProvider(Config.Scope config, RealmModel realm, SmsClient client) {
     this.config = config;
     this.realm = realm;
-
-    /* 必要步骤：
-     * 实例化一个认证对象，入参需要传入腾讯云账户密钥对 secretId 和 secretKey
-     * 本示例采用从环境变量读取的方式，需要预先在环境变量中设置这两个值
-     * 您也可以直接在代码中写入密钥对，但需谨防泄露，不要将代码复制、上传或者分享给他人
-     * CAM 密钥查询：https://console.cloud.tencent.com/cam/capi*/
-    Credential cred = new Credential(config.get("secret"), config.get("key"));
-
-//      // 实例化一个 http 选项，可选，无特殊需求时可以跳过
-//      HttpProfile httpProfile = new HttpProfile();
-//      // 设置代理
-//      httpProfile.setProxyHost("host");
-//      httpProfile.setProxyPort(port);
-//      /* SDK 默认使用 POST 方法。
-//       * 如需使用 GET 方法，可以在此处设置，但 GET 方法无法处理较大的请求 */
-//      httpProfile.setReqMethod("POST");
-//      /* SDK 有默认的超时时间，非必要请不要进行调整
-//       * 如有需要请在代码中查阅以获取最新的默认值 */
-//      httpProfile.setConnTimeout(60);
-//      /* SDK 会自动指定域名，通常无需指定域名，但访问金融区的服务时必须手动指定域名
-//       * 例如 SMS 的上海金融区域名为 sms.ap-shanghai-fsi.tencentcloudapi.com */
-//      httpProfile.setEndpoint("sms.tencentcloudapi.com");
-
-//      /* 非必要步骤:
-//       * 实例化一个客户端配置对象，可以指定超时时间等配置 */
-//      ClientProfile clientProfile = new ClientProfile();
-//      /* SDK 默认用 TC3-HMAC-SHA256 进行签名
-//       * 非必要请不要修改该字段 */
-//      clientProfile.setSignMethod("HmacSHA256");
-//      clientProfile.setHttpProfile(httpProfile);
-    /* 实例化 SMS 的 client 对象
-     * 第二个参数是地域信息，可以直接填写字符串 ap-guangzhou，或者引用预设的常量 */
-//      SmsClient client = new SmsClient(cred, "",clientProfile);
-
-    client = new SmsClient(cred, config.get("region","ap-guangzhou"));
+    this.client = client;
   }
 
 
@@ -84,9 +53,7 @@ public class TencentSmsSenderServiceProvider implements MessageSenderService {
 
       /* 短信应用 ID: 在 [短信控制台] 添加应用后生成的实际 SDKAppID，例如1400006666 */
 
-      String appId = Optional.ofNullable(config.get(realm.getName().toLowerCase() + "-" + APP_ID_PARAM_NAME))
-              .orElse(config.get(APP_ID_PARAM_NAME));
-      req.setSmsSdkAppid(appId);
+      req.setSmsSdkAppid(appId());
       /* 短信签名内容: 使用 UTF-8 编码，必须填写已审核通过的签名，可登录 [短信控制台] 查看签名信息 */
       String sign = realm.getDisplayName();
       req.setSign(sign);
@@ -104,10 +71,7 @@ public class TencentSmsSenderServiceProvider implements MessageSenderService {
 //      req.setExtendCode(extendcode);
 
       /* 模板 ID: 必须填写已审核通过的模板 ID，可登录 [短信控制台] 查看模板 ID */
-      String kindName = OptionalUtils.ofBlank(kind).orElse(type.name().toLowerCase());
-      String templateId = Optional.ofNullable(config.get(realm.getName().toLowerCase() + "-" + kindName + "-template"))
-          .orElse(config.get(kindName + "-template"));
-      req.setTemplateID(templateId);
+      req.setTemplateID(templateId(type, kind));
 
       /* 下发手机号码，采用 e.164 标准，+[国家或地区码][手机号]
        * 例如+8613711112222， 其中前面有一个+号 ，86为国家码，13711112222为手机号，最多不要超过200个手机号*/
@@ -133,6 +97,66 @@ public class TencentSmsSenderServiceProvider implements MessageSenderService {
     }
   }
 
+  /**
+   * One SendSms request per message. A request applies one template parameter set to all of its numbers and
+   * no two codes share theirs, so batching codes saves no requests; the message id delivery reports refer to
+   * is the serial number of the send.
+   */
+  @Override
+  public CompletionStage<SendResult> sendSmsMessageAsync(TokenCodeType type, String phoneNumber, String code,
+                                                         int expires, String kind) {
+    return prepareSmsMessage(type, phoneNumber, code, expires, kind).get();
+  }
+
+  @Override
+  public Supplier<CompletionStage<SendResult>> prepareSmsMessage(TokenCodeType type, String phoneNumber, String code,
+                                                                 int expires, String kind) {
+    String appId = appId();
+    String sign = realm.getDisplayName();
+    String templateId = templateId(type, kind);
+    String[] templateParams = {code, String.valueOf(expires / 60)};
+    return () -> {
+      long start = System.nanoTime();
+      return BlockingSendExecutor.supply(() -> sendSms(appId, sign, templateId, templateParams, phoneNumber))
+          .thenApply(status -> new SendResult(SendResult.Status.ACCEPTED, status.getSerialNo(),
+              Duration.ofNanos(System.nanoTime() - start)));
+    };
+  }
+
+  private String appId() {
+    return Optional.ofNullable(config.get(realm.getName().toLowerCase() + "-" + APP_ID_PARAM_NAME))
+        .orElse(config.get(APP_ID_PARAM_NAME));
+  }
+
+  private String templateId(TokenCodeType type, String kind) {
+    String kindName = OptionalUtils.ofBlank(kind).orElse(type.name().toLowerCase());
+    return Optional.ofNullable(config.get(realm.getName().toLowerCase() + "-" + kindName + "-template"))
+        .orElse(config.get(kindName + "-template"));
+  }
+
+  private SendStatus sendSms(String appId, String sign, String templateId, String[] templateParams,
+                             String phoneNumber) throws MessageSendException {
+    SendSmsRequest req = new SendSmsRequest();
+    req.setSmsSdkAppid(appId);
+    req.setSign(sign);
+    req.setTemplateID(templateId);
+    req.setPhoneNumberSet(new String[]{phoneNumber});
+    req.setTemplateParamSet(templateParams);
+    SendSmsResponse res;
+    try {
+      res = client.SendSms(req);
+    } catch (TencentCloudSDKException e) {
+      throw new MessageSendException(500, e.getErrorCode(), e.getMessage());
+    }
+    SendStatus status = res.getSendStatusSet() == null || res.getSendStatusSet().length == 0
+        ? null : res.getSendStatusSet()[0];
+    if (status == null || !"Ok".equals(status.getCode())) {
+      throw new MessageSendException(500, status == null ? "" : status.getCode(),
+          status == null ? "no status returned" : status.getMessage());
+    }
+    return status;
+  }
+
   @Override
   public void close() {
 
@@ -0,0 +1,38 @@
+package cc.coopersoft.keycloak.phone.providers.sender;
+
+import cc.coopersoft.keycloak.phone.providers.representations.DeliveryReport;
+import org.junit.jupiter.api.Test;
+
+import jakarta.ws.rs.core.MediaType;
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class TencentDeliveryReportParserTest {
+
+  private final TencentDeliveryReportParser parser = new TencentDeliveryReportParser();
+
+  @Test
+  void statusesAreReadWithTheirNationCode() {
+    List<DeliveryReport> reports = parser.parse(MediaType.APPLICATION_JSON_TYPE, """
+        [{"sid": "S1", "nationcode": "86", "mobile": "13800000000", "report_status": "SUCCESS",
+          "user_receive_time": "2024-01-02 12:00:00"},
+         {"sid": "S2", "nationcode": "86", "mobile": "13800000001", "report_status": "FAIL",
+          "errmsg": "MK:0001"}]""");
+
+    assertEquals(List.of(
+        new DeliveryReport("S1", "8613800000000", DeliveryReport.Status.DELIVERED, null,
+            Instant.parse("2024-01-02T04:00:00Z")),
+        new DeliveryReport("S2", "8613800000001", DeliveryReport.Status.FAILED, "MK:0001", null)), reports);
+  }
+
+  @Test
+  void statusWithoutSidIsInvalid() {
+    assertThrows(IllegalArgumentException.class, () ->
+        parser.parse(MediaType.APPLICATION_JSON_TYPE, "[{\"mobile\": \"13800000000\"}]"));
+    assertThrows(IllegalArgumentException.class, () ->
+        parser.parse(MediaType.APPLICATION_JSON_TYPE, "{\"sid\": \"S1\"}"));
+  }
+}
@@ -1,23 +1,29 @@
 package cc.coopersoft.keycloak.phone.providers.sender;
 
+import br.com.totalvoice.TotalVoiceClient;
+import br.com.totalvoice.api.Sms;
 import cc.coopersoft.keycloak.phone.providers.spi.MessageSenderService;
 import cc.coopersoft.keycloak.phone.providers.spi.MessageSenderServiceProviderFactory;
 import org.keycloak.Config.Scope;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
 
+/**
+ * Owns the TotalVoice client for all sessions instead of building one for each. Whether the SDK then reuses
+ * connections between sends is not measured.
+ */
 public class TotalVoiceMessageSenderServiceProviderFactory implements MessageSenderServiceProviderFactory {
 
-    private Scope config;
+    private Sms smsClient;
 
     @Override
     public MessageSenderService create(KeycloakSession session) {
-        return new TotalVoiceSmsSenderServiceProvider(config, session.getContext().getRealm().getDisplayName());
+        return new TotalVoiceSmsSenderServiceProvider(smsClient, session.getContext().getRealm().getDisplayName());
     }
 
     @Override
     public void init(Scope config) {
-        this.config = config;
+        this.smsClient = new Sms(new TotalVoiceClient(config.get("token")));
     }
 
     @Override
@@ -1,21 +1,17 @@
 package cc.coopersoft.keycloak.phone.providers.sender;
 
-import br.com.totalvoice.TotalVoiceClient;
 import br.com.totalvoice.api.Sms;
 import cc.coopersoft.keycloak.phone.providers.spi.FullSmsSenderAbstractService;
 import cc.coopersoft.keycloak.phone.providers.exception.MessageSendException;
 import org.json.JSONObject;
-import org.keycloak.Config.Scope;
 
 public class TotalVoiceSmsSenderServiceProvider extends FullSmsSenderAbstractService {
 
-    private final TotalVoiceClient client;
     private final Sms smsClient;
 
-    TotalVoiceSmsSenderServiceProvider(Scope config, String realmDisplay) {
+    TotalVoiceSmsSenderServiceProvider(Sms smsClient, String realmDisplay) {
         super(realmDisplay);
-        this.client = new TotalVoiceClient(config.get("token"));
-        this.smsClient = new Sms(client);
+        this.smsClient = smsClient;
     }
 
     @Override
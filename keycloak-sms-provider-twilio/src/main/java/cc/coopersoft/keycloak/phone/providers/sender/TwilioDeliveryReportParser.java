@@ -0,0 +1,69 @@
+package cc.coopersoft.keycloak.phone.providers.sender;
+
+import cc.coopersoft.keycloak.phone.providers.representations.DeliveryReport;
+import cc.coopersoft.keycloak.phone.providers.spi.DeliveryReportParser;
+import com.twilio.security.RequestValidator;
+
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.MediaType;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the form Twilio posts to the {@code statusCallback} of a message, one per status change.
+ */
+public class TwilioDeliveryReportParser implements DeliveryReportParser {
+
+    static final String SIGNATURE_HEADER = "X-Twilio-Signature";
+
+    private final RequestValidator validator;
+
+    /**
+     * @param authToken the auth token of the account, null refuses every report
+     */
+    TwilioDeliveryReportParser(String authToken) {
+        this.validator = authToken == null ? null : new RequestValidator(authToken);
+    }
+
+    /**
+     * Twilio signs the url it posts to and the form with the auth token of the account.
+     */
+    @Override
+    public boolean verify(URI requestUri, HttpHeaders headers, String body) {
+        String signature = headers.getHeaderString(SIGNATURE_HEADER);
+        return validator != null && signature != null && validator.validate(requestUri.toString(), form(body), signature);
+    }
+
+    @Override
+    public List<DeliveryReport> parse(MediaType mediaType, String body) {
+        Map<String, String> form = form(body);
+        String sid = form.get("MessageSid");
+        String status = form.get("MessageStatus");
+        if (sid == null || status == null) {
+            throw new IllegalArgumentException("MessageSid or MessageStatus missing");
+        }
+        return switch (status) {
+            case "delivered" -> List.of(new DeliveryReport(sid, form.get("To"), DeliveryReport.Status.DELIVERED,
+                null, null));
+            case "undelivered", "failed" -> List.of(new DeliveryReport(sid, form.get("To"),
+                DeliveryReport.Status.FAILED, form.get("ErrorCode"), null));
+            default -> List.of();
+        };
+    }
+
+    private static Map<String, String> form(String body) {
+        Map<String, String> form = new HashMap<>();
+        for (String pair : body.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                form.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                    URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return form;
+    }
+}
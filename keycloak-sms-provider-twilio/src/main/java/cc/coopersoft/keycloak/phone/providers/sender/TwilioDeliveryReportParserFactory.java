@@ -0,0 +1,36 @@
+package cc.coopersoft.keycloak.phone.providers.sender;
+
+import cc.coopersoft.keycloak.phone.providers.spi.DeliveryReportParser;
+import cc.coopersoft.keycloak.phone.providers.spi.DeliveryReportParserProviderFactory;
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+
+public class TwilioDeliveryReportParserFactory implements DeliveryReportParserProviderFactory {
+
+    private static final Logger logger = Logger.getLogger(TwilioDeliveryReportParserFactory.class);
+
+    private TwilioDeliveryReportParser parser;
+
+    @Override
+    public DeliveryReportParser create(KeycloakSession session) {
+        return parser;
+    }
+
+    /**
+     * Signatures are checked with the token of the twilio sender unless given one of its own.
+     */
+    @Override
+    public void init(Config.Scope config) {
+        String token = config.get("token", Config.scope("messageSenderService", "twilio").get("token"));
+        if (token == null) {
+            logger.warn("No Twilio auth token to check delivery report signatures with, reports are refused");
+        }
+        this.parser = new TwilioDeliveryReportParser(token);
+    }
+
+    @Override
+    public String getId() {
+        return "twilio";
+    }
+}
@@ -2,22 +2,60 @@ package cc.coopersoft.keycloak.phone.providers.sender;
 
 import cc.coopersoft.keycloak.phone.providers.spi.MessageSenderService;
 import cc.coopersoft.keycloak.phone.providers.spi.MessageSenderServiceProviderFactory;
+import com.twilio.http.NetworkHttpClient;
+import com.twilio.http.TwilioRestClient;
+import org.apache.http.HttpHost;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.keycloak.Config.Scope;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
 
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Owns one Twilio client for all sessions, instead of resetting the global {@code Twilio} client with each
+ * session, with its own pool of connections to the Twilio API.
+ */
 public class TwilioMessageSenderServiceProviderFactory implements MessageSenderServiceProviderFactory {
 
     private Scope config;
+    private PoolingHttpClientConnectionManager connectionManager;
+    private TwilioRestClient client;
 
     @Override
     public MessageSenderService create(KeycloakSession session) {
-        return new TwilioSmsSenderServiceProvider(config,session.getContext().getRealm().getDisplayName());
+        return new TwilioSmsSenderServiceProvider(config, session, client);
     }
 
     @Override
     public void init(Scope config) {
         this.config = config;
+        int maxConnections = config.getInt("maxConnections", 50);
+        this.connectionManager = new PoolingHttpClientConnectionManager(
+            config.getLong("keepAlive", 60000L), TimeUnit.MILLISECONDS);
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+        int connectTimeout = config.getInt("connectTimeout", 5000);
+        RequestConfig requestConfig = RequestConfig.custom()
+            .setConnectTimeout(connectTimeout)
+            .setConnectionRequestTimeout(connectTimeout)
+            .setSocketTimeout(config.getInt("requestTimeout", 10000))
+            .build();
+        HttpClientBuilder httpClient = HttpClientBuilder.create()
+            .setConnectionManager(connectionManager)
+            .setDefaultRequestConfig(requestConfig);
+        String endpoint = config.get("endpoint");
+        if (endpoint != null) {
+            // the SDK always builds twilio.com URLs, so the connections are routed instead
+            HttpRoute route = new HttpRoute(HttpHost.create("https://" + endpoint), null, true);
+            httpClient.setRoutePlanner((target, request, context) -> route);
+        }
+        this.client = new TwilioRestClient.Builder(config.get("account"), config.get("token"))
+            .httpClient(new NetworkHttpClient(httpClient))
+            .build();
     }
 
     @Override
@@ -26,6 +64,9 @@ public class TwilioMessageSenderServiceProviderFactory implements MessageSenderS
 
     @Override
     public void close() {
+        if (connectionManager != null) {
+            connectionManager.shutdown();
+        }
     }
 
     @Override
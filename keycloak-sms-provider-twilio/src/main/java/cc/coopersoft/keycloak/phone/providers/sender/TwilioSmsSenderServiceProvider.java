@@ -1,39 +1,86 @@
 package cc.coopersoft.keycloak.phone.providers.sender;
 
-import com.twilio.Twilio;
+import com.twilio.exception.ApiException;
+import com.twilio.http.TwilioRestClient;
 import com.twilio.rest.api.v2010.account.Message;
+import com.twilio.rest.api.v2010.account.MessageCreator;
 import com.twilio.type.PhoneNumber;
 import cc.coopersoft.keycloak.phone.providers.exception.MessageSendException;
+import cc.coopersoft.keycloak.phone.providers.representations.SendResult;
 import cc.coopersoft.keycloak.phone.providers.spi.FullSmsSenderAbstractService;
 import org.jboss.logging.Logger;
 import org.keycloak.Config.Scope;
+import org.keycloak.models.KeycloakSession;
 
+import java.net.URI;
+import java.time.Duration;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Sends from the configured number, or through a Messaging Service when {@code messagingServiceSid} is set,
+ * in which case Twilio picks the sender. A routing table's sender id is sent from instead of either. Twilio
+ * reports delivery to {@code statusCallback} when set.
+ */
 public class TwilioSmsSenderServiceProvider extends FullSmsSenderAbstractService {
 
     private static final Logger logger = Logger.getLogger(TwilioSmsSenderServiceProvider.class);
+    private final TwilioRestClient client;
     private final String twilioPhoneNumber;
+    private final String messagingServiceSid;
+    private final String statusCallback;
 
-    TwilioSmsSenderServiceProvider(Scope config, String realmDisplay) {
-        super(realmDisplay);
-        Twilio.init(config.get("account"), config.get("token"));
+    TwilioSmsSenderServiceProvider(Scope config, KeycloakSession session, TwilioRestClient client) {
+        super(session);
+        this.client = client;
         this.twilioPhoneNumber = config.get("number");
-
+        this.messagingServiceSid = config.get("messagingServiceSid");
+        this.statusCallback = config.get("statusCallback");
     }
 
     @Override
     public void sendMessage(String phoneNumber, String message) throws MessageSendException {
+        try {
+            sendMessageAsync(phoneNumber, message).toCompletableFuture().join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof MessageSendException sendException) {
+                throw sendException;
+            }
+            throw new MessageSendException("Could not send message via twilio", e.getCause());
+        }
+    }
 
-        Message msg = Message.creator(
-                new PhoneNumber(phoneNumber),
-                new PhoneNumber(twilioPhoneNumber),
-                message).create();
+    @Override
+    public CompletionStage<SendResult> sendMessageAsync(String phoneNumber, String message) {
+        String senderId = routedSenderId();
+        MessageCreator creator = senderId == null && messagingServiceSid != null
+            ? Message.creator(new PhoneNumber(phoneNumber), messagingServiceSid, message)
+            : Message.creator(new PhoneNumber(phoneNumber),
+                new PhoneNumber(senderId != null ? senderId : twilioPhoneNumber), message);
+        if (statusCallback != null) {
+            creator.setStatusCallback(URI.create(statusCallback));
+        }
 
-        if (msg.getStatus() == Message.Status.FAILED) {
-            logger.error("message send failed!");
-            throw new MessageSendException(msg.getStatus().ordinal(),
+        long start = System.nanoTime();
+        return creator.createAsync(client).handle((msg, error) -> {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null
+                    ? error.getCause() : error;
+                logger.error("message send failed!", cause);
+                throw new CompletionException(cause instanceof ApiException apiException
+                    ? new MessageSendException(apiException.getStatusCode(),
+                        String.valueOf(apiException.getCode()), apiException.getMessage())
+                    : new MessageSendException("Could not send message via twilio", cause));
+            }
+            if (msg.getStatus() == Message.Status.FAILED) {
+                logger.error("message send failed!");
+                throw new CompletionException(new MessageSendException(msg.getStatus().ordinal(),
                     String.valueOf(msg.getErrorCode()),
-                    msg.getErrorMessage());
-        }
+                    msg.getErrorMessage()));
+            }
+            return new SendResult(SendResult.Status.ACCEPTED, msg.getSid(),
+                Duration.ofNanos(System.nanoTime() - start));
+        });
     }
 
     @Override
@@ -0,0 +1,120 @@
+package cc.coopersoft.keycloak.phone.providers.sender;
+
+import cc.coopersoft.keycloak.phone.providers.exception.MessageSendException;
+import cc.coopersoft.keycloak.phone.test.LocalHttpsServer;
+import cc.coopersoft.keycloak.phone.test.TestSessions;
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Messages per second eight threads send through the twilio sender against a local HTTPS stand-in for the
+ * Twilio REST API that answers after {@code latency} milliseconds:
+ * <ul>
+ *   <li>{@code clientPerSession} builds a client and its connection pool for every message, as the
+ *   {@code Twilio.init} of each session did before the factory owned the client;</li>
+ *   <li>{@code shared} sends on the factory's pooled client.</li>
+ * </ul>
+ * Connections the stand-in accepted are printed at the end.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TwilioClientBenchmark {
+
+    private static final String ACCOUNT = "AC00000000000000000000000000000000";
+    private static final String RESPONSE = """
+        {"sid": "SM%s", "account_sid": "%s", "status": "queued", "num_segments": "1", "direction": "outbound-api"}""";
+
+    @Param({"clientPerSession", "shared"})
+    public String client;
+
+    @Param({"0", "50"})
+    public long latency;
+
+    private final AtomicLong numbers = new AtomicLong();
+    private LocalHttpsServer server;
+    private Config.Scope config;
+    private KeycloakSession session;
+    private TwilioMessageSenderServiceProviderFactory factory;
+
+    @Setup
+    public void setup() throws Exception {
+        LocalHttpsServer.trustCertificate();
+        server = LocalHttpsServer.start(exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] body = RESPONSE.formatted(UUID.randomUUID().toString().replace("-", ""), ACCOUNT)
+                .getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(201, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        config = TestSessions.config(Map.of(
+            "account", ACCOUNT,
+            "token", "benchmark",
+            "number", "+15005550006",
+            "endpoint", server.authority(),
+            "maxConnections", "200"));
+        session = TestSessions.benchmarkSession();
+        factory = new TwilioMessageSenderServiceProviderFactory();
+        factory.init(config);
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.out.printf("%n%s, %d ms: %d connections opened%n", client, latency, server.connections());
+        factory.close();
+        server.close();
+    }
+
+    private String number() {
+        return "+1650253" + String.format("%04d", numbers.incrementAndGet() % 10000);
+    }
+
+    private void sendWithOwnClient() throws MessageSendException {
+        TwilioMessageSenderServiceProviderFactory own = new TwilioMessageSenderServiceProviderFactory();
+        own.init(config);
+        try {
+            ((TwilioSmsSenderServiceProvider) own.create(session)).sendMessage(number(), "Your code is 123456");
+        } finally {
+            own.close();
+        }
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void send() throws MessageSendException {
+        if (client.equals("clientPerSession")) {
+            sendWithOwnClient();
+        } else {
+            ((TwilioSmsSenderServiceProvider) factory.create(session)).sendMessage(number(), "Your code is 123456");
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package cc.coopersoft.keycloak.phone.providers.sender;
+
+import cc.coopersoft.keycloak.phone.providers.representations.DeliveryReport;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.MediaType;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class TwilioDeliveryReportParserTest {
+
+    private static final String AUTH_TOKEN = "12345";
+    private static final URI CALLBACK = URI.create("https://sso.example.com/realms/test/sms/delivery-report/twilio");
+    private static final String DELIVERED =
+        "MessageSid=SM1&MessageStatus=delivered&To=%2B12025550123&AccountSid=AC1";
+
+    private final TwilioDeliveryReportParser parser = new TwilioDeliveryReportParser(AUTH_TOKEN);
+
+    /**
+     * As Twilio signs: the url followed by the form's names and values in the order of the names.
+     */
+    private static String sign(String authToken, String data) throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA1");
+        mac.init(new SecretKeySpec(authToken.getBytes(StandardCharsets.UTF_8), "HmacSHA1"));
+        return Base64.getEncoder().encodeToString(mac.doFinal(data.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static HttpHeaders signature(String signature) {
+        HttpHeaders headers = mock(HttpHeaders.class);
+        when(headers.getHeaderString(TwilioDeliveryReportParser.SIGNATURE_HEADER)).thenReturn(signature);
+        return headers;
+    }
+
+    @Test
+    void statusChangesAreRead() {
+        assertEquals(List.of(new DeliveryReport("SM1", "+12025550123", DeliveryReport.Status.DELIVERED, null, null)),
+            parser.parse(MediaType.APPLICATION_FORM_URLENCODED_TYPE, DELIVERED));
+        assertEquals(List.of(new DeliveryReport("SM2", null, DeliveryReport.Status.FAILED, "30003", null)),
+            parser.parse(MediaType.APPLICATION_FORM_URLENCODED_TYPE,
+                "MessageSid=SM2&MessageStatus=undelivered&ErrorCode=30003"));
+        assertTrue(parser.parse(MediaType.APPLICATION_FORM_URLENCODED_TYPE,
+            "MessageSid=SM3&MessageStatus=sent").isEmpty());
+    }
+
+    @Test
+    void reportWithoutSidIsInvalid() {
+        assertThrows(IllegalArgumentException.class, () ->
+            parser.parse(MediaType.APPLICATION_FORM_URLENCODED_TYPE, "MessageStatus=delivered"));
+    }
+
+    @Test
+    void signedReportIsVerified() throws Exception {
+        String signature = sign(AUTH_TOKEN,
+            CALLBACK + "AccountSidAC1MessageSidSM1MessageStatusdeliveredTo+12025550123");
+
+        assertTrue(parser.verify(CALLBACK, signature(signature), DELIVERED));
+    }
+
+    @Test
+    void reportSignedWithAnotherTokenOrUnsignedIsRefused() throws Exception {
+        String signature = sign("other",
+            CALLBACK + "AccountSidAC1MessageSidSM1MessageStatusdeliveredTo+12025550123");
+
+        assertFalse(parser.verify(CALLBACK, signature(signature), DELIVERED));
+        assertFalse(parser.verify(CALLBACK, signature(null), DELIVERED));
+        assertFalse(new TwilioDeliveryReportParser(null).verify(CALLBACK, signature(signature), DELIVERED));
+    }
+}
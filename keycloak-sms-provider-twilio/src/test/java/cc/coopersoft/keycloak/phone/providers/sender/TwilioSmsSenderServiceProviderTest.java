@@ -0,0 +1,124 @@
+package cc.coopersoft.keycloak.phone.providers.sender;
+
+import cc.coopersoft.keycloak.phone.providers.exception.MessageSendException;
+import cc.coopersoft.keycloak.phone.providers.representations.SendResult;
+import cc.coopersoft.keycloak.phone.test.LocalHttpsServer;
+import cc.coopersoft.keycloak.phone.test.TestSessions;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class TwilioSmsSenderServiceProviderTest {
+
+    private static final String ACCOUNT = "AC00000000000000000000000000000000";
+
+    private final AtomicInteger status = new AtomicInteger();
+    private final AtomicReference<String> response = new AtomicReference<>();
+    private LocalHttpsServer server;
+    private TwilioMessageSenderServiceProviderFactory factory;
+    private KeycloakSession session;
+
+    @BeforeAll
+    static void trust() {
+        LocalHttpsServer.trustCertificate();
+    }
+
+    private TwilioSmsSenderServiceProvider sender(int status, String response) throws Exception {
+        this.status.set(status);
+        this.response.set(response);
+        server = LocalHttpsServer.start(exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            byte[] body = this.response.get().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(this.status.get(), body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        factory = new TwilioMessageSenderServiceProviderFactory();
+        factory.init(TestSessions.config(Map.of(
+            "account", ACCOUNT,
+            "token", "test",
+            "number", "+15005550006",
+            "endpoint", server.authority())));
+        RealmModel realm = TestSessions.realm("realm-id", "test");
+        when(realm.getDisplayName()).thenReturn("Test");
+        KeycloakContext context = mock(KeycloakContext.class);
+        when(context.getRealm()).thenReturn(realm);
+        session = mock(KeycloakSession.class);
+        when(session.getContext()).thenReturn(context);
+        return (TwilioSmsSenderServiceProvider) factory.create(session);
+    }
+
+    @AfterEach
+    void stop() {
+        factory.close();
+        server.close();
+    }
+
+    private static MessageSendException failure(TwilioSmsSenderServiceProvider sender) {
+        CompletionException e = assertThrows(CompletionException.class, () ->
+            sender.sendMessageAsync("+12025550123", "Your code is 123456").toCompletableFuture().join());
+        return assertInstanceOf(MessageSendException.class, e.getCause());
+    }
+
+    @Test
+    void acceptedMessageCompletesWithItsSid() throws Exception {
+        TwilioSmsSenderServiceProvider sender = sender(201,
+            "{\"sid\": \"SM1\", \"account_sid\": \"" + ACCOUNT + "\", \"status\": \"queued\"}");
+
+        SendResult result = sender.sendMessageAsync("+12025550123", "Your code is 123456").toCompletableFuture().join();
+
+        assertEquals(SendResult.Status.ACCEPTED, result.getStatus());
+        assertEquals("SM1", result.getProviderMessageId());
+    }
+
+    @Test
+    void rejectedRequestFailsWithTheTwilioError() throws Exception {
+        TwilioSmsSenderServiceProvider sender = sender(400,
+            "{\"code\": 21211, \"message\": \"The 'To' number is not a valid phone number.\", \"status\": 400}");
+
+        MessageSendException e = failure(sender);
+
+        assertEquals(400, e.getStatusCode());
+        assertEquals("21211", e.getErrorCode());
+        assertEquals("The 'To' number is not a valid phone number.", e.getErrorMessage());
+    }
+
+    @Test
+    void failedMessageFailsWithItsErrorCode() throws Exception {
+        TwilioSmsSenderServiceProvider sender = sender(201,
+            "{\"sid\": \"SM1\", \"account_sid\": \"" + ACCOUNT + "\", \"status\": \"failed\", \"error_code\": 30003,"
+                + " \"error_message\": \"Unreachable destination handset\"}");
+
+        MessageSendException e = failure(sender);
+
+        assertEquals("30003", e.getErrorCode());
+        assertEquals("Unreachable destination handset", e.getErrorMessage());
+    }
+
+    @Test
+    void blockingSendThrowsTheSameError() throws Exception {
+        TwilioSmsSenderServiceProvider sender = sender(400,
+            "{\"code\": 21211, \"message\": \"The 'To' number is not a valid phone number.\", \"status\": 400}");
+
+        MessageSendException e = assertThrows(MessageSendException.class, () ->
+            sender.sendMessage("+12025550123", "Your code is 123456"));
+
+        assertEquals("21211", e.getErrorCode());
+    }
+}
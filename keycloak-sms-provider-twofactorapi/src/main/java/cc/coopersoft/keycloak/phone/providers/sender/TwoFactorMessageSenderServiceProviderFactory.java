@@ -6,18 +6,22 @@ import org.keycloak.Config.Scope;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
 
+import java.time.Duration;
+
 public class TwoFactorMessageSenderServiceProviderFactory implements MessageSenderServiceProviderFactory {
 
     private Scope config;
+    private Duration requestTimeout;
 
     @Override
     public MessageSenderService create(KeycloakSession session) {
-        return new TwoFactorSmsSenderServiceProvider(config,session.getContext().getRealm().getDisplayName());
+        return new TwoFactorSmsSenderServiceProvider(config, session, requestTimeout);
     }
 
     @Override
     public void init(Scope config) {
         this.config = config;
+        this.requestTimeout = Duration.ofMillis(config.getLong("requestTimeout", 10000L));
     }
 
     @Override
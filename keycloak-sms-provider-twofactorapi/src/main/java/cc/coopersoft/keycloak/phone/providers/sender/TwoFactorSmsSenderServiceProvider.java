@@ -1,57 +1,50 @@
 package cc.coopersoft.keycloak.phone.providers.sender;
 
 import cc.coopersoft.keycloak.phone.providers.exception.MessageSendException;
-import cc.coopersoft.keycloak.phone.providers.spi.FullSmsSenderAbstractService;
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.Response;
+import cc.coopersoft.keycloak.phone.providers.representations.SendResult;
+import cc.coopersoft.keycloak.phone.providers.spi.AsyncHttpSmsSenderAbstractService;
 import org.jboss.logging.Logger;
 import org.keycloak.Config.Scope;
+import org.keycloak.models.KeycloakSession;
 
-import javax.annotation.PostConstruct;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 
-public class TwoFactorSmsSenderServiceProvider extends FullSmsSenderAbstractService {
+public class TwoFactorSmsSenderServiceProvider extends AsyncHttpSmsSenderAbstractService {
 
     private static final Logger logger = Logger.getLogger(TwoFactorSmsSenderServiceProvider.class);
-    private String twoFactorApiKey;
+    private final String twoFactorApiKey;
     private static final String twoFactorUrl = "https://2factor.in/API/V1/";
-    private OkHttpClient client;
 
-    @PostConstruct
-    public void doSetUp() {
-        client = new OkHttpClient().newBuilder()
-                .build();
-    }
-
-    TwoFactorSmsSenderServiceProvider(Scope config, String realmDisplay) {
-        super(realmDisplay);
+    TwoFactorSmsSenderServiceProvider(Scope config, KeycloakSession session, Duration requestTimeout) {
+        super(session, requestTimeout);
         this.twoFactorApiKey = config.get("twoFactorApiKey");
-
     }
 
     @Override
-    public void sendMessage(String phoneNumber, String message) throws MessageSendException {
-
-        Request request = new Request.Builder()
-                .url(twoFactorUrl + twoFactorApiKey + "/SMS/" + phoneNumber + "/AUTOGEN/OTP1")
-                .get()
-                .build();
-        try (Response response = client.newCall(request).execute()) {
-            String responseString = response.body().string();
-            if (response.isSuccessful()) {
-                logger.info(responseString + ": sms sent successfully");
-            } else {
-                logger.error(responseString + ": sms sending failed");
-                throw new MessageSendException(response.code(),
-                        String.valueOf(response.code()),
-                        response.message());
+    public CompletionStage<SendResult> sendMessageAsync(String phoneNumber, String message) {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(twoFactorUrl + twoFactorApiKey + "/SMS/"
+                        + URLEncoder.encode(phoneNumber, StandardCharsets.UTF_8) + "/AUTOGEN/OTP1"))
+                .GET();
+        long start = System.nanoTime();
+        return send(request).handle((response, error) -> {
+            if (error != null) {
+                logger.error(error.getMessage());
+                throw new CompletionException(new MessageSendException(400, String.valueOf(400), error.getMessage()));
+            }
+            if (!isSuccess(response)) {
+                logger.error(response.body() + ": sms sending failed");
+                throw new CompletionException(new MessageSendException(response.statusCode(),
+                        String.valueOf(response.statusCode()), response.body()));
             }
-        } catch (Exception e) {
-            logger.error(e.getMessage());
-            throw new MessageSendException(400,
-                    String.valueOf(400),
-                    e.getMessage());
-        }
+            logger.info(response.body() + ": sms sent successfully");
+            return new SendResult(SendResult.Status.ACCEPTED, null, Duration.ofNanos(System.nanoTime() - start));
+        });
     }
 
     @Override
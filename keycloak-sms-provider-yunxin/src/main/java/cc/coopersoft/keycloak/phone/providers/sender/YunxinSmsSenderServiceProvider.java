@@ -2,27 +2,37 @@ package cc.coopersoft.keycloak.phone.providers.sender;
 
 import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
 import cc.coopersoft.keycloak.phone.providers.exception.MessageSendException;
-import cc.coopersoft.keycloak.phone.providers.spi.MessageSenderService;
+import cc.coopersoft.keycloak.phone.providers.representations.OutgoingMessage;
+import cc.coopersoft.keycloak.phone.providers.representations.SendResult;
+import cc.coopersoft.keycloak.phone.providers.spi.AsyncHttpSmsSenderAbstractService;
 import cc.coopersoft.common.OptionalUtils;
-import org.apache.http.HttpHeaders;
-import org.apache.http.HttpResponse;
-import org.apache.http.NameValuePair;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.message.BasicHeader;
-import org.apache.http.message.BasicNameValuePair;
-import org.apache.http.util.EntityUtils;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.jboss.logging.Logger;
 import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
+import org.keycloak.util.JsonSerialization;
 
 import java.io.IOException;
-import java.util.ArrayList;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
-public class YunxinSmsSenderServiceProvider implements MessageSenderService {
+public class YunxinSmsSenderServiceProvider extends AsyncHttpSmsSenderAbstractService {
+
+  private static final Logger logger = Logger.getLogger(YunxinSmsSenderServiceProvider.class);
 
   private final Config.Scope config;
   private final RealmModel realm;
@@ -35,15 +45,29 @@ public class YunxinSmsSenderServiceProvider implements MessageSenderService {
 //  //验证码长度，范围4～10，默认为4
 //  private static final String CODELEN="6";
 
-  public YunxinSmsSenderServiceProvider(Config.Scope config, RealmModel realm) {
+  public YunxinSmsSenderServiceProvider(Config.Scope config, KeycloakSession session, Duration requestTimeout) {
+    super(session, requestTimeout);
     this.config = config;
-    this.realm = realm;
+    this.realm = session.getContext().getRealm();
   }
 
   @Override
   public void sendSmsMessage(TokenCodeType type, String phoneNumber, String code, int expires, String kind) throws MessageSendException {
+    await(sendSmsMessageAsync(type, phoneNumber, code, expires, kind));
+  }
+
+  @Override
+  public CompletionStage<SendResult> sendSmsMessageAsync(TokenCodeType type, String phoneNumber, String code,
+                                                         int expires, String kind) {
+    return prepareSmsMessage(type, phoneNumber, code, expires, kind).get();
+  }
 
-    HttpPost httpPost = new HttpPost(SERVER_URL);
+  /**
+   * The request is built on the calling thread, which reads the templates of the realm.
+   */
+  @Override
+  public Supplier<CompletionStage<SendResult>> prepareSmsMessage(TokenCodeType type, String phoneNumber, String code,
+                                                                 int expires, String kind) {
     String curTime = String.valueOf((new Date()).getTime() / 1000L);
     /*
      * 参考计算CheckSum的java代码，在上述文档的参数列表中，有CheckSum的计算文档示例
@@ -51,7 +75,6 @@ public class YunxinSmsSenderServiceProvider implements MessageSenderService {
     String checkSum = CheckSumBuilder.getCheckSum(config.get("secret"), code, curTime);
 
     // 设置请求的的参数，requestBody参数
-    List<NameValuePair> nvps = new ArrayList<>();
     /*
      * 1.如果是模板短信，请注意参数mobile是有s的，详细参数配置请参考“发送模板短信文档”
      * 2.参数格式是jsonArray的格式，例如 "['13888888888','13666666666']"
@@ -60,30 +83,68 @@ public class YunxinSmsSenderServiceProvider implements MessageSenderService {
     String kindName = OptionalUtils.ofBlank(kind).orElse(type.name().toLowerCase());
     String templateId = Optional.ofNullable(config.get(realm.getName().toLowerCase() + "-" + kindName + "-template"))
         .orElse(config.get(kindName + "-template"));
-    nvps.add(new BasicNameValuePair("templateid", templateId));
-    nvps.add(new BasicNameValuePair("mobile", phoneNumber));
-    nvps.add(new BasicNameValuePair("codeLen", String.valueOf(code.length())));
-
+    Map<String, String> params = new LinkedHashMap<>();
+    params.put("templateid", templateId);
+    params.put("mobile", phoneNumber);
+    params.put("codeLen", String.valueOf(code.length()));
+
+    HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(SERVER_URL))
+        .header("Content-Type", "application/x-www-form-urlencoded;charset=utf-8")
+        .header("AppKey", Optional.ofNullable(config.get(realm.getName().toLowerCase() + "-app")).orElse(config.get("app")))
+        .header("Nonce", code)
+        .header("CurTime", curTime)
+        .header("CheckSum", checkSum)
+        .POST(HttpRequest.BodyPublishers.ofString(formBody(params)));
 
     // 执行请求
+    return () -> {
+      long start = System.nanoTime();
+      return send(request).thenApply(response -> {
+        /*
+         * 1.打印执行结果，打印结果一般会200、315、403、404、413、414、500
+         * 2.具体的code有问题的可以参考官网的Code状态表
+         */
+        logger.debug(response.body());
+        JsonNode result = parse(response.body());
+        String resultCode = result.path("code").asText(String.valueOf(response.statusCode()));
+        if (!isSuccess(response) || !"200".equals(resultCode)) {
+          throw new CompletionException(new MessageSendException(response.statusCode(), resultCode,
+              result.path("msg").asText(response.body())));
+        }
+        return new SendResult(SendResult.Status.ACCEPTED, result.path("msg").asText(null),
+            Duration.ofNanos(System.nanoTime() - start));
+      });
+    };
+  }
+
+  /**
+   * Yunxin only sends template codes, so messages of a batch go out one by one.
+   */
+  @Override
+  public List<CompletionStage<SendResult>> sendBatch(List<OutgoingMessage> messages) {
+    return messages.stream()
+        .map(m -> sendSmsMessageAsync(m.getType(), m.getPhoneNumber(), m.getCode(), m.getExpires(), m.getKind()))
+        .toList();
+  }
+
+  @Override
+  public CompletionStage<SendResult> sendMessageAsync(String phoneNumber, String message) {
+    return CompletableFuture.failedFuture(new MessageSendException(500, "", "Yunxin only sends template codes"));
+  }
+
+  private static String formBody(Map<String, String> params) {
+    return params.entrySet().stream()
+        .map(e -> URLEncoder.encode(e.getKey(), StandardCharsets.UTF_8) + "=" +
+            URLEncoder.encode(e.getValue() == null ? "" : e.getValue(), StandardCharsets.UTF_8))
+        .collect(Collectors.joining("&"));
+  }
+
+  private static JsonNode parse(String body) {
     try {
-      /*
-       * 1.打印执行结果，打印结果一般会200、315、403、404、413、414、500
-       * 2.具体的code有问题的可以参考官网的Code状态表
-       */
-      httpPost.setEntity(new UrlEncodedFormEntity(nvps, "utf-8"));
-      HttpResponse response = HttpClientBuilder.create().setDefaultHeaders(List.of(
-              new BasicHeader(HttpHeaders.CONTENT_TYPE, "application/x-www-form-urlencoded;charset=utf-8"),
-              new BasicHeader("AppKey",Optional.ofNullable(config.get(realm.getName().toLowerCase() + "-app")).orElse(config.get("app"))),
-              new BasicHeader("Nonce",code),
-              new BasicHeader("CurTime",curTime),
-              new BasicHeader("CheckSum",checkSum)))
-              .build().execute(httpPost);
-      System.out.println(EntityUtils.toString(response.getEntity(), "utf-8"));
+      return JsonSerialization.readValue(body, JsonNode.class);
     } catch (IOException e) {
-      e.printStackTrace();
+      return JsonSerialization.mapper.missingNode();
     }
-
   }
 
   @Override